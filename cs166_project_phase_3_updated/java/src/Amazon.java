@@ -6,25 +6,34 @@
  
  Target DBMS: 'Postgres' */
 
-import java.sql.DriverManager;
-import java.sql.Connection;
-import java.sql.Statement;
-import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.io.File;
+import java.io.FileWriter;
+import java.io.BufferedWriter;
+import java.io.Writer;
+import java.io.IOException;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.List;
+import java.util.Map;
+import java.util.HashMap;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
 import java.lang.Math;
 
 //This class defines a simple embedded SQL utility class that is designed to work with PostgreSQL JDBC drivers.
 public class Amazon {
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // reference to the data: Postgres, or tables held in memory
+   private AmazonRepository repository = null;
 
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
@@ -49,8 +58,9 @@ public class Amazon {
          System.out.println ("Connection URL: " + url + "\n");
 
          // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         this.repository = JdbcRepository.connect(dbname, dbport, user, passwd);
          System.out.println("Done");
+         listen(dbname, dbport, user, passwd);
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
          System.out.println("Make sure you started postgres on this machine");
@@ -58,188 +68,160 @@ public class Amazon {
       }//end catch
    }
 
-   // Method to calculate euclidean distance between two latitude, longitude pairs. 
-   public double calculateDistance (double lat1, double long1, double lat2, double long2){
-      double t1 = (lat1 - lat2) * (lat1 - lat2);
-      double t2 = (long1 - long2) * (long1 - long2);
-      return Math.sqrt(t1 + t2); 
-   }
    /*
-    * Method to execute an update SQL statement.  Update SQL instructions
-    * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
-    *
-    * @param sql the input SQL string
-    * @throws java.sql.SQLException when update failed
+    * Starts hearing of the changes anyone makes to a database, so the caches
+    * follow them: the database of the plain connection, every shard, or the
+    * primary of the replicas. In memory nobody else changes the data.
     */
-   public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the update instruction
-      stmt.executeUpdate (sql);
-
-      // close the instruction
-      stmt.close ();
+   public void listen(String dbname, String dbport, String user, String passwd) {
+      try {
+         // other instances' changes, collected here and applied between menu choices
+         final Set<InvalidationListener.Key> pending = this.invalidated;
+         this.invalidations.add(InvalidationListener.start(dbname, dbport, user, passwd, keys -> pending.addAll(keys), 100, 50));
+      }
+      catch (SQLException e) {
+         this.deaf = true;
+         System.err.println("Cache invalidation is off for port " + dbport + ": " + e.getMessage());
+      }
    }
 
    /*
-    * Method to execute an input query SQL instruction (i.e. SELECT).  This
-    * method issues the query to the DBMS and outputs the results to
-    * standard out.
+    * Creates a new instance of Amazon store on the given data, e.g. an
+    * InMemoryRepository loaded from the CSV files
     *
-    * @param query the input query string
-    * @return the number of rows returned
-    * @throws java.sql.SQLException when failed to execute the query
+    * @param repository where users, stores, products and orders are kept
     */
-   public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-		 if(outputHeader){
-			for(int i = 1; i <= numCol; i++){
-			System.out.print(rsmd.getColumnName(i) + "\t");
-			}
-			System.out.println();
-			outputHeader = false;
-		 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close ();
-      return rowCount;
+   public Amazon(AmazonRepository repository) {
+      this.repository = repository;
    }
 
-   /*
-    * Method to execute an input query SQL instruction (i.e. SELECT).  This
-    * method issues the query to the DBMS and returns the results as
-    * a list of records. Each record in turn is a list of attribute values
-    *
-    * @param query the input query string
-    * @return the query result as a list of records
-    * @throws java.sql.SQLException when failed to execute the query
-    */
-   public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
-      List<List<String>> result  = new ArrayList<List<String>>();
-      while (rs.next()){
-        List<String> record = new ArrayList<String>();
-		for (int i=1; i<=numCol; ++i)
-			record.add(rs.getString (i));
-        result.add(record);
-      }//end while
-      stmt.close ();
-      return result;
+   // Method to calculate euclidean distance between two latitude, longitude pairs. 
+   public double calculateDistance (double lat1, double long1, double lat2, double long2){
+      double t1 = (lat1 - lat2) * (lat1 - lat2);
+      double t2 = (long1 - long2) * (long1 - long2);
+      return Math.sqrt(t1 + t2); 
    }
-
    /*
-    * Method to execute an input query SQL instruction (i.e. SELECT).  This
-    * method issues the query to the DBMS and returns the number of results
+    * Method to print rows the way query results have always been printed: the
+    * column names, then one line per row, every value followed by a tab.
+    * Nothing is printed when there are no rows.
     *
-    * @param query the input query string
-    * @return the number of rows returned
-    * @throws java.sql.SQLException when failed to execute the query
+    * @param columns the column names
+    * @param rows the rows, one value per column
+    * @return the number of rows printed
     */
-   public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
-
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
-
-       int rowCount = 0;
-
-       // iterates through the result set and count nuber of results.
-       while (rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
+   public static int printResult(String[] columns, List<Object[]> rows) {
+      try {
+         ResultRenderer out = ResultRenderer.console(ResultRenderer.Format.TABS, columns, null);
+         for (Object[] row : rows) {
+            out.row(row);
+         }
+         return out.finish();
+      }
+      catch (IOException e) {
+         System.err.println("Error: " + e.getMessage());
+         return 0;
+      }
    }
 
    /*
-    * Method to fetch the last value from sequence. This
-    * method issues the query to the DBMS and returns the current
-    * value of sequence used for autogenerated keys
+    * Asks where a long listing goes: the screen as printResult prints it, or
+    * a file, as CSV or JSON lines when the name ends in .csv or .json and as
+    * an aligned table otherwise.
     *
-    * @param sequence name of the DB sequence
-    * @return current value of a sequence
-    * @throws java.sql.SQLException when failed to execute the query
+    * @param columns the column names
+    * @param widths the table widths of the columns, null for the widths of the names
+    * @return the renderer to add the rows to
     */
-   public int getCurrSeqVal(String sequence) throws SQLException {
-      Statement stmt = this._connection.createStatement ();
-
-      ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-      if (rs.next())
-         return rs.getInt(1);
-      return -1;
+   public static ResultRenderer openOutput(String[] columns, int[] widths) throws IOException {
+      System.out.print("Save to file (blank to show here): ");
+      String path = in.readLine().trim();
+      if (path.isEmpty()) {
+         return ResultRenderer.console(ResultRenderer.Format.TABS, columns, null);
+      }
+      return ResultRenderer.file(path, ResultRenderer.formatOf(path), columns, widths);
    }
 
    /*
     * Method to close the physical connection if it is open.
     */
    public void cleanup(){
-      try{
-         if (this._connection != null){
-            this._connection.close ();
-         }//end if
-      }catch (SQLException e){
-         // ignored.
-      }//end try
+      if (this.async != null){
+         this.async.close();
+      }//end if
+      if (this.fulfillment != null){
+         this.fulfillment.shutdown(); // a batch on its way arrives first
+      }//end if
+      if (this.events != null){
+         this.events.shutdown(); // the consumers finish what was published
+      }//end if
+      for (InvalidationListener listener : this.invalidations){
+         listener.close();
+      }//end for
+      if (this.repository != null){
+         this.repository.close ();
+      }//end if
    }
 
     //The main execution method
     //@param args the command line arguments this inclues the <mysql|pgsql> <login file>
    public static void main (String[] args) {
-      if (args.length != 3) {
+      boolean inMemory = args.length == 2 && args[0].equals("-memory");
+      boolean memoryShards = args.length == 3 && args[0].equals("-memory-shards");
+      boolean sharded = args.length >= 4 && args[0].equals("-shards");
+      boolean database = args.length == 3 && !args[0].startsWith("-");
+      boolean replicated = args.length >= 5 && !args[0].startsWith("-") && args[3].equals("-replicas");
+      if (!database && !inMemory && !memoryShards && !sharded && !replicated) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             Amazon.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname> <port> <user> [-replicas <port> [<port> ...]] | -memory <dataDir> | -shards <dbname> <user> <port> [<port> ...] | -memory-shards <dataDir> <shards>");
          return;
       }
 
       Greeting();
       Amazon esql = null;
       try{
-         // use postgres JDBC driver.
-         Class.forName ("org.postgresql.Driver").newInstance ();
-         // instantiate the Amazon object and creates a physical connection
-         String dbname = args[0];
-         String dbport = args[1];
-         String user = args[2];
-         esql = new Amazon (dbname, dbport, user, "");
+         // where the background threads get their repositories; the async calls' see the session's writes
+         AmazonRepository.Source source, asyncSource = null;
+         if (inMemory) {
+            // the tables of load_data.sql, held in memory; nothing is saved
+            esql = new Amazon (InMemoryRepository.load(new File(args[1])));
+            source = AmazonRepository.Source.shared(esql.repository);
+         }
+         else if (memoryShards) {
+            esql = new Amazon (ShardedRepository.loadMemory(new File(args[1]), Integer.parseInt(args[2])));
+            source = AmazonRepository.Source.shared(esql.repository);
+         }
+         else if (sharded) {
+            // one local postgres instance per port, loaded by sql/scripts/create_shards.sh
+            esql = new Amazon (ShardedRepository.connect(args[1], Arrays.asList(args).subList(3, args.length), args[2], ""));
+            source = () -> ShardedRepository.connect(args[1], Arrays.asList(args).subList(3, args.length), args[2], "");
+            for (String port : Arrays.asList(args).subList(3, args.length)) esql.listen(args[1], port, args[2], "");
+         }
+         else if (replicated) {
+            // reads go to the streaming replicas on these ports, writes to the primary
+            esql = new Amazon (ReplicatedRepository.connect(args[0], args[1], Arrays.asList(args).subList(4, args.length), args[2], ""));
+            source = () -> ReplicatedRepository.connect(args[0], args[1], Arrays.asList(args).subList(4, args.length), args[2], "");
+            final AtomicLong written = ReplicatedRepository.of(esql.repository).writePosition();
+            asyncSource = () -> ReplicatedRepository.connect(args[0], args[1], Arrays.asList(args).subList(4, args.length), args[2], "", written);
+            // the replicas replay the primary's Invalidations but can not NOTIFY
+            esql.listen(args[0], args[1], args[2], "");
+         }
+         else {
+            // use postgres JDBC driver.
+            Class.forName ("org.postgresql.Driver").newInstance ();
+            // instantiate the Amazon object and creates a physical connection
+            String dbname = args[0];
+            String dbport = args[1];
+            String user = args[2];
+            esql = new Amazon (dbname, dbport, user, "");
+            // every thread on a connection of its own
+            source = () -> JdbcRepository.connect(dbname, dbport, user, "");
+         }
+         esql.startAsync(asyncSource != null ? asyncSource : source);
+         esql.startFulfillment(source);
 
          boolean keepon = true;
          while(keepon) {
@@ -260,9 +242,9 @@ public class Amazon {
             }
             if (authorisedUser != null) {
               boolean usermenu = true;
-              loadNearbyStores(esql);
-              loadManagers(esql);
               while(usermenu) {
+               applyInvalidations(esql);
+               applyReceivedSupplies(esql);
                System.out.println("MAIN MENU");
                System.out.println("---------");
                System.out.println("1. View Stores within 30 miles");
@@ -284,6 +266,7 @@ public class Amazon {
                   System.out.println("8. View 5 Popular Customers");
                   System.out.println("9. Place Product Supply Request to Warehouse");
                   System.out.println("10. View Product Supply Requests");
+                  System.out.println("19. Bulk update products");
                }
 
                //admin functions
@@ -292,8 +275,13 @@ public class Amazon {
                   System.out.println("12. Update a user");
                   System.out.println("13. List all products");
                   System.out.println("14. Update a product");
+                  System.out.println("15. View sales dashboard");
                }
 
+               System.out.println("16. Search products in nearby stores");
+               System.out.println("17. Find nearest stores with a product in stock");
+               System.out.println("18. Shopping cart");
+
                System.out.println(".........................");
                System.out.println("20. Log out");
 
@@ -322,8 +310,20 @@ public class Amazon {
                            viewAllProducts(esql); break;
                   case 14: if(!esql.userType.equals("admin")){System.out.println("Unrecognized choice!"); break;}
                            updateAnyProduct(esql); break;
-
-                  case 20: usermenu = false; break;
+                  case 15: if(!esql.userType.equals("admin")){System.out.println("Unrecognized choice!"); break;}
+                           viewSalesDashboard(esql); break;
+                  case 16: searchProducts(esql); break;
+                  case 17: findStoresWithStock(esql); break;
+                  case 18: cartMenu(esql); break;
+                  case 19: if(esql.userType.equals("customer")){System.out.println("Unrecognized choice!"); break;}
+                           bulkUpdateProducts(esql); break;
+
+                  case 20: usermenu = false;
+                           if (esql.cart != null) {
+                              esql.cart.clear();
+                              esql.cart = null;
+                           }
+                           break;
                   default : System.out.println("Unrecognized choice!"); break;
                }
               }
@@ -386,11 +386,9 @@ public class Amazon {
          System.out.print("\tEnter longitude: ");  //enter long value between [0.0, 100.0]
          String longitude = in.readLine();
          
-         String type="Customer";
+         String type="customer";
 
-			String query = String.format("INSERT INTO USERS (name, password, latitude, longitude, type) VALUES ('%s','%s', %s, %s,'%s')", name, password, latitude, longitude, type);
-
-         esql.executeUpdate(query);
+         esql.repository.createUser(name, password, Double.parseDouble(latitude), Double.parseDouble(longitude), type);
          System.out.println ("User successfully created!");
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -401,6 +399,31 @@ public class Amazon {
    /***/ private ArrayList<Integer> nearbyStores = new ArrayList<Integer>(); /***/ //list of the store ids of all stores within 30 miles of the user's lat and long
    /***/ private ArrayList<Integer> managerList = new ArrayList<Integer>(); /***/ //list of all manager ids
    /***/ private String userType = "";
+   /***/ private volatile OrderColumns orderColumns = null; /***/ //columnar copy of Orders for the reports, loaded on first use
+   /***/ private volatile ProductSearchIndex searchIndex = null; /***/ //product names of every store, loaded on first use
+   /***/ private volatile StockLocator stockLocator = null; /***/ //store locations and stock per product, loaded on first use
+   /***/ private volatile RecentActivity recentActivity = null; /***/ //newest orders per customer, updates and supply requests per store, loaded on first use
+   /***/ static final int BULK_CHUNK = 50000; /***/ //products changed per transaction by a bulk update
+   /***/ static final int RECENT_ACTIVITY = 5; /***/ //entries RecentActivity keeps per customer or store, as many as the views show
+   /***/ private OrderEventBus events = null; /***/ //carries committed changes to the caches and the audit log
+   /***/ static final String AUDIT_LOG = System.getProperty("audit.log", "audit.log"); /***/ //file the audit consumer appends to
+   /***/ private double userLatitude, userLongitude; /***/ //location of the current user, set by loadNearbyStores
+   /***/ private Cart cart = null; /***/ //shopping cart of the current user
+   /***/ private List<OrderArchive> orderArchives = null; /***/ //archived months of Orders, opened on first use
+   /***/ static final String ARCHIVE_DIR = System.getProperty("archive.dir", "archive"); /***/ //where OrderArchive exports closed months
+   /***/ private static ReservationManager reservations = null; /***/ //stock held by carts, shared by every session
+   /***/ static final long RESERVATION_TIMEOUT = 10 * 60 * 1000; /***/ //milliseconds a cart holds stock
+   /***/ private final List<InvalidationListener> invalidations = new ArrayList<InvalidationListener>(); /***/ //report the users, stores and products changed by anyone, one per database, postgres only
+   /***/ private boolean deaf = false; /***/ //a listener failed to start, so the caches miss some databases' changes
+   /***/ private final Set<InvalidationListener.Key> invalidated = ConcurrentHashMap.newKeySet(); /***/ //reported changes not yet applied to the caches
+   /***/ private AsyncRepository async = null; /***/ //runs independent queries at the same time, each on a connection of its own
+   /***/ static final int ASYNC_CONNECTIONS = Integer.getInteger("async.connections", 3); /***/ //queries running at once, 0 to run them one by one on the session's connection
+   /***/ private SupplyFulfillment fulfillment = null; /***/ //warehouse workers shipping and receiving supply requests
+   /***/ private final ConcurrentLinkedQueue<AmazonRepository.SupplyRequest> receivedSupplies = new ConcurrentLinkedQueue<AmazonRepository.SupplyRequest>(); /***/ //received by the workers, not yet applied to the caches
+   /***/ static final int FULFILLMENT_WORKERS = Integer.getInteger("fulfillment.workers", 2); /***/ //warehouse workers in this app instance, 0 for none
+   /***/ static final int FULFILLMENT_BATCH = Integer.getInteger("fulfillment.batch", 100); /***/ //supply requests a worker claims at once
+   /***/ static final long FULFILLMENT_SHIP_MILLIS = Long.getLong("fulfillment.shipMillis", 2000); /***/ //how long a claimed batch is on its way
+   /***/ static final long FULFILLMENT_STALE_MILLIS = Long.getLong("fulfillment.staleMillis", 300000); /***/ //a batch shipped this long and not received is taken for lost and requeued
 
    //Check log in credentials for an existing user @return User login or null is the user does not exist
    public static String LogIn(Amazon esql){
@@ -415,16 +438,11 @@ public class Amazon {
          // String name = "Amy";
          // String password = "xyz";
 
-         String query = String.format("SELECT * FROM USERS WHERE name = '%s' AND password = '%s'", name, password);
-         int userNum = esql.executeQuery(query);
-
-         query = String.format("SELECT userID, type FROM USERS WHERE name = '%s' AND password = '%s'", name, password);
-         List<List<String>> res = esql.executeQueryAndReturnResult(query);
-         esql.userID = Integer.parseInt(res.get(0).get(0));
-         esql.userType = res.get(0).get(1).trim();
-	 if (userNum > 0)
-		return name;
-         return null;
+         if (!bootstrap(esql, name, password))
+            return null;
+         System.out.println();
+         System.out.println();
+         return name;
       }
       catch(Exception e){
          System.err.println (e.getMessage ());
@@ -432,6 +450,30 @@ public class Amazon {
       }
    }
 
+   /*
+    * Logs the user in and loads what the menus need: the stores within 30
+    * miles and the managers. The stores and the managers do not depend on
+    * the user, so all three queries are sent at once and the login takes as
+    * long as the slowest of them.
+    *
+    * @return false when no user has this name and password
+    * @throws java.sql.SQLException when failed to execute a query
+    */
+   public static boolean bootstrap(Amazon esql, String name, String password) throws SQLException {
+      CompletableFuture<AmazonRepository.User> login = submit(esql, r -> r.login(name, password));
+      CompletableFuture<List<AmazonRepository.Store>> stores = submit(esql, r -> r.stores());
+      CompletableFuture<List<Integer>> managers = submit(esql, r -> r.managerIDs());
+      AmazonRepository.User user = AsyncRepository.get(login);
+      if (user == null)
+         return false;
+      esql.userID = user.userID;
+      esql.userType = user.type;
+      setNearbyStores(esql, user, AsyncRepository.get(stores));
+      esql.managerList.clear();
+      esql.managerList.addAll(AsyncRepository.get(managers));
+      return true;
+   }
+
    // Rest of the functions definition go in here
 
 //William
@@ -442,25 +484,12 @@ public class Amazon {
     * like placeOrder()
     */
    public static void loadNearbyStores(Amazon esql){
-      esql.nearbyStores.clear();
-      String query;
-      List<List<String>> res;
-      double lat1, lat2, long1, long2;
       try {
-         query = String.format("SELECT latitude, longitude FROM Users WHERE userID = '%s'", esql.userID);
-         res = esql.executeQueryAndReturnResult(query);
-         lat1 = Double.parseDouble(res.get(0).get(0));
-         long1 = Double.parseDouble(res.get(0).get(1));
-         
-         query = String.format("SELECT storeID, latitude, longitude FROM Store");
-         res = esql.executeQueryAndReturnResult(query);
-         for (int i = 0; i < res.size(); i++) {
-            lat2 = Double.parseDouble(res.get(i).get(1));
-            long2 = Double.parseDouble(res.get(i).get(2));
-            if(esql.calculateDistance(lat1, long1, lat2, long2) < 30) {
-               esql.nearbyStores.add(Integer.parseInt(res.get(i).get(0)));
-            }
-         }
+         // the user and the stores at the same time
+         final int userID = esql.userID;
+         CompletableFuture<AmazonRepository.User> user = submit(esql, r -> r.getUser(userID));
+         CompletableFuture<List<AmazonRepository.Store>> stores = submit(esql, r -> r.stores());
+         setNearbyStores(esql, AsyncRepository.get(user), AsyncRepository.get(stores));
          System.out.println();
          return;
       }
@@ -470,16 +499,26 @@ public class Amazon {
       }
    }
 
+   //keeps the stores within 30 miles of the user
+   private static void setNearbyStores(Amazon esql, AmazonRepository.User user, List<AmazonRepository.Store> stores) {
+      esql.nearbyStores.clear();
+      double lat1 = user.latitude;
+      double long1 = user.longitude;
+      esql.userLatitude = lat1;
+      esql.userLongitude = long1;
+
+      for (int i = 0; i < stores.size(); i++) {
+         AmazonRepository.Store store = stores.get(i);
+         if(esql.calculateDistance(lat1, long1, store.latitude, store.longitude) < 30) {
+            esql.nearbyStores.add(store.storeID);
+         }
+      }
+   }
+
    public static void loadManagers(Amazon esql) {
       esql.managerList.clear();
-      String query;
-      List<List<String>> res;
       try {
-         query = String.format("SELECT DISTINCT managerID FROM Store");
-         res = esql.executeQueryAndReturnResult(query);
-         for (int i = 0; i < res.size(); i++) {
-            esql.managerList.add(Integer.parseInt(res.get(i).get(0)));
-         }
+         esql.managerList.addAll(esql.repository.managerIDs());
          System.out.println();
          return;
       }
@@ -489,6 +528,262 @@ public class Amazon {
       }
    }
 
+   /*
+    * Returns the event bus, starting it and its consumers the first time a
+    * change is published. Each consumer runs on its own thread: analytics keeps
+    * the columnar copy of Orders current, stock keeps the locator and the search
+    * index current, and audit appends every event to AUDIT_LOG.
+    */
+   public static OrderEventBus getEvents(final Amazon esql) throws IOException {
+      if (esql.events == null) {
+         OrderEventBus bus = new OrderEventBus(4096);
+         bus.addConsumer("analytics", (e, seq, endOfBatch) -> {
+            if (e.type == OrderEventBus.ORDER_PLACED && esql.orderColumns != null) {
+               esql.orderColumns.append(e.userID, e.storeID, e.productName, e.units, e.time / 1000 * 1000);
+            }
+         }, 1024);
+         bus.addConsumer("stock", (e, seq, endOfBatch) -> {
+            StockLocator locator = esql.stockLocator;
+            if (e.type == OrderEventBus.PRODUCT_UPDATED) {
+               if (esql.searchIndex != null) esql.searchIndex.add(e.storeID, e.productName);
+               if (locator != null) locator.setStock(e.storeID, e.productName, e.units, e.price);
+            }
+            else if (locator != null) {
+               locator.addUnits(e.storeID, e.productName, e.type == OrderEventBus.ORDER_PLACED ? -e.units : e.units);
+            }
+         }, 1024);
+         final Writer audit = new BufferedWriter(new FileWriter(AUDIT_LOG, true));
+         final String[] types = {"ORDER_PLACED", "STOCK_CHANGED", "PRODUCT_UPDATED"};
+         bus.addConsumer("audit", (e, seq, endOfBatch) -> {
+            audit.write(new Timestamp(e.time) + "\t" + types[e.type] + "\t" + e.userID + "\t" + e.storeID + "\t" +
+                        e.productName.trim() + "\t" + e.units + (e.type == OrderEventBus.PRODUCT_UPDATED ? "\t" + e.price : "") + "\n");
+            if (endOfBatch) audit.flush();
+         }, 1024);
+         bus.start();
+         esql.events = bus;
+      }
+      return esql.events;
+   }
+
+   /*
+    * Opens the connections of the queries run at the same time. Without
+    * them every query runs on the session's connection, one after another.
+    *
+    * @param source the repository of every connection
+    */
+   public void startAsync(AmazonRepository.Source source) {
+      if (ASYNC_CONNECTIONS <= 0) return;
+      try {
+         this.async = new AsyncRepository(source, ASYNC_CONNECTIONS);
+      }
+      catch (SQLException e) {
+         System.err.println("Concurrent queries are off: " + e.getMessage());
+      }
+   }
+
+   /*
+    * Starts a query that does not depend on the ones before it; read its
+    * result with AsyncRepository.get. Without the async connections the
+    * query has run when this returns.
+    */
+   public static <T> CompletableFuture<T> submit(Amazon esql, AsyncRepository.Call<T> call) {
+      if (esql.async != null) return esql.async.submit(call);
+      CompletableFuture<T> result = new CompletableFuture<T>();
+      try {
+         result.complete(call.call(esql.repository));
+      }
+      catch (SQLException e) {
+         result.completeExceptionally(e);
+      }
+      return result;
+   }
+
+   /*
+    * Starts the warehouse workers of this app instance, which ship the
+    * pending supply requests and add their units when they arrive. A worker
+    * marks what arrived received in the recent views right away and queues
+    * it; the session thread publishes it between menu choices, as the event
+    * bus takes one writer.
+    *
+    * @param source the repository of every worker
+    */
+   public void startFulfillment(AmazonRepository.Source source) {
+      if (FULFILLMENT_WORKERS <= 0) return;
+      final Amazon esql = this;
+      try {
+         this.fulfillment = new SupplyFulfillment(source, this.repository.warehouseIDs(), FULFILLMENT_WORKERS, FULFILLMENT_BATCH,
+                                                  FULFILLMENT_SHIP_MILLIS, 1000, FULFILLMENT_STALE_MILLIS, batch -> {
+            RecentActivity recent = esql.recentActivity;
+            for (AmazonRepository.SupplyRequest r : batch) {
+               if (recent != null) recent.supplyRequestChanged(r.withStatus(AmazonRepository.RECEIVED));
+               esql.receivedSupplies.add(r);
+            }
+         });
+      }
+      catch (SQLException e) {
+         System.err.println("Supply fulfillment is off: " + e.getMessage());
+      }
+   }
+
+   //publishes the stock the warehouse workers added
+   public static void applyReceivedSupplies(Amazon esql) {
+      AmazonRepository.SupplyRequest r;
+      try {
+         while ((r = esql.receivedSupplies.poll()) != null) {
+            getEvents(esql).stockChanged(r.managerID, r.storeID, r.productName, r.unitsRequested, System.currentTimeMillis());
+         }
+      }
+      catch (IOException e) {
+         System.err.println("Error: " + e.getMessage());
+      }
+   }
+
+   /*
+    * Brings the caches up to date with the changes reported by the
+    * invalidation listener, which include those of other app instances and
+    * of manual SQL. A changed product is read again into the search index and
+    * the stock locator; a changed store drops the stock locator and reloads
+    * the nearby stores and managers; a changed user reloads the managers and,
+    * if it is the current user, the user's type and nearby stores.
+    */
+   public static void applyInvalidations(Amazon esql) {
+      if (esql.invalidated.isEmpty()) return;
+      // this session's own events first, so the rows read below are the last word
+      drainEvents(esql);
+      List<InvalidationListener.Key> keys = new ArrayList<InvalidationListener.Key>(esql.invalidated);
+      esql.invalidated.removeAll(keys);
+      boolean managers = false, nearby = false;
+      try {
+         // a replica may not have replayed the changes yet
+         ReplicatedRepository.syncWithPrimary(esql.repository);
+         for (InvalidationListener.Key key : keys) {
+            switch (key.entity) {
+               case InvalidationListener.PRODUCT:
+                  AmazonRepository.Product product = esql.repository.getProduct(key.id, key.productName);
+                  if (esql.searchIndex != null) {
+                     if (product == null) esql.searchIndex.remove(key.id, key.productName);
+                     else esql.searchIndex.add(key.id, key.productName);
+                  }
+                  if (esql.stockLocator != null) {
+                     if (product == null) esql.stockLocator.setStock(key.id, key.productName, 0, 0);
+                     else esql.stockLocator.setStock(key.id, key.productName, product.numberOfUnits, product.pricePerUnit);
+                  }
+                  break;
+               case InvalidationListener.STORE:
+                  esql.stockLocator = null; // store locations are not kept up to date in place; loaded again on first use
+                  nearby = true;
+                  managers = true;
+                  break;
+               case InvalidationListener.USER:
+                  managers = true;
+                  if (key.id == esql.userID) {
+                     AmazonRepository.User user = esql.repository.getUser(esql.userID);
+                     if (user != null) esql.userType = user.type;
+                     nearby = true;
+                  }
+                  break;
+            }
+         }
+      }
+      catch (Exception e) {
+         System.err.println("Error: " + e.getMessage());
+      }
+      if (nearby) loadNearbyStores(esql);
+      if (managers) loadManagers(esql);
+   }
+
+   //lets the consumers catch up before a cache is loaded, so the load neither misses nor repeats an event
+   private static void drainEvents(Amazon esql) {
+      if (esql.events != null) {
+         esql.events.drain();
+      }
+   }
+
+   /*
+    * Returns the columnar copy of Orders, scanning the table the first time
+    * it is needed. The analytics consumer keeps it up to date afterwards.
+    */
+   public static OrderColumns getOrderColumns(Amazon esql) throws SQLException {
+      if (esql.orderColumns == null) {
+         drainEvents(esql);
+         esql.orderColumns = OrderColumns.load(esql.repository, new ProductDictionary());
+      }
+      return esql.orderColumns;
+   }
+
+   /*
+    * Returns the archived months of Orders, mapping the files the first time
+    * they are needed. The reports add these to the live rows.
+    */
+   public static List<OrderArchive> getOrderArchives(Amazon esql) throws IOException {
+      if (esql.orderArchives == null) {
+         esql.orderArchives = OrderArchive.openAll(new File(ARCHIVE_DIR), OrderArchive.ORDERS);
+      }
+      return esql.orderArchives;
+   }
+
+   //the k keys with the largest totals, largest first
+   public static <K> List<K> topKeys(Map<K, Long> totals, int k) {
+      List<Map.Entry<K, Long>> entries = new ArrayList<Map.Entry<K, Long>>(totals.entrySet());
+      entries.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+      List<K> keys = new ArrayList<K>();
+      for (int i = 0; i < entries.size() && i < k; i++) {
+         keys.add(entries.get(i).getKey());
+      }
+      return keys;
+   }
+
+   /*
+    * Returns the product name index, scanning Product the first time it is
+    * needed. The update paths keep it up to date afterwards.
+    */
+   public static ProductSearchIndex getSearchIndex(Amazon esql) throws SQLException {
+      if (esql.searchIndex == null) {
+         drainEvents(esql);
+         esql.searchIndex = ProductSearchIndex.load(esql.repository);
+      }
+      return esql.searchIndex;
+   }
+
+   /*
+    * Returns the store/stock locator, scanning Store and Product the first
+    * time it is needed. The order and update paths keep it up to date.
+    */
+   public static StockLocator getStockLocator(Amazon esql) throws SQLException {
+      if (esql.stockLocator == null) {
+         drainEvents(esql);
+         esql.stockLocator = StockLocator.load(esql.repository);
+      }
+      return esql.stockLocator;
+   }
+
+   /*
+    * Returns the recent activity views, scanning Orders, ProductUpdates and
+    * ProductSupplyRequests the first time they are needed. The order, update
+    * and supply request paths append to them afterwards.
+    */
+   public static RecentActivity getRecentActivity(Amazon esql) throws SQLException {
+      if (esql.recentActivity == null) {
+         esql.recentActivity = RecentActivity.load(esql.repository, RECENT_ACTIVITY);
+      }
+      return esql.recentActivity;
+   }
+
+   //nearbyStores as a sorted array, the form the search index takes
+   public static int[] getNearbyStoreArray(Amazon esql) {
+      int[] stores = new int[esql.nearbyStores.size()];
+      for (int i = 0; i < stores.length; i++) {
+         stores[i] = esql.nearbyStores.get(i);
+      }
+      Arrays.sort(stores);
+      return stores;
+   }
+
+   //ids of the stores managed by the given manager
+   public static List<Integer> getManagedStores(Amazon esql, int managerID) throws SQLException {
+      return esql.repository.storesManagedBy(managerID);
+   }
+
 //William
    public static void viewStores(Amazon esql) {
       System.out.println("\nStores(shown as store ID's) within 30 miles");
@@ -501,21 +796,21 @@ public class Amazon {
 
 //William
    public static void viewProducts(Amazon esql) {
-      String query, ID, str;
+      String ID;
       int IDint;
       try {
          System.out.println("\nEnter a store ID to show that store's products");
          System.out.print("Store ID: ");
          ID = in.readLine();
          IDint = Integer.parseInt(ID);
-         query = String.format("SELECT DISTINCT productName, pricePerUnit, numberOfUnits FROM Product, Store WHERE Product.storeID = %d ORDER BY productName ASC", IDint);
-         List<List<String>> res = esql.executeQueryAndReturnResult(query);
-         System.out.println(String.format("\n%-25s%-13s%-20s", "Product", "Price/Unit", "Units" ));
-         System.out.println("-----------------------------------------------------------");
+         List<AmazonRepository.Product> res = esql.repository.productsOf(IDint);
+         System.out.println();
+         ResultRenderer out = ResultRenderer.console(ResultRenderer.Format.TABLE, new String[] {"Product", "Price/Unit", "Units"}, new int[] {25, 13, 20});
          for(int i = 0; i < res.size(); i++) {
-            str = String.format("%-25s%-13s%-20s", res.get(i).get(0).trim(), res.get(i).get(1),res.get(i).get(2));
-            System.out.println(str);
+            AmazonRepository.Product p = res.get(i);
+            out.row(p.productName, p.pricePerUnit, p.numberOfUnits);
          }
+         out.finish();
          System.out.println();
       }
       catch (Exception e) {
@@ -573,8 +868,7 @@ public class Amazon {
 //William
 //sub-function2 of placeOrder()
    public static String selectProduct(Amazon esql, int storeID) {
-      String product, query; 
-      List<List<String>> res;
+      String product; 
       while(true) {
          try {
             System.out.print("\nEnter Product name or enter 0 to go back: ");
@@ -585,13 +879,27 @@ public class Amazon {
                   return "0";
                }  
             }
-            query = String.format("SELECT productName FROM Product WHERE storeID = %d AND productName = '%s'", storeID, product);
-            res = esql.executeQueryAndReturnResult(query);
-            if(res.size() > 0) {
-               return res.get(0).get(0);
+            // names are matched in memory ignoring case and padding
+            ProductSearchIndex index = getSearchIndex(esql);
+            int[] store = {storeID};
+            String name = index.lookup(product, store);
+            if(name != null) {
+               return name;
             }
-            else {
-               System.out.println("Could not find product with name: " + product);
+            System.out.println("Could not find product with name: " + product);
+            List<ProductSearchIndex.Match> matches = index.fuzzy(product, store, 2, 5);
+            List<String> completions = index.complete(product, store, 5);
+            String suggestions = "";
+            for(int i = 0; i < matches.size(); i++) {
+               suggestions += (suggestions.isEmpty() ? "" : ", ") + matches.get(i).name;
+            }
+            for(int i = 0; i < completions.size(); i++) {
+               if(!suggestions.contains(completions.get(i))) {
+                  suggestions += (suggestions.isEmpty() ? "" : ", ") + completions.get(i);
+               }
+            }
+            if(!suggestions.isEmpty()) {
+               System.out.println("Did you mean: " + suggestions);
             }
          }
          catch (Exception e) {
@@ -604,8 +912,7 @@ public class Amazon {
 //William
 //sub-function3 of placeOrder()
    public static int selectCount(Amazon esql, int storeID, String productName) {
-      String count, query;
-      List<List<String>> res;
+      String count;
       int countNum, available;
       
       while(true) {
@@ -621,10 +928,9 @@ public class Amazon {
             if(countNum == 0) {
                return 0;
             }
-            query = String.format("SELECT numberOfUnits FROM Product WHERE storeID = %d AND productName = '%s'", storeID, productName);
-            res = esql.executeQueryAndReturnResult(query);
-            if(res.size() > 0) {
-               available = Integer.parseInt(res.get(0).get(0));
+            AmazonRepository.Product product = esql.repository.getProduct(storeID, productName);
+            if(product != null) {
+               available = product.numberOfUnits;
                if(countNum <= available) {
                   return countNum;
                }
@@ -649,12 +955,9 @@ public class Amazon {
 //William
 //sub-funciton4 of placeOrder()
    public static void insertOrder(Amazon esql, int storeID, String pname, int count) {
-      String query;
       try {
-         query = String.format("INSERT INTO Orders Values(DEFAULT, %d, %d, '%s', %d, DATE_TRUNC('second', CURRENT_TIMESTAMP))", esql.userID, storeID, pname, count);
-         esql.executeUpdate(query);
-         query = String.format("UPDATE Product SET numberOfUnits = numberOfUnits - %d WHERE storeID = %d AND productName = '%s'", count, storeID, pname);
-         esql.executeUpdate(query);
+         int orderNumber = esql.repository.placeOrder(esql.userID, storeID, pname, count);
+         orderPlaced(esql, orderNumber, storeID, pname, count);
       }
       catch (Exception e) {
          System.err.println (e.getMessage ());
@@ -662,6 +965,14 @@ public class Amazon {
       } 
    }
 
+   //publishes an order once it is in the database; the consumers bring the in-memory copies up to date
+   public static void orderPlaced(Amazon esql, int orderNumber, int storeID, String pname, int count) throws IOException {
+      getEvents(esql).orderPlaced(esql.userID, storeID, pname, count, System.currentTimeMillis());
+      if (esql.recentActivity != null) {
+         esql.recentActivity.orderPlaced(orderNumber, esql.userID, storeID, pname.trim(), count);
+      }
+   }
+
    public static void placeOrder(Amazon esql) {
       int cur = 1;
       String choice = "";
@@ -741,20 +1052,18 @@ public class Amazon {
       //if user then view own most recent 5
       //if manager then all order info of stores they manage
       int isManager = 0;
-      String query, str;
-      List<List<String>> res;
-      int resInt;
       isManager = esql.checkIfManager(esql);
       if(isManager == -1) { //if user
          try {
-            query = String.format("SELECT * FROM Orders WHERE CustomerID = %d ORDER BY orderTime DESC LIMIT 5", esql.userID);
-            res = esql.executeQueryAndReturnResult(query); 
-            System.out.println(String.format("\n%-15s%-12s%-30s%-15s    %s", "Order Number", "Store ID", "Product Name", "Units Ordered", "Order Time" ));
-            System.out.println("------------------------------------------------------------------------------------------------------");
+            List<AmazonRepository.Order> res = getRecentActivity(esql).recentOrders(esql.userID, 5);
+            System.out.println();
+            ResultRenderer out = ResultRenderer.console(ResultRenderer.Format.TABLE,
+               new String[] {"Order Number", "Store ID", "Product Name", "Units Ordered", "Order Time"}, new int[] {15, 12, 30, 19, 0});
             for(int i = 0; i < res.size(); i++) {
-               str = String.format("%-15s%-12s%-30s%-15s    %s", res.get(i).get(0), res.get(i).get(2), res.get(i).get(3).trim(), res.get(i).get(4), res.get(i).get(5));
-               System.out.println(str);
+               AmazonRepository.Order o = res.get(i);
+               out.row(o.orderNumber, o.storeID, o.productName, o.unitsOrdered, o.orderTime);
             }
+            out.finish();
             System.out.println();
          }
          catch (Exception e) {
@@ -764,12 +1073,18 @@ public class Amazon {
       }
       else { // if manager
          try {
-            query = "SELECT O.orderNumber, U.name, O.storeID, O.productName, O.orderTime " +
-            "FROM Orders O, Users U " +
-            "WHERE O.customerID = U.userID " +
-            "AND O.storeID IN (SELECT storeID FROM Store WHERE managerID = " + isManager + ") " +
-            "ORDER BY O.orderTime DESC";
-            resInt = esql.executeQueryAndPrintResult(query);
+            List<AmazonRepository.Order> orders = esql.repository.ordersOfManagedStores(isManager);
+            List<Integer> customers = new ArrayList<Integer>();
+            for(int i = 0; i < orders.size(); i++) {
+               customers.add(orders.get(i).customerID);
+            }
+            Map<Integer, String> names = esql.repository.userNames(customers);
+            ResultRenderer out = openOutput(new String[] {"ordernumber", "name", "storeid", "productname", "ordertime"}, new int[] {12, 51, 8, 31, 21});
+            for(int i = 0; i < orders.size(); i++) {
+               AmazonRepository.Order o = orders.get(i);
+               out.row(o.orderNumber, names.get(o.customerID), o.storeID, o.productName, o.orderTime);
+            }
+            out.finish();
          }
          catch (Exception e) {
             System.err.println("Error: " + e.getMessage());
@@ -779,11 +1094,14 @@ public class Amazon {
    }
 
 public static int checkIfManager(Amazon esql) {
+      if (!esql.invalidations.isEmpty() && !esql.deaf) {
+         // the type read at login, kept current by applyInvalidations; the database checks again on every write
+         return esql.userType.equals("manager") ? esql.userID : -1;
+      }
+      // nothing tells this session of changes to the user, so ask
       try {
-          int userID = esql.userID;
-          String query = "SELECT userID FROM Users WHERE userID = " + userID + " AND type = 'manager'";
-          List<List<String>> result = esql.executeQueryAndReturnResult(query);
-          return result.isEmpty() ? -1 : Integer.parseInt(result.get(0).get(0));
+          AmazonRepository.User user = esql.repository.getUser(esql.userID);
+          return user != null && user.type.equals("manager") ? user.userID : -1;
       } catch (Exception e) {
           System.err.println("Error: " + e.getMessage());
           return -1;
@@ -793,6 +1111,7 @@ public static int checkIfManager(Amazon esql) {
 //Rest are Jeffrey
    public static void updateProduct(Amazon esql) {
       try {
+         // the database checks again when the update is made
          int managerID = checkIfManager(esql);
          if (managerID == -1) {
             System.out.println("You are not authorized update Product.");
@@ -810,13 +1129,6 @@ public static int checkIfManager(Amazon esql) {
                  System.out.println("Invalid input! Please enter a valid store ID.");
              }
          } while (true);
- 
-         // Check if the manager manages the given store
-         String checkManagerQuery = "SELECT * FROM Store WHERE managerID = " + managerID + " AND storeID = " + storeID;
-         if (esql.executeQueryAndReturnResult(checkManagerQuery).isEmpty()) {
-             System.out.println("You don't manage the store with ID " + storeID);
-             return;
-         }
 
          // Prompt the user for product information updates
          String productName;
@@ -827,6 +1139,10 @@ public static int checkIfManager(Amazon esql) {
                  System.out.println("Product name cannot be empty.");
              }
          } while (productName.isEmpty());
+         String storedName = getSearchIndex(esql).lookup(productName, new int[] {storeID});
+         if (storedName != null) {
+             productName = storedName;
+         }
  
          int newNumberOfUnits;
          do {
@@ -850,15 +1166,15 @@ public static int checkIfManager(Amazon esql) {
              }
          } while (true);
  
-         // Update product information
-         String updateProductQuery = "UPDATE Product SET numberOfUnits = " + newNumberOfUnits + ", pricePerUnit = " + newPricePerUnit +
-                 " WHERE storeID = " + storeID + " AND productName = '" + productName + "'";
-         esql.executeUpdate(updateProductQuery);
- 
-         // Update ProductUpdates table
-         String insertProductUpdateQuery = "INSERT INTO ProductUpdates (managerID, storeID, productName, updatedOn) VALUES (" +
-                 managerID + ", " + storeID + ", '" + productName + "', CURRENT_TIMESTAMP)";
-         esql.executeUpdate(insertProductUpdateQuery);
+         // Check, update the product and record it in ProductUpdates, in one call
+         AmazonRepository.Outcome outcome = esql.repository.updateProductAsManager(managerID, storeID, productName, newNumberOfUnits, newPricePerUnit);
+         if (!printOutcome(outcome, storeID, productName, -1)) {
+             return;
+         }
+         getEvents(esql).productUpdated(managerID, storeID, productName, newNumberOfUnits, newPricePerUnit, System.currentTimeMillis());
+         if (esql.recentActivity != null) {
+             esql.recentActivity.add(new AmazonRepository.ProductUpdate(outcome.number, managerID, storeID, productName.trim(), new Timestamp(System.currentTimeMillis())));
+         }
  
          System.out.println("Product information updated successfully!");
      } catch (Exception e) {
@@ -874,20 +1190,24 @@ public static int checkIfManager(Amazon esql) {
             return;
          }
  
-         // Retrieve the store IDs managed by the manager
-         String getManagedStoresQuery = "SELECT storeID FROM Store WHERE managerID = " + managerID;
-         List<List<String>> managedStores = esql.executeQueryAndReturnResult(getManagedStoresQuery);
+         // Retrieve the store IDs managed by the manager, while the views load on first use
+         CompletableFuture<List<Integer>> managed = submit(esql, r -> r.storesManagedBy(managerID));
+         RecentActivity recent = getRecentActivity(esql);
+         List<Integer> managedStores = AsyncRepository.get(managed);
          if (managedStores.isEmpty()) {
              System.out.println("You don't manage any stores.");
              return;
          }
  
          // Fetch the last 5 recent updates for all managed stores
-         String viewRecentUpdatesQuery = "SELECT updateNumber, managerID, storeID, productName, updatedOn " +
-                 "FROM ProductUpdates WHERE storeID IN (SELECT storeID FROM Store WHERE managerID = " + managerID +
-                 ") ORDER BY updatedOn DESC LIMIT 5";
+         List<AmazonRepository.ProductUpdate> updates = recent.recentUpdates(managedStores, 5);
+         List<Object[]> rows = new ArrayList<Object[]>();
+         for (int i = 0; i < updates.size(); i++) {
+             AmazonRepository.ProductUpdate u = updates.get(i);
+             rows.add(new Object[] {u.updateNumber, u.managerID, u.storeID, u.productName, u.updatedOn});
+         }
          System.out.println("Recent updates for your managed stores:");
-         esql.executeQueryAndPrintResult(viewRecentUpdatesQuery);
+         printResult(new String[] {"updatenumber", "managerid", "storeid", "productname", "updatedon"}, rows);
      } catch (Exception e) {
          System.err.println("Error: " + e.getMessage());
      }
@@ -900,16 +1220,30 @@ public static int checkIfManager(Amazon esql) {
             System.out.println("You are not authorized to view popular products.");
             return;
          }
-         String query = "SELECT p.productName, SUM(o.unitsOrdered) AS totalOrdered " +
-                        "FROM Orders o " +
-                        "JOIN Product p ON o.storeID = p.storeID AND o.productName = p.productName " +
-                        "JOIN Store s ON o.storeID = s.storeID " +
-                        "WHERE s.managerID = " + managerID + " " +
-                        "GROUP BY p.productName " +
-                        "ORDER BY totalOrdered DESC " +
-                        "LIMIT 5";
-         
-         esql.executeQueryAndPrintResult(query);
+         // the managed stores while Orders is scanned on first use
+         CompletableFuture<List<Integer>> managed = submit(esql, r -> r.storesManagedBy(managerID));
+         OrderColumns orders = getOrderColumns(esql);
+         OrderColumns.Filter filter = OrderColumns.Filter.forStores(AsyncRepository.get(managed));
+         long[] live = orders.groupBy(OrderColumns.BY_PRODUCT, OrderColumns.SUM_UNITS, filter);
+
+         // live orders plus the archived months
+         Map<String, Long> totals = new HashMap<String, Long>();
+         for (int i = 0; i < live.length; i++) {
+            if (live[i] > 0) totals.put(orders.products().name(i), live[i]);
+         }
+         List<OrderArchive> archives = getOrderArchives(esql);
+         for (int i = 0; i < archives.size(); i++) {
+            archives.get(i).addUnitsByProduct(filter.stores, totals);
+         }
+         List<String> top = topKeys(totals, 5);
+         if (top.isEmpty()) {
+            return;
+         }
+
+         System.out.println("productname\ttotalordered\t");
+         for (int i = 0; i < top.size(); i++) {
+            System.out.println(top.get(i) + "\t" + totals.get(top.get(i)) + "\t");
+         }
      } catch (Exception e) {
          System.err.println("Error: " + e.getMessage());
      }
@@ -923,14 +1257,34 @@ public static int checkIfManager(Amazon esql) {
             return;
          }
  
-         String query = "SELECT U.name, COUNT(*) AS orderCount " +
-                        "FROM Orders O, Users U, Store S " +
-                        "WHERE O.customerID = U.userID AND O.storeID = S.storeID AND S.managerID = " + managerID + " " +
-                        "GROUP BY U.name " +
-                        "ORDER BY orderCount DESC " +
-                        "LIMIT 5";
- 
-         esql.executeQueryAndPrintResult(query);
+         // the managed stores while Orders is scanned on first use
+         CompletableFuture<List<Integer>> managed = submit(esql, r -> r.storesManagedBy(managerID));
+         OrderColumns orders = getOrderColumns(esql);
+         OrderColumns.Filter filter = OrderColumns.Filter.forStores(AsyncRepository.get(managed));
+         long[] live = orders.groupBy(OrderColumns.BY_CUSTOMER, OrderColumns.COUNT_ORDERS, filter);
+
+         // live orders plus the archived months
+         Map<Integer, Long> counts = new HashMap<Integer, Long>();
+         for (int i = 0; i < live.length; i++) {
+            if (live[i] > 0) counts.put(i, live[i]);
+         }
+         List<OrderArchive> archives = getOrderArchives(esql);
+         for (int i = 0; i < archives.size(); i++) {
+            archives.get(i).addOrdersByCustomer(filter.stores, counts);
+         }
+         List<Integer> top = topKeys(counts, 5);
+         if (top.isEmpty()) {
+            return;
+         }
+
+         // only the names of the top customers are fetched
+         Map<Integer, String> names = esql.repository.userNames(top);
+         System.out.println("name\tordercount\t");
+         for (int i = 0; i < top.size(); i++) {
+            if (names.containsKey(top.get(i))) {
+               System.out.println(names.get(top.get(i)) + "\t" + counts.get(top.get(i)) + "\t");
+            }
+         }
      } catch (Exception e) {
          System.err.println("Error: " + e.getMessage());
      }
@@ -938,20 +1292,13 @@ public static int checkIfManager(Amazon esql) {
 
    public static void placeProductSupplyRequests(Amazon esql) {
       try {
+         // the database checks again when the request is made
          int managerID = checkIfManager(esql);
          if (managerID == -1) {
             System.out.println("You are not authorized to place product supply requests.");
             return;
          }
  
-         // Retrieve the store IDs managed by the manager
-         String getManagedStoresQuery = "SELECT storeID FROM Store WHERE managerID = " + managerID;
-         List<List<String>> managedStores = esql.executeQueryAndReturnResult(getManagedStoresQuery);
-         if (managedStores.isEmpty()) {
-             System.out.println("You don't manage any stores.");
-             return;
-         }
- 
          // Prompt the user for store ID
          int storeID;
          do {
@@ -963,13 +1310,6 @@ public static int checkIfManager(Amazon esql) {
                  System.out.println("Invalid input! Please enter a valid store ID.");
              }
          } while (true);
-
-         // Check if the manager manages the given store
-         String checkManagerQuery = "SELECT * FROM Store WHERE managerID = " + managerID + " AND storeID = " + storeID;
-         if (esql.executeQueryAndReturnResult(checkManagerQuery).isEmpty()) {
-            System.out.println("You don't manage the store with ID " + storeID);
-            return;
-         }
  
          // Prompt the user for product name
          System.out.print("Enter product name: ");
@@ -999,22 +1339,34 @@ public static int checkIfManager(Amazon esql) {
              }
          } while (true);
  
-         // Update the Product table
-         String updateProductQuery = "UPDATE Product SET numberOfUnits = numberOfUnits + " + numberOfUnits +
-                                     " WHERE storeID = " + storeID + " AND productName = '" + productName + "'";
-         esql.executeUpdate(updateProductQuery);
- 
-         // Insert the supply request into the ProductSupplyRequests table
-         String insertSupplyRequestQuery = "INSERT INTO ProductSupplyRequests (managerID, warehouseID, storeID, productName, unitsRequested) " +
-                 "VALUES (" + managerID + ", " + warehouseID + ", " + storeID + ", '" + productName + "', " + numberOfUnits + ")";
-         esql.executeUpdate(insertSupplyRequestQuery);
+         // Check and record the pending supply request, in one call; the units are added when it arrives
+         AmazonRepository.Outcome outcome = esql.repository.requestSupplyAsManager(managerID, warehouseID, storeID, productName, numberOfUnits);
+         if (!printOutcome(outcome, storeID, productName, warehouseID)) {
+             return;
+         }
+         if (esql.recentActivity != null) {
+             esql.recentActivity.add(new AmazonRepository.SupplyRequest(outcome.number, managerID, warehouseID, storeID, productName.trim(),
+                                                                       numberOfUnits, AmazonRepository.PENDING));
+         }
  
-         System.out.println("Supply request placed successfully.");
+         System.out.println("Supply request " + outcome.number + " placed; the units are added when the warehouse delivers.");
      } catch (Exception e) {
          System.err.println("Error: " + e.getMessage());
      }
    }
 
+   //says why a manager operation changed nothing; false if it did not go through
+   public static boolean printOutcome(AmazonRepository.Outcome outcome, int storeID, String productName, int warehouseID) {
+      switch (outcome.status) {
+         case OK: return true;
+         case NOT_A_MANAGER: System.out.println("You are not authorized to manage products."); break;
+         case NOT_YOUR_STORE: System.out.println("You don't manage the store with ID " + storeID); break;
+         case NO_SUCH_PRODUCT: System.out.println("Product with name " + productName + " in store ID " + storeID + " does not exist."); break;
+         case NO_SUCH_WAREHOUSE: System.out.println("Warehouse with ID " + warehouseID + " does not exist."); break;
+      }
+      return false;
+   }
+
    public static void viewProductSupplyRequests(Amazon esql) {
       try {
           int managerID = checkIfManager(esql);
@@ -1024,8 +1376,7 @@ public static int checkIfManager(Amazon esql) {
          }
   
           // Retrieve the store IDs managed by the manager
-          String getManagedStoresQuery = "SELECT storeID FROM Store WHERE managerID = " + managerID;
-          List<List<String>> managedStores = esql.executeQueryAndReturnResult(getManagedStoresQuery);
+          List<Integer> managedStores = getManagedStores(esql, managerID);
           if (managedStores.isEmpty()) {
               System.out.println("You don't manage any stores.");
               return;
@@ -1044,18 +1395,19 @@ public static int checkIfManager(Amazon esql) {
          } while (true);
 
          // Check if the manager manages the given store
-         String checkManagerQuery = "SELECT * FROM Store WHERE managerID = " + managerID + " AND storeID = " + storeID;
-         if (esql.executeQueryAndReturnResult(checkManagerQuery).isEmpty()) {
+         if (!getManagedStores(esql, managerID).contains(storeID)) {
             System.out.println("You don't manage the store with ID " + storeID);
             return;
          }
   
-          // Query to select recent product supply requests for the manager's store
-          String viewProductSupplyRequestsQuery = "SELECT * FROM ProductSupplyRequests WHERE storeID = " + storeID +
-                  " ORDER BY requestNumber DESC LIMIT 5";
-  
-          // Execute the query and print the results
-          esql.executeQueryAndPrintResult(viewProductSupplyRequestsQuery);
+          // Recent product supply requests for the manager's store
+          List<AmazonRepository.SupplyRequest> requests = getRecentActivity(esql).supplyRequests(storeID, 5);
+          List<Object[]> rows = new ArrayList<Object[]>();
+          for (int i = 0; i < requests.size(); i++) {
+              AmazonRepository.SupplyRequest r = requests.get(i);
+              rows.add(new Object[] {r.requestNumber, r.managerID, r.warehouseID, r.storeID, r.productName, r.unitsRequested, r.status});
+          }
+          printResult(new String[] {"requestnumber", "managerid", "warehouseid", "storeid", "productname", "unitsrequested", "status"}, rows);
       } catch (Exception e) {
           System.err.println("Error: " + e.getMessage());
       }
@@ -1063,8 +1415,13 @@ public static int checkIfManager(Amazon esql) {
 
    public static void viewAllUsers(Amazon esql) {
    try {
-        String query = "SELECT * FROM Users";
-        esql.executeQueryAndPrintResult(query);
+        List<AmazonRepository.User> users = esql.repository.users();
+        List<Object[]> rows = new ArrayList<Object[]>();
+        for (int i = 0; i < users.size(); i++) {
+           AmazonRepository.User u = users.get(i);
+           rows.add(new Object[] {u.userID, u.name, u.password, u.latitude, u.longitude, u.type});
+        }
+        printResult(new String[] {"userid", "name", "password", "latitude", "longitude", "type"}, rows);
      } catch (Exception e) {
         System.err.println("Error: " + e.getMessage());
      }
@@ -1084,8 +1441,7 @@ try {
        } while (true);
 
        // Check if the user exists
-       String checkUserQuery = "SELECT * FROM Users WHERE userID = " + userID;
-       if (esql.executeQueryAndReturnResult(checkUserQuery).isEmpty()) {
+       if (esql.repository.getUser(userID) == null) {
            System.out.println("User with ID " + userID + " does not exist.");
            return;
        }
@@ -1107,10 +1463,8 @@ try {
        String newType = in.readLine().trim();
 
        // Update the user information
-       String updateUserQuery = "UPDATE Users SET name = '" + newName + "', password = '" + newPassword +
-       "', latitude = " + newLatitude + ", longitude = " + newLongitude + ", type = '" + newType +
-       "' WHERE userID = " + userID;
-      esql.executeUpdate(updateUserQuery);
+       esql.repository.updateUser(new AmazonRepository.User(userID, newName, newPassword,
+                                  Double.parseDouble(newLatitude), Double.parseDouble(newLongitude), newType));
 
        System.out.println("User information updated successfully!");
    } catch (Exception e) {
@@ -1120,8 +1474,16 @@ try {
 
    public static void viewAllProducts(Amazon esql) {
       try {
-          String query = "SELECT * FROM Product";
-          esql.executeQueryAndPrintResult(query);
+          ResultRenderer out = openOutput(new String[] {"storeid", "productname", "numberofunits", "priceperunit"}, new int[] {8, 31, 14, 13});
+          esql.repository.forEachProduct(p -> {
+             try {
+                out.row(p.storeID, p.productName, p.numberOfUnits, p.pricePerUnit);
+             }
+             catch (IOException e) {
+                throw new RuntimeException(e);
+             }
+          });
+          out.finish();
       } catch (Exception e) {
           System.err.println("Error: " + e.getMessage());
       }
@@ -1134,10 +1496,13 @@ try {
 
        System.out.print("Enter the product name: ");
        String productName = in.readLine().trim();
+       String storedName = getSearchIndex(esql).lookup(productName, new int[] {storeID});
+       if (storedName != null) {
+           productName = storedName;
+       }
 
        // Check if the product exists
-       String checkProductQuery = "SELECT * FROM Product WHERE storeID = " + storeID + " AND productName = '" + productName + "'";
-       if (esql.executeQueryAndReturnResult(checkProductQuery).isEmpty()) {
+       if (esql.repository.getProduct(storeID, productName) == null) {
            System.out.println("Product with name " + productName + " in store ID " + storeID + " does not exist.");
            return;
        }
@@ -1150,14 +1515,272 @@ try {
        float newPricePerUnit = Float.parseFloat(in.readLine().trim());
 
        // Update the product information
-       String updateProductQuery = "UPDATE Product SET numberOfUnits = " + newNumberOfUnits +
-               ", pricePerUnit = " + newPricePerUnit + " WHERE storeID = " + storeID + " AND productName = '" + productName + "'";
-       esql.executeUpdate(updateProductQuery);
+       if (esql.repository.updateProduct(storeID, productName, newNumberOfUnits, newPricePerUnit)) {
+           getEvents(esql).productUpdated(esql.userID, storeID, productName, newNumberOfUnits, newPricePerUnit, System.currentTimeMillis());
+       }
 
        System.out.println("Product information updated successfully!");
    } catch (Exception e) {
        System.err.println("Error: " + e.getMessage());
    }
    }
+
+   /*
+    * Changes the price and units of many products at once: every product of
+    * the chosen stores matching a name pattern and a units range. A manager
+    * is limited to the stores they manage.
+    */
+   public static void bulkUpdateProducts(Amazon esql) {
+      try {
+         int managerID = checkIfManager(esql);
+         boolean admin = esql.userType.equals("admin");
+         if (managerID == -1 && !admin) {
+            System.out.println("You are not authorized to update products.");
+            return;
+         }
+         List<Integer> stores = null;
+         System.out.print("Enter store IDs separated by commas (blank for all" + (admin ? "" : " your") + " stores): ");
+         String line = in.readLine().trim();
+         if (!line.isEmpty()) {
+            stores = new ArrayList<Integer>();
+            for (String id : line.split(",")) stores.add(Integer.parseInt(id.trim()));
+         }
+         if (!admin) {
+            List<Integer> managed = getManagedStores(esql, managerID);
+            if (stores == null) {
+               stores = managed;
+            }
+            else if (!managed.containsAll(stores)) {
+               System.out.println("You can only update the stores you manage.");
+               return;
+            }
+         }
+         System.out.print("Enter a product name pattern, % for any characters (blank for all products): ");
+         String pattern = in.readLine().trim();
+         Integer minUnits = readOptionalInt("Enter the fewest units a product has (blank for no limit): ");
+         Integer maxUnits = readOptionalInt("Enter the most units a product has (blank for no limit): ");
+         Integer percent = readOptionalInt("Enter the price change in percent (blank for none): ");
+         Integer unitsChange = readOptionalInt("Enter the units to add (blank for none): ");
+         Integer unitsAtLeast = readOptionalInt("Enter the units to restock up to (blank for none): ");
+
+         AmazonRepository.ProductFilter filter = new AmazonRepository.ProductFilter(stores, pattern.isEmpty() ? null : pattern, minUnits, maxUnits);
+         AmazonRepository.Adjustment adjustment = new AmazonRepository.Adjustment(1 + (percent == null ? 0 : percent) / 100.0, 0,
+                                                                                   unitsChange == null ? 0 : unitsChange,
+                                                                                   unitsAtLeast == null ? 0 : unitsAtLeast);
+         long start = System.nanoTime();
+         int changed = esql.repository.bulkUpdateProducts(esql.userID, filter, adjustment, BULK_CHUNK);
+         System.out.printf("%d products changed in %.0f ms%n", changed, (System.nanoTime() - start) / 1e6);
+         if (changed > 0) {
+            // too many changes to publish one by one: the copies are loaded again
+            drainEvents(esql);
+            esql.stockLocator = null;
+            if (esql.recentActivity != null) esql.recentActivity.reloadUpdates(esql.repository);
+         }
+      } catch (Exception e) {
+         System.err.println("Error: " + e.getMessage());
+      }
+   }
+
+   //reads an int, or null for a blank line
+   public static Integer readOptionalInt(String prompt) throws IOException {
+      while (true) {
+         System.out.print(prompt);
+         String line = in.readLine().trim();
+         if (line.isEmpty()) return null;
+         try {
+            return Integer.parseInt(line);
+         } catch (NumberFormatException e) {
+            System.out.println("Invalid input! Please enter a number.");
+         }
+      }
+   }
+
+   public static void viewSalesDashboard(Amazon esql) {
+      try {
+         OrderColumns orders = getOrderColumns(esql);
+         PriceHistory prices = PriceHistory.load(esql.repository, orders.products()); // what each order was charged
+         SalesDashboard.Report report = SalesDashboard.compute(orders, prices, ForkJoinPool.commonPool());
+         report.print(orders.products());
+      } catch (Exception e) {
+         System.err.println("Error: " + e.getMessage());
+      }
+   }
+
+   //prefix and typo tolerant product search over the stores within 30 miles
+   public static void searchProducts(Amazon esql) {
+      try {
+         System.out.print("Enter a product name or the beginning of one: ");
+         String query = in.readLine().trim();
+         if (query.isEmpty()) {
+            return;
+         }
+         ProductSearchIndex index = getSearchIndex(esql);
+         int[] stores = getNearbyStoreArray(esql);
+
+         List<String> found = index.complete(query, stores, 10);
+         List<ProductSearchIndex.Match> matches = index.fuzzy(query, stores, 2, 10);
+         for (int i = 0; i < matches.size(); i++) {
+            if (!found.contains(matches.get(i).name)) {
+               found.add(matches.get(i).name);
+            }
+         }
+         if (found.isEmpty()) {
+            System.out.println("No products matching " + query + " within 30 miles.");
+            return;
+         }
+         System.out.println(String.format("\n%-25s%s", "Product", "Store IDs"));
+         System.out.println("-----------------------------------------------------------");
+         for (int i = 0; i < found.size(); i++) {
+            System.out.println(String.format("%-25s%s", found.get(i), index.storesWith(found.get(i), stores)));
+         }
+         System.out.println();
+      } catch (Exception e) {
+         System.err.println("Error: " + e.getMessage());
+      }
+   }
+
+   //stores within 30 miles that can fill an order, nearest and then cheapest first
+   public static void findStoresWithStock(Amazon esql) {
+      try {
+         System.out.print("Enter the product name: ");
+         String typed = in.readLine().trim();
+         int quantity;
+         do {
+            System.out.print("Enter quantity: ");
+            try {
+               quantity = Integer.parseInt(in.readLine().trim());
+               break;
+            } catch (NumberFormatException e) {
+               System.out.println("Invalid input! Please enter a valid number.");
+            }
+         } while (true);
+
+         String productName = getSearchIndex(esql).lookup(typed, getNearbyStoreArray(esql));
+         if (productName == null) {
+            System.out.println("No store within 30 miles sells " + typed + ".");
+            return;
+         }
+         List<StockLocator.Result> stores = getStockLocator(esql).nearest(productName, quantity, esql.userLatitude, esql.userLongitude, 30, 10);
+         if (stores.isEmpty()) {
+            System.out.println("No store within 30 miles has " + quantity + " units of " + productName + ".");
+            return;
+         }
+         System.out.println(String.format("\n%-12s%-12s%-12s%-13s", "Store ID", "Distance", "Units", "Price/Unit"));
+         System.out.println("-----------------------------------------------");
+         for (int i = 0; i < stores.size(); i++) {
+            StockLocator.Result r = stores.get(i);
+            System.out.println(String.format("%-12d%-12.2f%-12d%-13s", r.storeID, r.distance, r.units, r.price));
+         }
+         System.out.println();
+      } catch (Exception e) {
+         System.err.println("Error: " + e.getMessage());
+      }
+   }
+
+   //Product.numberOfUnits of one product, -1 if the store does not sell it
+   public static int getAvailableUnits(Amazon esql, int storeID, String productName) throws SQLException {
+      AmazonRepository.Product product = esql.repository.getProduct(storeID, productName);
+      return product == null ? -1 : product.numberOfUnits;
+   }
+
+   //multi item cart; every line holds its units for RESERVATION_TIMEOUT
+   public static void cartMenu(Amazon esql) {
+      if (reservations == null) {
+         reservations = new ReservationManager(RESERVATION_TIMEOUT);
+      }
+      if (esql.cart == null) {
+         esql.cart = new Cart(reservations);
+      }
+      Cart cart = esql.cart;
+      while (true) {
+         System.out.println("\nSHOPPING CART");
+         System.out.println("-------------");
+         System.out.println("1. Add item");
+         System.out.println("2. View cart");
+         System.out.println("3. Remove item");
+         System.out.println("4. Checkout");
+         System.out.println("9. < Back");
+         try {
+            switch (readChoice()) {
+               case 1:
+                  int storeID = selectStore(esql);
+                  if (storeID <= 0) break;
+                  String pName = selectProduct(esql, storeID).trim();
+                  if (pName.isEmpty() || pName.equals("0")) break;
+                  int count = selectCount(esql, storeID, pName);
+                  if (count <= 0) break;
+                  if (cart.add(storeID, pName, count, getAvailableUnits(esql, storeID, pName))) {
+                     System.out.println("Added to cart. The items are held for " + RESERVATION_TIMEOUT / 60000 + " minutes.");
+                  }
+                  else {
+                     System.out.println("Not enough units left: other customers are holding them in their carts.");
+                  }
+                  break;
+               case 2:
+                  viewCart(cart);
+                  break;
+               case 3:
+                  viewCart(cart);
+                  System.out.print("Enter the line number to remove: ");
+                  int line = Integer.parseInt(in.readLine().trim());
+                  if (line < 1 || line > cart.lines().size()) {
+                     System.out.println("No such line.");
+                     break;
+                  }
+                  cart.remove(line - 1);
+                  break;
+               case 4:
+                  checkoutCart(esql, cart);
+                  break;
+               case 9:
+                  return;
+               default:
+                  System.out.println("Unrecognized choice!");
+                  break;
+            }
+         } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+         }
+      }
+   }
+
+   public static void viewCart(Cart cart) {
+      List<Cart.Line> lines = cart.lines();
+      System.out.println(String.format("\n%-6s%-12s%-25s%-10s%s", "Line", "Store ID", "Product", "Units", "Held for"));
+      System.out.println("-----------------------------------------------------------------");
+      for (int i = 0; i < lines.size(); i++) {
+         Cart.Line l = lines.get(i);
+         String held = l.reservation().isHeld() ? (l.reservation().millisLeft() / 1000) + "s" : "expired";
+         System.out.println(String.format("%-6d%-12d%-25s%-10d%s", i + 1, l.storeID, l.productName, l.units, held));
+      }
+      System.out.println();
+   }
+
+   public static void checkoutCart(Amazon esql, Cart cart) throws SQLException, IOException {
+      if (cart.lines().isEmpty()) {
+         System.out.println("Your cart is empty.");
+         return;
+      }
+      // lines that sat in the cart too long need their stock again
+      List<Cart.Line> expired = cart.expired();
+      for (int i = 0; i < expired.size(); i++) {
+         Cart.Line l = expired.get(i);
+         if (!cart.renew(l, getAvailableUnits(esql, l.storeID, l.productName))) {
+            System.out.println("Store " + l.storeID + " no longer has " + l.units + " units of " + l.productName + ". Please remove it from your cart.");
+            return;
+         }
+      }
+      List<Integer> numbers = cart.checkout(esql.repository, esql.userID);
+      if (numbers == null) {
+         System.out.println("Some items sold out before checkout; nothing was ordered.");
+         return;
+      }
+      List<Cart.Line> lines = cart.lines();
+      for (int i = 0; i < lines.size(); i++) {
+         orderPlaced(esql, numbers.get(i), lines.get(i).storeID, lines.get(i).productName, lines.get(i).units);
+      }
+      lines.clear();
+      System.out.println("Order Placed!");
+   }
 }//end Amazon
 
@@ -0,0 +1,447 @@
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+//Data access for the application: every read and write of Users, Store,
+//Product, Orders, ProductSupplyRequests and ProductUpdates goes through this
+//interface. JdbcRepository runs it against Postgres and InMemoryRepository
+//keeps the tables in the heap with the same semantics, down to the column
+//sizes, the foreign keys and the ordering of every list.
+//
+//Names are kept without trailing blanks, and names passed in are compared
+//ignoring them. Methods that only read are marked @ReadOnly.
+public interface AmazonRepository {
+
+   public static class User {
+      public final int userID;
+      public final String name, password, type;
+      public final double latitude, longitude;
+
+      public User(int userID, String name, String password, double latitude, double longitude, String type) {
+         this.userID = userID;
+         this.name = name;
+         this.password = password;
+         this.latitude = latitude;
+         this.longitude = longitude;
+         this.type = type;
+      }
+   }
+
+   public static class Store {
+      public final int storeID, managerID;
+      public final double latitude, longitude;
+      public final String dateEstablished; // yyyy-mm-dd or null
+
+      public Store(int storeID, double latitude, double longitude, int managerID, String dateEstablished) {
+         this.storeID = storeID;
+         this.latitude = latitude;
+         this.longitude = longitude;
+         this.managerID = managerID;
+         this.dateEstablished = dateEstablished;
+      }
+   }
+
+   public static class Product {
+      public final int storeID;
+      public final String productName;
+      public final int numberOfUnits;
+      public final double pricePerUnit;
+
+      public Product(int storeID, String productName, int numberOfUnits, double pricePerUnit) {
+         this.storeID = storeID;
+         this.productName = productName;
+         this.numberOfUnits = numberOfUnits;
+         this.pricePerUnit = pricePerUnit;
+      }
+   }
+
+   public static class Order {
+      public final int orderNumber, customerID, storeID, unitsOrdered;
+      public final String productName;
+      public final Timestamp orderTime;
+
+      public Order(int orderNumber, int customerID, int storeID, String productName, int unitsOrdered, Timestamp orderTime) {
+         this.orderNumber = orderNumber;
+         this.customerID = customerID;
+         this.storeID = storeID;
+         this.productName = productName;
+         this.unitsOrdered = unitsOrdered;
+         this.orderTime = orderTime;
+      }
+   }
+
+   //a supply request is pending until a SupplyFulfillment worker ships it, and its units reach the store once received
+   public static final String PENDING = "pending", SHIPPED = "shipped", RECEIVED = "received";
+
+   public static class SupplyRequest {
+      public final int requestNumber, managerID, warehouseID, storeID, unitsRequested;
+      public final String productName;
+      public final String status;
+
+      //a request of productSupplyRequests.csv, received long ago
+      public SupplyRequest(int requestNumber, int managerID, int warehouseID, int storeID, String productName, int unitsRequested) {
+         this(requestNumber, managerID, warehouseID, storeID, productName, unitsRequested, RECEIVED);
+      }
+
+      public SupplyRequest(int requestNumber, int managerID, int warehouseID, int storeID, String productName, int unitsRequested, String status) {
+         this.requestNumber = requestNumber;
+         this.managerID = managerID;
+         this.warehouseID = warehouseID;
+         this.storeID = storeID;
+         this.productName = productName;
+         this.unitsRequested = unitsRequested;
+         this.status = status;
+      }
+
+      SupplyRequest withStatus(String status) {
+         return new SupplyRequest(requestNumber, managerID, warehouseID, storeID, productName, unitsRequested, status);
+      }
+   }
+
+   public static class ProductUpdate {
+      public final int updateNumber, managerID, storeID;
+      public final String productName;
+      public final Timestamp updatedOn;
+
+      public ProductUpdate(int updateNumber, int managerID, int storeID, String productName, Timestamp updatedOn) {
+         this.updateNumber = updateNumber;
+         this.managerID = managerID;
+         this.storeID = storeID;
+         this.productName = productName;
+         this.updatedOn = updatedOn;
+      }
+   }
+
+   //what a product looked like from validFrom until its next version
+   public static class ProductVersion {
+      public final int versionNumber, storeID, numberOfUnits;
+      public final String productName;
+      public final double pricePerUnit;
+      public final Timestamp validFrom;
+
+      public ProductVersion(int versionNumber, int storeID, String productName, int numberOfUnits, double pricePerUnit, Timestamp validFrom) {
+         this.versionNumber = versionNumber;
+         this.storeID = storeID;
+         this.productName = productName;
+         this.numberOfUnits = numberOfUnits;
+         this.pricePerUnit = pricePerUnit;
+         this.validFrom = validFrom;
+      }
+   }
+
+   //one line of a multi item order
+   public static class OrderLine {
+      public final int storeID;
+      public final String productName;
+      public final int units;
+
+      public OrderLine(int storeID, String productName, int units) {
+         this.storeID = storeID;
+         this.productName = productName;
+         this.units = units;
+      }
+   }
+
+   //the products a bulk change applies to; a null field matches every product
+   public static class ProductFilter {
+      public final List<Integer> storeIDs;
+      public final String namePattern; // LIKE pattern ignoring case: % any run of characters, _ any one
+      public final Integer minUnits, maxUnits; // inclusive
+      private Pattern regex;
+
+      public ProductFilter(List<Integer> storeIDs, String namePattern, Integer minUnits, Integer maxUnits) {
+         this.storeIDs = storeIDs;
+         this.namePattern = namePattern;
+         this.minUnits = minUnits;
+         this.maxUnits = maxUnits;
+      }
+
+      //whether a product of one of the stores matches the name pattern and the units range
+      public boolean matches(String productName, int units) {
+         if (minUnits != null && units < minUnits) return false;
+         if (maxUnits != null && units > maxUnits) return false;
+         if (namePattern == null) return true;
+         if (regex == null) {
+            StringBuilder re = new StringBuilder();
+            for (char c : namePattern.toCharArray()) {
+               if (c == '%') re.append(".*");
+               else if (c == '_') re.append('.');
+               else re.append(Pattern.quote(String.valueOf(c)));
+            }
+            regex = Pattern.compile(re.toString(), Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+         }
+         return regex.matcher(productName.trim()).matches();
+      }
+   }
+
+   //how a bulk change sets the price and the units of every product it applies to
+   public static class Adjustment {
+      public final double priceFactor, priceChange; // price * priceFactor + priceChange, to the cent, not below 0
+      public final int unitsChange, unitsAtLeast; // units + unitsChange, raised to unitsAtLeast, not below 0
+
+      public Adjustment(double priceFactor, double priceChange, int unitsChange, int unitsAtLeast) {
+         this.priceFactor = priceFactor;
+         this.priceChange = priceChange;
+         this.unitsChange = unitsChange;
+         this.unitsAtLeast = unitsAtLeast;
+      }
+
+      public double price(double price) {
+         return Math.max(0, Math.round((price * priceFactor + priceChange) * 100) / 100.0);
+      }
+
+      public int units(int units) {
+         return Math.max(0, Math.max(units + unitsChange, unitsAtLeast));
+      }
+   }
+
+   //whether a manager operation went through, and if not why nothing changed
+   public enum Status { OK, NOT_A_MANAGER, NOT_YOUR_STORE, NO_SUCH_PRODUCT, NO_SUCH_WAREHOUSE }
+
+   //what a manager operation did
+   public static class Outcome {
+      public final Status status;
+      public final int number; // the updateNumber or requestNumber made, when OK
+
+      public Outcome(Status status, int number) {
+         this.status = status;
+         this.number = number;
+      }
+   }
+
+   //where a background thread gets a repository; on postgres every thread needs its own connection
+   public interface Source {
+      AmazonRepository open() throws SQLException;
+
+      //gives back a repository of open() when its thread stops
+      default void close(AmazonRepository repo) {
+         repo.close();
+      }
+
+      //one repository that every thread uses, e.g. an InMemoryRepository; left open
+      static Source shared(final AmazonRepository repo) {
+         return new Source() {
+            public AmazonRepository open() {
+               return repo;
+            }
+
+            public void close(AmazonRepository r) {
+            }
+         };
+      }
+   }
+
+   /*
+    * Creates a user.
+    *
+    * @return the userID given to the new user
+    * @throws java.sql.SQLException when a value does not fit its column
+    */
+   int createUser(String name, String password, double latitude, double longitude, String type) throws SQLException;
+
+   /*
+    * Inserts the user with the userID it already has, for the copies of
+    * Users kept on other databases.
+    *
+    * @throws java.sql.SQLException when the userID is taken
+    */
+   void copyUser(User user) throws SQLException;
+
+   //the user with this name and password, or null
+   @ReadOnly
+   User login(String name, String password) throws SQLException;
+
+   //the user or null
+   @ReadOnly
+   User getUser(int userID) throws SQLException;
+
+   //every user by userID
+   @ReadOnly
+   List<User> users() throws SQLException;
+
+   //names of the given users; ids without a user are left out
+   @ReadOnly
+   Map<Integer, String> userNames(List<Integer> userIDs) throws SQLException;
+
+   //@return false if there is no such user
+   boolean updateUser(User user) throws SQLException;
+
+   //every store by storeID
+   @ReadOnly
+   List<Store> stores() throws SQLException;
+
+   //ids of the stores the user manages, ascending
+   @ReadOnly
+   List<Integer> storesManagedBy(int managerID) throws SQLException;
+
+   //ids of every user managing a store, ascending
+   @ReadOnly
+   List<Integer> managerIDs() throws SQLException;
+
+   //the product or null
+   @ReadOnly
+   Product getProduct(int storeID, String productName) throws SQLException;
+
+   //the products of one store by name
+   @ReadOnly
+   List<Product> productsOf(int storeID) throws SQLException;
+
+   //visits every product, in no particular order, without holding them all in memory
+   @ReadOnly
+   void forEachProduct(Consumer<Product> visitor) throws SQLException;
+
+   /*
+    * Sets the units and price of a product. Like every change of a product's
+    * units or price, including the ones orders and supply requests make, it
+    * appends a ProductVersion stamped with the current second.
+    *
+    * @return false if the store does not sell the product
+    */
+   boolean updateProduct(int storeID, String productName, int numberOfUnits, double pricePerUnit) throws SQLException;
+
+   /*
+    * updateProduct and recordProductUpdate for a manager of the store, in
+    * one transaction that also checks the user is one.
+    *
+    * @return OK with the updateNumber, or why nothing changed
+    */
+   Outcome updateProductAsManager(int managerID, int storeID, String productName, int numberOfUnits, double pricePerUnit) throws SQLException;
+
+   /*
+    * Applies the adjustment to every product the filter matches and records
+    * a ProductUpdate by the manager for each, in the same transaction. The
+    * stores go in chunks of about chunkSize products, each chunk one
+    * transaction, so a failure leaves the chunks before it applied.
+    *
+    * @return the number of products changed
+    * @throws java.sql.SQLException when the manager does not exist
+    */
+   int bulkUpdateProducts(int managerID, ProductFilter filter, Adjustment adjustment, int chunkSize) throws SQLException;
+
+   /*
+    * Inserts an order for the current second and takes the units off the
+    * product, in one transaction.
+    *
+    * @return the orderNumber of the new order
+    * @throws java.sql.SQLException when the customer or the product does not exist
+    */
+   int placeOrder(int customerID, int storeID, String productName, int units) throws SQLException;
+
+   /*
+    * Places every line as an order in one transaction, but only if every
+    * store still has the units; otherwise nothing changes.
+    *
+    * @return the orderNumbers of the lines, or null if some product did not have the units
+    */
+   List<Integer> placeOrders(int customerID, List<OrderLine> lines) throws SQLException;
+
+   /*
+    * Deletes an order and puts its units back on the product, in one
+    * transaction.
+    *
+    * @return false if there is no such order
+    */
+   boolean cancelOrder(int orderNumber) throws SQLException;
+
+   //the customer's latest orders, newest first
+   @ReadOnly
+   List<Order> recentOrders(int customerID, int limit) throws SQLException;
+
+   //every order of the stores the user manages, newest first
+   @ReadOnly
+   List<Order> ordersOfManagedStores(int managerID) throws SQLException;
+
+   //visits every order, in no particular order, without holding them all in memory
+   @ReadOnly
+   void forEachOrder(Consumer<Order> visitor) throws SQLException;
+
+   /*
+    * Records a pending supply request. The units are added to the store's
+    * product when the request is received, see receiveSupplyRequests.
+    *
+    * @return the requestNumber, or -1 if the store does not sell the product
+    * @throws java.sql.SQLException when the warehouse does not exist
+    */
+   int requestSupply(int managerID, int warehouseID, int storeID, String productName, int units) throws SQLException;
+
+   /*
+    * requestSupply for a manager of the store, in one transaction that also
+    * checks the user is one and the warehouse exists.
+    *
+    * @return OK with the requestNumber, or why nothing changed
+    */
+   Outcome requestSupplyAsManager(int managerID, int warehouseID, int storeID, String productName, int units) throws SQLException;
+
+   //the store's latest supply requests, highest requestNumber first
+   @ReadOnly
+   List<SupplyRequest> supplyRequests(int storeID, int limit) throws SQLException;
+
+   //visits every supply request, in no particular order
+   @ReadOnly
+   void forEachSupplyRequest(Consumer<SupplyRequest> visitor) throws SQLException;
+
+   @ReadOnly
+   List<Integer> warehouseIDs() throws SQLException;
+
+   /*
+    * Ships up to limit of the warehouse's pending supply requests, oldest
+    * first. Requests that another worker is claiming at the same time are
+    * skipped rather than waited for, so several workers can drain one
+    * warehouse.
+    *
+    * @return the requests claimed, now shipped
+    */
+   List<SupplyRequest> claimSupplyRequests(int warehouseID, int limit) throws SQLException;
+
+   /*
+    * Marks shipped supply requests received and adds their units to the
+    * products of the stores, in one transaction. Requests that are not
+    * shipped are left alone.
+    *
+    * @return the number of requests received
+    */
+   int receiveSupplyRequests(List<Integer> requestNumbers) throws SQLException;
+
+   /*
+    * Puts the supply requests shipped more than shippedMillis ago and never
+    * received back to pending, e.g. those of a worker whose app instance
+    * died, so another worker claims them again.
+    *
+    * @return the number of requests put back
+    */
+   int requeueSupplyRequests(long shippedMillis) throws SQLException;
+
+   /*
+    * Records that a manager updated a product, now.
+    *
+    * @return the updateNumber
+    */
+   int recordProductUpdate(int managerID, int storeID, String productName) throws SQLException;
+
+   //the latest product updates of the stores the user manages, newest first
+   @ReadOnly
+   List<ProductUpdate> recentUpdates(int managerID, int limit) throws SQLException;
+
+   //visits every product update, in no particular order
+   @ReadOnly
+   void forEachProductUpdate(Consumer<ProductUpdate> visitor) throws SQLException;
+
+   //visits every product version, the versions of a product together and oldest first
+   @ReadOnly
+   void forEachProductVersion(Consumer<ProductVersion> visitor) throws SQLException;
+
+   /*
+    * Folds the versions older than the cutoff into daily snapshots. Of those
+    * only the first version of a product, the versions that changed its price
+    * and the last version of each day are kept, so prices as of any time stay
+    * exact and the units before the cutoff are exact at the end of every day.
+    *
+    * @return the number of versions removed
+    */
+   int compactProductVersions(Timestamp before) throws SQLException;
+
+   void close();
+}
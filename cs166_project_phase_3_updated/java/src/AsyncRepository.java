@@ -0,0 +1,118 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+//Runs repository calls on a small pool of threads and hands back futures, so
+//calls that do not depend on each other are sent at the same time and take as
+//long as the slowest of them rather than the sum. Every call borrows one of
+//the repositories opened from the source, on postgres a connection of its
+//own, and gives it back when it returns; a call never shares a connection
+//with another call or with the session.
+//
+//The JDBC driver sends one statement at a time and waits for its result, so
+//the calls are concurrent over the connections rather than pipelined on one.
+public class AsyncRepository {
+
+   //a call to make on whichever repository is free
+   public interface Call<T> {
+      T call(AmazonRepository repo) throws SQLException;
+   }
+
+   private final AmazonRepository.Source source;
+   private final List<AmazonRepository> opened = new ArrayList<AmazonRepository>();
+   private final BlockingQueue<AmazonRepository> idle;
+   private final ExecutorService pool;
+
+   /*
+    * Opens the repositories up front, so the first calls do not wait for a
+    * connection to be made.
+    *
+    * @param source gives every connection its repository
+    * @param connections the most calls running at once
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public AsyncRepository(AmazonRepository.Source source, int connections) throws SQLException {
+      this.source = source;
+      this.idle = new ArrayBlockingQueue<AmazonRepository>(connections);
+      try {
+         for (int i = 0; i < connections; i++) {
+            AmazonRepository repo = source.open();
+            opened.add(repo);
+            idle.add(repo);
+         }
+      }
+      catch (SQLException e) {
+         close(opened);
+         throw e;
+      }
+      this.pool = Executors.newFixedThreadPool(connections, r -> {
+         Thread t = new Thread(r, "async-repository");
+         t.setDaemon(true);
+         return t;
+      });
+   }
+
+   //starts the call and returns its result to come
+   public <T> CompletableFuture<T> submit(final Call<T> call) {
+      return CompletableFuture.supplyAsync(() -> {
+         AmazonRepository repo = null;
+         try {
+            repo = idle.take();
+            return call.call(repo);
+         }
+         catch (SQLException e) {
+            throw new RuntimeException(e);
+         }
+         catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(new SQLException("interrupted"));
+         }
+         finally {
+            if (repo != null) idle.add(repo);
+         }
+      }, pool);
+   }
+
+   /*
+    * Waits for the result of a call.
+    *
+    * @throws java.sql.SQLException what the call threw
+    */
+   public static <T> T get(CompletableFuture<T> result) throws SQLException {
+      try {
+         return result.get();
+      }
+      catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("interrupted");
+      }
+      catch (ExecutionException e) {
+         Throwable cause = e.getCause() instanceof RuntimeException && e.getCause().getCause() != null ? e.getCause().getCause() : e.getCause();
+         if (cause instanceof SQLException) throw (SQLException) cause;
+         throw new SQLException(cause.toString());
+      }
+   }
+
+   private void close(List<AmazonRepository> repos) {
+      for (AmazonRepository repo : repos) source.close(repo);
+   }
+
+   //waits for the calls running and closes the repositories
+   public void close() {
+      pool.shutdown();
+      try {
+         pool.awaitTermination(10, TimeUnit.SECONDS);
+      }
+      catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      close(opened);
+   }
+}
@@ -0,0 +1,1839 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Benchmarks for the in-memory structures used by Amazon. Every mode builds
+//synthetic data of the requested size; modes that also take <dbname> <port> <user>
+//load the real tables instead and time the equivalent SQL next to it.
+//
+//Usage: java -cp classes:lib/pg73jdbc3.jar Benchmark <mode> [arguments]
+public class Benchmark {
+
+   static final long DAY = 24L * 60 * 60 * 1000;
+
+   public static void main(String[] args) throws Exception {
+      if (args.length == 0) {
+         usage();
+         return;
+      }
+      String[] rest = Arrays.copyOfRange(args, 1, args.length);
+      switch (args[0]) {
+         case "orders-topk": ordersTopK(rest); break;
+         case "sales-dashboard": salesDashboard(rest); break;
+         case "product-search": productSearch(rest); break;
+         case "stock-locator": stockLocator(rest); break;
+         case "cart-contention": cartContention(rest); break;
+         case "csv-scale": csvScale(rest); break;
+         case "archive-scan": archiveScan(rest); break;
+         case "event-bus": eventBus(rest); break;
+         case "repository": repository(rest); break;
+         case "price-history": priceHistory(rest); break;
+         case "sharding": sharding(rest); break;
+         case "replicas": replicas(rest); break;
+         case "invalidation": invalidation(rest); break;
+         case "recent-activity": recentActivity(rest); break;
+         case "bulk-update": bulkUpdate(rest); break;
+         case "manager-calls": managerCalls(rest); break;
+         case "compact-schema": compactSchema(rest); break;
+         case "render": render(rest); break;
+         case "fulfillment": fulfillment(rest); break;
+         case "login": login(rest); break;
+         default: usage(); break;
+      }
+   }
+
+   static void usage() {
+      System.err.println("Usage: java Benchmark <mode> [arguments]");
+      System.err.println("  orders-topk [orders stores products] [<dbname> <port> <user>] (-Xmx3g for the default 100M orders)");
+      System.err.println("  sales-dashboard [orders stores products]");
+      System.err.println("  product-search [stores productsPerStore distinctNames]");
+      System.err.println("  stock-locator [stores products productsPerStore]");
+      System.err.println("  cart-contention [carts threads skus unitsPerSku timeoutMs]");
+      System.err.println("  csv-scale <factor> <dataDir> <outDir>");
+      System.err.println("  archive-scan [orders stores products] [<dbname> <port> <user>]");
+      System.err.println("  event-bus [events eventsPerSecond consumers]");
+      System.err.println("  repository <dataDir> [ops] [<dbname> <port> <user>]");
+      System.err.println("  price-history [versions stores products orders] (-Xmx3g for the default 100M versions)");
+      System.err.println("  sharding <dataDir> [ordersPerWriter writersPerShard] [<dbname> <user> <port> [<port> ...]]");
+      System.err.println("  replicas <dataDir> [sessions lagMs] [<dbname> <port> <user> <replicaPort> [<replicaPort> ...]]");
+      System.err.println("  invalidation <dbname> <port> <user> [instances bursts burstSize]");
+      System.err.println("  recent-activity [orders customers stores] (-Xmx3g for the default 100M orders)");
+      System.err.println("  bulk-update [products productsPerStore] [<dbname> <port> <user>] (postgres defaults to 10M products)");
+      System.err.println("  manager-calls <dbname> <port> <user> [latencyMs runs]");
+      System.err.println("  compact-schema <dbname> <port> <user> [orders stores productsPerStore customers]");
+      System.err.println("  render [rows]");
+      System.err.println("  fulfillment <dataDir> [requests batchSize shipMillis] [<dbname> <port> <user>]");
+      System.err.println("  login <dataDir> [latencyMs runs] [<dbname> <port> <user>]");
+   }
+
+   static int intArg(String[] args, int i, int def) {
+      return args.length > i ? Integer.parseInt(args[i]) : def;
+   }
+
+   static Connection connect(String[] args, int i) throws Exception {
+      if (args.length < i + 3) return null;
+      Class.forName("org.postgresql.Driver");
+      return DriverManager.getConnection("jdbc:postgresql://localhost:" + args[i + 1] + "/" + args[i], args[i + 2], "");
+   }
+
+   //runs the task a few times and returns the best time in milliseconds
+   static double time(Runnable task, int runs) {
+      long best = Long.MAX_VALUE;
+      for (int i = 0; i < runs; i++) {
+         long start = System.nanoTime();
+         task.run();
+         best = Math.min(best, System.nanoTime() - start);
+      }
+      return best / 1e6;
+   }
+
+   static OrderColumns syntheticOrders(int numOrders, int numStores, int numProducts, long now) {
+      ProductDictionary products = new ProductDictionary();
+      for (int i = 0; i < numProducts; i++) products.code("product" + i);
+      OrderColumns orders = new OrderColumns(products, numOrders);
+      Random rnd = new Random(42);
+      for (int i = 0; i < numOrders; i++) {
+         // skew the product choice so that top-k has something to find
+         int product = (int) (numProducts * Math.pow(rnd.nextDouble(), 3));
+         orders.append(rnd.nextInt(100000) + 1, rnd.nextInt(numStores) + 1, product, rnd.nextInt(50) + 1, now - (long) (rnd.nextDouble() * 365 * DAY));
+      }
+      return orders;
+   }
+
+   /*
+    * Top 5 products per store over the last 30 days, answered by OrderColumns
+    * on 1 and on all cores, and by Postgres when a database is given.
+    */
+   static void ordersTopK(String[] args) throws Exception {
+      int numOrders = intArg(args, 0, 100000000);
+      int numStores = intArg(args, 1, 1000);
+      int numProducts = intArg(args, 2, 2000);
+      Connection conn = connect(args, 3);
+      long now = System.currentTimeMillis();
+
+      OrderColumns orders;
+      long start = System.nanoTime();
+      if (conn != null) {
+         orders = OrderColumns.load(new JdbcRepository(conn), new ProductDictionary());
+      }
+      else {
+         orders = syntheticOrders(numOrders, numStores, numProducts, now);
+      }
+      System.out.printf("loaded %d orders in %.1f ms%n", orders.size(), (System.nanoTime() - start) / 1e6);
+
+      final OrderColumns.Filter filter = new OrderColumns.Filter();
+      filter.fromTime = now - 30 * DAY;
+      final OrderColumns o = orders;
+      int cores = Runtime.getRuntime().availableProcessors();
+      for (int threads : cores == 1 ? new int[] {1} : new int[] {1, cores}) {
+         final ForkJoinPool pool = new ForkJoinPool(threads);
+         double ms = time(() -> o.topProductsPerStore(filter, 5, pool), 5);
+         System.out.printf("columnar top-5 per store, %2d threads: %10.1f ms (%.0f M rows/s)%n", threads, ms, orders.size() / ms / 1000);
+         pool.shutdown();
+      }
+
+      if (conn != null) {
+         final String sql = "SELECT storeID, productID, total FROM (" +
+            "SELECT storeID, productID, SUM(unitsOrdered) AS total, " +
+            "ROW_NUMBER() OVER (PARTITION BY storeID ORDER BY SUM(unitsOrdered) DESC) AS rn " +
+            "FROM Orders WHERE orderTime >= CURRENT_TIMESTAMP - INTERVAL '30 days' " +
+            "GROUP BY storeID, productID) t WHERE rn <= 5";
+         final Statement stmt = conn.createStatement();
+         double ms = time(() -> {
+            try {
+               ResultSet rs = stmt.executeQuery(sql);
+               while (rs.next()) { }
+            }
+            catch (Exception e) {
+               throw new RuntimeException(e);
+            }
+         }, 3);
+         System.out.printf("SQL top-5 per store:                %10.1f ms%n", ms);
+         stmt.close();
+         conn.close();
+      }
+   }
+
+   /*
+    * Revenue, units and orders per store, product and day on 1, 2, 4 ... cores.
+    */
+   static void salesDashboard(String[] args) throws Exception {
+      int numOrders = intArg(args, 0, 10000000);
+      int numStores = intArg(args, 1, 1000);
+      int numProducts = intArg(args, 2, 2000);
+      final OrderColumns orders = syntheticOrders(numOrders, numStores, numProducts, System.currentTimeMillis());
+      Random rnd = new Random(7);
+      double[] price = new double[(numStores + 1) * numProducts];
+      for (int i = 0; i < price.length; i++) price[i] = 1 + rnd.nextInt(20);
+      final SalesDashboard.Prices prices = SalesDashboard.Prices.of(price, numProducts);
+
+      int cores = Runtime.getRuntime().availableProcessors();
+      double base = 0;
+      for (int threads = 1; ; threads = Math.min(threads * 2, cores)) {
+         final ForkJoinPool pool = new ForkJoinPool(threads);
+         double ms = time(() -> SalesDashboard.compute(orders, prices, pool), 5);
+         if (threads == 1) base = ms;
+         System.out.printf("dashboard over %d orders, %2d threads: %10.1f ms (speedup %.2fx)%n", orders.size(), threads, ms, base / ms);
+         pool.shutdown();
+         if (threads == cores) break;
+      }
+   }
+
+   /*
+    * Exact, prefix and one-typo lookups restricted to 20 nearby stores, over
+    * stores * productsPerStore (store, product) rows.
+    */
+   static void productSearch(String[] args) throws Exception {
+      int numStores = intArg(args, 0, 50000);
+      int perStore = intArg(args, 1, 200);
+      int distinct = intArg(args, 2, 5000);
+      Random rnd = new Random(42);
+      String[] names = new String[distinct];
+      for (int i = 0; i < distinct; i++) {
+         StringBuilder name = new StringBuilder();
+         int len = 4 + rnd.nextInt(12);
+         for (int j = 0; j < len; j++) name.append((char) ((j == 0 ? 'A' : 'a') + rnd.nextInt(26)));
+         names[i] = name.toString();
+      }
+      ProductSearchIndex index = new ProductSearchIndex();
+      long start = System.nanoTime();
+      for (int store = 1; store <= numStores; store++) {
+         for (int j = 0; j < perStore; j++) index.add(store, names[rnd.nextInt(distinct)]);
+      }
+      System.out.printf("indexed %d rows in %.1f ms%n", (long) numStores * perStore, (System.nanoTime() - start) / 1e6);
+
+      int queries = 20000;
+      int[][] nearby = new int[queries][];
+      String[] typed = new String[queries];
+      for (int i = 0; i < queries; i++) {
+         int[] stores = new int[20];
+         for (int j = 0; j < stores.length; j++) stores[j] = rnd.nextInt(numStores) + 1;
+         Arrays.sort(stores);
+         nearby[i] = stores;
+         typed[i] = names[rnd.nextInt(distinct)];
+      }
+      String[] typos = new String[queries];
+      for (int i = 0; i < queries; i++) {
+         char[] c = typed[i].toCharArray();
+         c[rnd.nextInt(c.length)] = (char) ('a' + rnd.nextInt(26));
+         typos[i] = new String(c);
+      }
+      for (int round = 0; round < 2; round++) { // the first round warms up the JIT
+         long t0 = System.nanoTime();
+         for (int i = 0; i < queries; i++) index.lookup(typed[i].toUpperCase(), nearby[i]);
+         long t1 = System.nanoTime();
+         for (int i = 0; i < queries; i++) index.complete(typed[i].substring(0, 2), nearby[i], 10);
+         long t2 = System.nanoTime();
+         for (int i = 0; i < queries; i++) index.fuzzy(typos[i], nearby[i], 1, 10);
+         long t3 = System.nanoTime();
+         if (round == 1) {
+            System.out.printf("exact  lookup: %8.2f us/query%n", (t1 - t0) / 1e3 / queries);
+            System.out.printf("prefix lookup: %8.2f us/query%n", (t2 - t1) / 1e3 / queries);
+            System.out.printf("fuzzy  lookup: %8.2f us/query%n", (t3 - t2) / 1e3 / queries);
+         }
+      }
+   }
+
+   /*
+    * Nearest stores within 30 with N units of a product, stores spread over
+    * the same [0, 100] x [0, 100] area as the sample data.
+    */
+   static void stockLocator(String[] args) throws Exception {
+      int numStores = intArg(args, 0, 50000);
+      int numProducts = intArg(args, 1, 2000);
+      int perStore = intArg(args, 2, 200);
+      Random rnd = new Random(42);
+      StockLocator locator = new StockLocator(7.5);
+      long start = System.nanoTime();
+      for (int store = 1; store <= numStores; store++) {
+         locator.addStore(store, rnd.nextDouble() * 100, rnd.nextDouble() * 100);
+         for (int j = 0; j < perStore; j++) {
+            locator.setStock(store, "product" + rnd.nextInt(numProducts), rnd.nextInt(100), 1 + rnd.nextInt(20));
+         }
+      }
+      System.out.printf("loaded %d stores x %d products in %.1f ms%n", numStores, perStore, (System.nanoTime() - start) / 1e6);
+
+      int queries = 2000;
+      for (int round = 0; round < 2; round++) {
+         long found = 0;
+         long t0 = System.nanoTime();
+         for (int i = 0; i < queries; i++) {
+            found += locator.nearest("product" + rnd.nextInt(numProducts), 1 + rnd.nextInt(99), rnd.nextDouble() * 100, rnd.nextDouble() * 100, 30, 10).size();
+         }
+         long t1 = System.nanoTime();
+         if (round == 1) {
+            System.out.printf("nearest stores with stock: %8.1f us/query (%.1f stores returned)%n", (t1 - t0) / 1e3 / queries, (double) found / queries);
+         }
+      }
+   }
+
+   /*
+    * Many carts competing for a few SKUs, spread over 4 stores of an
+    * InMemoryRepository. Every cart reserves its lines against the units the
+    * repository reports and checks out through Cart.checkout, i.e. one
+    * all-or-nothing placeOrders. One cart in five is abandoned and must be
+    * reclaimed by the sweeper. Reports checkout throughput, oversells, whether
+    * the orders placed match the units taken, and units still reserved once
+    * everything has expired (leaks).
+    */
+   static void cartContention(String[] args) throws Exception {
+      final int numCarts = intArg(args, 0, 200000);
+      int threads = intArg(args, 1, 8);
+      final int skus = intArg(args, 2, 20);
+      int unitsPerSku = intArg(args, 3, 100000);
+      final int timeoutMs = intArg(args, 4, 200);
+      final InMemoryRepository repo = new InMemoryRepository();
+      int manager = repo.createUser("manager", "pw", 0, 0, "manager");
+      final int customer = repo.createUser("customer", "pw", 0, 0, "customer");
+      for (int store = 1; store <= 4; store++) repo.addStore(new AmazonRepository.Store(store, 0, 0, manager, null));
+      for (int sku = 0; sku < skus; sku++) repo.addProduct(1 + sku % 4, "sku" + sku, unitsPerSku, 1);
+      final ReservationManager reservations = new ReservationManager(timeoutMs);
+      final AtomicLong checkedOut = new AtomicLong();
+      final AtomicLong rejected = new AtomicLong();
+      final AtomicLong soldOut = new AtomicLong();
+      final AtomicLong unitsSold = new AtomicLong();
+      final AtomicLong linesOrdered = new AtomicLong();
+      final AtomicInteger next = new AtomicInteger();
+
+      Thread[] workers = new Thread[threads];
+      long start = System.nanoTime();
+      for (int t = 0; t < threads; t++) {
+         final Random rnd = new Random(t);
+         workers[t] = new Thread(() -> {
+            try {
+               while (next.getAndIncrement() < numCarts) {
+                  Cart cart = new Cart(reservations);
+                  int lines = 1 + rnd.nextInt(3);
+                  for (int l = 0; l < lines; l++) {
+                     int sku = rnd.nextInt(skus);
+                     int store = 1 + sku % 4;
+                     int available = repo.getProduct(store, "sku" + sku).numberOfUnits;
+                     if (!cart.add(store, "sku" + sku, 1 + rnd.nextInt(5), available)) rejected.incrementAndGet();
+                  }
+                  if (rnd.nextInt(5) == 0) continue; // abandoned, left to the sweeper
+                  int units = 0;
+                  for (Cart.Line line : cart.lines()) units += line.units;
+                  List<Integer> numbers = cart.checkout(repo, customer);
+                  if (numbers != null) {
+                     checkedOut.incrementAndGet();
+                     unitsSold.addAndGet(units);
+                     linesOrdered.addAndGet(numbers.size());
+                  }
+                  else {
+                     cart.clear();
+                     soldOut.incrementAndGet();
+                  }
+               }
+            }
+            catch (Exception e) {
+               throw new RuntimeException(e);
+            }
+         });
+         workers[t].start();
+      }
+      for (Thread w : workers) w.join();
+      double seconds = (System.nanoTime() - start) / 1e9;
+      Thread.sleep(timeoutMs * 3L); // let every abandoned reservation expire
+
+      long remaining = 0;
+      int negative = 0;
+      for (int sku = 0; sku < skus; sku++) {
+         int units = repo.getProduct(1 + sku % 4, "sku" + sku).numberOfUnits;
+         remaining += units;
+         if (units < 0) negative++;
+      }
+      final long[] ordered = {0, 0};
+      repo.forEachOrder(o -> {
+         ordered[0]++;
+         ordered[1] += o.unitsOrdered;
+      });
+      System.out.printf("%d carts on %d threads over %d SKUs: %.0f checkouts/s%n", numCarts, threads, skus, checkedOut.get() / seconds);
+      System.out.printf("checked out %d, sold out at checkout %d, lines rejected at add %d, reservations expired %d%n",
+                        checkedOut.get(), soldOut.get(), rejected.get(), reservations.expiredCount());
+      System.out.printf("oversold SKUs %d, units accounted for %b, orders match the checkouts %b, reservation leak %d units%n",
+                        negative, remaining + unitsSold.get() == (long) skus * unitsPerSku,
+                        ordered[0] == linesOrdered.get() && ordered[1] == unitsSold.get(), reservations.totalReserved());
+      reservations.shutdown();
+   }
+
+   /*
+    * Writes factor copies of the sample CSV files into outDir, shifting the
+    * keys of every copy past the previous one so that foreign keys still
+    * match. The result loads with load_data.sql or CsvLoader, e.g. at 10x
+    * and 1000x to compare the two.
+    */
+   static void csvScale(String[] args) throws Exception {
+      int factor = Integer.parseInt(args[0]);
+      File in = new File(args[1]);
+      File out = new File(args[2]);
+      out.mkdirs();
+      // for every file, the key file each column is shifted by (null: not a key)
+      String[][] keys = {
+         {"users.csv", "users.csv", null, null, null, null, null},
+         {"warehouse.csv", "warehouse.csv", null, null, null},
+         {"stores.csv", "stores.csv", null, null, "users.csv", null},
+         {"products.csv", "stores.csv", null, null, null},
+         {"orders.csv", "orders.csv", "users.csv", "stores.csv", null, null, null},
+         {"productSupplyRequests.csv", "productSupplyRequests.csv", "users.csv", "warehouse.csv", "stores.csv", null, null},
+         {"productUpdates.csv", "productUpdates.csv", "users.csv", "stores.csv", null, null},
+      };
+      Map<String, Long> maxKey = new HashMap<String, Long>();
+      Map<String, List<String>> lines = new HashMap<String, List<String>>();
+      for (String[] k : keys) {
+         List<String> rows = Files.readAllLines(new File(in, k[0]).toPath());
+         lines.put(k[0], rows);
+         long max = 0;
+         for (String row : rows.subList(1, rows.size())) {
+            if (!row.isEmpty()) max = Math.max(max, Long.parseLong(row.substring(0, row.indexOf(','))));
+         }
+         maxKey.put(k[0], max);
+      }
+      for (String[] k : keys) {
+         List<String> rows = lines.get(k[0]);
+         BufferedWriter w = Files.newBufferedWriter(new File(out, k[0]).toPath());
+         w.write(rows.get(0));
+         w.newLine();
+         for (int copy = 0; copy < factor; copy++) {
+            for (String row : rows.subList(1, rows.size())) {
+               if (row.isEmpty()) continue;
+               String[] fields = row.split(",", -1);
+               for (int c = 0; c < fields.length; c++) {
+                  if (c > 0) w.write(',');
+                  String keyFile = c + 1 < k.length ? k[c + 1] : null;
+                  w.write(keyFile == null ? fields[c] : Long.toString(Long.parseLong(fields[c]) + copy * maxKey.get(keyFile)));
+               }
+               w.newLine();
+            }
+         }
+         w.close();
+      }
+      System.out.printf("wrote %dx the sample data to %s%n", factor, out);
+   }
+
+   /*
+    * Size and scan speed of an OrderArchive file holding a year of orders,
+    * next to Postgres' size of Orders and the same aggregation in SQL when a
+    * database is given.
+    */
+   static void archiveScan(String[] args) throws Exception {
+      int numOrders = intArg(args, 0, 10000000);
+      int numStores = intArg(args, 1, 1000);
+      int numProducts = intArg(args, 2, 2000);
+      Connection conn = connect(args, 3);
+      long now = System.currentTimeMillis();
+      Random rnd = new Random(42);
+      long[] times = new long[numOrders];
+      for (int i = 0; i < numOrders; i++) times[i] = (now - 365 * DAY + (long) (rnd.nextDouble() * 365 * DAY)) / 1000 * 1000;
+      Arrays.sort(times); // exports are ordered by orderTime
+
+      File file = File.createTempFile("orders-", ".amz");
+      file.deleteOnExit();
+      long start = System.nanoTime();
+      OrderArchive.Writer writer = new OrderArchive.Writer(file, OrderArchive.ORDERS);
+      for (int i = 0; i < numOrders; i++) {
+         int product = (int) (numProducts * Math.pow(rnd.nextDouble(), 3));
+         writer.append(rnd.nextInt(100000) + 1, rnd.nextInt(numStores) + 1, "product" + product, rnd.nextInt(50) + 1, times[i]);
+      }
+      writer.close();
+      System.out.printf("wrote %d orders in %.1f ms: %d bytes, %.1f bytes/order%n", numOrders, (System.nanoTime() - start) / 1e6, file.length(), (double) file.length() / numOrders);
+
+      final OrderArchive archive = new OrderArchive(file);
+      final boolean[] half = new boolean[numStores + 1];
+      for (int s = 1; s <= numStores; s += 2) half[s] = true;
+      double ms = time(() -> archive.addUnitsByProduct(half, new HashMap<String, Long>()), 5);
+      System.out.printf("units per product, half the stores, full year: %8.1f ms (%.0f M rows/s)%n", ms, numOrders / ms / 1000);
+      final long[] units = new long[archive.productCount()];
+      ms = time(() -> archive.scan(null, now - 30 * DAY, Long.MAX_VALUE, (id, store, product, n, t) -> units[product] += n), 5);
+      System.out.printf("units per product, last 30 days (block skipping): %8.1f ms%n", ms);
+
+      if (conn != null) {
+         Statement stmt = conn.createStatement();
+         ResultSet rs = stmt.executeQuery("SELECT pg_total_relation_size('orders'), COUNT(*) FROM Orders");
+         rs.next();
+         System.out.printf("Postgres Orders with indexes: %d bytes for %d orders, %.1f bytes/order%n", rs.getLong(1), rs.getLong(2), (double) rs.getLong(1) / Math.max(1, rs.getLong(2)));
+         final Statement q = stmt;
+         ms = time(() -> {
+            try {
+               ResultSet r = q.executeQuery("SELECT productID, SUM(unitsOrdered) FROM Orders WHERE storeID % 2 = 1 GROUP BY productID");
+               while (r.next()) { }
+            }
+            catch (Exception e) {
+               throw new RuntimeException(e);
+            }
+         }, 3);
+         System.out.printf("SQL units per product, half the stores: %8.1f ms%n", ms);
+         stmt.close();
+         conn.close();
+      }
+   }
+
+   /*
+    * Publish cost and end-to-end consumer lag of the order event bus with the
+    * publisher paced at the given rate, then the unpaced throughput. The first
+    * consumer appends every order to an OrderColumns like the analytics
+    * consumer does; the others only read the event.
+    */
+   static void eventBus(String[] args) throws Exception {
+      int numEvents = intArg(args, 0, 5000000);
+      int rate = intArg(args, 1, 1000000);
+      int numConsumers = intArg(args, 2, 3);
+      String[] names = new String[1000];
+      for (int i = 0; i < names.length; i++) names[i] = "product" + i;
+
+      final int[][] lag = new int[numConsumers][numEvents];
+      final OrderColumns columns = new OrderColumns(new ProductDictionary(), numEvents);
+      final long[] sink = new long[numConsumers];
+      OrderEventBus bus = new OrderEventBus(4096);
+      for (int c = 0; c < numConsumers; c++) {
+         final int id = c;
+         bus.addConsumer("consumer-" + c, (e, seq, endOfBatch) -> {
+            lag[id][(int) seq] = (int) (System.nanoTime() - e.publishedNanos);
+            if (id == 0) columns.append(e.userID, e.storeID, e.productName, e.units, e.time);
+            else sink[id] += e.units;
+         }, 1024);
+      }
+      bus.start();
+
+      long interval = 1000000000L / rate;
+      long publishNanos = 0;
+      long start = System.nanoTime();
+      for (int i = 0; i < numEvents; i++) {
+         long due = start + i * interval;
+         while (System.nanoTime() < due) Thread.onSpinWait();
+         long t = System.nanoTime();
+         bus.orderPlaced(i % 100000, i % 1000, names[i % names.length], 1 + i % 5, 1700000000000L + i);
+         publishNanos += System.nanoTime() - t;
+      }
+      bus.shutdown();
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.printf("paced: %d events at %.0f events/s, publish %.0f ns/event (including two nanoTime calls)%n",
+                        numEvents, numEvents / seconds, (double) publishNanos / numEvents);
+      for (int c = 0; c < numConsumers; c++) {
+         int[] l = lag[c];
+         Arrays.sort(l);
+         System.out.printf("  consumer-%d lag: p50 %6.1f us  p99 %7.1f us  p99.9 %8.1f us  max %9.1f us%n", c,
+                           l[numEvents / 2] / 1e3, l[(int) (numEvents * 0.99)] / 1e3, l[(int) (numEvents * 0.999)] / 1e3, l[numEvents - 1] / 1e3);
+      }
+      if (columns.size() != numEvents) System.out.println("analytics consumer saw " + columns.size() + " of " + numEvents + " events");
+
+      OrderEventBus unpaced = new OrderEventBus(4096);
+      for (int c = 0; c < numConsumers; c++) {
+         final int id = c;
+         unpaced.addConsumer("consumer-" + c, (e, seq, endOfBatch) -> sink[id] += e.units, 1024);
+      }
+      unpaced.start();
+      start = System.nanoTime();
+      for (int i = 0; i < numEvents; i++) {
+         unpaced.orderPlaced(i % 100000, i % 1000, names[i % names.length], 1 + i % 5, 1700000000000L + i);
+      }
+      unpaced.shutdown();
+      seconds = (System.nanoTime() - start) / 1e9;
+      System.out.printf("unpaced: %.1f M events/s, %.0f ns/event with backpressure from %d consumers%n",
+                        numEvents / seconds / 1e6, seconds * 1e9 / numEvents, numConsumers);
+   }
+
+   /*
+    * Runs the repository conformance checks and a mixed workload against the
+    * in-memory engine loaded from the CSV files and, when a database is given,
+    * against Postgres. The database must be a scratch one freshly loaded with
+    * load_data.sql from the same files: the checks and the workload write to it.
+    */
+   static void repository(String[] args) throws Exception {
+      File dataDir = new File(args[0]);
+      int ops = intArg(args, 1, 200000);
+      Connection conn = connect(args, 2);
+      List<AmazonRepository> engines = new ArrayList<AmazonRepository>();
+      engines.add(InMemoryRepository.load(dataDir));
+      engines.add(ShardedRepository.loadMemory(dataDir, 3));
+      LaggedReplicas lagged = new LaggedReplicas(dataDir, 2, 5, true);
+      engines.add(ReplicatedRepository.create(lagged.primary, Arrays.asList(lagged.replicas), lagged, 5));
+      if (conn != null) engines.add(new JdbcRepository(conn));
+      int failed = 0;
+      for (AmazonRepository repo : engines) {
+         String name = java.lang.reflect.Proxy.isProxyClass(repo.getClass()) ? "ReplicatedRepository" : repo.getClass().getSimpleName();
+         int f = conformance(repo);
+         System.out.printf("%-20s conformance: %s%n", name, f == 0 ? "all checks passed" : f + " checks failed");
+         failed += f;
+      }
+      // a session's background repositories see its writes, and it sees theirs
+      checksFailed = 0;
+      AmazonRepository session = engines.get(2);
+      AmazonRepository background = ReplicatedRepository.create(lagged.primary, Arrays.asList(lagged.replicas), lagged, 5,
+                                                                ReplicatedRepository.of(session).writePosition());
+      AmazonRepository.Store store = session.stores().get(0);
+      String product = session.productsOf(store.storeID).get(0).productName;
+      for (int i = 1; i <= 20; i++) {
+         session.updateProduct(store.storeID, product, 1000 + i, 1);
+         check("read of the session's write on another repository", background.getProduct(store.storeID, product).numberOfUnits == 1000 + i);
+         background.updateProduct(store.storeID, product, 2000 + i, 1);
+         check("read of another repository's write in the session", session.getProduct(store.storeID, product).numberOfUnits == 2000 + i);
+      }
+      System.out.printf("%-20s shared writes: %s%n", "ReplicatedRepository", checksFailed == 0 ? "all checks passed" : checksFailed + " checks failed");
+      failed += checksFailed;
+      for (AmazonRepository repo : engines) {
+         repositoryWorkload(repo, repo instanceof JdbcRepository ? Math.min(ops, 20000) : ops);
+         repo.close();
+      }
+      if (failed > 0) System.exit(1);
+   }
+
+   static int checksFailed;
+
+   static void check(String what, boolean ok) {
+      if (!ok) {
+         System.out.println("  FAILED: " + what);
+         checksFailed++;
+      }
+   }
+
+   static boolean throwsSQLException(java.util.concurrent.Callable<?> call) {
+      try {
+         call.call();
+         return false;
+      }
+      catch (java.sql.SQLException e) {
+         return true;
+      }
+      catch (Exception e) {
+         return false;
+      }
+   }
+
+   //what both engines must agree on; returns the number of failed checks
+   static int conformance(final AmazonRepository repo) throws Exception {
+      checksFailed = 0;
+      // users: ids, padding, coordinate rounding, column sizes, login
+      final int customer = repo.createUser("Conformance", "pw", 12.3456789, 45.6789012, "customer");
+      AmazonRepository.User u = repo.getUser(customer);
+      check("createUser returns a new userID", u != null && u.userID == customer);
+      check("names come back unpadded", u != null && u.name.equals("Conformance") && u.type.equals("customer"));
+      check("latitude is decimal(8,6)", u != null && Math.abs(u.latitude - 12.345679) < 1e-9);
+      check("longitude is decimal(9,6)", u != null && Math.abs(u.longitude - 45.678901) < 1e-9);
+      check("next userID is larger", repo.createUser("Conformance2", "pw", 1, 1, "customer") > customer);
+      char[] longName = new char[51];
+      Arrays.fill(longName, 'x');
+      check("name longer than varchar(50) fails", throwsSQLException(() -> repo.createUser(new String(longName), "pw", 1, 1, "customer")));
+      check("latitude of 100 overflows decimal(8,6)", throwsSQLException(() -> repo.createUser("Far", "pw", 100, 1, "customer")));
+      check("login ignores trailing blanks", repo.login("Conformance  ", "pw") != null && repo.login("Conformance  ", "pw").userID == customer);
+      check("login with a wrong password fails", repo.login("Conformance", "nope") == null);
+      // what the app's sign up and login do
+      final int signedUp = repo.createUser("SignedUp", "pw", 1, 1, "customer");
+      AmazonRepository.User login = repo.login("SignedUp", "pw");
+      check("login of a new user", login != null && login.userID == signedUp && login.type.equals("customer"));
+      check("type outside user_type fails", throwsSQLException(() -> repo.createUser("Typed", "pw", 1, 1, "Customer")));
+      check("updateUser of a missing user is false", !repo.updateUser(new AmazonRepository.User(-5, "x", "x", 1, 1, "customer")));
+      check("updateUser", repo.updateUser(new AmazonRepository.User(customer, "Conformed", "pw2", 1.5, 2.5, "customer")));
+      check("login after updateUser", repo.login("Conformed", "pw2") != null && repo.login("Conformance", "pw") == null);
+      Map<Integer, String> names = repo.userNames(Arrays.asList(customer, -1));
+      check("userNames leaves out unknown ids", names.size() == 1 && "Conformed".equals(names.get(customer)));
+      List<AmazonRepository.User> users = repo.users();
+      check("users by userID", users.get(users.size() - 1).userID > users.get(0).userID);
+      check("copyUser of a taken userID fails", throwsSQLException(() -> {
+         repo.copyUser(new AmazonRepository.User(customer, "Copy", "pw", 1, 1, "customer"));
+         return null;
+      }));
+
+      // stores
+      List<AmazonRepository.Store> stores = repo.stores();
+      check("stores by storeID", stores.size() > 1 && stores.get(0).storeID < stores.get(1).storeID);
+      AmazonRepository.Store store = stores.get(0);
+      final int storeID = store.storeID, manager = store.managerID;
+      check("storesManagedBy", repo.storesManagedBy(manager).contains(storeID));
+      List<Integer> managers = repo.managerIDs();
+      check("managerIDs distinct and ascending", managers.contains(manager) && managers.get(0) < managers.get(managers.size() - 1)
+            && new java.util.HashSet<Integer>(managers).size() == managers.size());
+      check("dateEstablished as yyyy-mm-dd", store.dateEstablished == null || store.dateEstablished.matches("\\d{4}-\\d{2}-\\d{2}"));
+
+      // products
+      List<AmazonRepository.Product> products = repo.productsOf(storeID);
+      check("productsOf by name", products.size() > 2 && products.get(0).productName.compareTo(products.get(1).productName) < 0);
+      final String a = products.get(0).productName, b = products.get(1).productName;
+      check("getProduct ignores trailing blanks", repo.getProduct(storeID, a + "   ") != null);
+      check("getProduct of a missing product is null", repo.getProduct(storeID, "no such product") == null);
+      check("updateProduct of a missing product is false", !repo.updateProduct(storeID, "no such product", 1, 1));
+      check("updateProduct", repo.updateProduct(storeID, a, 100, 2.5) && repo.updateProduct(storeID, b, 3, 4));
+      check("updateProduct is visible", repo.getProduct(storeID, a).numberOfUnits == 100 && repo.getProduct(storeID, a).pricePerUnit == 2.5);
+      final int[] productCount = new int[1];
+      repo.forEachProduct(p -> productCount[0]++);
+      check("forEachProduct visits every product", productCount[0] >= products.size());
+
+      // orders
+      int before = repo.recentOrders(customer, 5).size();
+      int order = repo.placeOrder(customer, storeID, a, 7);
+      check("placeOrder takes the units", repo.getProduct(storeID, a).numberOfUnits == 93);
+      List<AmazonRepository.Order> recent = repo.recentOrders(customer, 5);
+      check("recentOrders shows the new order first", recent.size() == before + 1 && recent.get(0).orderNumber == order);
+      check("orderTime is truncated to the second", recent.get(0).orderTime.getTime() % 1000 == 0);
+      check("placeOrder of a missing product fails", throwsSQLException(() -> repo.placeOrder(customer, storeID, "no such product", 1)));
+      check("placeOrder of a missing customer fails", throwsSQLException(() -> repo.placeOrder(-5, storeID, a, 1)));
+      List<AmazonRepository.OrderLine> lines = new ArrayList<AmazonRepository.OrderLine>();
+      lines.add(new AmazonRepository.OrderLine(storeID, a, 10));
+      lines.add(new AmazonRepository.OrderLine(storeID, b, 4));
+      check("placeOrders with a short line is null", repo.placeOrders(customer, lines) == null);
+      check("placeOrders is all or nothing", repo.getProduct(storeID, a).numberOfUnits == 93 && repo.recentOrders(customer, 5).size() == before + 1);
+      lines.set(1, new AmazonRepository.OrderLine(storeID, b, 3));
+      List<Integer> numbers = repo.placeOrders(customer, lines);
+      check("placeOrders returns the orderNumbers", numbers != null && numbers.size() == 2 && orderNumbers(repo.recentOrders(customer, 2)).containsAll(numbers));
+      check("placeOrders takes the units", repo.getProduct(storeID, a).numberOfUnits == 83 && repo.getProduct(storeID, b).numberOfUnits == 0);
+      check("cancelOrder", numbers != null && repo.cancelOrder(numbers.get(1)) && repo.getProduct(storeID, b).numberOfUnits == 3);
+      check("cancelOrder of a cancelled order is false", numbers != null && !repo.cancelOrder(numbers.get(1)));
+      check("a cancelled order is gone", repo.recentOrders(customer, 5).size() == before + 2);
+
+      // an order from two stores, in different regions when sharded
+      final int otherStore = stores.get(stores.size() - 1).storeID;
+      final String c = repo.productsOf(otherStore).get(0).productName;
+      repo.updateProduct(otherStore, c, 10, 1);
+      List<AmazonRepository.OrderLine> spread = new ArrayList<AmazonRepository.OrderLine>();
+      spread.add(new AmazonRepository.OrderLine(storeID, a, 1));
+      spread.add(new AmazonRepository.OrderLine(otherStore, c, 11));
+      check("placeOrders over two stores with a short line is null", repo.placeOrders(customer, spread) == null);
+      check("placeOrders over two stores is all or nothing", repo.getProduct(storeID, a).numberOfUnits == 83
+            && repo.getProduct(otherStore, c).numberOfUnits == 10 && repo.recentOrders(customer, 5).size() == before + 2);
+      spread.set(1, new AmazonRepository.OrderLine(otherStore, c, 1));
+      numbers = repo.placeOrders(customer, spread);
+      check("placeOrders over two stores", numbers != null && repo.getProduct(storeID, a).numberOfUnits == 82 && repo.getProduct(otherStore, c).numberOfUnits == 9);
+      check("orderNumbers are unique", numbers != null && numbers.size() == 2 && !numbers.get(0).equals(numbers.get(1)));
+      check("cancelOrder puts the units back", numbers != null && repo.cancelOrder(numbers.get(0)) && repo.cancelOrder(numbers.get(1))
+            && repo.getProduct(storeID, a).numberOfUnits == 83 && repo.getProduct(otherStore, c).numberOfUnits == 10);
+      recent = repo.recentOrders(customer, 2);
+      check("recentOrders limit and newest first", recent.size() == 2 && recent.get(0).orderNumber > recent.get(1).orderNumber);
+      List<AmazonRepository.Order> managed = repo.ordersOfManagedStores(manager);
+      check("ordersOfManagedStores newest first", !managed.isEmpty() && managed.get(0).customerID == customer
+            && managed.get(0).orderTime.compareTo(managed.get(managed.size() - 1).orderTime) >= 0);
+      final int newest = repo.recentOrders(customer, 1).get(0).orderNumber;
+      final int[] visited = {0, 0};
+      repo.forEachOrder(o -> {
+         visited[0]++;
+         if (o.orderNumber == newest) visited[1]++;
+      });
+      check("forEachOrder visits every order once", visited[1] == 1 && visited[0] > 1);
+
+      // supply requests and product updates
+      check("requestSupply of a missing product is -1", repo.requestSupply(manager, 1, storeID, "no such product", 5) == -1);
+      check("requestSupply from a missing warehouse fails", throwsSQLException(() -> repo.requestSupply(manager, -1, storeID, a, 5)));
+      check("a failed requestSupply changes nothing", repo.getProduct(storeID, a).numberOfUnits == 83);
+      int request = repo.requestSupply(manager, 1, storeID, a, 5);
+      check("a pending supply request adds no units", repo.getProduct(storeID, a).numberOfUnits == 83);
+      List<AmazonRepository.SupplyRequest> requests = repo.supplyRequests(storeID, 1);
+      check("supplyRequests newest first", requests.size() == 1 && requests.get(0).requestNumber == request && requests.get(0).unitsRequested == 5
+            && requests.get(0).status.equals(AmazonRepository.PENDING));
+      check("warehouseIDs", repo.warehouseIDs().contains(1) && !repo.warehouseIDs().contains(-1));
+      AmazonRepository.SupplyRequest claimed = null;
+      for (AmazonRepository.SupplyRequest r : repo.claimSupplyRequests(1, 1000)) if (r.requestNumber == request) claimed = r;
+      check("claimSupplyRequests ships the pending request", claimed != null && claimed.status.equals(AmazonRepository.SHIPPED)
+            && repo.supplyRequests(storeID, 1).get(0).status.equals(AmazonRepository.SHIPPED));
+      check("a shipped request is not claimed again", repo.claimSupplyRequests(1, 1000).isEmpty());
+      check("a shipped request adds no units", repo.getProduct(storeID, a).numberOfUnits == 83);
+      check("a fresh shipment is not requeued", repo.requeueSupplyRequests(60000) == 0);
+      Thread.sleep(100);
+      check("requeueSupplyRequests puts a lost shipment back", repo.requeueSupplyRequests(20) >= 1
+            && repo.supplyRequests(storeID, 1).get(0).status.equals(AmazonRepository.PENDING));
+      claimed = null;
+      for (AmazonRepository.SupplyRequest r : repo.claimSupplyRequests(1, 1000)) if (r.requestNumber == request) claimed = r;
+      check("a requeued request is claimed again", claimed != null && claimed.status.equals(AmazonRepository.SHIPPED));
+      check("receiveSupplyRequests", repo.receiveSupplyRequests(Arrays.asList(request)) == 1 && repo.getProduct(storeID, a).numberOfUnits == 88
+            && repo.supplyRequests(storeID, 1).get(0).status.equals(AmazonRepository.RECEIVED));
+      check("a request is received once", repo.receiveSupplyRequests(Arrays.asList(request)) == 0 && repo.getProduct(storeID, a).numberOfUnits == 88);
+      int update = repo.recordProductUpdate(manager, storeID, a);
+      List<AmazonRepository.ProductUpdate> updates = repo.recentUpdates(manager, 5);
+      check("recentUpdates newest first", !updates.isEmpty() && updates.get(0).updateNumber == update && updates.get(0).productName.equals(a));
+      check("recentUpdates limit", updates.size() <= 5);
+      check("recordProductUpdate of a missing product fails", throwsSQLException(() -> repo.recordProductUpdate(manager, storeID, "no such product")));
+      RecentActivity recentActivity = RecentActivity.load(repo, 5);
+      check("RecentActivity.recentOrders", orderNumbers(recentActivity.recentOrders(customer, 5)).equals(orderNumbers(repo.recentOrders(customer, 5))));
+      List<Integer> ringUpdates = new ArrayList<Integer>(), repoUpdates = new ArrayList<Integer>();
+      for (AmazonRepository.ProductUpdate pu : recentActivity.recentUpdates(repo.storesManagedBy(manager), 5)) ringUpdates.add(pu.updateNumber);
+      for (AmazonRepository.ProductUpdate pu : repo.recentUpdates(manager, 5)) repoUpdates.add(pu.updateNumber);
+      check("RecentActivity.recentUpdates", ringUpdates.equals(repoUpdates));
+      List<Integer> ringRequests = new ArrayList<Integer>(), repoRequests = new ArrayList<Integer>();
+      for (AmazonRepository.SupplyRequest r : recentActivity.supplyRequests(storeID, 5)) ringRequests.add(r.requestNumber);
+      for (AmazonRepository.SupplyRequest r : repo.supplyRequests(storeID, 5)) repoRequests.add(r.requestNumber);
+      check("RecentActivity.supplyRequests", ringRequests.equals(repoRequests) && ringRequests.contains(request));
+
+      // product versions: load, update, order, order, order, cancel, supply; a failed supply request leaves none
+      List<AmazonRepository.ProductVersion> history = versionsOf(repo, storeID, a);
+      AmazonRepository.ProductVersion latest = history.get(history.size() - 1);
+      check("every change of a product leaves a version", history.size() >= 7 && latest.numberOfUnits == 88 && latest.pricePerUnit == 2.5);
+      boolean timeOrder = true;
+      for (int i = 1; i < history.size(); i++) timeOrder &= !history.get(i).validFrom.before(history.get(i - 1).validFrom);
+      check("versions in time order", timeOrder);
+      check("versions are stamped with whole seconds", latest.validFrom.getTime() % 1000 == 0);
+      int removed = repo.compactProductVersions(new Timestamp(System.currentTimeMillis() + DAY));
+      List<AmazonRepository.ProductVersion> compacted = versionsOf(repo, storeID, a);
+      check("compaction drops the versions that only changed the units", removed >= 4 && compacted.size() == 3);
+      check("compaction keeps the first version, the price change and the last version", compacted.size() == 3
+            && compacted.get(0).versionNumber == history.get(0).versionNumber && compacted.get(1).numberOfUnits == 100
+            && compacted.get(2).versionNumber == latest.versionNumber);
+      check("compaction a second time removes nothing", repo.compactProductVersions(new Timestamp(System.currentTimeMillis() + DAY)) == 0);
+
+      // bulk updates
+      List<Integer> one = Arrays.asList(storeID);
+      check("bulkUpdateProducts by exact name", repo.bulkUpdateProducts(manager, new AmazonRepository.ProductFilter(one, a, null, null),
+                                                                        new AmazonRepository.Adjustment(1.1, 0, 0, 200), 1000) == 1);
+      check("bulkUpdateProducts reprices to the cent and restocks", repo.getProduct(storeID, a).pricePerUnit == 2.75
+            && repo.getProduct(storeID, a).numberOfUnits == 200);
+      AmazonRepository.ProductUpdate bulkUpdate = repo.recentUpdates(manager, 1).get(0);
+      check("bulkUpdateProducts records a ProductUpdate", bulkUpdate.storeID == storeID && bulkUpdate.productName.equals(a));
+      check("bulkUpdateProducts units range", repo.bulkUpdateProducts(manager, new AmazonRepository.ProductFilter(one, null, 100000, null),
+                                                                      new AmazonRepository.Adjustment(2, 0, 0, 0), 1000) == 0);
+      check("bulkUpdateProducts pattern ignores case", repo.bulkUpdateProducts(manager,
+            new AmazonRepository.ProductFilter(one, a.substring(0, 2).toUpperCase() + "%", null, null), new AmazonRepository.Adjustment(1, 0, 1, 0), 1) >= 1
+            && repo.getProduct(storeID, a).numberOfUnits == 201);
+      check("bulkUpdateProducts of no product", repo.bulkUpdateProducts(manager, new AmazonRepository.ProductFilter(null, "no such product%", null, null),
+                                                                        new AmazonRepository.Adjustment(2, 0, 0, 0), 1000) == 0);
+      check("bulkUpdateProducts by a missing manager fails", throwsSQLException(() -> repo.bulkUpdateProducts(-5,
+            new AmazonRepository.ProductFilter(one, a, null, null), new AmazonRepository.Adjustment(2, 0, 0, 0), 1000)));
+      check("a failed bulkUpdateProducts changes nothing", repo.getProduct(storeID, a).pricePerUnit == 2.75);
+      int productsBefore = 0;
+      for (int s : repo.storesManagedBy(manager)) productsBefore += repo.productsOf(s).size();
+      check("bulkUpdateProducts in chunks", repo.bulkUpdateProducts(manager, new AmazonRepository.ProductFilter(repo.storesManagedBy(manager), null, null, null),
+                                                                    new AmazonRepository.Adjustment(1, 0, 0, 0), 1) == productsBefore);
+
+      // manager workflows in one call
+      int otherManager = -1;
+      for (AmazonRepository.Store s : stores) {
+         if (s.managerID != manager) otherManager = s.managerID;
+      }
+      AmazonRepository.Product pb = repo.getProduct(storeID, b);
+      check("updateProductAsManager by a customer", repo.updateProductAsManager(customer, storeID, b, 7, 1.5).status == AmazonRepository.Status.NOT_A_MANAGER);
+      check("updateProductAsManager of another manager's store", otherManager == -1
+            || repo.updateProductAsManager(otherManager, storeID, b, 7, 1.5).status == AmazonRepository.Status.NOT_YOUR_STORE);
+      check("updateProductAsManager of a missing product", repo.updateProductAsManager(manager, storeID, "no such product", 7, 1.5).status
+            == AmazonRepository.Status.NO_SUCH_PRODUCT);
+      check("a refused updateProductAsManager changes nothing", repo.getProduct(storeID, b).numberOfUnits == pb.numberOfUnits
+            && repo.getProduct(storeID, b).pricePerUnit == pb.pricePerUnit);
+      AmazonRepository.Outcome outcome = repo.updateProductAsManager(manager, storeID, b, 7, 1.5);
+      check("updateProductAsManager", outcome.status == AmazonRepository.Status.OK && repo.getProduct(storeID, b).numberOfUnits == 7
+            && repo.getProduct(storeID, b).pricePerUnit == 1.5);
+      boolean recorded = false;
+      for (AmazonRepository.ProductUpdate pu : repo.recentUpdates(manager, 100)) recorded |= pu.updateNumber == outcome.number && pu.productName.equals(b);
+      check("updateProductAsManager records the ProductUpdate", recorded);
+      check("requestSupplyAsManager by a customer", repo.requestSupplyAsManager(customer, 1, storeID, b, 5).status == AmazonRepository.Status.NOT_A_MANAGER);
+      check("requestSupplyAsManager from a missing warehouse", repo.requestSupplyAsManager(manager, -1, storeID, b, 5).status
+            == AmazonRepository.Status.NO_SUCH_WAREHOUSE && repo.getProduct(storeID, b).numberOfUnits == 7);
+      check("requestSupplyAsManager of a missing product", repo.requestSupplyAsManager(manager, 1, storeID, "no such product", 5).status
+            == AmazonRepository.Status.NO_SUCH_PRODUCT);
+      outcome = repo.requestSupplyAsManager(manager, 1, storeID, b, 5);
+      check("requestSupplyAsManager", outcome.status == AmazonRepository.Status.OK && repo.getProduct(storeID, b).numberOfUnits == 7
+            && repo.supplyRequests(storeID, 1).get(0).requestNumber == outcome.number);
+      List<AmazonRepository.SupplyRequest> fulfilled = SupplyFulfillment.fulfill(repo, 1, 100);
+      check("SupplyFulfillment.fulfill", fulfilled.size() == 1 && fulfilled.get(0).requestNumber == outcome.number
+            && repo.getProduct(storeID, b).numberOfUnits == 12);
+      return checksFailed;
+   }
+
+   //a session mix: product lookups, store listings, recent orders and orders
+   static void repositoryWorkload(AmazonRepository repo, int ops) throws Exception {
+      List<AmazonRepository.Store> stores = repo.stores();
+      List<List<AmazonRepository.Product>> products = new ArrayList<List<AmazonRepository.Product>>();
+      for (AmazonRepository.Store s : stores) {
+         List<AmazonRepository.Product> list = repo.productsOf(s.storeID);
+         products.add(list);
+         for (AmazonRepository.Product p : list) repo.updateProduct(s.storeID, p.productName, Integer.MAX_VALUE / 2, p.pricePerUnit);
+      }
+      List<AmazonRepository.User> users = repo.users();
+      Random rnd = new Random(7);
+      long[] nanos = new long[4];
+      int[] counts = new int[4];
+      for (int i = 0; i < ops; i++) {
+         int s = rnd.nextInt(stores.size());
+         List<AmazonRepository.Product> list = products.get(s);
+         AmazonRepository.Product p = list.get(rnd.nextInt(list.size()));
+         int user = users.get(rnd.nextInt(users.size())).userID;
+         int kind = rnd.nextInt(10);
+         kind = kind < 4 ? 0 : kind < 6 ? 1 : kind < 8 ? 2 : 3;
+         long t = System.nanoTime();
+         switch (kind) {
+            case 0: repo.getProduct(stores.get(s).storeID, p.productName); break;
+            case 1: repo.productsOf(stores.get(s).storeID); break;
+            case 2: repo.recentOrders(user, 5); break;
+            default: repo.placeOrder(user, stores.get(s).storeID, p.productName, 1); break;
+         }
+         nanos[kind] += System.nanoTime() - t;
+         counts[kind]++;
+      }
+      long total = nanos[0] + nanos[1] + nanos[2] + nanos[3];
+      String[] names = {"getProduct", "productsOf", "recentOrders", "placeOrder"};
+      String name = java.lang.reflect.Proxy.isProxyClass(repo.getClass()) ? "ReplicatedRepository" : repo.getClass().getSimpleName();
+      System.out.printf("%-20s %d ops: %.0f ops/s%n", name, ops, ops / (total / 1e9));
+      for (int k = 0; k < 4; k++) {
+         System.out.printf("  %-14s %9.1f us/op%n", names[k], nanos[k] / 1e3 / Math.max(1, counts[k]));
+      }
+   }
+
+   static List<Integer> orderNumbers(List<AmazonRepository.Order> orders) {
+      List<Integer> numbers = new ArrayList<Integer>();
+      for (AmazonRepository.Order o : orders) numbers.add(o.orderNumber);
+      return numbers;
+   }
+
+   static List<AmazonRepository.ProductVersion> versionsOf(AmazonRepository repo, int storeID, String productName) throws Exception {
+      List<AmazonRepository.ProductVersion> versions = new ArrayList<AmazonRepository.ProductVersion>();
+      repo.forEachProductVersion(v -> {
+         if (v.storeID == storeID && v.productName.equals(productName)) versions.add(v);
+      });
+      return versions;
+   }
+
+   /*
+    * Price as of a time over stores * products products with versions / (stores
+    * * products) versions each: binary search against a scan of the product's
+    * versions, and the sales dashboard priced by the history against one fixed
+    * price per product.
+    */
+   static void priceHistory(String[] args) throws Exception {
+      int numVersions = intArg(args, 0, 100000000);
+      int numStores = intArg(args, 1, 1000);
+      int numProducts = intArg(args, 2, 1000);
+      int numOrders = intArg(args, 3, 5000000);
+      int groups = (numStores + 1) * numProducts; // stores 0 .. numStores, like syntheticOrders
+      long now = System.currentTimeMillis();
+      long base = (now - 2 * 365 * DAY) / 1000;
+      int span = (int) (2 * 365 * DAY / 1000);
+
+      long t0 = System.nanoTime();
+      int[] start = new int[groups + 1];
+      int[] validFrom = new int[numVersions];
+      int[] units = new int[numVersions];
+      double[] price = new double[numVersions];
+      double[] current = new double[groups];
+      Random rnd = new Random(42);
+      for (int g = 0; g < groups; g++) {
+         start[g] = (int) ((long) numVersions * g / groups);
+         int n = (int) ((long) numVersions * (g + 1) / groups) - start[g];
+         int step = Math.max(1, span / Math.max(1, n));
+         int second = rnd.nextInt(step);
+         double p = 1 + rnd.nextInt(20);
+         int u = 100 + rnd.nextInt(1000);
+         for (int i = start[g]; i < start[g] + n; i++) {
+            if (rnd.nextInt(10) == 0) p = Math.max(1, p + rnd.nextInt(5) - 2); // mostly the units change
+            u = Math.max(0, u + rnd.nextInt(21) - 10);
+            validFrom[i] = second;
+            units[i] = u;
+            price[i] = p;
+            second += 1 + rnd.nextInt(2 * step);
+         }
+         current[g] = p;
+      }
+      start[groups] = numVersions;
+      PriceHistory history = PriceHistory.of(numProducts, start, base, validFrom, units, price);
+      System.out.printf("%d versions of %d products generated in %.1f s%n", history.size(), groups, (System.nanoTime() - t0) / 1e9);
+
+      int numLookups = 1000000;
+      final int[] store = new int[numLookups], product = new int[numLookups];
+      final long[] time = new long[numLookups];
+      for (int i = 0; i < numLookups; i++) {
+         store[i] = rnd.nextInt(numStores + 1);
+         product[i] = rnd.nextInt(numProducts);
+         time[i] = (base + rnd.nextInt(span)) * 1000;
+      }
+      final double[] sink = new double[1];
+      double ms = time(() -> {
+         double sum = 0;
+         for (int i = 0; i < numLookups; i++) sum += history.priceAt(store[i], product[i], time[i]);
+         sink[0] = sum;
+      }, 5);
+      System.out.printf("as-of lookup, binary search:  %8.1f ns/lookup%n", ms * 1e6 / numLookups);
+      ms = time(() -> {
+         double sum = 0;
+         for (int i = 0; i < numLookups; i++) {
+            int g = store[i] * numProducts + product[i];
+            long second = time[i] / 1000 - base;
+            int found = start[g];
+            for (int j = start[g]; j < start[g + 1] && validFrom[j] <= second; j++) found = j;
+            sum += price[found];
+         }
+         if (sum != sink[0]) System.out.println("MISMATCH: binary search and scan disagree");
+      }, 3);
+      System.out.printf("as-of lookup, scan:           %8.1f ns/lookup%n", ms * 1e6 / numLookups);
+
+      final OrderColumns orders = syntheticOrders(numOrders, numStores, numProducts, now);
+      final SalesDashboard.Prices fixed = SalesDashboard.Prices.of(current, numProducts);
+      final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+      ms = time(() -> SalesDashboard.compute(orders, fixed, pool), 3);
+      System.out.printf("dashboard over %d orders, current prices:    %8.1f ms%n", orders.size(), ms);
+      ms = time(() -> SalesDashboard.compute(orders, history, pool), 3);
+      System.out.printf("dashboard over %d orders, historical prices: %8.1f ms%n", orders.size(), ms);
+      pool.shutdown();
+   }
+
+   /*
+    * Write scaling of ShardedRepository: orders per second with the first 1,
+    * 2 ... N shards taking writes, writersPerShard threads per shard placing
+    * orders at the stores of those shards. With ports the shards are the
+    * Postgres instances loaded by create_shards.sh and every writer has its own
+    * connections; without, they are three InMemoryRepository shards of the CSV
+    * files shared by the writers.
+    */
+   static void sharding(String[] args) throws Exception {
+      final File dataDir = new File(args[0]);
+      final boolean postgres = args.length > 5;
+      final int perWriter = intArg(args, 1, postgres ? 2000 : 200000);
+      int writersPerShard = intArg(args, 2, 4);
+      final List<String> ports = postgres ? Arrays.asList(args).subList(5, args.length) : null;
+      final ShardedRepository shared = postgres ? null : ShardedRepository.loadMemory(dataDir, 3);
+      ShardedRepository layout = postgres ? ShardedRepository.connect(args[3], ports, args[4], "") : shared;
+      int numShards = layout.size();
+      List<List<AmazonRepository.Product>> byShard = new ArrayList<List<AmazonRepository.Product>>();
+      for (int i = 0; i < numShards; i++) byShard.add(new ArrayList<AmazonRepository.Product>());
+      for (AmazonRepository.Store store : layout.stores()) byShard.get(layout.shardIndex(store.storeID)).addAll(layout.productsOf(store.storeID));
+      final int customer = layout.users().get(0).userID;
+      if (postgres) layout.close();
+
+      double base = 0;
+      for (int k = 1; k <= numShards; k++) {
+         final List<AmazonRepository.Product> products = new ArrayList<AmazonRepository.Product>();
+         for (int i = 0; i < k; i++) products.addAll(byShard.get(i));
+         final int writers = k * writersPerShard;
+         final AtomicLong failed = new AtomicLong();
+         Thread[] threads = new Thread[writers];
+         long start = System.nanoTime();
+         for (int w = 0; w < writers; w++) {
+            final int seed = w;
+            threads[w] = new Thread(() -> {
+               try {
+                  AmazonRepository repo = postgres ? ShardedRepository.connect(args[3], ports, args[4], "") : shared;
+                  Random rnd = new Random(seed);
+                  for (int i = 0; i < perWriter; i++) {
+                     AmazonRepository.Product p = products.get(rnd.nextInt(products.size()));
+                     repo.placeOrder(customer, p.storeID, p.productName, 1);
+                  }
+                  if (postgres) repo.close();
+               }
+               catch (Exception e) {
+                  failed.incrementAndGet();
+                  System.err.println("Error: " + e.getMessage());
+               }
+            });
+            threads[w].start();
+         }
+         for (Thread t : threads) t.join();
+         double seconds = (System.nanoTime() - start) / 1e9;
+         double rate = (long) writers * perWriter / seconds;
+         if (k == 1) base = rate;
+         System.out.printf("%d shard(s), %3d writers: %10.0f orders/s (%.2fx)%s%n", k, writers, rate, rate / base,
+                           failed.get() > 0 ? ", " + failed.get() + " writers failed" : "");
+      }
+      if (shared != null) shared.close();
+   }
+
+   //In-memory primary and replicas for ReplicatedRepository: every write to the
+   //primary is logged and replayed on a replica once it is lagMillis old, and
+   //a position is the number of writes. A replica can be taken down.
+   static class LaggedReplicas implements ReplicatedRepository.Replication {
+      final AmazonRepository primary;
+      final AmazonRepository[] replicas;
+      final boolean[] down;
+      final boolean tracked; // false pretends the replicas are always caught up
+      private final InMemoryRepository[] copies;
+      private final int[] applied;
+      private final List<Object[]> log = new ArrayList<Object[]>(); // {nanoTime, method, args}
+      private final long lagNanos;
+
+      LaggedReplicas(File dataDir, int n, long lagMillis, boolean tracked) throws Exception {
+         final InMemoryRepository main = InMemoryRepository.load(dataDir);
+         primary = proxy((proxy, method, args) -> {
+            Object result = call(main, method, args);
+            if (!method.isAnnotationPresent(ReadOnly.class) && !method.getName().equals("close")) {
+               Object[] copy = args == null ? null : args.clone();
+               for (int i = 0; copy != null && i < copy.length; i++) {
+                  // callers may reuse a list of order lines once the call returns
+                  if (copy[i] instanceof List) copy[i] = new ArrayList<Object>((List<?>) copy[i]);
+               }
+               synchronized (log) {
+                  log.add(new Object[] {System.nanoTime(), method, copy});
+               }
+            }
+            return result;
+         });
+         copies = new InMemoryRepository[n];
+         replicas = new AmazonRepository[n];
+         down = new boolean[n];
+         applied = new int[n];
+         for (int i = 0; i < n; i++) {
+            copies[i] = InMemoryRepository.load(dataDir);
+            final int replica = i;
+            replicas[i] = proxy((proxy, method, args) -> {
+               if (down[replica]) throw new java.sql.SQLException("replica " + replica + " is down");
+               replay(replica);
+               return call(copies[replica], method, args);
+            });
+         }
+         this.lagNanos = lagMillis * 1000000;
+         this.tracked = tracked;
+      }
+
+      static AmazonRepository proxy(java.lang.reflect.InvocationHandler handler) {
+         return (AmazonRepository) java.lang.reflect.Proxy.newProxyInstance(AmazonRepository.class.getClassLoader(),
+                                                                           new Class<?>[] {AmazonRepository.class}, handler);
+      }
+
+      static Object call(AmazonRepository repo, java.lang.reflect.Method method, Object[] args) throws Throwable {
+         try {
+            return method.invoke(repo, args);
+         }
+         catch (java.lang.reflect.InvocationTargetException e) {
+            throw e.getCause();
+         }
+      }
+
+      //applies the writes that are old enough to the replica
+      private void replay(int replica) throws Throwable {
+         synchronized (copies[replica]) {
+            long now = System.nanoTime();
+            while (true) {
+               Object[] write;
+               synchronized (log) {
+                  if (applied[replica] == log.size()) return;
+                  write = log.get(applied[replica]);
+               }
+               if (now - (Long) write[0] < lagNanos) return;
+               call(copies[replica], (java.lang.reflect.Method) write[1], (Object[]) write[2]);
+               applied[replica]++;
+            }
+         }
+      }
+
+      public long position(AmazonRepository repo) throws java.sql.SQLException {
+         if (repo == primary) {
+            synchronized (log) {
+               return log.size();
+            }
+         }
+         for (int i = 0; i < replicas.length; i++) {
+            if (repo != replicas[i]) continue;
+            if (down[i]) throw new java.sql.SQLException("replica " + i + " is down");
+            try {
+               replay(i);
+            }
+            catch (Throwable e) {
+               throw new java.sql.SQLException(e.getMessage());
+            }
+            synchronized (copies[i]) {
+               return tracked ? applied[i] : Long.MAX_VALUE;
+            }
+         }
+         throw new java.sql.SQLException("unknown repository");
+      }
+   }
+
+   /*
+    * Read-your-writes and read offloading of ReplicatedRepository. Each
+    * session places an order, reads its recent orders straight away, then
+    * browses stores for a while; a read of the recent orders without the new
+    * order is stale. In-memory replicas lag the primary by lagMs, and replica
+    * 0 is down for the third quarter of the sessions. The run without position
+    * tracking shows what the tracking prevents. With ports, the same sessions
+    * run against a postgres primary and its streaming replicas.
+    */
+   static void replicas(String[] args) throws Exception {
+      File dataDir = new File(args[0]);
+      int sessions = intArg(args, 1, 200);
+      int lagMillis = intArg(args, 2, 10);
+      for (boolean tracked : new boolean[] {true, false}) {
+         LaggedReplicas lagged = new LaggedReplicas(dataDir, 2, lagMillis, tracked);
+         AmazonRepository repo = ReplicatedRepository.create(lagged.primary, Arrays.asList(lagged.replicas), lagged, 5);
+         System.out.println((tracked ? "with" : "without") + " position tracking, 2 in-memory replicas " + lagMillis + " ms behind:");
+         replicaSessions(repo, sessions, lagged.down);
+         repo.close();
+      }
+      if (args.length > 7) {
+         AmazonRepository repo = ReplicatedRepository.connect(args[3], args[4], Arrays.asList(args).subList(6, args.length), args[5], "");
+         System.out.println("postgres primary on " + args[4] + ", replicas on " + Arrays.asList(args).subList(6, args.length) + ":");
+         replicaSessions(repo, Math.min(sessions, 50), null);
+         repo.close();
+      }
+   }
+
+   static void replicaSessions(AmazonRepository repo, int sessions, boolean[] down) throws Exception {
+      List<AmazonRepository.Store> stores = repo.stores();
+      List<AmazonRepository.Product> products = new ArrayList<AmazonRepository.Product>();
+      for (AmazonRepository.Store store : stores) products.addAll(repo.productsOf(store.storeID));
+      int customer = repo.users().get(0).userID;
+      Random rnd = new Random(42);
+      int stale = 0, failed = 0;
+      long start = System.nanoTime();
+      for (int s = 0; s < sessions; s++) {
+         if (down != null) down[0] = s >= sessions / 2 && s < sessions * 3 / 4;
+         try {
+            AmazonRepository.Product p = products.get(rnd.nextInt(products.size()));
+            int orderNumber = repo.placeOrder(customer, p.storeID, p.productName, 1);
+            boolean seen = false;
+            for (AmazonRepository.Order o : repo.recentOrders(customer, 10)) seen |= o.orderNumber == orderNumber;
+            if (!seen) stale++;
+            for (int i = 0; i < 20; i++) {
+               repo.productsOf(stores.get(rnd.nextInt(stores.size())).storeID);
+               Thread.sleep(1);
+            }
+         }
+         catch (java.sql.SQLException e) {
+            failed++;
+         }
+      }
+      double seconds = (System.nanoTime() - start) / 1e9;
+      long[] reads = ReplicatedRepository.of(repo).reads();
+      System.out.printf("  %d sessions in %.1f s: %d stale reads of own orders, %d failed sessions, %.1f%% of %d reads on replicas%n",
+                        sessions, seconds, stale, failed, 100.0 * reads[0] / (reads[0] + reads[1]), reads[0] + reads[1]);
+   }
+
+   /*
+    * Propagation of invalidations: several listeners, standing in for app
+    * instances, follow one database while a writer updates products in
+    * bursts. The latency of a key is from just before the update that last
+    * changed it until a listener hands it over; coalescing shows as fewer
+    * keys handed over than rows read.
+    */
+   static void invalidation(String[] args) throws Exception {
+      if (args.length < 3) {
+         usage();
+         return;
+      }
+      int instances = intArg(args, 3, 4);
+      int bursts = intArg(args, 4, 50);
+      int burstSize = intArg(args, 5, 20);
+      JdbcRepository writer = JdbcRepository.connect(args[0], args[1], args[2], "");
+      List<AmazonRepository.Product> products = new ArrayList<AmazonRepository.Product>();
+      writer.forEachProduct(p -> products.add(p));
+      final Map<InvalidationListener.Key, Long> sent = new java.util.concurrent.ConcurrentHashMap<InvalidationListener.Key, Long>();
+      final List<Long> latencies = java.util.Collections.synchronizedList(new ArrayList<Long>());
+      List<InvalidationListener> listeners = new ArrayList<InvalidationListener>();
+      for (int i = 0; i < instances; i++) {
+         listeners.add(InvalidationListener.start(args[0], args[1], args[2], "", keys -> {
+            long now = System.nanoTime();
+            for (InvalidationListener.Key key : keys) {
+               Long t = sent.get(key);
+               if (t != null) latencies.add(now - t);
+            }
+         }, 100, 50));
+      }
+      Random rnd = new Random(42);
+      int writes = 0;
+      for (int b = 0; b < bursts; b++) {
+         for (int i = 0; i < burstSize; i++) {
+            AmazonRepository.Product p = products.get(rnd.nextInt(products.size()));
+            // a few products changed again and again within a burst
+            if (i % 2 == 1) p = products.get(b % products.size());
+            sent.put(new InvalidationListener.Key(InvalidationListener.PRODUCT, p.storeID, p.productName), System.nanoTime());
+            writer.updateProduct(p.storeID, p.productName, p.numberOfUnits + 1 + rnd.nextInt(5), p.pricePerUnit);
+            writes++;
+         }
+         Thread.sleep(300);
+      }
+      Thread.sleep(1000);
+      long rows = 0, keys = 0;
+      for (InvalidationListener l : listeners) {
+         long[] counts = l.counts();
+         rows += counts[0];
+         keys += counts[1];
+         l.close();
+      }
+      writer.close();
+      List<Long> sorted = new ArrayList<Long>(latencies);
+      java.util.Collections.sort(sorted);
+      if (sorted.isEmpty()) {
+         System.out.println("no invalidation arrived; is the Invalidations trigger installed?");
+         return;
+      }
+      System.out.printf("%d updates, %d listeners: %d rows read, %d keys handed over (%.1fx coalesced)%n",
+                        writes, instances, rows, keys, (double) rows / Math.max(1, keys));
+      System.out.printf("propagation: p50 %.1f ms, p99 %.1f ms, max %.1f ms%n", sorted.get(sorted.size() / 2) / 1e6,
+                        sorted.get((int) (sorted.size() * 0.99)) / 1e6, sorted.get(sorted.size() - 1) / 1e6);
+   }
+
+   /*
+    * The latest-N views of RecentActivity at a hundredth, a tenth and all of
+    * the given number of orders, filled the way load() fills them. Next to
+    * them, the 5 newest orders of a customer found by a scan with a small
+    * heap, which is what the ORDER BY ... LIMIT 5 of recentOrders costs
+    * without an index to walk. The views should cost the same at every size.
+    */
+   static void recentActivity(String[] args) {
+      int maxOrders = intArg(args, 0, 100000000);
+      int numCustomers = intArg(args, 1, 1000000);
+      int numStores = intArg(args, 2, 1000);
+      String[] names = new String[100];
+      for (int i = 0; i < names.length; i++) names[i] = "product" + i;
+      long base = System.currentTimeMillis() / 1000 - 365L * 24 * 60 * 60;
+      for (int numOrders = maxOrders / 100; numOrders <= maxOrders; numOrders *= 10) {
+         long t0 = System.nanoTime();
+         RecentActivity recent = new RecentActivity(5);
+         int[] customer = new int[numOrders], second = new int[numOrders];
+         Random rnd = new Random(42);
+         int now = 0;
+         for (int i = 0; i < numOrders; i++) {
+            now += rnd.nextInt(3); // orderNumbers in time order, several in a second
+            customer[i] = rnd.nextInt(numCustomers);
+            second[i] = now;
+            recent.add(new AmazonRepository.Order(i + 1, customer[i], rnd.nextInt(numStores), names[rnd.nextInt(names.length)], 1,
+                                                  new Timestamp((base + now) * 1000)));
+         }
+         for (int i = 0; i < numOrders / 100; i++) {
+            int store = rnd.nextInt(numStores);
+            Timestamp t = new Timestamp((base + (long) now * i / (numOrders / 100)) * 1000);
+            recent.add(new AmazonRepository.ProductUpdate(i + 1, store / 10, store, names[rnd.nextInt(names.length)], t));
+            recent.add(new AmazonRepository.SupplyRequest(i + 1, store / 10, 1, store, names[rnd.nextInt(names.length)], 10));
+         }
+         double load = (System.nanoTime() - t0) / 1e9;
+
+         final int queries = 1000000;
+         final RecentActivity r = recent;
+         final Random q = new Random(7);
+         final List<List<Integer>> managed = new ArrayList<List<Integer>>();
+         for (int m = 0; m * 10 < numStores; m++) {
+            List<Integer> list = new ArrayList<Integer>();
+            for (int s = m * 10; s < Math.min(numStores, m * 10 + 10); s++) list.add(s);
+            managed.add(list);
+         }
+         final long[] sink = {0};
+         double orders = time(() -> {
+            for (int i = 0; i < queries; i++) sink[0] += r.recentOrders(q.nextInt(numCustomers), 5).size();
+         }, 3) * 1e6 / queries;
+         double updates = time(() -> {
+            for (int i = 0; i < queries; i++) sink[0] += r.recentUpdates(managed.get(q.nextInt(managed.size())), 5).size();
+         }, 3) * 1e6 / queries;
+         double requests = time(() -> {
+            for (int i = 0; i < queries; i++) sink[0] += r.supplyRequests(q.nextInt(numStores), 5).size();
+         }, 3) * 1e6 / queries;
+
+         // the scan answers a handful of customers
+         final int[] c = customer, sec = second;
+         final int n = numOrders;
+         double scan = time(() -> {
+            for (int k = 0; k < 5; k++) {
+               int who = q.nextInt(numCustomers);
+               PriorityQueue<long[]> top = new PriorityQueue<long[]>(6, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+               for (int i = 0; i < n; i++) {
+                  if (c[i] != who) continue;
+                  top.add(new long[] {sec[i], i});
+                  if (top.size() > 5) top.poll();
+               }
+               sink[0] += top.size();
+            }
+         }, 1) * 1e6 / 5;
+         System.out.printf("%,12d orders (rings filled in %.1f s): recentOrders %.0f ns, recentUpdates of 10 stores %.0f ns, " +
+                           "supplyRequests %.0f ns; scan for a customer's 5 newest %.0f us%s%n", numOrders, load, orders, updates,
+                           requests, scan / 1000, sink[0] == 42 ? " " : "");
+      }
+   }
+
+   /*
+    * Chain-wide bulk updates against one product at a time. Synthetic stores
+    * get productsPerStore products each, every 50th of them a Pepsi; then a
+    * +5% on every Pepsi, a restock of one store's low products and a +5% on
+    * everything run through bulkUpdateProducts, and the updateProduct plus
+    * recordProductUpdate pair the menus use runs on a sample. With a
+    * database the synthetic stores are added to it and removed afterwards.
+    */
+   static void bulkUpdate(String[] args) throws Exception {
+      boolean postgres = args.length > 4;
+      int numProducts = intArg(args, 0, postgres ? 10000000 : 1000000);
+      int perStore = intArg(args, 1, 10000);
+      int numStores = Math.max(1, numProducts / perStore);
+      AmazonRepository repo;
+      int manager;
+      int firstStore;
+      long t0 = System.nanoTime();
+      if (postgres) {
+         JdbcRepository db = JdbcRepository.connect(args[2], args[3], args[4], "");
+         manager = db.managerIDs().get(0);
+         firstStore = 1000000;
+         db.executeUpdate("INSERT INTO Store (storeID, latitude, longitude, managerID) SELECT ? + s, 0, 0, ? FROM generate_series(0, ? - 1) s",
+                          firstStore, manager, numStores);
+         String name = "CASE WHEN p % 50 = 0 THEN 'Pepsi ' || p ELSE 'product ' || p END";
+         db.executeUpdate("INSERT INTO ProductNames (productName) SELECT " + name + " FROM generate_series(0, ? - 1) p " +
+                          "WHERE " + name + " NOT IN (SELECT productName FROM ProductNames)", perStore);
+         db.executeUpdate("INSERT INTO Product (storeID, productID, numberOfUnits, pricePerUnit) " +
+                          "SELECT ? + s, n.productID, p % 100, 1 + p % 20 FROM generate_series(0, ? - 1) s, generate_series(0, ? - 1) p " +
+                          "JOIN ProductNames n ON n.productName = " + name, firstStore, numStores, perStore);
+         repo = db;
+      }
+      else {
+         InMemoryRepository memory = new InMemoryRepository();
+         manager = memory.createUser("bulk", "pw", 0, 0, "manager");
+         firstStore = 1;
+         for (int s = 0; s < numStores; s++) {
+            memory.addStore(new AmazonRepository.Store(firstStore + s, 0, 0, manager, null));
+            for (int p = 0; p < perStore; p++) {
+               memory.addProduct(firstStore + s, (p % 50 == 0 ? "Pepsi " : "product ") + p, p % 100, 1 + p % 20);
+            }
+         }
+         repo = memory;
+      }
+      System.out.printf("%,d products in %d stores set up in %.1f s%n", (long) numStores * perStore, numStores, (System.nanoTime() - t0) / 1e9);
+      List<Integer> stores = new ArrayList<Integer>();
+      for (int s = 0; s < numStores; s++) stores.add(firstStore + s);
+
+      Object[][] runs = {
+         {"+5% on every Pepsi", new AmazonRepository.ProductFilter(stores, "pepsi%", null, null), new AmazonRepository.Adjustment(1.05, 0, 0, 0)},
+         {"restock one store's products under 10 units", new AmazonRepository.ProductFilter(stores.subList(0, 1), null, null, 9),
+          new AmazonRepository.Adjustment(1, 0, 0, 100)},
+         {"+5% on everything", new AmazonRepository.ProductFilter(stores, null, null, null), new AmazonRepository.Adjustment(1.05, 0, 0, 0)},
+      };
+      double rate = 0;
+      for (Object[] run : runs) {
+         long start = System.nanoTime();
+         int changed = repo.bulkUpdateProducts(manager, (AmazonRepository.ProductFilter) run[1], (AmazonRepository.Adjustment) run[2], 50000);
+         double seconds = (System.nanoTime() - start) / 1e9;
+         rate = changed / seconds;
+         System.out.printf("  %-45s %,10d rows in %7.2f s (%,.0f rows/s)%n", run[0], changed, seconds, rate);
+      }
+
+      int sample = postgres ? 10000 : 100000;
+      long start = System.nanoTime();
+      for (int i = 0; i < sample; i++) {
+         int store = firstStore + i % numStores;
+         String name = (i % perStore % 50 == 0 ? "Pepsi " : "product ") + i % perStore;
+         repo.updateProduct(store, name, 50, 3);
+         repo.recordProductUpdate(manager, store, name);
+      }
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.printf("  %-45s %,10d rows in %7.2f s (%,.0f rows/s); all products one by one: %,.1f ms vs %,.1f ms bulk%n",
+                        "one product at a time", sample, seconds, sample / seconds, (double) numStores * perStore * seconds * 1000 / sample,
+                        numStores * perStore * 1000 / rate);
+      if (postgres) {
+         JdbcRepository db = (JdbcRepository) repo;
+         db.executeUpdate("DELETE FROM ProductUpdates WHERE storeID >= ?", firstStore);
+         db.executeUpdate("DELETE FROM Store WHERE storeID >= ?", firstStore);
+         db.executeUpdate("DELETE FROM ProductNames n WHERE NOT EXISTS (SELECT 1 FROM Product p WHERE p.productID = n.productID)");
+      }
+      repo.close();
+   }
+
+   //A connection that waits latencyMillis on every round trip to the server,
+   //as if the server were remote, and counts them. A round trip is a statement
+   //execution or a change of the transaction: setAutoCommit, commit, rollback.
+   static class SlowConnection implements java.lang.reflect.InvocationHandler {
+      final Connection target;
+      volatile long latencyMillis;
+      final AtomicLong roundTrips = new AtomicLong();
+
+      SlowConnection(Connection target, long latencyMillis) {
+         this.target = target;
+         this.latencyMillis = latencyMillis;
+      }
+
+      Connection connection() {
+         return (Connection) java.lang.reflect.Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class}, this);
+      }
+
+      private void roundTrip() throws InterruptedException {
+         roundTrips.incrementAndGet();
+         if (latencyMillis > 0) Thread.sleep(latencyMillis);
+      }
+
+      static Object call(Object target, java.lang.reflect.Method method, Object[] args) throws Throwable {
+         try {
+            return method.invoke(target, args);
+         }
+         catch (java.lang.reflect.InvocationTargetException e) {
+            throw e.getCause();
+         }
+      }
+
+      public Object invoke(Object proxy, java.lang.reflect.Method method, Object[] args) throws Throwable {
+         String name = method.getName();
+         if (name.equals("commit") || name.equals("rollback")
+             || name.equals("setAutoCommit") && target.getAutoCommit() != (Boolean) args[0]) {
+            roundTrip();
+         }
+         final Object result = call(target, method, args);
+         if (!(result instanceof Statement)) return result;
+         // CallableStatement, PreparedStatement or Statement, as the method declares
+         return java.lang.reflect.Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {method.getReturnType()}, (p, m, a) -> {
+            if (m.getName().startsWith("execute")) roundTrip();
+            return call(result, m, a);
+         });
+      }
+   }
+
+   /*
+    * The manager workflows as the menus used to run them, a chain of
+    * statements with the checks made by the client, against the manager_*
+    * functions doing the same in one call. Runs on a database, once as it is
+    * and once with latencyMs added to every round trip. The product changed
+    * is put back and the rows added are deleted afterwards.
+    */
+   static void managerCalls(String[] args) throws Exception {
+      Connection conn = connect(args, 0);
+      if (conn == null) {
+         usage();
+         return;
+      }
+      long latency = intArg(args, 3, 5);
+      int runs = intArg(args, 4, 50);
+      SlowConnection slow = new SlowConnection(conn, 0);
+      final JdbcRepository repo = new JdbcRepository(slow.connection());
+      final int manager = repo.managerIDs().get(0);
+      final int storeID = repo.storesManagedBy(manager).get(0);
+      final AmazonRepository.Product product = repo.productsOf(storeID).get(0);
+      final String name = product.productName;
+      final int warehouse = Integer.parseInt(repo.executeQueryAndReturnResult("SELECT MIN(warehouseID) FROM Warehouse").get(0).get(0).trim());
+      String lastUpdate = repo.executeQueryAndReturnResult("SELECT COALESCE(MAX(updateNumber), 0) FROM ProductUpdates").get(0).get(0).trim();
+      String lastRequest = repo.executeQueryAndReturnResult("SELECT COALESCE(MAX(requestNumber), 0) FROM ProductSupplyRequests").get(0).get(0).trim();
+
+      String[] names = {"update product, checks by the client", "update product, manager_update_product",
+                        "supply request, checks by the client", "supply request, manager_request_supply"};
+      List<java.util.concurrent.Callable<Object>> ops = new ArrayList<java.util.concurrent.Callable<Object>>();
+      ops.add(() -> {
+         AmazonRepository.User u = repo.getUser(manager);
+         if (u == null || !u.type.equals("manager") || !repo.storesManagedBy(manager).contains(storeID)) throw new IllegalStateException("refused");
+         repo.updateProduct(storeID, name, product.numberOfUnits, product.pricePerUnit);
+         return repo.recordProductUpdate(manager, storeID, name);
+      });
+      ops.add(() -> expectOk(repo.updateProductAsManager(manager, storeID, name, product.numberOfUnits, product.pricePerUnit)));
+      ops.add(() -> {
+         AmazonRepository.User u = repo.getUser(manager);
+         if (u == null || !u.type.equals("manager") || repo.storesManagedBy(manager).isEmpty()
+             || !repo.storesManagedBy(manager).contains(storeID)) throw new IllegalStateException("refused");
+         return repo.requestSupply(manager, warehouse, storeID, name, 1);
+      });
+      ops.add(() -> expectOk(repo.requestSupplyAsManager(manager, warehouse, storeID, name, 1)));
+
+      System.out.printf("%-40s %12s %14s %12s%n", "", "round trips", "local ms/op", latency + " ms/trip");
+      for (int i = 0; i < ops.size(); i++) {
+         double[] millis = new double[2];
+         long trips = 0;
+         for (int pass = 0; pass < 2; pass++) {
+            slow.latencyMillis = pass == 0 ? 0 : latency;
+            ops.get(i).call(); // warm up
+            long tripsBefore = slow.roundTrips.get(), start = System.nanoTime();
+            for (int r = 0; r < runs; r++) ops.get(i).call();
+            millis[pass] = (System.nanoTime() - start) / 1e6 / runs;
+            trips = (slow.roundTrips.get() - tripsBefore) / runs;
+         }
+         System.out.printf("%-40s %12d %14.2f %12.2f%n", names[i], trips, millis[0], millis[1]);
+      }
+
+      slow.latencyMillis = 0;
+      repo.executeUpdate("DELETE FROM ProductUpdates WHERE updateNumber > ?", Integer.parseInt(lastUpdate));
+      repo.executeUpdate("DELETE FROM ProductSupplyRequests WHERE requestNumber > ?", Integer.parseInt(lastRequest));
+      repo.updateProduct(storeID, name, product.numberOfUnits, product.pricePerUnit);
+      repo.close();
+   }
+
+   static int expectOk(AmazonRepository.Outcome outcome) {
+      if (outcome.status != AmazonRepository.Status.OK) throw new IllegalStateException(outcome.status.toString());
+      return outcome.number;
+   }
+
+   /*
+    * Products keyed by char(30) names against productIDs, at the size of a
+    * big Orders table. Both layouts are built side by side in scratch schemas,
+    * amz_wide as create_tables.sql was and amz_compact as it is now, each
+    * with the same synthetic products and orders and an index for the recent
+    * orders of a customer. Reports the sizes of the tables and their indexes,
+    * then the latency of placing an order (the INSERT with its foreign key
+    * checks) and of reading a customer's five latest orders. The schemas are
+    * dropped at the end.
+    */
+   static void compactSchema(String[] args) throws Exception {
+      Connection conn = connect(args, 0);
+      if (conn == null) {
+         usage();
+         return;
+      }
+      long numOrders = intArg(args, 3, 100000000);
+      int numStores = intArg(args, 4, 1000), perStore = intArg(args, 5, 50), customers = intArg(args, 6, 1000000);
+      Statement stmt = conn.createStatement();
+      String name = "'product number ' || p";
+      String[][] layouts = {
+         {"amz_wide",
+          "CREATE TABLE amz_wide.Product (storeID integer NOT NULL, productName char(30) NOT NULL, numberOfUnits integer NOT NULL, " +
+          "pricePerUnit float NOT NULL, PRIMARY KEY(storeID, productName))",
+          "INSERT INTO amz_wide.Product SELECT s, " + name + ", 1000000, 1 FROM generate_series(1, " + numStores + ") s, generate_series(1, " + perStore + ") p",
+          "CREATE TABLE amz_wide.Orders (orderNumber serial, customerID integer NOT NULL, storeID integer NOT NULL, productName char(30) NOT NULL, " +
+          "unitsOrdered integer NOT NULL, orderTime timestamp NOT NULL, PRIMARY KEY(orderNumber), " +
+          "FOREIGN KEY(storeID, productName) REFERENCES amz_wide.Product(storeID, productName))",
+          "INSERT INTO amz_wide.Orders (customerID, storeID, productName, unitsOrdered, orderTime) " +
+          "SELECT 1 + i % " + customers + ", 1 + i % " + numStores + ", 'product number ' || (1 + i / " + numStores + " % " + perStore + "), 1 + i % 9, " +
+          "TIMESTAMP '2016-01-01' + i * INTERVAL '1 second' FROM generate_series(0, " + numOrders + " - 1) i",
+          "INSERT INTO amz_wide.Orders (customerID, storeID, productName, unitsOrdered, orderTime) " +
+          "VALUES (?, ?, ?, 1, DATE_TRUNC('second', CURRENT_TIMESTAMP))",
+          "SELECT orderNumber, customerID, storeID, productName, unitsOrdered, orderTime FROM amz_wide.Orders WHERE customerID = ? " +
+          "ORDER BY orderTime DESC, orderNumber DESC LIMIT 5"},
+         {"amz_compact",
+          "CREATE TABLE amz_compact.ProductNames (productID serial, productName varchar(30) NOT NULL, PRIMARY KEY(productID), UNIQUE(productName)); " +
+          "CREATE TABLE amz_compact.Product (storeID integer NOT NULL, productID integer NOT NULL REFERENCES amz_compact.ProductNames, " +
+          "numberOfUnits integer NOT NULL, pricePerUnit float NOT NULL, PRIMARY KEY(storeID, productID))",
+          "INSERT INTO amz_compact.ProductNames (productName) SELECT " + name + " FROM generate_series(1, " + perStore + ") p ORDER BY p; " +
+          "INSERT INTO amz_compact.Product SELECT s, p, 1000000, 1 FROM generate_series(1, " + numStores + ") s, generate_series(1, " + perStore + ") p",
+          "CREATE TABLE amz_compact.Orders (orderNumber serial, customerID integer NOT NULL, storeID integer NOT NULL, productID integer NOT NULL, " +
+          "unitsOrdered integer NOT NULL, orderTime timestamp NOT NULL, PRIMARY KEY(orderNumber), " +
+          "FOREIGN KEY(storeID, productID) REFERENCES amz_compact.Product(storeID, productID))",
+          "INSERT INTO amz_compact.Orders (customerID, storeID, productID, unitsOrdered, orderTime) " +
+          "SELECT 1 + i % " + customers + ", 1 + i % " + numStores + ", 1 + i / " + numStores + " % " + perStore + ", 1 + i % 9, " +
+          "TIMESTAMP '2016-01-01' + i * INTERVAL '1 second' FROM generate_series(0, " + numOrders + " - 1) i",
+          "INSERT INTO amz_compact.Orders (customerID, storeID, productID, unitsOrdered, orderTime) " +
+          "VALUES (?, ?, (SELECT productID FROM amz_compact.ProductNames WHERE productName = ?), 1, DATE_TRUNC('second', CURRENT_TIMESTAMP))",
+          "SELECT o.orderNumber, o.customerID, o.storeID, n.productName, o.unitsOrdered, o.orderTime " +
+          "FROM amz_compact.Orders o JOIN amz_compact.ProductNames n ON n.productID = o.productID WHERE o.customerID = ? " +
+          "ORDER BY o.orderTime DESC, o.orderNumber DESC LIMIT 5"},
+      };
+      Random rnd = new Random(42);
+      for (String[] layout : layouts) {
+         String schema = layout[0];
+         stmt.executeUpdate("DROP SCHEMA IF EXISTS " + schema + " CASCADE");
+         stmt.executeUpdate("CREATE SCHEMA " + schema);
+         long t0 = System.nanoTime();
+         for (int i = 1; i <= 4; i++) {
+            for (String sql : layout[i].split("; ")) stmt.executeUpdate(sql);
+         }
+         stmt.executeUpdate("CREATE INDEX ON " + schema + ".Orders (customerID, orderTime, orderNumber)");
+         stmt.executeUpdate("VACUUM ANALYZE " + schema + ".Orders");
+         System.out.printf("%s: %,d orders loaded in %.0f s%n", schema, numOrders, (System.nanoTime() - t0) / 1e9);
+         ResultSet rs = stmt.executeQuery("SELECT c.relname, pg_relation_size(c.oid), pg_indexes_size(c.oid) FROM pg_class c " +
+                                          "JOIN pg_namespace s ON s.oid = c.relnamespace WHERE s.nspname = '" + schema + "' AND c.relkind = 'r' ORDER BY 1");
+         while (rs.next()) {
+            System.out.printf("  %-14s table %,15d bytes   indexes %,15d bytes%n", rs.getString(1), rs.getLong(2), rs.getLong(3));
+         }
+         rs.close();
+
+         java.sql.PreparedStatement insert = conn.prepareStatement(layout[5]);
+         java.sql.PreparedStatement recent = conn.prepareStatement(layout[6]);
+         int runs = 2000;
+         long insertNanos = 0, recentNanos = 0;
+         for (int r = 0; r < runs; r++) {
+            insert.setInt(1, 1 + rnd.nextInt(customers));
+            insert.setInt(2, 1 + rnd.nextInt(numStores));
+            insert.setString(3, "product number " + (1 + rnd.nextInt(perStore)));
+            long start = System.nanoTime();
+            insert.executeUpdate();
+            insertNanos += System.nanoTime() - start;
+            recent.setInt(1, 1 + rnd.nextInt(customers));
+            start = System.nanoTime();
+            ResultSet orders = recent.executeQuery();
+            while (orders.next()) { }
+            orders.close();
+            recentNanos += System.nanoTime() - start;
+         }
+         insert.close();
+         recent.close();
+         System.out.printf("  place an order %8.3f ms   5 recent orders %8.3f ms%n", insertNanos / 1e6 / runs, recentNanos / 1e6 / runs);
+      }
+      for (String[] layout : layouts) stmt.executeUpdate("DROP SCHEMA " + layout[0] + " CASCADE");
+      stmt.close();
+      conn.close();
+   }
+
+   /*
+    * A manager's order history written to a file, the way the menus used to
+    * print it against ResultRenderer in every format: a print per value on
+    * a PrintStream that flushes every line like System.out, and a
+    * String.format per row, then TABS, TABLE, CSV and JSON lines.
+    */
+   static void render(String[] args) throws Exception {
+      final int numRows = intArg(args, 0, 10000000);
+      final String[] columns = {"ordernumber", "name", "storeid", "productname", "ordertime"};
+      final int[] widths = {12, 51, 8, 31, 21};
+      final String[] names = new String[1000], products = new String[2000];
+      for (int i = 0; i < names.length; i++) names[i] = "customer " + i;
+      for (int i = 0; i < products.length; i++) products[i] = "product " + i;
+      final Timestamp[] times = new Timestamp[4096];
+      long now = System.currentTimeMillis() / 1000 * 1000;
+      for (int i = 0; i < times.length; i++) times[i] = new Timestamp(now - i * 60000L);
+      File file = File.createTempFile("render-", ".out");
+      file.deleteOnExit();
+      final String path = file.getPath();
+
+      String[] modes = {"print per value", "String.format per row", "TABS", "TABLE", "CSV", "JSON"};
+      for (final String mode : modes) {
+         long start = System.nanoTime();
+         if (mode.equals("print per value") || mode.equals("String.format per row")) {
+            java.io.PrintStream out = new java.io.PrintStream(new java.io.BufferedOutputStream(new java.io.FileOutputStream(path), 8192), true);
+            for (String c : columns) out.print(c + "\t");
+            out.println();
+            for (int i = 0; i < numRows; i++) {
+               Object[] row = {i + 1, names[i % names.length], i % 1000 + 1, products[i % products.length], times[i % times.length]};
+               if (mode.equals("print per value")) {
+                  for (Object v : row) out.print(v + "\t");
+                  out.println();
+               }
+               else {
+                  out.println(String.format("%-12s%-51s%-8s%-31s%s", row));
+               }
+            }
+            out.close();
+         }
+         else {
+            ResultRenderer out = ResultRenderer.file(path, ResultRenderer.Format.valueOf(mode), columns, widths);
+            for (int i = 0; i < numRows; i++) {
+               out.row(i + 1, names[i % names.length], i % 1000 + 1, products[i % products.length], times[i % times.length]);
+            }
+            out.finish();
+         }
+         double seconds = (System.nanoTime() - start) / 1e9;
+         System.out.printf("%-22s %,d rows in %6.2f s   %6.2f M rows/s   %,d bytes%n", mode, numRows, seconds, numRows / seconds / 1e6, file.length());
+      }
+      file.delete();
+   }
+
+   /*
+    * Supply requests worked off by SupplyFulfillment with 1 to 16 workers:
+    * the requests are queued over every warehouse and the managers' products,
+    * then the workers claim, ship and receive them. Every batch is on its way
+    * shipMillis, so one worker is bound by the shipping time and more workers
+    * overlap it; with more workers than warehouses several claim from the same
+    * queue. The workers run again without shipping time, which leaves the
+    * cost of claiming and receiving alone. Last, a batch of every warehouse
+    * is claimed and dropped, as by an instance that died, and the workers
+    * must requeue and deliver them. On postgres every worker has its own
+    * connection.
+    */
+   static void fulfillment(String[] args) throws Exception {
+      File dataDir = new File(args[0]);
+      int numRequests = intArg(args, 1, 20000);
+      int batchSize = intArg(args, 2, 50);
+      long shipMillis = intArg(args, 3, 20);
+      final boolean postgres = args.length > 6;
+      final AmazonRepository repo = postgres ? JdbcRepository.connect(args[4], args[5], args[6], "") : InMemoryRepository.load(dataDir);
+      AmazonRepository.Source source = postgres ? () -> JdbcRepository.connect(args[4], args[5], args[6], "") : AmazonRepository.Source.shared(repo);
+      List<Integer> warehouses = repo.warehouseIDs();
+      List<int[]> targets = new ArrayList<int[]>(); // manager, store
+      List<String> names = new ArrayList<String>();
+      for (int manager : repo.managerIDs()) {
+         for (int storeID : repo.storesManagedBy(manager)) {
+            for (AmazonRepository.Product p : repo.productsOf(storeID)) {
+               targets.add(new int[] {manager, storeID});
+               names.add(p.productName);
+            }
+         }
+      }
+      long[] shipping = shipMillis > 0 ? new long[] {shipMillis, 0} : new long[] {0};
+      for (long ship : shipping) {
+         System.out.printf("%,d requests over %d warehouses and %,d products, batches of %d, %d ms shipping%n",
+                           numRequests, warehouses.size(), targets.size(), batchSize, ship);
+         for (int workers = 1; workers <= 16; workers *= 2) {
+            long t0 = System.nanoTime();
+            for (int i = 0; i < numRequests; i++) {
+               int[] t = targets.get(i % targets.size());
+               repo.requestSupply(t[0], warehouses.get(i % warehouses.size()), t[1], names.get(i % targets.size()), 1);
+            }
+            double queued = (System.nanoTime() - t0) / 1e9;
+            long t1 = System.nanoTime();
+            SupplyFulfillment f = new SupplyFulfillment(source, warehouses, workers, batchSize, ship, 1, 60000, null);
+            while (f.received() < numRequests) Thread.sleep(1);
+            double seconds = (System.nanoTime() - t1) / 1e9;
+            f.shutdown();
+            System.out.printf("%2d workers: queued in %.2f s, received in %.2f s, %,10.0f requests/s%n", workers, queued, seconds, numRequests / seconds);
+         }
+      }
+
+      // an instance that died with a batch of every warehouse on its way: the workers put them back once stale
+      int recover = Math.max(numRequests / 10, batchSize * warehouses.size());
+      long staleMillis = 500;
+      for (int i = 0; i < recover; i++) {
+         int[] t = targets.get(i % targets.size());
+         repo.requestSupply(t[0], warehouses.get(i % warehouses.size()), t[1], names.get(i % targets.size()), 1);
+      }
+      final long[] units = {0, 0};
+      repo.forEachProduct(p -> units[0] += p.numberOfUnits);
+      int lost = 0;
+      for (int warehouseID : warehouses) lost += repo.claimSupplyRequests(warehouseID, batchSize).size();
+      long t1 = System.nanoTime();
+      SupplyFulfillment f = new SupplyFulfillment(source, warehouses, 4, batchSize, 0, 1, staleMillis, null);
+      while (f.received() < recover && System.nanoTime() - t1 < 30000000000L) Thread.sleep(1);
+      double seconds = (System.nanoTime() - t1) / 1e9;
+      f.shutdown();
+      repo.forEachProduct(p -> units[1] += p.numberOfUnits);
+      System.out.printf("%,d requests, %,d of them lost with a dead instance and requeued after %d ms: %,d received in %.2f s, %s%n",
+                        recover, lost, staleMillis, f.received(), seconds,
+                        f.received() == recover && units[1] - units[0] == recover ? "every unit arrived" : "FAILED, " + (units[1] - units[0]) + " units arrived");
+      repo.close();
+   }
+
+   //the repository with every call taking latencyMillis more, one round trip each
+   static AmazonRepository slowRepository(final AmazonRepository target, final long latencyMillis, final AtomicLong roundTrips) {
+      return (AmazonRepository) java.lang.reflect.Proxy.newProxyInstance(AmazonRepository.class.getClassLoader(),
+                                                                          new Class<?>[] {AmazonRepository.class}, (p, m, a) -> {
+         if (!m.getName().equals("close")) {
+            roundTrips.incrementAndGet();
+            if (latencyMillis > 0) Thread.sleep(latencyMillis);
+         }
+         return SlowConnection.call(target, m, a);
+      });
+   }
+
+   /*
+    * The login of a manager with a network delay on every round trip: the
+    * queries one after another on the session's connection, as LogIn,
+    * loadNearbyStores, loadManagers and checkIfManager made them, against
+    * Amazon.bootstrap sending them at once over the async connections. On
+    * postgres the delay is added to every statement of every connection;
+    * in memory to every repository call. Without latencyMs it runs 1, 5 and
+    * 20 ms.
+    */
+   static void login(String[] args) throws Exception {
+      File dataDir = new File(args[0]);
+      int runs = intArg(args, 2, 20);
+      final boolean postgres = args.length > 5;
+      final InMemoryRepository memory = postgres ? null : InMemoryRepository.load(dataDir);
+      if (postgres) Class.forName("org.postgresql.Driver");
+      final String url = postgres ? "jdbc:postgresql://localhost:" + args[4] + "/" + args[3] : null;
+      long[] latencies = args.length > 1 ? new long[] {Integer.parseInt(args[1])} : new long[] {1, 5, 20};
+      for (final long latency : latencies) {
+         final AtomicLong roundTrips = new AtomicLong();
+         final List<SlowConnection> slow = new ArrayList<SlowConnection>();
+         AmazonRepository.Source source = () -> {
+            if (!postgres) return slowRepository(memory, latency, roundTrips);
+            SlowConnection c = new SlowConnection(DriverManager.getConnection(url, args[5], ""), latency);
+            synchronized (slow) {
+               slow.add(c);
+            }
+            return new JdbcRepository(c.connection());
+         };
+         AmazonRepository session = source.open();
+         AmazonRepository.User manager = null;
+         for (AmazonRepository.User u : session.users()) if (manager == null && u.type.equals("manager")) manager = u;
+         final String name = manager.name, password = manager.password;
+         Amazon esql = new Amazon(session);
+         esql.startAsync(source);
+
+         long[] sequential = new long[runs], concurrent = new long[runs];
+         long trips = 0, tripsBefore;
+         for (int i = 0; i < runs; i++) {
+            tripsBefore = roundTrips(roundTrips, slow);
+            long t = System.nanoTime();
+            AmazonRepository.User u = session.login(name, password);
+            AmazonRepository.User again = session.getUser(u.userID);
+            session.stores();
+            session.managerIDs();
+            session.getUser(again.userID);
+            sequential[i] = System.nanoTime() - t;
+            trips = roundTrips(roundTrips, slow) - tripsBefore;
+
+            t = System.nanoTime();
+            if (!Amazon.bootstrap(esql, name, password)) throw new IllegalStateException("login failed");
+            concurrent[i] = System.nanoTime() - t;
+         }
+         long asyncTrips = (roundTrips(roundTrips, slow) - trips * runs) / runs;
+         Arrays.sort(sequential);
+         Arrays.sort(concurrent);
+         System.out.printf("%3d ms per round trip: one by one %7.1f ms (%d round trips), at once %7.1f ms (%d round trips)%n", latency,
+                           sequential[runs / 2] / 1e6, trips, concurrent[runs / 2] / 1e6, asyncTrips);
+         esql.cleanup();
+      }
+   }
+
+   private static long roundTrips(AtomicLong memoryTrips, List<SlowConnection> slow) {
+      long n = memoryTrips.get();
+      synchronized (slow) {
+         for (SlowConnection c : slow) n += c.roundTrips.get();
+      }
+      return n;
+   }
+}
@@ -0,0 +1,103 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+//A shopping cart: several (store, product, quantity) lines, possibly from
+//different nearby stores, each holding a reservation until checkout.
+public class Cart {
+
+   public static class Line {
+      public final int storeID;
+      public final String productName;
+      public final int units;
+      ReservationManager.Reservation reservation;
+
+      Line(ReservationManager.Reservation reservation) {
+         this.storeID = reservation.storeID;
+         this.productName = reservation.productName;
+         this.units = reservation.units;
+         this.reservation = reservation;
+      }
+
+      public ReservationManager.Reservation reservation() {
+         return reservation;
+      }
+   }
+
+   private final ReservationManager reservations;
+   private final List<Line> lines = new ArrayList<Line>();
+
+   public Cart(ReservationManager reservations) {
+      this.reservations = reservations;
+   }
+
+   public List<Line> lines() {
+      return lines;
+   }
+
+   /*
+    * Adds a line to the cart if the units can be reserved.
+    *
+    * @param available Product.numberOfUnits as last read from the database
+    * @return false if other carts hold too much of the stock
+    */
+   public boolean add(int storeID, String productName, int units, int available) {
+      ReservationManager.Reservation r = reservations.reserve(storeID, productName, units, available);
+      if (r == null) return false;
+      lines.add(new Line(r));
+      return true;
+   }
+
+   public void remove(int index) {
+      reservations.release(lines.remove(index).reservation);
+   }
+
+   public void clear() {
+      for (Line line : lines) reservations.release(line.reservation);
+      lines.clear();
+   }
+
+   /*
+    * Tries to reserve the units of an expired line again.
+    *
+    * @return false if the stock is no longer there
+    */
+   public boolean renew(Line line, int available) {
+      ReservationManager.Reservation r = reservations.reserve(line.storeID, line.productName, line.units, available);
+      if (r == null) return false;
+      line.reservation = r;
+      return true;
+   }
+
+   //lines whose reservation ran out before checkout
+   public List<Line> expired() {
+      List<Line> result = new ArrayList<Line>();
+      for (Line line : lines) {
+         if (!line.reservation.isHeld()) result.add(line);
+      }
+      return result;
+   }
+
+   /*
+    * Places every line as an order in one transaction. A line only goes
+    * through while the store still has the units, so if another app instance
+    * sold them in the meantime nothing is ordered.
+    *
+    * @param repo where the orders go
+    * @param customerID the customer placing the orders
+    * @return the orderNumbers of the lines, or null if some stock ran out
+    * @throws java.sql.SQLException when the transaction failed
+    */
+   public List<Integer> checkout(AmazonRepository repo, int customerID) throws SQLException {
+      if (lines.isEmpty()) return new ArrayList<Integer>();
+      List<AmazonRepository.OrderLine> order = new ArrayList<AmazonRepository.OrderLine>();
+      for (Line line : lines) {
+         order.add(new AmazonRepository.OrderLine(line.storeID, line.productName, line.units));
+      }
+      List<Integer> numbers = repo.placeOrders(customerID, order);
+      if (numbers == null) return null;
+      // the units are now taken off, so the holds can go
+      for (Line line : lines) reservations.release(line.reservation);
+      return numbers;
+   }
+}
@@ -0,0 +1,445 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.Reader;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+//Client side replacement for load_data.sql. The CSV files are streamed from
+//this machine, so they do not have to sit on the database host. Tables that do
+//not depend on each other load in parallel on their own connections, and a
+//table starts as soon as the tables it references are in. The primary, unique
+//and foreign keys create_tables.sql made are dropped before the load and made
+//again once the data is in, so their indexes are built and the references
+//checked once rather than row by row. The statements of create_indexes.sql
+//run after that, and the serial sequences are moved past the loaded keys at
+//the end. The files that name a product go into
+//a temporary staging table first and from there into their table with the
+//productID of the name; loading Product adds the names to ProductNames.
+//
+//Usage: java -cp classes:lib/pg73jdbc3.jar CsvLoader <dbname> <port> <user> <dataDir> [create_indexes.sql]
+//
+//With a JDBC driver that has the COPY API (org.postgresql.copy.CopyManager,
+//8.4 and later) the files go through COPY ... FROM STDIN. The bundled 7.3
+//driver has no COPY support, so there the rows are sent as batched INSERTs.
+public class CsvLoader {
+
+   //one table: its file, the columns of the file with their SQL types, the tables it references and its serial sequence
+   static class Table {
+      final String name, file, sequence, serialColumn;
+      final String[] columns, types, dependsOn;
+
+      Table(String name, String file, String[] columns, String[] types, String[] dependsOn, String sequence, String serialColumn) {
+         this.name = name;
+         this.file = file;
+         this.columns = columns;
+         this.types = types;
+         this.dependsOn = dependsOn;
+         this.sequence = sequence;
+         this.serialColumn = serialColumn;
+      }
+
+      //whether the file has a productName where the table has a productID
+      boolean namesProducts() {
+         return Arrays.asList(columns).contains("productName");
+      }
+   }
+
+   static final Table[] TABLES = {
+      new Table("Users", "users.csv",
+                new String[] {"userID", "name", "password", "latitude", "longitude", "type"},
+                new String[] {"integer", "varchar(50)", "varchar(11)", "decimal", "decimal", "user_type"},
+                new String[] {}, "users_userid_seq", "userID"),
+      new Table("Warehouse", "warehouse.csv",
+                new String[] {"WarehouseID", "area", "latitude", "longitude"},
+                new String[] {"integer", "integer", "decimal", "decimal"},
+                new String[] {}, null, null),
+      new Table("Store", "stores.csv",
+                new String[] {"storeID", "latitude", "longitude", "managerID", "dateEstablished"},
+                new String[] {"integer", "decimal", "decimal", "integer", "date"},
+                new String[] {"Users"}, null, null),
+      new Table("Product", "products.csv",
+                new String[] {"storeID", "productName", "numberOfUnits", "pricePerUnit"},
+                new String[] {"integer", "varchar(30)", "integer", "float"},
+                new String[] {"Store"}, null, null),
+      new Table("Orders", "orders.csv",
+                new String[] {"orderNumber", "customerID", "storeID", "productName", "unitsOrdered", "orderTime"},
+                new String[] {"integer", "integer", "integer", "varchar(30)", "integer", "timestamp"},
+                new String[] {"Users", "Product"}, "orders_ordernumber_seq", "orderNumber"),
+      new Table("ProductSupplyRequests", "productSupplyRequests.csv",
+                new String[] {"requestNumber", "managerID", "warehouseID", "storeID", "productName", "unitsRequested"},
+                new String[] {"integer", "integer", "integer", "integer", "varchar(30)", "integer"},
+                new String[] {"Users", "Warehouse", "Product"}, "productsupplyrequests_requestnumber_seq", "requestNumber"),
+      new Table("ProductUpdates", "productUpdates.csv",
+                new String[] {"updateNumber", "managerID", "storeID", "productName", "updatedOn"},
+                new String[] {"integer", "integer", "integer", "varchar(30)", "timestamp"},
+                new String[] {"Users", "Product"}, "productupdates_updatenumber_seq", "updateNumber"),
+   };
+
+   //the tables the load writes to, whose keys are made again after it; ProductVersions by the trigger of Product
+   static final String[] KEYED = {"Users", "Warehouse", "Store", "ProductNames", "Product", "Orders", "ProductSupplyRequests",
+                                  "ProductUpdates", "ProductVersions"};
+
+   static final int BATCH_SIZE = 5000;
+
+   private final String url, user;
+   private final File dataDir;
+
+   public CsvLoader(String url, String user, File dataDir) {
+      this.url = url;
+      this.user = user;
+      this.dataDir = dataDir;
+   }
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 4) {
+         System.err.println("Usage: java CsvLoader <dbname> <port> <user> <dataDir> [create_indexes.sql]");
+         return;
+      }
+      Class.forName("org.postgresql.Driver");
+      CsvLoader loader = new CsvLoader("jdbc:postgresql://localhost:" + args[1] + "/" + args[0], args[2], new File(args[3]));
+      long start = System.nanoTime();
+      loader.loadAll();
+      if (args.length > 4) {
+         long t = System.nanoTime();
+         loader.runScript(new File(args[4]));
+         System.out.printf("%-24s %8.1f s%n", "indexes", (System.nanoTime() - t) / 1e9);
+      }
+      loader.fixSequences();
+      System.out.printf("%-24s %8.1f s%n", "total", (System.nanoTime() - start) / 1e9);
+   }
+
+   Connection connect() throws SQLException {
+      return DriverManager.getConnection(url, user, "");
+   }
+
+   /*
+    * Loads every table, each one as soon as the tables it references are
+    * done, with the keys of the tables dropped until all are in.
+    *
+    * @throws Exception when any table failed to load or a key does not hold
+    */
+   public void loadAll() throws Exception {
+      List<String[]> keys = dropKeys();
+      loadTables();
+      long t = System.nanoTime();
+      addKeys(keys);
+      System.out.printf("%-24s %8.1f s%n", "keys", (System.nanoTime() - t) / 1e9);
+   }
+
+   /*
+    * Drops the primary, unique and foreign keys of the loaded tables, the
+    * foreign ones first.
+    *
+    * @return the table, name and definition of every key dropped, in the order to add them again
+    */
+   List<String[]> dropKeys() throws SQLException {
+      StringBuilder in = new StringBuilder();
+      for (String table : KEYED) in.append(in.length() == 0 ? "'" : ", '").append(table.toLowerCase()).append("'");
+      List<String[]> keys = new ArrayList<String[]>();
+      Connection conn = connect();
+      try {
+         Statement stmt = conn.createStatement();
+         ResultSet rs = stmt.executeQuery("SELECT c.conrelid::regclass, c.conname, pg_get_constraintdef(c.oid) FROM pg_constraint c " +
+                                          "WHERE c.contype IN ('p', 'u', 'f') AND c.conrelid::regclass::text IN (" + in + ") " +
+                                          "ORDER BY c.contype = 'f', c.conname");
+         while (rs.next()) keys.add(new String[] {rs.getString(1), rs.getString(2), rs.getString(3)});
+         rs.close();
+         for (int i = keys.size() - 1; i >= 0; i--) {
+            execute(conn, "ALTER TABLE " + keys.get(i)[0] + " DROP CONSTRAINT " + keys.get(i)[1]);
+         }
+         stmt.close();
+      }
+      finally {
+         conn.close();
+      }
+      return keys;
+   }
+
+   //adds the keys dropKeys dropped, building their indexes and checking every row once
+   void addKeys(List<String[]> keys) throws SQLException {
+      Connection conn = connect();
+      try {
+         for (String[] key : keys) execute(conn, "ALTER TABLE " + key[0] + " ADD CONSTRAINT " + key[1] + " " + key[2]);
+      }
+      finally {
+         conn.close();
+      }
+   }
+
+   private void loadTables() throws Exception {
+      ExecutorService pool = Executors.newFixedThreadPool(TABLES.length);
+      Map<String, CompletableFuture<Void>> done = new LinkedHashMap<String, CompletableFuture<Void>>();
+      try {
+         for (final Table table : TABLES) {
+            List<CompletableFuture<Void>> deps = new ArrayList<CompletableFuture<Void>>();
+            for (String d : table.dependsOn) deps.add(done.get(d));
+            CompletableFuture<Void> ready = CompletableFuture.allOf(deps.toArray(new CompletableFuture<?>[0]));
+            done.put(table.name, ready.thenRunAsync(() -> {
+               try {
+                  long t = System.nanoTime();
+                  long rows = load(table);
+                  double seconds = (System.nanoTime() - t) / 1e9;
+                  System.out.printf("%-24s %8.1f s %12d rows %12.0f rows/s%n", table.name, seconds, rows, rows / seconds);
+               }
+               catch (Exception e) {
+                  throw new RuntimeException(table.name + ": " + e.getMessage(), e);
+               }
+            }, pool));
+         }
+         CompletableFuture.allOf(done.values().toArray(new CompletableFuture<?>[0])).join();
+      }
+      finally {
+         pool.shutdown();
+      }
+   }
+
+   /*
+    * Streams one CSV file into its table.
+    *
+    * @return the number of rows loaded
+    */
+   long load(Table table) throws Exception {
+      Connection conn = connect();
+      try {
+         String target = table.name;
+         if (table.namesProducts()) {
+            target = table.name + "Csv";
+            StringBuilder columns = new StringBuilder();
+            for (int i = 0; i < table.columns.length; i++) {
+               columns.append(i == 0 ? "" : ", ").append(table.columns[i]).append(' ').append(table.types[i]);
+            }
+            execute(conn, "CREATE TEMP TABLE " + target + " (" + columns + ")");
+         }
+         File file = new File(dataDir, table.file);
+         long rows;
+         Object copyApi = copyApi(conn);
+         if (copyApi != null) {
+            Method copyIn = copyApi.getClass().getMethod("copyIn", String.class, Reader.class);
+            Reader reader = new BufferedReader(new FileReader(file), 1 << 16);
+            try {
+               rows = (Long) copyIn.invoke(copyApi, "COPY " + target + " FROM STDIN WITH DELIMITER ',' CSV HEADER", reader);
+            }
+            finally {
+               reader.close();
+            }
+         }
+         else {
+            rows = insertBatched(conn, table, target, file);
+         }
+         if (table.namesProducts()) insertStaged(conn, table, target);
+         return rows;
+      }
+      finally {
+         conn.close();
+      }
+   }
+
+   private static void execute(Connection conn, String sql) throws SQLException {
+      Statement stmt = conn.createStatement();
+      stmt.executeUpdate(sql);
+      stmt.close();
+   }
+
+   //moves the staged rows into the table, the names turned into productIDs
+   void insertStaged(Connection conn, Table table, String staged) throws SQLException {
+      if (table.name.equals("Product")) {
+         execute(conn, "INSERT INTO ProductNames (productName) SELECT DISTINCT productName FROM " + staged +
+                       " WHERE productName NOT IN (SELECT productName FROM ProductNames) ORDER BY productName");
+      }
+      StringBuilder columns = new StringBuilder(), values = new StringBuilder();
+      for (int i = 0; i < table.columns.length; i++) {
+         boolean name = table.columns[i].equals("productName");
+         columns.append(i == 0 ? "" : ", ").append(name ? "productID" : table.columns[i]);
+         values.append(i == 0 ? "" : ", ").append(name ? "n.productID" : "c." + table.columns[i]);
+      }
+      execute(conn, "INSERT INTO " + table.name + " (" + columns + ") SELECT " + values + " FROM " + staged + " c " +
+                    "JOIN ProductNames n ON n.productName = c.productName");
+   }
+
+   //the driver's CopyManager, or null if the driver predates the COPY API
+   static Object copyApi(Connection conn) {
+      try {
+         Method getCopyAPI = conn.getClass().getMethod("getCopyAPI");
+         return getCopyAPI.invoke(conn);
+      }
+      catch (Exception e) {
+         return null;
+      }
+   }
+
+   long insertBatched(Connection conn, Table table, String target, File file) throws Exception {
+      StringBuilder sql = new StringBuilder("INSERT INTO " + target + " (");
+      StringBuilder values = new StringBuilder();
+      for (int i = 0; i < table.columns.length; i++) {
+         sql.append(i == 0 ? "" : ", ").append(table.columns[i]);
+         values.append(i == 0 ? "" : ", ").append("CAST(? AS ").append(table.types[i]).append(")");
+      }
+      sql.append(") VALUES (").append(values).append(")");
+
+      conn.setAutoCommit(false);
+      PreparedStatement stmt = conn.prepareStatement(sql.toString());
+      BufferedReader reader = new BufferedReader(new FileReader(file), 1 << 16);
+      long rows = 0;
+      try {
+         reader.readLine(); // header
+         String line;
+         while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) continue;
+            List<String> fields = splitCsv(line);
+            for (int i = 0; i < table.columns.length; i++) {
+               stmt.setString(i + 1, i < fields.size() ? fields.get(i) : null);
+            }
+            stmt.addBatch();
+            if (++rows % BATCH_SIZE == 0) {
+               stmt.executeBatch();
+               conn.commit();
+            }
+         }
+         stmt.executeBatch();
+         conn.commit();
+      }
+      catch (SQLException e) {
+         conn.rollback();
+         throw e;
+      }
+      finally {
+         reader.close();
+         stmt.close();
+         conn.setAutoCommit(true);
+      }
+      return rows;
+   }
+
+   //splits one CSV line, honouring double quoted fields
+   static List<String> splitCsv(String line) {
+      List<String> fields = new ArrayList<String>();
+      StringBuilder field = new StringBuilder();
+      boolean quoted = false;
+      for (int i = 0; i < line.length(); i++) {
+         char c = line.charAt(i);
+         if (quoted) {
+            if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+               field.append('"');
+               i++;
+            }
+            else if (c == '"') quoted = false;
+            else field.append(c);
+         }
+         else if (c == '"') quoted = true;
+         else if (c == ',') {
+            fields.add(field.toString());
+            field.setLength(0);
+         }
+         else field.append(c);
+      }
+      fields.add(field.toString());
+      return fields;
+   }
+
+   /*
+    * Runs the statements of a SQL script, e.g. create_indexes.sql.
+    */
+   public void runScript(File script) throws Exception {
+      String sql = new String(java.nio.file.Files.readAllBytes(script.toPath()), java.nio.charset.StandardCharsets.UTF_8);
+      Connection conn = connect();
+      Statement stmt = conn.createStatement();
+      for (String statement : splitStatements(sql)) stmt.executeUpdate(statement);
+      stmt.close();
+      conn.close();
+   }
+
+   /*
+    * Splits a script into its statements, without the comments. A ; or a --
+    * ends nothing inside a 'string' (with '' for a quote, or \' in an E''
+    * string), a "name", a $tag$ quoted body or a block comment.
+    */
+   static List<String> splitStatements(String sql) {
+      List<String> statements = new ArrayList<String>();
+      StringBuilder statement = new StringBuilder();
+      int i = 0;
+      while (i < sql.length()) {
+         char c = sql.charAt(i);
+         int end;
+         if (c == '-' && sql.startsWith("--", i)) {
+            end = sql.indexOf('\n', i);
+            i = end < 0 ? sql.length() : end;
+            continue;
+         }
+         if (c == '/' && sql.startsWith("/*", i)) {
+            end = sql.indexOf("*/", i + 2);
+            i = end < 0 ? sql.length() : end + 2;
+            statement.append(' ');
+            continue;
+         }
+         if (c == '\'' || c == '"') {
+            boolean backslash = c == '\'' && i > 0 && (sql.charAt(i - 1) == 'E' || sql.charAt(i - 1) == 'e')
+                                && (i == 1 || !Character.isLetterOrDigit(sql.charAt(i - 2)) && sql.charAt(i - 2) != '_');
+            end = i + 1;
+            while (end < sql.length()) {
+               char d = sql.charAt(end);
+               if (backslash && d == '\\') end += 2;
+               else if (d == c && end + 1 < sql.length() && sql.charAt(end + 1) == c) end += 2;
+               else if (d == c) break;
+               else end++;
+            }
+            end = Math.min(end + 1, sql.length());
+         }
+         else if (c == '$' && dollarTag(sql, i) != null) {
+            String tag = dollarTag(sql, i);
+            end = sql.indexOf(tag, i + tag.length());
+            end = end < 0 ? sql.length() : end + tag.length();
+         }
+         else if (c == ';') {
+            if (!statement.toString().trim().isEmpty()) statements.add(statement.toString());
+            statement.setLength(0);
+            i++;
+            continue;
+         }
+         else {
+            end = i + 1;
+         }
+         statement.append(sql, i, end);
+         i = end;
+      }
+      if (!statement.toString().trim().isEmpty()) statements.add(statement.toString());
+      return statements;
+   }
+
+   //the $tag$ opening a dollar quoted string at i, or null; a $1 parameter is not one
+   private static String dollarTag(String sql, int i) {
+      int j = i + 1;
+      while (j < sql.length() && (Character.isLetterOrDigit(sql.charAt(j)) || sql.charAt(j) == '_')) j++;
+      if (j >= sql.length() || sql.charAt(j) != '$' || (j > i + 1 && Character.isDigit(sql.charAt(i + 1)))) return null;
+      return sql.substring(i, j + 1);
+   }
+
+   /*
+    * Moves every serial sequence past the largest key that was loaded, like
+    * the ALTER SEQUENCE ... RESTART lines of load_data.sql but for any data size.
+    */
+   public void fixSequences() throws SQLException {
+      Connection conn = connect();
+      Statement stmt = conn.createStatement();
+      for (Table table : TABLES) {
+         if (table.sequence == null) continue;
+         stmt.executeQuery("SELECT setval('" + table.sequence + "', COALESCE((SELECT MAX(" + table.serialColumn + ") FROM " +
+                           table.name + "), 0) + 1, false)").close();
+      }
+      stmt.close();
+      conn.close();
+   }
+}
@@ -0,0 +1,737 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+//AmazonRepository that keeps every table in the heap, for benchmarks and for
+//running the application without a database. Rows are found through int keyed
+//open addressing maps and the lists the application reads are kept in ordered
+//indexes, so no call scans a whole table. It enforces what the schema enforces:
+//the varchar column sizes, the decimal(8,6)/(9,6) coordinates and the foreign
+//keys, failing with an SQLException like Postgres would.
+//
+//Every method is synchronized, which makes a multi statement call such as
+//placeOrders one transaction. Every product keeps its own list of versions,
+//appended to wherever the product_versions trigger would fire.
+public class InMemoryRepository implements AmazonRepository {
+
+   //int keyed hash map with open addressing and linear probing
+   static class IntMap<V> {
+      private int[] keys = new int[16];
+      private Object[] values = new Object[16];
+      private int size = 0;
+
+      private int slot(int key) {
+         int mask = keys.length - 1;
+         int h = key * 0x9E3779B9;
+         int i = (h ^ h >>> 16) & mask;
+         while (values[i] != null && keys[i] != key) i = (i + 1) & mask;
+         return i;
+      }
+
+      @SuppressWarnings("unchecked")
+      V get(int key) {
+         return (V) values[slot(key)];
+      }
+
+      void put(int key, V value) {
+         int i = slot(key);
+         if (values[i] == null) {
+            if (++size * 2 > keys.length) {
+               grow();
+               i = slot(key);
+            }
+            keys[i] = key;
+         }
+         values[i] = value;
+      }
+
+      private void grow() {
+         int[] oldKeys = keys;
+         Object[] oldValues = values;
+         keys = new int[oldKeys.length * 2];
+         values = new Object[oldKeys.length * 2];
+         for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != null) {
+               int j = slot(oldKeys[i]);
+               keys[j] = oldKeys[i];
+               values[j] = oldValues[i];
+            }
+         }
+      }
+
+      int size() {
+         return size;
+      }
+
+      //the keys in ascending order
+      int[] sortedKeys() {
+         int[] result = new int[size];
+         int n = 0;
+         for (int i = 0; i < keys.length; i++) {
+            if (values[i] != null) result[n++] = keys[i];
+         }
+         Arrays.sort(result);
+         return result;
+      }
+   }
+
+   //a Product row; the only mutable row
+   private static class Stock {
+      int units;
+      double price;
+      List<ProductVersion> versions = new ArrayList<ProductVersion>(); // oldest first
+
+      Stock(int units, double price) {
+         this.units = units;
+         this.price = price;
+      }
+   }
+
+   private static final Comparator<Order> NEWEST_ORDER_FIRST = (a, b) -> a.orderTime.equals(b.orderTime) ?
+      Integer.compare(b.orderNumber, a.orderNumber) : b.orderTime.compareTo(a.orderTime);
+   private static final Comparator<ProductUpdate> NEWEST_UPDATE_FIRST = (a, b) -> a.updatedOn.equals(b.updatedOn) ?
+      Integer.compare(b.updateNumber, a.updateNumber) : b.updatedOn.compareTo(a.updatedOn);
+
+   private final IntMap<User> users = new IntMap<User>();
+   private final HashMap<String, TreeSet<Integer>> logins = new HashMap<String, TreeSet<Integer>>(); // name + '\0' + password
+   private final IntMap<Boolean> warehouses = new IntMap<Boolean>();
+   private final IntMap<Store> stores = new IntMap<Store>();
+   private final IntMap<TreeSet<Integer>> storesByManager = new IntMap<TreeSet<Integer>>();
+   private final IntMap<TreeMap<String, Stock>> products = new IntMap<TreeMap<String, Stock>>();
+   private final List<Order> orders = new ArrayList<Order>(); // by orderNumber
+   private final IntMap<TreeSet<Order>> ordersByCustomer = new IntMap<TreeSet<Order>>();
+   private final IntMap<TreeSet<Order>> ordersByStore = new IntMap<TreeSet<Order>>();
+   private final IntMap<List<SupplyRequest>> requestsByStore = new IntMap<List<SupplyRequest>>(); // by requestNumber
+   private final IntMap<ArrayDeque<SupplyRequest>> pendingByWarehouse = new IntMap<ArrayDeque<SupplyRequest>>(); // oldest first
+   private final HashMap<Integer, SupplyRequest> shipped = new HashMap<Integer, SupplyRequest>();
+   private final HashMap<Integer, Long> shippedOn = new HashMap<Integer, Long>();
+   private final IntMap<TreeSet<ProductUpdate>> updatesByStore = new IntMap<TreeSet<ProductUpdate>>();
+   private int nextUserID = 1, nextOrderNumber = 1, nextRequestNumber = 1, nextUpdateNumber = 1, nextVersionNumber = 1;
+   private int shard = 0, shards = 1; // see interleaveNumbers
+
+   /*
+    * Loads the CSV files that load_data.sql loads.
+    *
+    * @param dataDir the directory holding users.csv, stores.csv and the rest
+    * @return the loaded repository
+    * @throws java.sql.SQLException when a row breaks a constraint
+    */
+   public static InMemoryRepository load(File dataDir) throws IOException, SQLException {
+      return load(dataDir, s -> true);
+   }
+
+   /*
+    * Loads the global tables and the stores the filter accepts, with their
+    * products, orders, supply requests and updates; one shard of the data.
+    *
+    * @param dataDir the directory holding users.csv, stores.csv and the rest
+    * @param keep the stores to load
+    * @return the loaded repository
+    * @throws java.sql.SQLException when a row breaks a constraint
+    */
+   public static InMemoryRepository load(File dataDir, Predicate<Store> keep) throws IOException, SQLException {
+      InMemoryRepository repo = new InMemoryRepository();
+      for (List<String> r : readCsv(new File(dataDir, "users.csv"))) {
+         repo.insertUser(toInt(r.get(0)), r.get(1), r.get(2), Double.parseDouble(r.get(3)), Double.parseDouble(r.get(4)), r.get(5));
+      }
+      for (List<String> r : readCsv(new File(dataDir, "warehouse.csv"))) {
+         repo.addWarehouse(toInt(r.get(0)));
+      }
+      for (List<String> r : readCsv(new File(dataDir, "stores.csv"))) {
+         Store s = new Store(toInt(r.get(0)), Double.parseDouble(r.get(1)), Double.parseDouble(r.get(2)), toInt(r.get(3)), isoDate(r.get(4)));
+         if (keep.test(s)) repo.addStore(s);
+      }
+      for (List<String> r : readCsv(new File(dataDir, "products.csv"))) {
+         if (repo.stores.get(toInt(r.get(0))) == null) continue;
+         repo.addProduct(toInt(r.get(0)), r.get(1), toInt(r.get(2)), Double.parseDouble(r.get(3)));
+      }
+      for (List<String> r : readCsv(new File(dataDir, "orders.csv"))) {
+         if (repo.stores.get(toInt(r.get(2))) == null) continue;
+         repo.insertOrder(toInt(r.get(0)), toInt(r.get(1)), toInt(r.get(2)), r.get(3), toInt(r.get(4)), Timestamp.valueOf(r.get(5)));
+      }
+      repo.orders.sort((a, b) -> Integer.compare(a.orderNumber, b.orderNumber));
+      for (List<String> r : readCsv(new File(dataDir, "productSupplyRequests.csv"))) {
+         if (repo.stores.get(toInt(r.get(3))) == null) continue;
+         repo.insertSupplyRequest(new SupplyRequest(toInt(r.get(0)), toInt(r.get(1)), toInt(r.get(2)), toInt(r.get(3)), r.get(4), toInt(r.get(5))));
+      }
+      for (int store : repo.requestsByStore.sortedKeys()) {
+         repo.requestsByStore.get(store).sort((a, b) -> Integer.compare(a.requestNumber, b.requestNumber));
+      }
+      for (List<String> r : readCsv(new File(dataDir, "productUpdates.csv"))) {
+         if (repo.stores.get(toInt(r.get(2))) == null) continue;
+         repo.insertProductUpdate(toInt(r.get(0)), toInt(r.get(1)), toInt(r.get(2)), r.get(3), Timestamp.valueOf(r.get(4)));
+      }
+      return repo;
+   }
+
+   private static List<List<String>> readCsv(File file) throws IOException {
+      List<List<String>> rows = new ArrayList<List<String>>();
+      BufferedReader reader = new BufferedReader(new FileReader(file), 1 << 16);
+      try {
+         reader.readLine(); // header
+         String line;
+         while ((line = reader.readLine()) != null) {
+            if (!line.isEmpty()) rows.add(CsvLoader.splitCsv(line));
+         }
+      }
+      finally {
+         reader.close();
+      }
+      return rows;
+   }
+
+   private static int toInt(String s) {
+      return Integer.parseInt(s.trim());
+   }
+
+   //the m/d/yyyy of stores.csv as yyyy-mm-dd, the way Postgres stores the date
+   private static String isoDate(String s) {
+      if (s == null || s.trim().isEmpty()) return null;
+      String[] mdy = s.trim().split("/");
+      if (mdy.length != 3) return s.trim();
+      return String.format("%04d-%02d-%02d", toInt(mdy[2]), toInt(mdy[0]), toInt(mdy[1]));
+   }
+
+   //a value for a varchar(n) column, kept without trailing blanks like JdbcRepository binds it; anything longer fails
+   private static String varchar(String value, int n, String column) throws SQLException {
+      if (value == null) throw new SQLException("null value in column \"" + column + "\" violates not-null constraint");
+      String s = JdbcRepository.rtrim(value);
+      if (s.length() > n) throw new SQLException("value too long for type character varying(" + n + ")");
+      return s;
+   }
+
+   //a value of the user_type enum; like postgres, the case matters
+   private static String userType(String type) throws SQLException {
+      if (type == null) throw new SQLException("null value in column \"type\" violates not-null constraint");
+      if (!type.equals("customer") && !type.equals("manager") && !type.equals("admin")) {
+         throw new SQLException("invalid input value for enum user_type: \"" + type + "\"");
+      }
+      return type;
+   }
+
+   //a value for a decimal(digits, 6) column, rounded to 6 places
+   private static double decimal(double value, int digits) throws SQLException {
+      double rounded = Math.round(value * 1e6) / 1e6;
+      if (Math.abs(rounded) >= Math.pow(10, digits - 6)) throw new SQLException("numeric field overflow");
+      return rounded;
+   }
+
+   private static String loginKey(String name, String password) {
+      return name + '\0' + password;
+   }
+
+   private static <T> TreeSet<T> indexOf(IntMap<TreeSet<T>> index, int key, Comparator<T> order) {
+      TreeSet<T> set = index.get(key);
+      if (set == null) {
+         set = new TreeSet<T>(order);
+         index.put(key, set);
+      }
+      return set;
+   }
+
+   private Stock stock(int storeID, String productName) {
+      TreeMap<String, Stock> store = products.get(storeID);
+      return store == null ? null : store.get(JdbcRepository.rtrim(productName));
+   }
+
+   private Stock existingStock(int storeID, String productName) throws SQLException {
+      Stock s = stock(storeID, productName);
+      if (s == null) throw new SQLException("insert or update violates foreign key constraint: no product " + productName + " in store " + storeID);
+      return s;
+   }
+
+   private void requireUser(int userID) throws SQLException {
+      if (users.get(userID) == null) throw new SQLException("insert or update violates foreign key constraint: no user " + userID);
+   }
+
+   private synchronized void insertUser(int userID, String name, String password, double latitude, double longitude, String type) throws SQLException {
+      User u = new User(userID, varchar(name, 50, "name"), varchar(password, 11, "password"), decimal(latitude, 8), decimal(longitude, 9), userType(type));
+      User old = users.get(userID);
+      if (old != null) logins.get(loginKey(old.name, old.password)).remove(userID);
+      users.put(userID, u);
+      TreeSet<Integer> ids = logins.get(loginKey(u.name, u.password));
+      if (ids == null) {
+         ids = new TreeSet<Integer>();
+         logins.put(loginKey(u.name, u.password), ids);
+      }
+      ids.add(userID);
+      nextUserID = Math.max(nextUserID, userID + 1);
+   }
+
+   public synchronized void addWarehouse(int warehouseID) {
+      warehouses.put(warehouseID, Boolean.TRUE);
+   }
+
+   public synchronized void addStore(Store s) throws SQLException {
+      requireUser(s.managerID);
+      if (stores.get(s.storeID) != null) throw new SQLException("duplicate key violates unique constraint \"store_pkey\"");
+      stores.put(s.storeID, new Store(s.storeID, decimal(s.latitude, 8), decimal(s.longitude, 9), s.managerID, s.dateEstablished));
+      TreeSet<Integer> managed = storesByManager.get(s.managerID);
+      if (managed == null) {
+         managed = new TreeSet<Integer>();
+         storesByManager.put(s.managerID, managed);
+      }
+      managed.add(s.storeID);
+   }
+
+   public synchronized void addProduct(int storeID, String productName, int units, double price) throws SQLException {
+      if (stores.get(storeID) == null) throw new SQLException("insert or update violates foreign key constraint: no store " + storeID);
+      String name = varchar(productName, 30, "productname");
+      TreeMap<String, Stock> store = products.get(storeID);
+      if (store == null) {
+         store = new TreeMap<String, Stock>();
+         products.put(storeID, store);
+      }
+      if (store.containsKey(name)) throw new SQLException("duplicate key violates unique constraint \"product_pkey\"");
+      Stock s = new Stock(units, price);
+      store.put(name, s);
+      changed(storeID, name, s, currentSecond());
+   }
+
+   //appends a version if the units or the price differ from the last one, like the product_versions trigger
+   private void changed(int storeID, String productName, Stock s, Timestamp time) {
+      if (!s.versions.isEmpty()) {
+         ProductVersion last = s.versions.get(s.versions.size() - 1);
+         if (last.numberOfUnits == s.units && last.pricePerUnit == s.price) return;
+      }
+      s.versions.add(new ProductVersion(nextVersionNumber++, storeID, JdbcRepository.rtrim(productName), s.units, s.price, time));
+   }
+
+   private Order insertOrder(int orderNumber, int customerID, int storeID, String productName, int units, Timestamp time) throws SQLException {
+      String name = varchar(productName, 30, "productname");
+      requireUser(customerID);
+      existingStock(storeID, name);
+      Order o = new Order(orderNumber, customerID, storeID, name, units, time);
+      orders.add(o);
+      indexOf(ordersByCustomer, customerID, NEWEST_ORDER_FIRST).add(o);
+      indexOf(ordersByStore, storeID, NEWEST_ORDER_FIRST).add(o);
+      nextOrderNumber = Math.max(nextOrderNumber, ShardedRepository.following(orderNumber, shard, shards));
+      return o;
+   }
+
+   private void insertSupplyRequest(SupplyRequest r) throws SQLException {
+      requireUser(r.managerID);
+      if (warehouses.get(r.warehouseID) == null) throw new SQLException("insert or update violates foreign key constraint: no warehouse " + r.warehouseID);
+      existingStock(r.storeID, r.productName);
+      SupplyRequest row = new SupplyRequest(r.requestNumber, r.managerID, r.warehouseID, r.storeID, varchar(r.productName, 30, "productname"), r.unitsRequested, r.status);
+      List<SupplyRequest> list = requestsByStore.get(r.storeID);
+      if (list == null) {
+         list = new ArrayList<SupplyRequest>();
+         requestsByStore.put(r.storeID, list);
+      }
+      list.add(row);
+      if (row.status.equals(PENDING)) {
+         pendingQueue(row.warehouseID).add(row);
+      }
+      else if (row.status.equals(SHIPPED)) {
+         // when it was shipped is not known; it counts from now
+         shipped.put(row.requestNumber, row);
+         shippedOn.put(row.requestNumber, System.currentTimeMillis());
+      }
+      nextRequestNumber = Math.max(nextRequestNumber, ShardedRepository.following(r.requestNumber, shard, shards));
+   }
+
+   private ArrayDeque<SupplyRequest> pendingQueue(int warehouseID) {
+      ArrayDeque<SupplyRequest> queue = pendingByWarehouse.get(warehouseID);
+      if (queue == null) {
+         queue = new ArrayDeque<SupplyRequest>();
+         pendingByWarehouse.put(warehouseID, queue);
+      }
+      return queue;
+   }
+
+   //puts the request with its new status where the old one was in the store's list
+   private SupplyRequest setStatus(SupplyRequest r, String status) {
+      SupplyRequest changed = r.withStatus(status);
+      List<SupplyRequest> list = requestsByStore.get(r.storeID);
+      for (int i = list.size() - 1; i >= 0; i--) {
+         if (list.get(i).requestNumber == r.requestNumber) {
+            list.set(i, changed);
+            break;
+         }
+      }
+      return changed;
+   }
+
+   private void insertProductUpdate(int updateNumber, int managerID, int storeID, String productName, Timestamp time) throws SQLException {
+      requireUser(managerID);
+      existingStock(storeID, productName);
+      indexOf(updatesByStore, storeID, NEWEST_UPDATE_FIRST).add(new ProductUpdate(updateNumber, managerID, storeID, varchar(productName, 30, "productname"), time));
+      nextUpdateNumber = Math.max(nextUpdateNumber, ShardedRepository.following(updateNumber, shard, shards));
+   }
+
+   //now, truncated to the second like DATE_TRUNC('second', CURRENT_TIMESTAMP)
+   private static Timestamp currentSecond() {
+      return new Timestamp(System.currentTimeMillis() / 1000 * 1000);
+   }
+
+   public synchronized int createUser(String name, String password, double latitude, double longitude, String type) throws SQLException {
+      int userID = nextUserID;
+      insertUser(userID, name, password, latitude, longitude, type);
+      return userID;
+   }
+
+   public synchronized void copyUser(User u) throws SQLException {
+      if (users.get(u.userID) != null) throw new SQLException("duplicate key violates unique constraint \"users_pkey\"");
+      insertUser(u.userID, u.name, u.password, u.latitude, u.longitude, u.type);
+   }
+
+   //the largest orderNumber, requestNumber or updateNumber in use
+   public synchronized int largestNumber() {
+      return Math.max(nextOrderNumber, Math.max(nextRequestNumber, nextUpdateNumber)) - 1;
+   }
+
+   /*
+    * The in-memory counterpart of JdbcRepository.interleaveNumbers: from now
+    * on orderNumbers, requestNumbers and updateNumbers are n * shards + shard + 1,
+    * above the given number.
+    */
+   public synchronized void interleaveNumbers(int shard, int shards, int after) {
+      this.shard = shard;
+      this.shards = shards;
+      nextOrderNumber = nextRequestNumber = nextUpdateNumber = ShardedRepository.following(after, shard, shards);
+   }
+
+   public synchronized User login(String name, String password) {
+      TreeSet<Integer> ids = logins.get(loginKey(JdbcRepository.rtrim(name), JdbcRepository.rtrim(password)));
+      return ids == null || ids.isEmpty() ? null : users.get(ids.first());
+   }
+
+   public synchronized User getUser(int userID) {
+      return users.get(userID);
+   }
+
+   public synchronized List<User> users() {
+      List<User> result = new ArrayList<User>();
+      for (int id : users.sortedKeys()) result.add(users.get(id));
+      return result;
+   }
+
+   public synchronized Map<Integer, String> userNames(List<Integer> userIDs) {
+      Map<Integer, String> names = new HashMap<Integer, String>();
+      for (int id : userIDs) {
+         User u = users.get(id);
+         if (u != null) names.put(id, u.name);
+      }
+      return names;
+   }
+
+   public synchronized boolean updateUser(User u) throws SQLException {
+      if (users.get(u.userID) == null) return false;
+      insertUser(u.userID, u.name, u.password, u.latitude, u.longitude, u.type);
+      return true;
+   }
+
+   public synchronized List<Store> stores() {
+      List<Store> result = new ArrayList<Store>();
+      for (int id : stores.sortedKeys()) result.add(stores.get(id));
+      return result;
+   }
+
+   public synchronized List<Integer> storesManagedBy(int managerID) {
+      TreeSet<Integer> managed = storesByManager.get(managerID);
+      return managed == null ? new ArrayList<Integer>() : new ArrayList<Integer>(managed);
+   }
+
+   public synchronized List<Integer> managerIDs() {
+      List<Integer> result = new ArrayList<Integer>();
+      for (int id : storesByManager.sortedKeys()) result.add(id);
+      return result;
+   }
+
+   public synchronized Product getProduct(int storeID, String productName) {
+      Stock s = stock(storeID, productName);
+      return s == null ? null : new Product(storeID, JdbcRepository.rtrim(productName), s.units, s.price);
+   }
+
+   public synchronized List<Product> productsOf(int storeID) {
+      List<Product> result = new ArrayList<Product>();
+      TreeMap<String, Stock> store = products.get(storeID);
+      if (store == null) return result;
+      for (Map.Entry<String, Stock> e : store.entrySet()) {
+         result.add(new Product(storeID, e.getKey(), e.getValue().units, e.getValue().price));
+      }
+      return result;
+   }
+
+   public synchronized void forEachProduct(Consumer<Product> visitor) {
+      for (int store : products.sortedKeys()) {
+         for (Map.Entry<String, Stock> e : products.get(store).entrySet()) {
+            visitor.accept(new Product(store, e.getKey(), e.getValue().units, e.getValue().price));
+         }
+      }
+   }
+
+   public synchronized boolean updateProduct(int storeID, String productName, int numberOfUnits, double pricePerUnit) {
+      Stock s = stock(storeID, productName);
+      if (s == null) return false;
+      s.units = numberOfUnits;
+      s.price = pricePerUnit;
+      changed(storeID, productName, s, currentSecond());
+      return true;
+   }
+
+   //why the user may not change the store's products, or null if they may
+   private Status managerCheck(int managerID, int storeID) {
+      User u = users.get(managerID);
+      if (u == null || !u.type.equals("manager")) return Status.NOT_A_MANAGER;
+      Store s = stores.get(storeID);
+      return s == null || s.managerID != managerID ? Status.NOT_YOUR_STORE : null;
+   }
+
+   public synchronized Outcome updateProductAsManager(int managerID, int storeID, String productName, int numberOfUnits, double pricePerUnit)
+         throws SQLException {
+      Status refused = managerCheck(managerID, storeID);
+      if (refused != null) return new Outcome(refused, 0);
+      if (!updateProduct(storeID, productName, numberOfUnits, pricePerUnit)) return new Outcome(Status.NO_SUCH_PRODUCT, 0);
+      return new Outcome(Status.OK, recordProductUpdate(managerID, storeID, productName));
+   }
+
+   //one call is one transaction here, so there are no chunks
+   public synchronized int bulkUpdateProducts(int managerID, ProductFilter filter, Adjustment adjustment, int chunkSize) throws SQLException {
+      requireUser(managerID);
+      Timestamp now = new Timestamp(System.currentTimeMillis()), second = currentSecond();
+      Iterable<Integer> storeIDs = filter.storeIDs == null ? null : new TreeSet<Integer>(filter.storeIDs);
+      if (storeIDs == null) {
+         List<Integer> all = new ArrayList<Integer>();
+         for (int store : products.sortedKeys()) all.add(store);
+         storeIDs = all;
+      }
+      int changed = 0;
+      for (int store : storeIDs) {
+         TreeMap<String, Stock> stock = products.get(store);
+         if (stock == null) continue;
+         for (Map.Entry<String, Stock> e : stock.entrySet()) {
+            Stock s = e.getValue();
+            if (!filter.matches(e.getKey(), s.units)) continue;
+            s.units = adjustment.units(s.units);
+            s.price = adjustment.price(s.price);
+            changed(store, e.getKey(), s, second);
+            insertProductUpdate(nextUpdateNumber, managerID, store, e.getKey(), now);
+            changed++;
+         }
+      }
+      return changed;
+   }
+
+   public synchronized int placeOrder(int customerID, int storeID, String productName, int units) throws SQLException {
+      Order o = insertOrder(nextOrderNumber, customerID, storeID, productName, units, currentSecond());
+      Stock s = existingStock(storeID, productName);
+      s.units -= units;
+      changed(storeID, productName, s, o.orderTime);
+      return o.orderNumber;
+   }
+
+   public synchronized List<Integer> placeOrders(int customerID, List<OrderLine> lines) throws SQLException {
+      // the same (store, product) may be on several lines
+      HashMap<Stock, Integer> needed = new HashMap<Stock, Integer>();
+      for (OrderLine line : lines) {
+         Stock s = stock(line.storeID, line.productName);
+         if (s == null) return null; // the guarded update matches no row
+         int units = needed.containsKey(s) ? needed.get(s) + line.units : line.units;
+         if (s.units < units) return null;
+         needed.put(s, units);
+      }
+      requireUser(customerID);
+      Timestamp now = currentSecond();
+      List<Integer> numbers = new ArrayList<Integer>();
+      for (OrderLine line : lines) {
+         numbers.add(insertOrder(nextOrderNumber, customerID, line.storeID, line.productName, line.units, now).orderNumber);
+         Stock s = stock(line.storeID, line.productName);
+         s.units -= line.units;
+         changed(line.storeID, line.productName, s, now);
+      }
+      return numbers;
+   }
+
+   public synchronized boolean cancelOrder(int orderNumber) {
+      int i = Collections.binarySearch(orders, new Order(orderNumber, 0, 0, null, 0, null), (a, b) -> Integer.compare(a.orderNumber, b.orderNumber));
+      if (i < 0) return false;
+      Order o = orders.remove(i);
+      ordersByCustomer.get(o.customerID).remove(o);
+      ordersByStore.get(o.storeID).remove(o);
+      Stock s = stock(o.storeID, o.productName);
+      s.units += o.unitsOrdered;
+      changed(o.storeID, o.productName, s, currentSecond());
+      return true;
+   }
+
+   private static <T> List<T> first(TreeSet<T> set, int limit) {
+      List<T> result = new ArrayList<T>();
+      if (set == null) return result;
+      for (T t : set) {
+         if (result.size() == limit) break;
+         result.add(t);
+      }
+      return result;
+   }
+
+   public synchronized List<Order> recentOrders(int customerID, int limit) {
+      return first(ordersByCustomer.get(customerID), limit);
+   }
+
+   public synchronized List<Order> ordersOfManagedStores(int managerID) {
+      List<Order> result = new ArrayList<Order>();
+      for (int store : storesManagedBy(managerID)) {
+         TreeSet<Order> set = ordersByStore.get(store);
+         if (set != null) result.addAll(set);
+      }
+      result.sort(NEWEST_ORDER_FIRST);
+      return result;
+   }
+
+   public synchronized void forEachOrder(Consumer<Order> visitor) {
+      for (Order o : orders) visitor.accept(o);
+   }
+
+   public synchronized int requestSupply(int managerID, int warehouseID, int storeID, String productName, int units) throws SQLException {
+      Stock s = stock(storeID, productName);
+      if (s == null) return -1;
+      int requestNumber = nextRequestNumber;
+      insertSupplyRequest(new SupplyRequest(requestNumber, managerID, warehouseID, storeID, productName, units, PENDING));
+      return requestNumber;
+   }
+
+   public synchronized Outcome requestSupplyAsManager(int managerID, int warehouseID, int storeID, String productName, int units) throws SQLException {
+      Status refused = managerCheck(managerID, storeID);
+      if (refused != null) return new Outcome(refused, 0);
+      if (warehouses.get(warehouseID) == null) return new Outcome(Status.NO_SUCH_WAREHOUSE, 0);
+      int requestNumber = requestSupply(managerID, warehouseID, storeID, productName, units);
+      return requestNumber < 0 ? new Outcome(Status.NO_SUCH_PRODUCT, 0) : new Outcome(Status.OK, requestNumber);
+   }
+
+   public synchronized List<SupplyRequest> supplyRequests(int storeID, int limit) {
+      List<SupplyRequest> result = new ArrayList<SupplyRequest>();
+      List<SupplyRequest> list = requestsByStore.get(storeID);
+      if (list == null) return result;
+      for (int i = list.size() - 1; i >= 0 && result.size() < limit; i--) result.add(list.get(i));
+      return result;
+   }
+
+   public synchronized void forEachSupplyRequest(Consumer<SupplyRequest> visitor) {
+      for (int store : requestsByStore.sortedKeys()) {
+         for (SupplyRequest r : requestsByStore.get(store)) visitor.accept(r);
+      }
+   }
+
+   public synchronized List<Integer> warehouseIDs() {
+      List<Integer> ids = new ArrayList<Integer>();
+      for (int w : warehouses.sortedKeys()) ids.add(w);
+      return ids;
+   }
+
+   public synchronized List<SupplyRequest> claimSupplyRequests(int warehouseID, int limit) {
+      List<SupplyRequest> claimed = new ArrayList<SupplyRequest>();
+      ArrayDeque<SupplyRequest> queue = pendingByWarehouse.get(warehouseID);
+      while (queue != null && !queue.isEmpty() && claimed.size() < limit) {
+         SupplyRequest r = setStatus(queue.poll(), SHIPPED);
+         shipped.put(r.requestNumber, r);
+         shippedOn.put(r.requestNumber, System.currentTimeMillis());
+         claimed.add(r);
+      }
+      return claimed;
+   }
+
+   public synchronized int receiveSupplyRequests(List<Integer> requestNumbers) {
+      Timestamp now = currentSecond();
+      int received = 0;
+      for (int number : requestNumbers) {
+         SupplyRequest r = shipped.remove(number);
+         if (r == null) continue;
+         shippedOn.remove(number);
+         setStatus(r, RECEIVED);
+         Stock s = stock(r.storeID, r.productName);
+         if (s != null) {
+            s.units += r.unitsRequested;
+            changed(r.storeID, r.productName, s, now);
+         }
+         received++;
+      }
+      return received;
+   }
+
+   public synchronized int requeueSupplyRequests(long shippedMillis) {
+      long before = System.currentTimeMillis() - shippedMillis;
+      List<SupplyRequest> stale = new ArrayList<SupplyRequest>();
+      for (SupplyRequest r : shipped.values()) {
+         if (shippedOn.get(r.requestNumber) < before) stale.add(r);
+      }
+      for (SupplyRequest r : stale) {
+         shipped.remove(r.requestNumber);
+         shippedOn.remove(r.requestNumber);
+         ArrayDeque<SupplyRequest> queue = pendingQueue(r.warehouseID);
+         // back in the order of the request numbers, so the oldest is claimed first again
+         List<SupplyRequest> pending = new ArrayList<SupplyRequest>(queue);
+         pending.add(setStatus(r, PENDING));
+         pending.sort((a, b) -> Integer.compare(a.requestNumber, b.requestNumber));
+         queue.clear();
+         queue.addAll(pending);
+      }
+      return stale.size();
+   }
+
+   public synchronized int recordProductUpdate(int managerID, int storeID, String productName) throws SQLException {
+      int updateNumber = nextUpdateNumber;
+      insertProductUpdate(updateNumber, managerID, storeID, productName, new Timestamp(System.currentTimeMillis()));
+      return updateNumber;
+   }
+
+   public synchronized List<ProductUpdate> recentUpdates(int managerID, int limit) {
+      List<ProductUpdate> result = new ArrayList<ProductUpdate>();
+      for (int store : storesManagedBy(managerID)) result.addAll(first(updatesByStore.get(store), limit));
+      result.sort(NEWEST_UPDATE_FIRST);
+      return result.size() > limit ? new ArrayList<ProductUpdate>(result.subList(0, limit)) : result;
+   }
+
+   public synchronized void forEachProductUpdate(Consumer<ProductUpdate> visitor) {
+      for (int store : updatesByStore.sortedKeys()) {
+         for (ProductUpdate u : updatesByStore.get(store)) visitor.accept(u);
+      }
+   }
+
+   public synchronized void forEachProductVersion(Consumer<ProductVersion> visitor) {
+      for (int store : products.sortedKeys()) {
+         for (Stock s : products.get(store).values()) {
+            for (ProductVersion v : s.versions) visitor.accept(v);
+         }
+      }
+   }
+
+   public synchronized int compactProductVersions(Timestamp before) {
+      int removed = 0;
+      for (int store : products.sortedKeys()) {
+         for (Stock s : products.get(store).values()) {
+            int older = 0;
+            while (older < s.versions.size() && s.versions.get(older).validFrom.before(before)) older++;
+            HashSet<Integer> gone = new HashSet<Integer>(PriceHistory.compactable(s.versions.subList(0, older)));
+            if (gone.isEmpty()) continue;
+            List<ProductVersion> kept = new ArrayList<ProductVersion>(s.versions.size() - gone.size());
+            for (ProductVersion v : s.versions) {
+               if (!gone.contains(v.versionNumber)) kept.add(v);
+            }
+            s.versions = kept;
+            removed += gone.size();
+         }
+      }
+      return removed;
+   }
+
+   public void close() {
+   }
+}
@@ -0,0 +1,234 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+//Tells this app instance which users, stores and products changed in the
+//database, whoever changed them: the triggers of create_invalidations.sql
+//append a row to Invalidations for every changed row and NOTIFY
+//amazon_invalidations once per statement. The listener LISTENs on a connection
+//of its own and, once notified, reads the rows past the last one it saw and
+//hands their keys to a handler.
+//
+//The driver only delivers notifications when a statement runs and a
+//notification has no payload, so the listener polls with a trivial query and
+//takes the keys from the table. A burst of changes is read once: after the
+//first notification the listener waits coalesceMillis for the rest, and a key
+//changed many times is handed over once.
+//
+//invalidationNumbers are taken before commit, so a row can become visible after
+//a later one. A gap in the numbers is read again until it fills or is
+//GAP_MILLIS old, when it is taken to be a rolled back change. Rows read again
+//hand their keys over again; invalidating twice is harmless.
+public class InvalidationListener implements Runnable {
+
+   public static final String CHANNEL = "amazon_invalidations";
+   public static final char USER = 'U', STORE = 'S', PRODUCT = 'P';
+   static final long GAP_MILLIS = 5000;
+   static final long KEEP_MILLIS = 60 * 60 * 1000; // how long a row stays for the listeners to read
+   static final long PRUNE_MILLIS = 10 * 60 * 1000;
+
+   //a user, a store, or a product of a store that changed
+   public static class Key {
+      public final char entity;
+      public final int id; // userID, or storeID for stores and products
+      public final String productName; // products only
+
+      public Key(char entity, int id, String productName) {
+         this.entity = entity;
+         this.id = id;
+         this.productName = productName;
+      }
+
+      public boolean equals(Object o) {
+         if (!(o instanceof Key)) return false;
+         Key k = (Key) o;
+         return entity == k.entity && id == k.id && (productName == null ? k.productName == null : productName.equals(k.productName));
+      }
+
+      public int hashCode() {
+         return (entity * 31 + id) * 31 + (productName == null ? 0 : productName.hashCode());
+      }
+
+      public String toString() {
+         return entity + ":" + id + (productName == null ? "" : ":" + productName);
+      }
+   }
+
+   //called on the listener's thread with the keys of a burst of changes
+   public interface Handler {
+      void invalidated(Set<Key> keys);
+   }
+
+   private final Connection connection;
+   private final Handler handler;
+   private final long pollMillis, coalesceMillis;
+   private final Thread thread;
+   private volatile boolean running = true;
+   private int last; // the invalidationNumber up to which every row has been read
+   private long gapSince = 0; // when the gap after last was first seen, 0 if none
+   private long pruned = 0;
+   private long rowsRead = 0, keysHanded = 0;
+
+   InvalidationListener(Connection connection, Handler handler, long pollMillis, long coalesceMillis) throws SQLException {
+      this.connection = connection;
+      this.handler = handler;
+      this.pollMillis = pollMillis;
+      this.coalesceMillis = coalesceMillis;
+      Statement stmt = connection.createStatement();
+      stmt.execute("LISTEN " + CHANNEL);
+      // listening first, so nothing committed from here on goes unnoticed
+      ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(invalidationNumber), 0) FROM Invalidations");
+      rs.next();
+      last = rs.getInt(1);
+      stmt.close();
+      thread = new Thread(this, "invalidations");
+      thread.setDaemon(true);
+   }
+
+   /*
+    * Starts listening on a connection of its own.
+    *
+    * @param dbname the name of the database
+    * @param dbport the port postgres listens on
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param handler gets the keys of every burst of changes, on the listener's thread
+    * @param pollMillis how often the connection is asked for notifications
+    * @param coalesceMillis how long a burst is waited out before its rows are read
+    * @throws java.sql.SQLException when failed to connect or there is no Invalidations table
+    */
+   public static InvalidationListener start(String dbname, String dbport, String user, String passwd, Handler handler,
+                                            long pollMillis, long coalesceMillis) throws SQLException {
+      try {
+         Class.forName("org.postgresql.Driver");
+      }
+      catch (ClassNotFoundException e) {
+         throw new SQLException("PostgreSQL JDBC driver not on the classpath");
+      }
+      Connection conn = DriverManager.getConnection("jdbc:postgresql://localhost:" + dbport + "/" + dbname, user, passwd);
+      try {
+         InvalidationListener listener = new InvalidationListener(conn, handler, pollMillis, coalesceMillis);
+         listener.thread.start();
+         return listener;
+      }
+      catch (SQLException e) {
+         conn.close();
+         throw e;
+      }
+   }
+
+   //the rows read and the keys handed over so far; the difference is what coalescing saved
+   public synchronized long[] counts() {
+      return new long[] {rowsRead, keysHanded};
+   }
+
+   public void run() {
+      while (running) {
+         try {
+            if (notified() || gapSince != 0) {
+               // the rest of the burst is likely on its way
+               Thread.sleep(coalesceMillis);
+               notified();
+               read();
+            }
+            if (System.currentTimeMillis() - pruned > PRUNE_MILLIS) prune();
+            Thread.sleep(pollMillis);
+         }
+         catch (InterruptedException e) {
+            return;
+         }
+         catch (SQLException e) {
+            if (!running) return;
+            System.err.println("Error: invalidations: " + e.getMessage());
+            try {
+               Thread.sleep(Math.max(pollMillis, 1000));
+            }
+            catch (InterruptedException ie) {
+               return;
+            }
+         }
+      }
+   }
+
+   //whether a notification arrived since the last call
+   private boolean notified() throws SQLException {
+      Statement stmt = connection.createStatement();
+      stmt.executeQuery("SELECT 1").close(); // the driver picks up notifications while running a statement
+      stmt.close();
+      PGNotification[] notifications = ((PGConnection) connection).getNotifications();
+      return notifications != null && notifications.length > 0;
+   }
+
+   //reads the rows past last and hands their keys over
+   private void read() throws SQLException {
+      PreparedStatement stmt = connection.prepareStatement(
+         "SELECT i.invalidationNumber, i.entity, i.userID, i.storeID, n.productName " +
+         "FROM Invalidations i LEFT JOIN ProductNames n ON n.productID = i.productID " +
+         "WHERE i.invalidationNumber > ? ORDER BY i.invalidationNumber");
+      Set<Key> keys = new LinkedHashSet<Key>();
+      int rows = 0;
+      try {
+         stmt.setInt(1, last);
+         ResultSet rs = stmt.executeQuery();
+         boolean advancing = true;
+         while (rs.next()) {
+            rows++;
+            int number = rs.getInt(1);
+            char entity = rs.getString(2).charAt(0);
+            keys.add(new Key(entity, entity == USER ? rs.getInt(3) : rs.getInt(4), entity == PRODUCT ? rs.getString(5) : null));
+            if (!advancing) continue;
+            long now = System.currentTimeMillis();
+            if (number != last + 1) {
+               if (gapSince == 0) gapSince = now;
+               if (now - gapSince < GAP_MILLIS) {
+                  advancing = false; // read from the gap again next time
+                  continue;
+               }
+            }
+            last = number;
+            gapSince = 0;
+         }
+      }
+      finally {
+         stmt.close();
+      }
+      synchronized (this) {
+         rowsRead += rows;
+         keysHanded += keys.size();
+      }
+      if (!keys.isEmpty()) handler.invalidated(keys);
+   }
+
+   //drops the rows every listener has had time to read
+   private void prune() throws SQLException {
+      PreparedStatement stmt = connection.prepareStatement("DELETE FROM Invalidations WHERE invalidated < ?");
+      try {
+         stmt.setTimestamp(1, new java.sql.Timestamp(System.currentTimeMillis() - KEEP_MILLIS));
+         stmt.executeUpdate();
+      }
+      finally {
+         stmt.close();
+      }
+      pruned = System.currentTimeMillis();
+   }
+
+   public void close() {
+      running = false;
+      thread.interrupt();
+      try {
+         thread.join(1000);
+         connection.close();
+      }
+      catch (Exception e) {
+         // ignored.
+      }
+   }
+}
@@ -0,0 +1,834 @@
+import java.io.IOException;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+//AmazonRepository on a PostgreSQL connection. Every statement is prepared with
+//its values bound as parameters and goes through the query helpers below.
+//Tables refer to a product by (storeID, productID); a name passed in becomes its
+//productID in the statement itself, and names read come from ProductNames.
+//ProductVersions is filled by the product_versions trigger of
+//create_functions.sql, and the manager workflows are its manager_* functions.
+//With -Dcapture.log=<file> every statement and transaction call is also
+//appended to a WorkloadCapture, one session per connection.
+public class JdbcRepository implements AmazonRepository {
+
+   // reference to physical database connection.
+   private final Connection _connection;
+   private final WorkloadCapture capture;
+   private final int session;
+
+   public JdbcRepository(Connection connection) {
+      this._connection = connection;
+      this.capture = WorkloadCapture.shared();
+      this.session = capture == null ? 0 : capture.newSession();
+   }
+
+   /*
+    * Connects to a database on this machine.
+    *
+    * @param dbname the name of the database
+    * @param dbport the port postgres listens on
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public static JdbcRepository connect(String dbname, String dbport, String user, String passwd) throws SQLException {
+      try {
+         Class.forName("org.postgresql.Driver");
+      }
+      catch (ClassNotFoundException e) {
+         throw new SQLException("PostgreSQL JDBC driver not on the classpath");
+      }
+      return new JdbcRepository(DriverManager.getConnection("jdbc:postgresql://localhost:" + dbport + "/" + dbname, user, passwd));
+   }
+
+   public Connection connection() {
+      return _connection;
+   }
+
+   //appends what was sent since start to the capture, if there is one
+   private void record(byte kind, long start, String sql, Object[] params, int result) {
+      if (capture != null) capture.record(session, kind, start, System.nanoTime(), sql, params, result);
+   }
+
+   //the transaction calls, recorded like the statements so a replay makes them too
+   private void setAutoCommit(boolean autoCommit) throws SQLException {
+      long start = System.nanoTime();
+      _connection.setAutoCommit(autoCommit);
+      record(autoCommit ? WorkloadCapture.AUTOCOMMIT_ON : WorkloadCapture.AUTOCOMMIT_OFF, start, null, null, 0);
+   }
+
+   private void commit() throws SQLException {
+      long start = System.nanoTime();
+      _connection.commit();
+      record(WorkloadCapture.COMMIT, start, null, null, 0);
+   }
+
+   private void rollback() throws SQLException {
+      long start = System.nanoTime();
+      _connection.rollback();
+      record(WorkloadCapture.ROLLBACK, start, null, null, 0);
+   }
+
+   //binds the values to the ? of the statement in order
+   private PreparedStatement prepare(String sql, Object... params) throws SQLException {
+      PreparedStatement stmt = this._connection.prepareStatement(sql);
+      for (int i = 0; i < params.length; i++) {
+         stmt.setObject(i + 1, params[i]);
+      }
+      return stmt;
+   }
+
+   //a statement sent as batches of rows; a batch is one entry of the capture
+   private class Batch {
+      private final String sql;
+      private final PreparedStatement stmt;
+      private final List<Object[]> rows = new ArrayList<Object[]>();
+
+      Batch(String sql) throws SQLException {
+         this.sql = sql;
+         this.stmt = _connection.prepareStatement(sql);
+      }
+
+      void add(Object... params) throws SQLException {
+         for (int i = 0; i < params.length; i++) {
+            stmt.setObject(i + 1, params[i]);
+         }
+         stmt.addBatch();
+         if (capture != null) rows.add(params);
+      }
+
+      int[] execute() throws SQLException {
+         long start = System.nanoTime();
+         int[] counts = stmt.executeBatch();
+         if (capture != null) capture.recordBatch(session, start, System.nanoTime(), sql, rows);
+         rows.clear();
+         return counts;
+      }
+
+      void close() throws SQLException {
+         stmt.close();
+      }
+   }
+
+   /*
+    * Method to execute an update SQL statement.  Update SQL instructions
+    * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
+    *
+    * @param sql the input SQL string, with a ? for every value
+    * @param params the values
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeUpdate(String sql, Object... params) throws SQLException {
+      PreparedStatement stmt = prepare(sql, params);
+      long start = System.nanoTime();
+      int rowCount = stmt.executeUpdate();
+      record(WorkloadCapture.UPDATE, start, sql, params, rowCount);
+      stmt.close();
+      return rowCount;
+   }
+
+   /*
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and outputs the results to
+    * standard out, through a ResultRenderer in the TABS format.
+    *
+    * @param query the input query string, with a ? for every value
+    * @param params the values
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndPrintResult(String query, Object... params) throws SQLException {
+      PreparedStatement stmt = prepare(query, params);
+      try {
+         long start = System.nanoTime();
+         ResultSet rs = stmt.executeQuery();
+         ResultRenderer out = ResultRenderer.console(ResultRenderer.Format.TABS, rs.getMetaData());
+         int rowCount = out.rows(rs);
+         out.finish();
+         record(WorkloadCapture.QUERY, start, query, params, rowCount);
+         return rowCount;
+      }
+      catch (IOException e) {
+         throw new SQLException(e.getMessage());
+      }
+      finally {
+         stmt.close();
+      }
+   }
+
+   /*
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and returns the results as
+    * a list of records. Each record in turn is a list of attribute values
+    *
+    * @param query the input query string, with a ? for every value
+    * @param params the values
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResult(String query, Object... params) throws SQLException {
+      PreparedStatement stmt = prepare(query, params);
+      long start = System.nanoTime();
+      ResultSet rs = stmt.executeQuery();
+      int numCol = rs.getMetaData().getColumnCount();
+      List<List<String>> result = new ArrayList<List<String>>();
+      while (rs.next()) {
+         List<String> record = new ArrayList<String>();
+         for (int i = 1; i <= numCol; ++i)
+            record.add(rs.getString(i));
+         result.add(record);
+      }
+      record(WorkloadCapture.QUERY, start, query, params, result.size());
+      stmt.close();
+      return result;
+   }
+
+   /*
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and returns the number of results
+    *
+    * @param query the input query string, with a ? for every value
+    * @param params the values
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQuery(String query, Object... params) throws SQLException {
+      PreparedStatement stmt = prepare(query, params);
+      long start = System.nanoTime();
+      ResultSet rs = stmt.executeQuery();
+      int rowCount = 0;
+      while (rs.next()) {
+         rowCount++;
+      }
+      record(WorkloadCapture.QUERY, start, query, params, rowCount);
+      stmt.close();
+      return rowCount;
+   }
+
+   private interface RowHandler {
+      void row(ResultSet rs) throws SQLException;
+   }
+
+   //runs a query and hands every row to the handler as it arrives, for results too big to hold
+   private void executeQueryAndVisit(String query, RowHandler handler, Object... params) throws SQLException {
+      boolean autoCommit = _connection.getAutoCommit();
+      setAutoCommit(false); // postgres only uses a cursor inside a transaction
+      PreparedStatement stmt = prepare(query, params);
+      try {
+         stmt.setFetchSize(10000);
+         long start = System.nanoTime();
+         ResultSet rs = stmt.executeQuery();
+         int rowCount = 0;
+         while (rs.next()) {
+            handler.row(rs);
+            rowCount++;
+         }
+         record(WorkloadCapture.QUERY, start, query, params, rowCount);
+         if (autoCommit) commit(); // inside transaction() the transaction commits
+      }
+      finally {
+         stmt.close();
+         setAutoCommit(autoCommit);
+      }
+   }
+
+   /*
+    * Method to fetch the last value from sequence. This
+    * method issues the query to the DBMS and returns the current
+    * value of sequence used for autogenerated keys
+    *
+    * @param sequence name of the DB sequence
+    * @return current value of a sequence
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int getCurrSeqVal(String sequence) throws SQLException {
+      List<List<String>> res = executeQueryAndReturnResult("SELECT currval(?)", sequence);
+      return res.isEmpty() ? -1 : Integer.parseInt(res.get(0).get(0));
+   }
+
+   /*
+    * Calls a manager_* function of create_functions.sql, one round trip. The
+    * function returns the number it made, or minus the ordinal of the Status
+    * saying why nothing changed.
+    */
+   private Outcome callManagerFunction(String function, Object... params) throws SQLException {
+      StringBuilder sql = new StringBuilder("{? = call ").append(function).append("(");
+      for (int i = 0; i < params.length; i++) sql.append(i == 0 ? "?" : ", ?");
+      String call = sql.append(")}").toString();
+      CallableStatement stmt = this._connection.prepareCall(call);
+      try {
+         stmt.registerOutParameter(1, Types.INTEGER);
+         for (int i = 0; i < params.length; i++) {
+            stmt.setObject(i + 2, params[i]);
+         }
+         long start = System.nanoTime();
+         stmt.execute();
+         int code = stmt.getInt(1);
+         record(WorkloadCapture.CALL, start, call, params, code);
+         return code > 0 ? new Outcome(Status.OK, code) : new Outcome(Status.values()[-code], 0);
+      }
+      finally {
+         stmt.close();
+      }
+   }
+
+   private interface Work<T> {
+      T run() throws SQLException;
+   }
+
+   //runs the work in one transaction, rolling it back if it throws
+   private <T> T transaction(Work<T> work) throws SQLException {
+      setAutoCommit(false);
+      try {
+         T result = work.run();
+         commit();
+         return result;
+      }
+      catch (SQLException e) {
+         rollback();
+         throw e;
+      }
+      finally {
+         setAutoCommit(true);
+      }
+   }
+
+   //names are stored without trailing blanks and compared ignoring them, so a value is bound without them
+   static String rtrim(String s) {
+      int end = s.length();
+      while (end > 0 && s.charAt(end - 1) == ' ') end--;
+      return s.substring(0, end);
+   }
+
+   private static int toInt(String s) {
+      return Integer.parseInt(s.trim());
+   }
+
+   private static User user(List<String> r) {
+      return new User(toInt(r.get(0)), r.get(1), r.get(2), Double.parseDouble(r.get(3)), Double.parseDouble(r.get(4)), r.get(5));
+   }
+
+   private static Order order(List<String> r) {
+      return new Order(toInt(r.get(0)), toInt(r.get(1)), toInt(r.get(2)), r.get(3), toInt(r.get(4)), Timestamp.valueOf(r.get(5)));
+   }
+
+   private static final String USER_COLUMNS = "userID, name, password, latitude, longitude, type";
+   private static final String ORDER_COLUMNS = "orderNumber, customerID, storeID, productID, unitsOrdered, orderTime";
+   private static final String ORDER_SELECT = "SELECT o.orderNumber, o.customerID, o.storeID, n.productName, o.unitsOrdered, o.orderTime " +
+                                              "FROM Orders o JOIN ProductNames n ON n.productID = o.productID";
+   //the productID of the name bound to its ?, NULL if there is no such product
+   private static final String PRODUCT_ID = "(SELECT productID FROM ProductNames WHERE productName = ?)";
+
+   public int createUser(String name, String password, double latitude, double longitude, String type) throws SQLException {
+      return transaction(() -> {
+         executeUpdate("INSERT INTO Users (name, password, latitude, longitude, type) VALUES (?, ?, ?, ?, CAST(? AS user_type))",
+                       rtrim(name), rtrim(password), latitude, longitude, rtrim(type));
+         return getCurrSeqVal("users_userid_seq");
+      });
+   }
+
+   public void copyUser(User u) throws SQLException {
+      executeUpdate("INSERT INTO Users (" + USER_COLUMNS + ") VALUES (?, ?, ?, ?, ?, CAST(? AS user_type))",
+                    u.userID, rtrim(u.name), rtrim(u.password), u.latitude, u.longitude, rtrim(u.type));
+   }
+
+   public User login(String name, String password) throws SQLException {
+      List<List<String>> res = executeQueryAndReturnResult("SELECT " + USER_COLUMNS + " FROM Users WHERE name = ? AND password = ? ORDER BY userID LIMIT 1",
+                                                           rtrim(name), rtrim(password));
+      return res.isEmpty() ? null : user(res.get(0));
+   }
+
+   public User getUser(int userID) throws SQLException {
+      List<List<String>> res = executeQueryAndReturnResult("SELECT " + USER_COLUMNS + " FROM Users WHERE userID = ?", userID);
+      return res.isEmpty() ? null : user(res.get(0));
+   }
+
+   public List<User> users() throws SQLException {
+      List<User> users = new ArrayList<User>();
+      List<List<String>> res = executeQueryAndReturnResult("SELECT " + USER_COLUMNS + " FROM Users ORDER BY userID");
+      for (int i = 0; i < res.size(); i++) users.add(user(res.get(i)));
+      return users;
+   }
+
+   public Map<Integer, String> userNames(List<Integer> userIDs) throws SQLException {
+      Map<Integer, String> names = new HashMap<Integer, String>();
+      if (userIDs.isEmpty()) return names;
+      StringBuilder in = new StringBuilder();
+      for (int i = 0; i < userIDs.size(); i++) in.append(i == 0 ? "?" : ", ?");
+      List<List<String>> res = executeQueryAndReturnResult("SELECT userID, name FROM Users WHERE userID IN (" + in + ")", userIDs.toArray());
+      for (int i = 0; i < res.size(); i++) names.put(toInt(res.get(i).get(0)), res.get(i).get(1));
+      return names;
+   }
+
+   public boolean updateUser(User u) throws SQLException {
+      return executeUpdate("UPDATE Users SET name = ?, password = ?, latitude = ?, longitude = ?, type = CAST(? AS user_type) WHERE userID = ?",
+                           rtrim(u.name), rtrim(u.password), u.latitude, u.longitude, rtrim(u.type), u.userID) > 0;
+   }
+
+   public List<Store> stores() throws SQLException {
+      List<Store> stores = new ArrayList<Store>();
+      List<List<String>> res = executeQueryAndReturnResult("SELECT storeID, latitude, longitude, managerID, dateEstablished FROM Store ORDER BY storeID");
+      for (int i = 0; i < res.size(); i++) {
+         List<String> r = res.get(i);
+         stores.add(new Store(toInt(r.get(0)), Double.parseDouble(r.get(1)), Double.parseDouble(r.get(2)), toInt(r.get(3)), r.get(4)));
+      }
+      return stores;
+   }
+
+   private List<Integer> ids(String query, Object... params) throws SQLException {
+      List<Integer> ids = new ArrayList<Integer>();
+      List<List<String>> res = executeQueryAndReturnResult(query, params);
+      for (int i = 0; i < res.size(); i++) ids.add(toInt(res.get(i).get(0)));
+      return ids;
+   }
+
+   public List<Integer> storesManagedBy(int managerID) throws SQLException {
+      return ids("SELECT storeID FROM Store WHERE managerID = ? ORDER BY storeID", managerID);
+   }
+
+   public List<Integer> managerIDs() throws SQLException {
+      return ids("SELECT DISTINCT managerID FROM Store ORDER BY managerID");
+   }
+
+   public Product getProduct(int storeID, String productName) throws SQLException {
+      List<List<String>> res = executeQueryAndReturnResult("SELECT numberOfUnits, pricePerUnit FROM Product WHERE storeID = ? AND productID = " + PRODUCT_ID,
+                                                           storeID, rtrim(productName));
+      if (res.isEmpty()) return null;
+      return new Product(storeID, rtrim(productName), toInt(res.get(0).get(0)), Double.parseDouble(res.get(0).get(1)));
+   }
+
+   public List<Product> productsOf(int storeID) throws SQLException {
+      List<Product> products = new ArrayList<Product>();
+      List<List<String>> res = executeQueryAndReturnResult("SELECT n.productName, p.numberOfUnits, p.pricePerUnit FROM Product p " +
+                                                           "JOIN ProductNames n ON n.productID = p.productID WHERE p.storeID = ? ORDER BY n.productName",
+                                                           storeID);
+      for (int i = 0; i < res.size(); i++) {
+         List<String> r = res.get(i);
+         products.add(new Product(storeID, r.get(0), toInt(r.get(1)), Double.parseDouble(r.get(2))));
+      }
+      return products;
+   }
+
+   public void forEachProduct(Consumer<Product> visitor) throws SQLException {
+      executeQueryAndVisit("SELECT p.storeID, n.productName, p.numberOfUnits, p.pricePerUnit " +
+                           "FROM Product p JOIN ProductNames n ON n.productID = p.productID", rs ->
+         visitor.accept(new Product(rs.getInt(1), rs.getString(2), rs.getInt(3), rs.getDouble(4))));
+   }
+
+   public boolean updateProduct(int storeID, String productName, int numberOfUnits, double pricePerUnit) throws SQLException {
+      return executeUpdate("UPDATE Product SET numberOfUnits = ?, pricePerUnit = ? WHERE storeID = ? AND productID = " + PRODUCT_ID,
+                           numberOfUnits, pricePerUnit, storeID, rtrim(productName)) > 0;
+   }
+
+   public Outcome updateProductAsManager(int managerID, int storeID, String productName, int numberOfUnits, double pricePerUnit) throws SQLException {
+      return callManagerFunction("manager_update_product", managerID, storeID, rtrim(productName), numberOfUnits, pricePerUnit);
+   }
+
+   /*
+    * The stores are cut into chunks by their number of products. A chunk is
+    * one UPDATE over its stores, joined to ProductNames for the name pattern,
+    * that returns the keys it changed, and the
+    * ProductUpdates rows for those keys go in as batches in the same
+    * transaction.
+    */
+   public int bulkUpdateProducts(int managerID, ProductFilter filter, Adjustment adjustment, int chunkSize) throws SQLException {
+      final List<int[]> sizes = new ArrayList<int[]>(); // {storeID, products}
+      executeQueryAndVisit("SELECT storeID, COUNT(*) FROM Product GROUP BY storeID ORDER BY storeID", rs ->
+         sizes.add(new int[] {rs.getInt(1), rs.getInt(2)}));
+      Set<Integer> wanted = filter.storeIDs == null ? null : new HashSet<Integer>(filter.storeIDs);
+      int changed = 0, products = 0;
+      List<Integer> chunk = new ArrayList<Integer>();
+      for (int[] size : sizes) {
+         if (wanted != null && !wanted.contains(size[0])) continue;
+         chunk.add(size[0]);
+         products += size[1];
+         if (products >= chunkSize) {
+            changed += bulkUpdateChunk(managerID, chunk, filter, adjustment);
+            chunk.clear();
+            products = 0;
+         }
+      }
+      if (!chunk.isEmpty()) changed += bulkUpdateChunk(managerID, chunk, filter, adjustment);
+      return changed;
+   }
+
+   private int bulkUpdateChunk(final int managerID, List<Integer> stores, ProductFilter filter, Adjustment adjustment) throws SQLException {
+      StringBuilder sql = new StringBuilder("UPDATE Product SET pricePerUnit = GREATEST(0, ROUND(CAST(pricePerUnit * ? + ? AS numeric), 2)), " +
+                                            "numberOfUnits = GREATEST(numberOfUnits + ?, ?, 0) FROM ProductNames n " +
+                                            "WHERE n.productID = Product.productID AND storeID IN (");
+      final List<Object> params = new ArrayList<Object>();
+      params.add(adjustment.priceFactor);
+      params.add(adjustment.priceChange);
+      params.add(adjustment.unitsChange);
+      params.add(adjustment.unitsAtLeast);
+      for (int i = 0; i < stores.size(); i++) {
+         sql.append(i == 0 ? "?" : ", ?");
+         params.add(stores.get(i));
+      }
+      sql.append(")");
+      if (filter.namePattern != null) {
+         sql.append(" AND LOWER(n.productName) LIKE ?");
+         params.add(filter.namePattern.toLowerCase());
+      }
+      if (filter.minUnits != null) {
+         sql.append(" AND numberOfUnits >= ?");
+         params.add(filter.minUnits);
+      }
+      if (filter.maxUnits != null) {
+         sql.append(" AND numberOfUnits <= ?");
+         params.add(filter.maxUnits);
+      }
+      sql.append(" RETURNING storeID, Product.productID");
+      final String update = sql.toString();
+      return transaction(() -> {
+         PreparedStatement changed = prepare(update, params.toArray());
+         Batch insert = new Batch("INSERT INTO ProductUpdates (managerID, storeID, productID, updatedOn) " +
+                                  "VALUES (?, ?, ?, CURRENT_TIMESTAMP)");
+         int n = 0;
+         try {
+            long start = System.nanoTime();
+            ResultSet rs = changed.executeQuery();
+            List<int[]> keys = new ArrayList<int[]>();
+            while (rs.next()) keys.add(new int[] {rs.getInt(1), rs.getInt(2)});
+            record(WorkloadCapture.QUERY, start, update, params.toArray(), keys.size());
+            for (int[] key : keys) {
+               insert.add(managerID, key[0], key[1]);
+               if (++n % 10000 == 0) insert.execute();
+            }
+            if (n % 10000 != 0) insert.execute();
+            return n;
+         }
+         finally {
+            changed.close();
+            insert.close();
+         }
+      });
+   }
+
+   public int placeOrder(int customerID, int storeID, String productName, int units) throws SQLException {
+      return transaction(() -> {
+         executeUpdate("INSERT INTO Orders (customerID, storeID, productID, unitsOrdered, orderTime) " +
+                       "VALUES (?, ?, " + PRODUCT_ID + ", ?, DATE_TRUNC('second', CURRENT_TIMESTAMP))", customerID, storeID, rtrim(productName), units);
+         executeUpdate("UPDATE Product SET numberOfUnits = numberOfUnits - ? WHERE storeID = ? AND productID = " + PRODUCT_ID,
+                       units, storeID, rtrim(productName));
+         return getCurrSeqVal("orders_ordernumber_seq");
+      });
+   }
+
+   /*
+    * The Product updates and the Orders inserts each go to the database as
+    * one batch, the orderNumbers having been taken from the sequence in one
+    * query before. An update only applies while the store still has the
+    * units, so if another session sold them in the meantime everything is
+    * rolled back.
+    */
+   public List<Integer> placeOrders(int customerID, List<OrderLine> lines) throws SQLException {
+      if (lines.isEmpty()) return new ArrayList<Integer>();
+      try {
+         return placeOrdersOrThrow(customerID, lines);
+      }
+      catch (OutOfStock e) {
+         return null;
+      }
+   }
+
+   //a line the store no longer has the units for; transaction() rolls back on it
+   private static class OutOfStock extends SQLException {
+      private static final long serialVersionUID = 1L;
+
+      OutOfStock() {
+         super("not enough units");
+      }
+   }
+
+   private List<Integer> placeOrdersOrThrow(int customerID, List<OrderLine> lines) throws SQLException {
+      return transaction(() -> {
+         List<Integer> numbers = ids("SELECT nextval('orders_ordernumber_seq') FROM generate_series(1, ?)", lines.size());
+         Batch update = new Batch("UPDATE Product SET numberOfUnits = numberOfUnits - ? " +
+                                  "WHERE storeID = ? AND productID = " + PRODUCT_ID + " AND numberOfUnits >= ?");
+         Batch insert = new Batch("INSERT INTO Orders (" + ORDER_COLUMNS + ") " +
+                                  "VALUES (?, ?, ?, " + PRODUCT_ID + ", ?, DATE_TRUNC('second', CURRENT_TIMESTAMP))");
+         try {
+            for (int i = 0; i < lines.size(); i++) {
+               OrderLine line = lines.get(i);
+               update.add(line.units, line.storeID, rtrim(line.productName), line.units);
+               insert.add(numbers.get(i), customerID, line.storeID, rtrim(line.productName), line.units);
+            }
+            for (int count : update.execute()) {
+               if (count == 0) throw new OutOfStock();
+            }
+            insert.execute();
+            return numbers;
+         }
+         finally {
+            update.close();
+            insert.close();
+         }
+      });
+   }
+
+   public boolean cancelOrder(int orderNumber) throws SQLException {
+      return transaction(() -> {
+         List<List<String>> res = executeQueryAndReturnResult("SELECT storeID, productID, unitsOrdered FROM Orders WHERE orderNumber = ?", orderNumber);
+         if (res.isEmpty()) return false;
+         executeUpdate("DELETE FROM Orders WHERE orderNumber = ?", orderNumber);
+         executeUpdate("UPDATE Product SET numberOfUnits = numberOfUnits + ? WHERE storeID = ? AND productID = ?",
+                       toInt(res.get(0).get(2)), toInt(res.get(0).get(0)), toInt(res.get(0).get(1)));
+         return true;
+      });
+   }
+
+   public List<Order> recentOrders(int customerID, int limit) throws SQLException {
+      List<Order> orders = new ArrayList<Order>();
+      List<List<String>> res = executeQueryAndReturnResult(ORDER_SELECT + " WHERE o.customerID = ? " +
+                                                           "ORDER BY o.orderTime DESC, o.orderNumber DESC LIMIT ?", customerID, limit);
+      for (int i = 0; i < res.size(); i++) orders.add(order(res.get(i)));
+      return orders;
+   }
+
+   public List<Order> ordersOfManagedStores(int managerID) throws SQLException {
+      List<Order> orders = new ArrayList<Order>();
+      List<List<String>> res = executeQueryAndReturnResult(ORDER_SELECT + " WHERE o.storeID IN (SELECT storeID FROM Store WHERE managerID = ?) " +
+                                                           "ORDER BY o.orderTime DESC, o.orderNumber DESC", managerID);
+      for (int i = 0; i < res.size(); i++) orders.add(order(res.get(i)));
+      return orders;
+   }
+
+   public void forEachOrder(Consumer<Order> visitor) throws SQLException {
+      executeQueryAndVisit(ORDER_SELECT + " ORDER BY o.orderNumber", rs ->
+         visitor.accept(new Order(rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getString(4), rs.getInt(5), rs.getTimestamp(6))));
+   }
+
+   public int requestSupply(int managerID, int warehouseID, int storeID, String productName, int units) throws SQLException {
+      if (executeUpdate("INSERT INTO ProductSupplyRequests (managerID, warehouseID, storeID, productID, unitsRequested, status) " +
+                        "SELECT ?, ?, storeID, productID, ?, 'pending' FROM Product WHERE storeID = ? AND productID = " + PRODUCT_ID,
+                        managerID, warehouseID, units, storeID, rtrim(productName)) == 0) {
+         return -1;
+      }
+      return getCurrSeqVal("productsupplyrequests_requestnumber_seq");
+   }
+
+   public Outcome requestSupplyAsManager(int managerID, int warehouseID, int storeID, String productName, int units) throws SQLException {
+      return callManagerFunction("manager_request_supply", managerID, warehouseID, storeID, rtrim(productName), units);
+   }
+
+   private static final String REQUEST_COLUMNS = "r.requestNumber, r.managerID, r.warehouseID, r.storeID, n.productName, r.unitsRequested, r.status";
+   private static final String REQUEST_SELECT = "SELECT " + REQUEST_COLUMNS + " FROM ProductSupplyRequests r JOIN ProductNames n ON n.productID = r.productID";
+
+   private static List<SupplyRequest> supplyRequests(List<List<String>> res) {
+      List<SupplyRequest> requests = new ArrayList<SupplyRequest>();
+      for (int i = 0; i < res.size(); i++) {
+         List<String> r = res.get(i);
+         requests.add(new SupplyRequest(toInt(r.get(0)), toInt(r.get(1)), toInt(r.get(2)), toInt(r.get(3)), r.get(4), toInt(r.get(5)), r.get(6)));
+      }
+      return requests;
+   }
+
+   public List<SupplyRequest> supplyRequests(int storeID, int limit) throws SQLException {
+      return supplyRequests(executeQueryAndReturnResult(REQUEST_SELECT + " WHERE r.storeID = ? ORDER BY r.requestNumber DESC LIMIT ?", storeID, limit));
+   }
+
+   public void forEachSupplyRequest(Consumer<SupplyRequest> visitor) throws SQLException {
+      executeQueryAndVisit(REQUEST_SELECT + " ORDER BY r.requestNumber", rs ->
+         visitor.accept(new SupplyRequest(rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getInt(4), rs.getString(5), rs.getInt(6), rs.getString(7))));
+   }
+
+   public List<Integer> warehouseIDs() throws SQLException {
+      return ids("SELECT warehouseID FROM Warehouse ORDER BY warehouseID");
+   }
+
+   /*
+    * One statement: the oldest pending requests of the warehouse are locked,
+    * skipping those another transaction holds, and marked shipped.
+    */
+   public List<SupplyRequest> claimSupplyRequests(int warehouseID, int limit) throws SQLException {
+      return supplyRequests(executeQueryAndReturnResult(
+         "WITH r AS (UPDATE ProductSupplyRequests SET status = 'shipped', shippedOn = CURRENT_TIMESTAMP " +
+         "WHERE requestNumber IN (SELECT requestNumber FROM ProductSupplyRequests WHERE warehouseID = ? AND status = 'pending' " +
+         "ORDER BY requestNumber LIMIT ? FOR UPDATE SKIP LOCKED) RETURNING *) " +
+         "SELECT " + REQUEST_COLUMNS + " FROM r JOIN ProductNames n ON n.productID = r.productID ORDER BY r.requestNumber", warehouseID, limit));
+   }
+
+   /*
+    * One statement per chunk of a thousand requests: they are marked
+    * received and the units of each product are summed up and added with one
+    * update. The Product rows are locked in the order of their key first, so
+    * workers receiving for the same products do not deadlock.
+    */
+   public int receiveSupplyRequests(List<Integer> requestNumbers) throws SQLException {
+      int received = 0;
+      for (int from = 0; from < requestNumbers.size(); from += 1000) {
+         List<Integer> chunk = requestNumbers.subList(from, Math.min(requestNumbers.size(), from + 1000));
+         StringBuilder in = new StringBuilder();
+         for (int i = 0; i < chunk.size(); i++) in.append(i == 0 ? "?" : ", ?");
+         final String products = "SELECT storeID, productID, SUM(unitsRequested) AS units FROM ProductSupplyRequests " +
+                                 "WHERE requestNumber IN (" + in + ") AND status = 'shipped' GROUP BY storeID, productID";
+         final Object[] numbers = chunk.toArray();
+         received += transaction(() -> {
+            ids("SELECT p.storeID FROM Product p JOIN (" + products + ") r ON r.storeID = p.storeID AND r.productID = p.productID " +
+                "ORDER BY p.storeID, p.productID FOR UPDATE OF p", numbers);
+            return ids("WITH received AS (UPDATE ProductSupplyRequests SET status = 'received', receivedOn = CURRENT_TIMESTAMP " +
+                       "WHERE requestNumber IN (" + in + ") AND status = 'shipped' RETURNING storeID, productID, unitsRequested), " +
+                       "restocked AS (UPDATE Product p SET numberOfUnits = p.numberOfUnits + r.units " +
+                       "FROM (SELECT storeID, productID, SUM(unitsRequested) AS units FROM received GROUP BY storeID, productID) r " +
+                       "WHERE p.storeID = r.storeID AND p.productID = r.productID RETURNING 1) " +
+                       "SELECT COUNT(*) FROM received", numbers).get(0);
+         });
+      }
+      return received;
+   }
+
+   public int requeueSupplyRequests(long shippedMillis) throws SQLException {
+      return executeUpdate("UPDATE ProductSupplyRequests SET status = 'pending', shippedOn = NULL " +
+                           "WHERE status = 'shipped' AND shippedOn < CURRENT_TIMESTAMP - CAST(? AS bigint) * interval '1 millisecond'", shippedMillis);
+   }
+
+   public int recordProductUpdate(int managerID, int storeID, String productName) throws SQLException {
+      return transaction(() -> {
+         executeUpdate("INSERT INTO ProductUpdates (managerID, storeID, productID, updatedOn) VALUES (?, ?, " + PRODUCT_ID + ", CURRENT_TIMESTAMP)",
+                       managerID, storeID, rtrim(productName));
+         return getCurrSeqVal("productupdates_updatenumber_seq");
+      });
+   }
+
+   private static final String UPDATE_SELECT = "SELECT u.updateNumber, u.managerID, u.storeID, n.productName, u.updatedOn " +
+                                               "FROM ProductUpdates u JOIN ProductNames n ON n.productID = u.productID";
+
+   public List<ProductUpdate> recentUpdates(int managerID, int limit) throws SQLException {
+      List<ProductUpdate> updates = new ArrayList<ProductUpdate>();
+      List<List<String>> res = executeQueryAndReturnResult(UPDATE_SELECT + " WHERE u.storeID IN (SELECT storeID FROM Store WHERE managerID = ?) " +
+                                                           "ORDER BY u.updatedOn DESC, u.updateNumber DESC LIMIT ?", managerID, limit);
+      for (int i = 0; i < res.size(); i++) {
+         List<String> r = res.get(i);
+         updates.add(new ProductUpdate(toInt(r.get(0)), toInt(r.get(1)), toInt(r.get(2)), r.get(3), Timestamp.valueOf(r.get(4))));
+      }
+      return updates;
+   }
+
+   private static ProductVersion version(ResultSet rs) throws SQLException {
+      return new ProductVersion(rs.getInt(1), rs.getInt(2), rs.getString(3), rs.getInt(4), rs.getDouble(5), rs.getTimestamp(6));
+   }
+
+   private static final String VERSION_SELECT = "SELECT v.versionNumber, v.storeID, n.productName, v.numberOfUnits, v.pricePerUnit, v.validFrom " +
+                                                "FROM ProductVersions v JOIN ProductNames n ON n.productID = v.productID";
+
+   public void forEachProductUpdate(Consumer<ProductUpdate> visitor) throws SQLException {
+      executeQueryAndVisit(UPDATE_SELECT + " ORDER BY u.updateNumber", rs ->
+         visitor.accept(new ProductUpdate(rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getString(4), rs.getTimestamp(5))));
+   }
+
+   public void forEachProductVersion(Consumer<ProductVersion> visitor) throws SQLException {
+      executeQueryAndVisit(VERSION_SELECT + " ORDER BY v.storeID, v.productID, v.validFrom, v.versionNumber", rs ->
+         visitor.accept(version(rs)));
+   }
+
+   /*
+    * The old versions are streamed in order and the ones to remove are
+    * deleted in batches, all in one transaction. The table is locked against
+    * writes first: which versions go depends on their neighbours, so a
+    * version committed between the scan and the deletes, e.g. one stamped
+    * with the start of a long transaction, could make a removed version the
+    * one that changed the price. Product updates wait for the compaction;
+    * reads do not.
+    */
+   public int compactProductVersions(final Timestamp before) throws SQLException {
+      return transaction(() -> {
+         executeUpdate("LOCK TABLE ProductVersions IN SHARE ROW EXCLUSIVE MODE");
+         final List<Integer> removed = new ArrayList<Integer>();
+         final List<ProductVersion> product = new ArrayList<ProductVersion>();
+         executeQueryAndVisit(VERSION_SELECT + " WHERE v.validFrom < ? " +
+                              "ORDER BY v.storeID, v.productID, v.validFrom, v.versionNumber", rs -> {
+            ProductVersion v = version(rs);
+            if (!product.isEmpty() && (product.get(0).storeID != v.storeID || !product.get(0).productName.equals(v.productName))) {
+               removed.addAll(PriceHistory.compactable(product));
+               product.clear();
+            }
+            product.add(v);
+         }, before);
+         removed.addAll(PriceHistory.compactable(product));
+         Batch delete = new Batch("DELETE FROM ProductVersions WHERE versionNumber = ?");
+         try {
+            for (int i = 0; i < removed.size(); i++) {
+               delete.add(removed.get(i));
+               if (i % 10000 == 9999 || i == removed.size() - 1) delete.execute();
+            }
+            return removed.size();
+         }
+         finally {
+            delete.close();
+         }
+      });
+   }
+
+   private static final String[][] SERIALS = {
+      {"orders_ordernumber_seq", "Orders", "orderNumber"},
+      {"productsupplyrequests_requestnumber_seq", "ProductSupplyRequests", "requestNumber"},
+      {"productupdates_updatenumber_seq", "ProductUpdates", "updateNumber"},
+   };
+
+   //the largest orderNumber, requestNumber or updateNumber in the database
+   public int largestNumber() throws SQLException {
+      int largest = 0;
+      for (String[] serial : SERIALS) largest = Math.max(largest, ids("SELECT COALESCE(MAX(" + serial[2] + "), 0) FROM " + serial[1]).get(0));
+      return largest;
+   }
+
+   /*
+    * The write-ahead log position of this database, for ReplicatedRepository:
+    * on the primary where its last write ends, on a streaming replica how far
+    * it has replayed.
+    *
+    * @return the position as a byte offset into the log
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public long walPosition() throws SQLException {
+      List<List<String>> res = executeQueryAndReturnResult(
+         "SELECT ((CASE WHEN pg_is_in_recovery() THEN pg_last_wal_replay_lsn() ELSE pg_current_wal_lsn() END) - '0/0'::pg_lsn)::bigint");
+      return Long.parseLong(res.get(0).get(0));
+   }
+
+   /*
+    * Makes the serial numbers of this database one of several interleaved
+    * series, for a shard of ShardedRepository: from now on every number
+    * taken is n * shards + shard + 1, so no two shards hand out the same.
+    *
+    * @param shard the index of this database, 0 based
+    * @param shards the number of databases
+    * @param after the largest number in use on any of the databases
+    */
+   public void interleaveNumbers(int shard, int shards, int after) throws SQLException {
+      for (String[] serial : SERIALS) {
+         executeUpdate("ALTER SEQUENCE " + serial[0] + " INCREMENT BY " + shards);
+         executeQuery("SELECT setval(?, ?, false)", serial[0], ShardedRepository.following(after, shard, shards));
+      }
+   }
+
+   /*
+    * Method to close the physical connection if it is open.
+    */
+   public void close() {
+      try {
+         if (this._connection != null) {
+            this._connection.close();
+         }
+      }
+      catch (SQLException e) {
+         // ignored.
+      }
+   }
+}
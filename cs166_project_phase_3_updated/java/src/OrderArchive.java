@@ -0,0 +1,429 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+
+//Immutable columnar archive files for closed months of Orders and ProductUpdates.
+//
+//A file is a header, a sequence of blocks, the product dictionary and a block
+//index. Every block holds up to BLOCK_ROWS rows stored column by column:
+//customerID (managerID for updates), storeID, product code, unitsOrdered
+//(orders only) and the timestamps as zigzag varint deltas. The block index
+//keeps the min/max time and store of every block, so scans skip blocks that
+//cannot match. Readers memory-map the blocks and decode straight from the
+//mapping; nothing but the dictionary and the block index is put on the heap.
+//
+//Usage: java -cp classes:lib/pg73jdbc3.jar OrderArchive <dbname> <port> <user> <archiveDir> <YYYY-MM>
+//exports that month of Orders and ProductUpdates and deletes it from the live tables.
+public class OrderArchive {
+
+   public static final int ORDERS = 0;
+   public static final int UPDATES = 1;
+
+   static final int MAGIC = 0x414d5a41; // "AMZA"
+   static final int VERSION = 1;
+   static final int BLOCK_ROWS = 65536;
+   static final int HEADER_BYTES = 4 + 4 + 4 + 8 + 4 + 8 + 8;
+   static final int INDEX_BYTES = 8 + 4 + 4 + 4 + 4 + 8 + 8; // per block
+
+   //called for every row a scan matches; units is 0 for product updates
+   public interface RowVisitor {
+      void row(int id, int storeID, int product, int units, long time);
+   }
+
+   //metadata of one block
+   static class Block {
+      long offset;
+      int rows, timeBytes, minStore, maxStore;
+      long minTime, maxTime;
+   }
+
+   /*
+    * Writes an archive file. Rows are buffered one block at a time.
+    */
+   public static class Writer {
+      private final RandomAccessFile file;
+      private final FileChannel channel;
+      private final int kind;
+      private final ProductDictionary products = new ProductDictionary();
+      private final List<Block> blocks = new ArrayList<Block>();
+      private final int[] id = new int[BLOCK_ROWS], store = new int[BLOCK_ROWS], product = new int[BLOCK_ROWS], units = new int[BLOCK_ROWS];
+      private final long[] time = new long[BLOCK_ROWS];
+      private int buffered = 0;
+      private long rowCount = 0;
+      private final ByteBuffer out = ByteBuffer.allocate(BLOCK_ROWS * 30);
+
+      public Writer(File path, int kind) throws IOException {
+         this.file = new RandomAccessFile(path, "rw");
+         this.file.setLength(0);
+         this.channel = file.getChannel();
+         this.kind = kind;
+         channel.position(HEADER_BYTES);
+      }
+
+      public void append(int id, int storeID, String productName, int units, long time) throws IOException {
+         int i = buffered++;
+         this.id[i] = id;
+         this.store[i] = storeID;
+         this.product[i] = products.code(productName);
+         this.units[i] = units;
+         this.time[i] = time;
+         rowCount++;
+         if (buffered == BLOCK_ROWS) flush();
+      }
+
+      private void flush() throws IOException {
+         if (buffered == 0) return;
+         Block b = new Block();
+         b.offset = channel.position();
+         b.rows = buffered;
+         b.minStore = Integer.MAX_VALUE;
+         b.maxStore = Integer.MIN_VALUE;
+         b.minTime = Long.MAX_VALUE;
+         b.maxTime = Long.MIN_VALUE;
+         out.clear();
+         for (int i = 0; i < buffered; i++) out.putInt(id[i]);
+         for (int i = 0; i < buffered; i++) {
+            out.putInt(store[i]);
+            b.minStore = Math.min(b.minStore, store[i]);
+            b.maxStore = Math.max(b.maxStore, store[i]);
+         }
+         for (int i = 0; i < buffered; i++) out.putInt(product[i]);
+         if (kind == ORDERS) {
+            for (int i = 0; i < buffered; i++) out.putInt(units[i]);
+         }
+         int timeStart = out.position();
+         long prev = 0;
+         for (int i = 0; i < buffered; i++) {
+            long delta = time[i] - prev;
+            putVarLong(out, (delta << 1) ^ (delta >> 63));
+            prev = time[i];
+            b.minTime = Math.min(b.minTime, time[i]);
+            b.maxTime = Math.max(b.maxTime, time[i]);
+         }
+         b.timeBytes = out.position() - timeStart;
+         out.flip();
+         while (out.hasRemaining()) channel.write(out);
+         blocks.add(b);
+         buffered = 0;
+      }
+
+      static void putVarLong(ByteBuffer buf, long v) {
+         while ((v & ~0x7fL) != 0) {
+            buf.put((byte) ((v & 0x7f) | 0x80));
+            v >>>= 7;
+         }
+         buf.put((byte) v);
+      }
+
+      /*
+       * Writes the dictionary, the block index and the header, and forces
+       * the file to disk.
+       */
+      public void close() throws IOException {
+         flush();
+         long dictionaryOffset = channel.position();
+         ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+         buf.putInt(products.size());
+         for (int i = 0; i < products.size(); i++) {
+            byte[] name = products.name(i).getBytes(StandardCharsets.UTF_8);
+            if (buf.remaining() < name.length + 2) {
+               buf.flip();
+               while (buf.hasRemaining()) channel.write(buf);
+               buf.clear();
+            }
+            buf.putShort((short) name.length);
+            buf.put(name);
+         }
+         buf.flip();
+         while (buf.hasRemaining()) channel.write(buf);
+
+         long indexOffset = channel.position();
+         buf = ByteBuffer.allocate(blocks.size() * INDEX_BYTES);
+         for (Block b : blocks) {
+            buf.putLong(b.offset).putInt(b.rows).putInt(b.timeBytes).putInt(b.minStore).putInt(b.maxStore).putLong(b.minTime).putLong(b.maxTime);
+         }
+         buf.flip();
+         while (buf.hasRemaining()) channel.write(buf);
+
+         buf = ByteBuffer.allocate(HEADER_BYTES);
+         buf.putInt(MAGIC).putInt(VERSION).putInt(kind).putLong(rowCount).putInt(blocks.size()).putLong(dictionaryOffset).putLong(indexOffset);
+         buf.flip();
+         channel.write(buf, 0);
+         channel.force(true);
+         file.close();
+      }
+   }
+
+   private final int kind;
+   private final long rowCount;
+   private final String[] names;
+   private final Block[] blocks;
+   private final MappedByteBuffer[] mapped;
+
+   /*
+    * Opens an archive file, mapping its blocks into memory.
+    *
+    * @param path the archive file
+    * @throws java.io.IOException when the file cannot be read or is not an archive
+    */
+   public OrderArchive(File path) throws IOException {
+      RandomAccessFile file = new RandomAccessFile(path, "r");
+      try {
+         FileChannel channel = file.getChannel();
+         ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+         channel.read(header, 0);
+         header.flip();
+         if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+            throw new IOException(path + " is not an order archive");
+         }
+         kind = header.getInt();
+         rowCount = header.getLong();
+         int blockCount = header.getInt();
+         long dictionaryOffset = header.getLong();
+         long indexOffset = header.getLong();
+
+         ByteBuffer dict = channel.map(FileChannel.MapMode.READ_ONLY, dictionaryOffset, indexOffset - dictionaryOffset);
+         names = new String[dict.getInt()];
+         for (int i = 0; i < names.length; i++) {
+            byte[] name = new byte[dict.getShort()];
+            dict.get(name);
+            names[i] = new String(name, StandardCharsets.UTF_8);
+         }
+
+         ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, (long) blockCount * INDEX_BYTES);
+         blocks = new Block[blockCount];
+         mapped = new MappedByteBuffer[blockCount];
+         for (int i = 0; i < blockCount; i++) {
+            Block b = new Block();
+            b.offset = index.getLong();
+            b.rows = index.getInt();
+            b.timeBytes = index.getInt();
+            b.minStore = index.getInt();
+            b.maxStore = index.getInt();
+            b.minTime = index.getLong();
+            b.maxTime = index.getLong();
+            blocks[i] = b;
+            long length = (long) b.rows * (kind == ORDERS ? 16 : 12) + b.timeBytes;
+            mapped[i] = channel.map(FileChannel.MapMode.READ_ONLY, b.offset, length);
+         }
+      }
+      finally {
+         file.close(); // the mappings stay valid after the channel is closed
+      }
+   }
+
+   public int kind() {
+      return kind;
+   }
+
+   public long rowCount() {
+      return rowCount;
+   }
+
+   public String productName(int code) {
+      return names[code];
+   }
+
+   public int productCount() {
+      return names.length;
+   }
+
+   /*
+    * Visits every row with a store in stores (null for all) and a time in
+    * [fromTime, toTime). Blocks whose min/max stats rule them out are skipped.
+    */
+   public void scan(boolean[] stores, long fromTime, long toTime, RowVisitor visitor) {
+      int minStore = 0, maxStore = Integer.MAX_VALUE;
+      if (stores != null) {
+         minStore = Integer.MAX_VALUE;
+         maxStore = -1;
+         for (int s = 0; s < stores.length; s++) {
+            if (stores[s]) {
+               minStore = Math.min(minStore, s);
+               maxStore = s;
+            }
+         }
+      }
+      for (int bi = 0; bi < blocks.length; bi++) {
+         Block b = blocks[bi];
+         if (b.maxTime < fromTime || b.minTime >= toTime || b.maxStore < minStore || b.minStore > maxStore) continue;
+         ByteBuffer buf = mapped[bi];
+         int n = b.rows;
+         int idAt = 0, storeAt = 4 * n, productAt = 8 * n, unitsAt = 12 * n;
+         int timeAt = (kind == ORDERS ? 16 : 12) * n;
+         long time = 0;
+         for (int i = 0; i < n; i++) {
+            // decode the next zigzag varint time delta
+            long v = 0;
+            int shift = 0;
+            byte x;
+            do {
+               x = buf.get(timeAt++);
+               v |= (long) (x & 0x7f) << shift;
+               shift += 7;
+            } while (x < 0);
+            time += (v >>> 1) ^ -(v & 1);
+            if (time < fromTime || time >= toTime) continue;
+            int store = buf.getInt(storeAt + 4 * i);
+            if (stores != null && (store >= stores.length || !stores[store])) continue;
+            visitor.row(buf.getInt(idAt + 4 * i), store, buf.getInt(productAt + 4 * i),
+                        kind == ORDERS ? buf.getInt(unitsAt + 4 * i) : 0, time);
+         }
+      }
+   }
+
+   /*
+    * Adds the units ordered per product name to totals, for the reports that
+    * union archived and live orders.
+    */
+   public void addUnitsByProduct(boolean[] stores, Map<String, Long> totals) {
+      final long[] units = new long[names.length];
+      scan(stores, Long.MIN_VALUE, Long.MAX_VALUE, (id, store, product, n, time) -> units[product] += n);
+      for (int i = 0; i < units.length; i++) {
+         if (units[i] != 0) totals.merge(names[i], units[i], Long::sum);
+      }
+   }
+
+   /*
+    * Adds the number of orders per customer to totals.
+    */
+   public void addOrdersByCustomer(boolean[] stores, Map<Integer, Long> totals) {
+      scan(stores, Long.MIN_VALUE, Long.MAX_VALUE, (id, store, product, n, time) -> totals.merge(id, 1L, Long::sum));
+   }
+
+   /*
+    * Opens every archive of the given kind in a directory.
+    *
+    * @param dir the archive directory, which may not exist yet
+    * @param kind ORDERS or UPDATES
+    * @return the archives, oldest month first
+    */
+   public static List<OrderArchive> openAll(File dir, int kind) throws IOException {
+      List<OrderArchive> result = new ArrayList<OrderArchive>();
+      File[] files = dir.listFiles();
+      if (files == null) return result;
+      Arrays.sort(files);
+      String prefix = kind == ORDERS ? "orders-" : "updates-";
+      for (File f : files) {
+         if (f.getName().startsWith(prefix) && f.getName().endsWith(".amz")) result.add(new OrderArchive(f));
+      }
+      return result;
+   }
+
+   /*
+    * Moves one closed month of Orders and ProductUpdates into archive files.
+    * A month already archived is refused: its rows are gone from the live
+    * tables, so exporting it again would leave empty files. The files are
+    * written under a temporary name, forced to disk and renamed into place
+    * before the rows are deleted; the reads and the deletes run in one
+    * transaction, which also lets the driver stream the rows with a cursor.
+    *
+    * @param conn an open database connection
+    * @param dir the archive directory
+    * @param year the year of the month
+    * @param month the month, 1 to 12; must be before the current month
+    * @return the number of orders archived
+    */
+   public static long exportMonth(Connection conn, File dir, int year, int month) throws SQLException, IOException {
+      Calendar cal = Calendar.getInstance();
+      cal.clear();
+      cal.set(year, month - 1, 1);
+      Timestamp from = new Timestamp(cal.getTimeInMillis());
+      cal.add(Calendar.MONTH, 1);
+      Timestamp to = new Timestamp(cal.getTimeInMillis());
+      if (to.getTime() > System.currentTimeMillis()) {
+         throw new IllegalArgumentException(String.format("%d-%02d is not closed yet", year, month));
+      }
+      dir.mkdirs();
+      String suffix = String.format("%d-%02d.amz", year, month);
+      File ordersFile = new File(dir, "orders-" + suffix), updatesFile = new File(dir, "updates-" + suffix);
+      if (ordersFile.exists() || updatesFile.exists()) {
+         throw new IllegalArgumentException(String.format("%d-%02d is archived already", year, month));
+      }
+      File ordersTemp = new File(dir, "orders-" + suffix + ".tmp"), updatesTemp = new File(dir, "updates-" + suffix + ".tmp");
+
+      long orders;
+      conn.setAutoCommit(false);
+      try {
+         orders = export(conn, ordersTemp, ORDERS,
+                         "SELECT o.customerID, o.storeID, n.productName, o.unitsOrdered, o.orderTime " +
+                         "FROM Orders o JOIN ProductNames n ON n.productID = o.productID " +
+                         "WHERE o.orderTime >= ? AND o.orderTime < ? ORDER BY o.orderTime", from, to);
+         export(conn, updatesTemp, UPDATES,
+                "SELECT u.managerID, u.storeID, n.productName, 0, u.updatedOn " +
+                "FROM ProductUpdates u JOIN ProductNames n ON n.productID = u.productID " +
+                "WHERE u.updatedOn >= ? AND u.updatedOn < ? ORDER BY u.updatedOn", from, to);
+         Files.move(ordersTemp.toPath(), ordersFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+         Files.move(updatesTemp.toPath(), updatesFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+         String[] deletes = {"DELETE FROM Orders WHERE orderTime >= ? AND orderTime < ?",
+                             "DELETE FROM ProductUpdates WHERE updatedOn >= ? AND updatedOn < ?"};
+         for (String sql : deletes) {
+            PreparedStatement delete = conn.prepareStatement(sql);
+            delete.setTimestamp(1, from);
+            delete.setTimestamp(2, to);
+            delete.executeUpdate();
+            delete.close();
+         }
+         conn.commit();
+      }
+      catch (SQLException | IOException e) {
+         conn.rollback();
+         // the rows stay live and neither file was there before, so the month can be exported again
+         for (File f : new File[] {ordersTemp, updatesTemp, ordersFile, updatesFile}) f.delete();
+         throw e;
+      }
+      finally {
+         conn.setAutoCommit(true);
+      }
+      return orders;
+   }
+
+   //streams the rows into an archive file; the connection must not be in autocommit, or the driver reads them all at once
+   private static long export(Connection conn, File path, int kind, String sql, Timestamp from, Timestamp to) throws SQLException, IOException {
+      PreparedStatement stmt = conn.prepareStatement(sql);
+      stmt.setFetchSize(10000);
+      stmt.setTimestamp(1, from);
+      stmt.setTimestamp(2, to);
+      ResultSet rs = stmt.executeQuery();
+      Writer writer = new Writer(path, kind);
+      long rows = 0;
+      while (rs.next()) {
+         writer.append(rs.getInt(1), rs.getInt(2), rs.getString(3), rs.getInt(4), rs.getTimestamp(5).getTime());
+         rows++;
+      }
+      writer.close();
+      stmt.close();
+      return rows;
+   }
+
+   public static void main(String[] args) throws Exception {
+      if (args.length != 5) {
+         System.err.println("Usage: java OrderArchive <dbname> <port> <user> <archiveDir> <YYYY-MM>");
+         return;
+      }
+      Class.forName("org.postgresql.Driver");
+      Connection conn = DriverManager.getConnection("jdbc:postgresql://localhost:" + args[1] + "/" + args[0], args[2], "");
+      String[] month = args[4].split("-");
+      long rows = exportMonth(conn, new File(args[3]), Integer.parseInt(month[0]), Integer.parseInt(month[1]));
+      System.out.println("Archived " + rows + " orders of " + args[4]);
+      conn.close();
+   }
+}
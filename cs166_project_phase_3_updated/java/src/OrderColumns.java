@@ -0,0 +1,397 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+//In-memory columnar snapshot of the Orders table used by the analytic reports.
+//It is loaded once with a single scan of Orders and then appended to every
+//time the application places an order, so group-bys over stores, products and
+//customers never have to go back to the database.
+public class OrderColumns {
+
+   // what the rows are grouped by
+   public static final int BY_STORE = 0;
+   public static final int BY_PRODUCT = 1;
+   public static final int BY_CUSTOMER = 2;
+   public static final int BY_STORE_PRODUCT = 3;
+
+   // what is summed up for every group
+   public static final int SUM_UNITS = 0;
+   public static final int COUNT_ORDERS = 1;
+
+   // rows handled by a single fork/join leaf
+   private static final int MIN_CHUNK = 1 << 15;
+
+   // the most groups summed into a dense array, 128 MB of totals per worker thread
+   static final int MAX_DENSE_KEYS = 1 << 24;
+
+   private final ProductDictionary products;
+   private int[] customerID;
+   private int[] storeID;
+   private int[] productCode;
+   private int[] unitsOrdered;
+   private long[] orderTime;
+   private int size = 0;
+   private int maxStoreID = 0;
+   private int maxCustomerID = 0;
+   private long minTime = Long.MAX_VALUE;
+   private long maxTime = Long.MIN_VALUE;
+
+   public OrderColumns(ProductDictionary products) {
+      this(products, 1024);
+   }
+
+   public OrderColumns(ProductDictionary products, int capacity) {
+      this.products = products;
+      capacity = Math.max(capacity, 16);
+      customerID = new int[capacity];
+      storeID = new int[capacity];
+      productCode = new int[capacity];
+      unitsOrdered = new int[capacity];
+      orderTime = new long[capacity];
+   }
+
+   /*
+    * Loads every order with one ordered scan of the Orders table.
+    *
+    * @param repo the data source
+    * @param products the dictionary used to encode product names
+    * @return the loaded snapshot
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static OrderColumns load(AmazonRepository repo, ProductDictionary products) throws SQLException {
+      OrderColumns columns = new OrderColumns(products);
+      repo.forEachOrder(o -> columns.append(o.customerID, o.storeID, o.productName, o.unitsOrdered, o.orderTime.getTime()));
+      return columns;
+   }
+
+   public ProductDictionary products() {
+      return products;
+   }
+
+   public synchronized int size() {
+      return size;
+   }
+
+   public synchronized void append(int customer, int store, String productName, int units, long time) {
+      append(customer, store, products.code(productName), units, time);
+   }
+
+   public synchronized void append(int customer, int store, int product, int units, long time) {
+      if (size == storeID.length) {
+         int capacity = (int) Math.min(Integer.MAX_VALUE - 8, size * 2L);
+         customerID = Arrays.copyOf(customerID, capacity);
+         storeID = Arrays.copyOf(storeID, capacity);
+         productCode = Arrays.copyOf(productCode, capacity);
+         unitsOrdered = Arrays.copyOf(unitsOrdered, capacity);
+         orderTime = Arrays.copyOf(orderTime, capacity);
+      }
+      customerID[size] = customer;
+      storeID[size] = store;
+      productCode[size] = product;
+      unitsOrdered[size] = units;
+      orderTime[size] = time;
+      size++;
+      if (store > maxStoreID) maxStoreID = store;
+      if (customer > maxCustomerID) maxCustomerID = customer;
+      if (time < minTime) minTime = time;
+      if (time > maxTime) maxTime = time;
+   }
+
+   //Rows an aggregation looks at. Store ids index into stores, times are [fromTime, toTime).
+   public static class Filter {
+      public boolean[] stores = null; // null matches every store
+      public long fromTime = Long.MIN_VALUE;
+      public long toTime = Long.MAX_VALUE;
+
+      public static Filter forStores(Iterable<Integer> ids) {
+         int max = 0;
+         for (int id : ids) max = Math.max(max, id);
+         Filter f = new Filter();
+         f.stores = new boolean[max + 1];
+         for (int id : ids) f.stores[id] = true;
+         return f;
+      }
+
+      boolean matches(int store, long time) {
+         if (stores != null && (store >= stores.length || !stores[store])) return false;
+         return time >= fromTime && time < toTime;
+      }
+   }
+
+   /*
+    * Groups the filtered rows and sums the measure for every group, using the
+    * common fork/join pool.
+    *
+    * @return totals indexed by group key
+    */
+   public long[] groupBy(int groupKey, int measure, Filter filter) {
+      return groupBy(groupKey, measure, filter, ForkJoinPool.commonPool());
+   }
+
+   /*
+    * Groups the filtered rows and sums the measure for every group. The rows
+    * are split into chunks that are aggregated in parallel on the given pool;
+    * every worker thread adds its chunks into one array of totals of its own,
+    * and those are added together once at the end, so a wide key space like
+    * BY_STORE_PRODUCT costs one array per thread rather than one per chunk.
+    * For BY_STORE_PRODUCT the key of a group is storeID * products().size()
+    * + product code. A key space over MAX_DENSE_KEYS is refused.
+    *
+    * @param groupKey one of BY_STORE, BY_PRODUCT, BY_CUSTOMER, BY_STORE_PRODUCT
+    * @param measure one of SUM_UNITS, COUNT_ORDERS
+    * @param filter rows to include
+    * @param pool the pool the scan runs on
+    * @return totals indexed by group key
+    * @throws IllegalArgumentException when there are more than MAX_DENSE_KEYS groups
+    */
+   public long[] groupBy(int groupKey, int measure, Filter filter, ForkJoinPool pool) {
+      Rows s = snapshot(groupKey, measure, filter, pool);
+      return totals(s, pool);
+   }
+
+   private static long[] totals(Rows s, ForkJoinPool pool) {
+      if (s.keySpace > MAX_DENSE_KEYS) {
+         throw new IllegalArgumentException(s.keySpace + " groups are too many to sum into an array, at most " + MAX_DENSE_KEYS);
+      }
+      if (s.size == 0) return new long[(int) s.keySpace];
+      ConcurrentHashMap<Thread, long[]> perThread = new ConcurrentHashMap<Thread, long[]>();
+      pool.invoke(new GroupByTask(s, 0, s.size, perThread));
+      long[] result = null;
+      for (long[] acc : perThread.values()) {
+         if (result == null) {
+            result = acc;
+         }
+         else {
+            for (int i = 0; i < acc.length; i++) result[i] += acc[i];
+         }
+      }
+      return result;
+   }
+
+   private Rows snapshot(int groupKey, int measure, Filter filter, ForkJoinPool pool) {
+      Rows s;
+      synchronized (this) {
+         s = new Rows();
+         s.customerID = customerID;
+         s.storeID = storeID;
+         s.productCode = productCode;
+         s.unitsOrdered = unitsOrdered;
+         s.orderTime = orderTime;
+         s.numProducts = Math.max(1, products.size());
+         switch (groupKey) {
+            case BY_STORE: s.keySpace = maxStoreID + 1; break;
+            case BY_PRODUCT: s.keySpace = s.numProducts; break;
+            case BY_CUSTOMER: s.keySpace = maxCustomerID + 1; break;
+            case BY_STORE_PRODUCT: s.keySpace = (maxStoreID + 1L) * s.numProducts; break;
+            default: throw new IllegalArgumentException("Unknown group key " + groupKey);
+         }
+         s.groupKey = groupKey;
+         s.measure = measure;
+         s.filter = filter == null ? new Filter() : filter;
+         s.chunk = Math.max(MIN_CHUNK, size / (pool.getParallelism() * 4) + 1);
+         s.size = size;
+         s.maxStoreID = maxStoreID;
+         s.maxCustomerID = maxCustomerID;
+         s.minTime = minTime;
+         s.maxTime = maxTime;
+      }
+      return s;
+   }
+
+   /*
+    * Returns the keys of the k largest non zero totals in [from, to), largest first.
+    * The returned keys are relative to from.
+    */
+   public static int[] topK(long[] totals, int from, int to, int k) {
+      int[] keys = new int[k];
+      long[] best = new long[k];
+      int found = 0;
+      for (int i = from; i < to; i++) {
+         long v = totals[i];
+         if (v <= 0 || (found == k && v <= best[k - 1])) continue;
+         int pos = found < k ? found++ : k - 1;
+         while (pos > 0 && best[pos - 1] < v) {
+            best[pos] = best[pos - 1];
+            keys[pos] = keys[pos - 1];
+            pos--;
+         }
+         best[pos] = v;
+         keys[pos] = i - from;
+      }
+      return Arrays.copyOf(keys, found);
+   }
+
+   public static int[] topK(long[] totals, int k) {
+      return topK(totals, 0, totals.length, k);
+   }
+
+   /*
+    * Top k products of every store by units ordered, e.g. the top sellers of
+    * each store over the last 30 days.
+    *
+    * @param filter rows to include
+    * @param k number of products per store
+    * @param pool the pool the scan runs on
+    * @return entry i holds the product codes of store i, best seller first
+    */
+   public int[][] topProductsPerStore(Filter filter, int k, ForkJoinPool pool) {
+      Rows s = snapshot(BY_STORE_PRODUCT, SUM_UNITS, filter, pool);
+      if (s.keySpace > MAX_DENSE_KEYS) return topProductsPerStoreSparse(s, k, pool);
+      long[] totals = totals(s, pool);
+      int numStores = s.maxStoreID + 1;
+      int[][] result = new int[numStores][];
+      for (int store = 0; store < numStores; store++) {
+         result[store] = topK(totals, store * s.numProducts, (store + 1) * s.numProducts, k);
+      }
+      return result;
+   }
+
+   //topProductsPerStore for more stores times products than fit an array: only
+   //the pairs that were ordered are summed, in a map per chunk
+   private static int[][] topProductsPerStoreSparse(final Rows s, int k, ForkJoinPool pool) {
+      Map<Long, long[]> totals = pool.invoke(new AggregateTask<Map<Long, long[]>>(new Aggregation<Map<Long, long[]>>() {
+         public Map<Long, long[]> create(Rows rows) {
+            return new HashMap<Long, long[]>();
+         }
+
+         public void add(Map<Long, long[]> acc, Rows rows, int lo, int hi) {
+            for (int i = lo; i < hi; i++) {
+               if (!rows.filter.matches(rows.storeID[i], rows.orderTime[i])) continue;
+               Long key = (long) rows.storeID[i] * rows.numProducts + rows.productCode[i];
+               long[] total = acc.get(key);
+               if (total == null) acc.put(key, total = new long[1]);
+               total[0] += rows.unitsOrdered[i];
+            }
+         }
+
+         public Map<Long, long[]> merge(Map<Long, long[]> left, Map<Long, long[]> right) {
+            if (left.size() < right.size()) return merge(right, left);
+            for (Map.Entry<Long, long[]> e : right.entrySet()) {
+               long[] total = left.get(e.getKey());
+               if (total == null) left.put(e.getKey(), e.getValue());
+               else total[0] += e.getValue()[0];
+            }
+            return left;
+         }
+      }, s, 0, s.size));
+      List<List<long[]>> perStore = new ArrayList<List<long[]>>();
+      for (int store = 0; store <= s.maxStoreID; store++) perStore.add(new ArrayList<long[]>());
+      for (Map.Entry<Long, long[]> e : totals.entrySet()) {
+         if (e.getValue()[0] <= 0) continue;
+         perStore.get((int) (e.getKey() / s.numProducts)).add(new long[] {e.getKey() % s.numProducts, e.getValue()[0]});
+      }
+      int[][] result = new int[perStore.size()][];
+      for (int store = 0; store < result.length; store++) {
+         List<long[]> products = perStore.get(store);
+         // like topK: the larger total first, the lower code on a tie
+         products.sort((a, b) -> a[1] != b[1] ? Long.compare(b[1], a[1]) : Long.compare(a[0], b[0]));
+         result[store] = new int[Math.min(k, products.size())];
+         for (int i = 0; i < result[store].length; i++) result[store][i] = (int) products.get(i)[0];
+      }
+      return result;
+   }
+
+   //The column arrays and bounds one aggregation works on. Rows [0, size) never
+   //change once appended, so a scan can run while new orders come in.
+   public static class Rows {
+      public int[] customerID, storeID, productCode, unitsOrdered;
+      public long[] orderTime;
+      public int size, numProducts, maxStoreID, maxCustomerID;
+      public long minTime, maxTime;
+      long keySpace;
+      int groupKey, measure, chunk;
+      Filter filter;
+   }
+
+   //A custom aggregation: every chunk of rows gets its own accumulator and the
+   //accumulators are merged pairwise once the chunks are done.
+   public interface Aggregation<T> {
+      T create(Rows rows);
+      void add(T acc, Rows rows, int lo, int hi);
+      T merge(T left, T right);
+   }
+
+   /*
+    * Runs a custom aggregation over every row, in parallel on the given pool.
+    *
+    * @param agg the aggregation
+    * @param pool the pool the scan runs on
+    * @return the merged accumulator
+    */
+   public <T> T aggregate(Aggregation<T> agg, ForkJoinPool pool) {
+      Rows s = snapshot(BY_STORE, SUM_UNITS, null, pool);
+      return pool.invoke(new AggregateTask<T>(agg, s, 0, s.size));
+   }
+
+   private static class AggregateTask<T> extends RecursiveTask<T> {
+      private static final long serialVersionUID = 1L;
+      private final Aggregation<T> agg;
+      private final Rows s;
+      private final int lo, hi;
+
+      AggregateTask(Aggregation<T> agg, Rows s, int lo, int hi) {
+         this.agg = agg;
+         this.s = s;
+         this.lo = lo;
+         this.hi = hi;
+      }
+
+      protected T compute() {
+         if (hi - lo > s.chunk) {
+            int mid = (lo + hi) >>> 1;
+            AggregateTask<T> left = new AggregateTask<T>(agg, s, lo, mid);
+            left.fork();
+            T right = new AggregateTask<T>(agg, s, mid, hi).compute();
+            return agg.merge(left.join(), right);
+         }
+         T acc = agg.create(s);
+         agg.add(acc, s, lo, hi);
+         return acc;
+      }
+   }
+
+   //adds the rows of a chunk into the totals of the thread running it
+   private static class GroupByTask extends RecursiveAction {
+      private static final long serialVersionUID = 1L;
+      private final Rows s;
+      private final int lo, hi;
+      private final ConcurrentHashMap<Thread, long[]> perThread;
+
+      GroupByTask(Rows s, int lo, int hi, ConcurrentHashMap<Thread, long[]> perThread) {
+         this.s = s;
+         this.lo = lo;
+         this.hi = hi;
+         this.perThread = perThread;
+      }
+
+      protected void compute() {
+         if (hi - lo > s.chunk) {
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new GroupByTask(s, lo, mid, perThread), new GroupByTask(s, mid, hi, perThread));
+            return;
+         }
+         // a thread runs one chunk at a time, so its array needs no lock
+         long[] acc = perThread.computeIfAbsent(Thread.currentThread(), t -> new long[(int) s.keySpace]);
+         Filter f = s.filter;
+         for (int i = lo; i < hi; i++) {
+            int store = s.storeID[i];
+            if (!f.matches(store, s.orderTime[i])) continue;
+            int key;
+            switch (s.groupKey) {
+               case BY_STORE: key = store; break;
+               case BY_PRODUCT: key = s.productCode[i]; break;
+               case BY_CUSTOMER: key = s.customerID[i]; break;
+               default: key = store * s.numProducts + s.productCode[i]; break;
+            }
+            acc[key] += s.measure == SUM_UNITS ? s.unitsOrdered[i] : 1;
+         }
+      }
+   }
+}
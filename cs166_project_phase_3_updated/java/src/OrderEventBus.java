@@ -0,0 +1,216 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+//Single writer, multi consumer ring buffer carrying the side effects of a
+//committed change (order placed, stock changed, product updated) to consumers
+//that run on their own threads. The event objects are allocated once, when the
+//bus is created; publishing fills the next slot and moves the cursor, so the hot
+//path allocates nothing. Every consumer tracks its own sequence and handles
+//whatever has been published since in one batch. The writer never laps the
+//slowest consumer: when the ring is full it waits, which is the backpressure.
+//
+//Only one thread may publish. In the application that is the session thread.
+public class OrderEventBus {
+
+   public static final int ORDER_PLACED = 0;
+   public static final int STOCK_CHANGED = 1;
+   public static final int PRODUCT_UPDATED = 2;
+
+   //one slot of the ring, reused for every event that lands in it
+   public static class Event {
+      public int type;
+      public int userID; // customer for orders, manager for updates
+      public int storeID;
+      public String productName;
+      public int units; // ordered, changed by, or the new number of units
+      public double price; // the new price, product updates only
+      public long time; // wall clock milliseconds
+      public long publishedNanos; // System.nanoTime() at publish, for measuring lag
+   }
+
+   //called on the consumer's thread for every event, in order
+   public interface Handler {
+      void onEvent(Event event, long sequence, boolean endOfBatch) throws Exception;
+   }
+
+   private class Consumer implements Runnable {
+      final String name;
+      final Handler handler;
+      final int maxBatch;
+      final AtomicLong sequence = new AtomicLong(-1); // last event handled
+
+      Consumer(String name, Handler handler, int maxBatch) {
+         this.name = name;
+         this.handler = handler;
+         this.maxBatch = maxBatch;
+      }
+
+      public void run() {
+         long next = sequence.get() + 1;
+         int idle = 0;
+         while (running || next <= cursor.get()) {
+            long available = cursor.get();
+            if (available < next) {
+               idle = idle(idle);
+               continue;
+            }
+            idle = 0;
+            long last = Math.min(available, next + maxBatch - 1);
+            for (long s = next; s <= last; s++) {
+               try {
+                  handler.onEvent(ring[(int) s & mask], s, s == last);
+               }
+               catch (Exception e) {
+                  System.err.println("Error: " + name + ": " + e.getMessage());
+               }
+            }
+            sequence.lazySet(last); // frees the slots for the writer
+            next = last + 1;
+         }
+      }
+   }
+
+   private final Event[] ring;
+   private final int mask;
+   private final AtomicLong cursor = new AtomicLong(-1); // last event published
+   private final List<Consumer> consumers = new ArrayList<Consumer>();
+   private final List<Thread> threads = new ArrayList<Thread>();
+   private long claimed = -1; // writer only
+   private long minConsumer = -1; // writer only, cached slowest consumer sequence
+   private volatile boolean running = false;
+
+   /*
+    * @param size number of slots, rounded up to a power of two
+    */
+   public OrderEventBus(int size) {
+      int n = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+      ring = new Event[n];
+      for (int i = 0; i < n; i++) ring[i] = new Event();
+      mask = n - 1;
+   }
+
+   /*
+    * Adds a consumer. Consumers are added before start().
+    *
+    * @param name the thread name
+    * @param handler called for every event
+    * @param maxBatch the most events handled before the consumer's sequence is published
+    */
+   public synchronized void addConsumer(String name, Handler handler, int maxBatch) {
+      if (running) throw new IllegalStateException("consumers are added before start()");
+      consumers.add(new Consumer(name, handler, maxBatch));
+   }
+
+   public synchronized void start() {
+      running = true;
+      for (Consumer c : consumers) {
+         Thread t = new Thread(c, c.name);
+         t.setDaemon(true);
+         threads.add(t);
+         t.start();
+      }
+   }
+
+   //spin, then yield, then sleep a little while there is nothing to do
+   private static int idle(int idle) {
+      if (idle < 100) Thread.onSpinWait();
+      else if (idle < 200) Thread.yield();
+      else LockSupport.parkNanos(50000);
+      return idle + 1;
+   }
+
+   private long slowestConsumer() {
+      long min = cursor.get();
+      for (int i = 0; i < consumers.size(); i++) min = Math.min(min, consumers.get(i).sequence.get());
+      return min;
+   }
+
+   //claims the next slot, waiting while it still holds an event the slowest consumer has not handled
+   private Event claim() {
+      long next = claimed + 1;
+      int idle = 0;
+      while (next - ring.length > minConsumer) {
+         minConsumer = slowestConsumer();
+         if (next - ring.length > minConsumer) idle = idle(idle);
+      }
+      claimed = next;
+      return ring[(int) next & mask];
+   }
+
+   private void publish(Event e) {
+      e.publishedNanos = System.nanoTime();
+      cursor.lazySet(claimed);
+   }
+
+   public void orderPlaced(int customerID, int storeID, String productName, int units, long time) {
+      Event e = claim();
+      e.type = ORDER_PLACED;
+      e.userID = customerID;
+      e.storeID = storeID;
+      e.productName = productName;
+      e.units = units;
+      e.price = 0;
+      e.time = time;
+      publish(e);
+   }
+
+   public void stockChanged(int managerID, int storeID, String productName, int delta, long time) {
+      Event e = claim();
+      e.type = STOCK_CHANGED;
+      e.userID = managerID;
+      e.storeID = storeID;
+      e.productName = productName;
+      e.units = delta;
+      e.price = 0;
+      e.time = time;
+      publish(e);
+   }
+
+   public void productUpdated(int managerID, int storeID, String productName, int units, double price, long time) {
+      Event e = claim();
+      e.type = PRODUCT_UPDATED;
+      e.userID = managerID;
+      e.storeID = storeID;
+      e.productName = productName;
+      e.units = units;
+      e.price = price;
+      e.time = time;
+      publish(e);
+   }
+
+   //number of events published so far
+   public long published() {
+      return cursor.get() + 1;
+   }
+
+   //events published but not yet handled by the slowest consumer
+   public long lag() {
+      return cursor.get() - slowestConsumer();
+   }
+
+   /*
+    * Waits until every consumer has handled every event published so far,
+    * e.g. before a cache is loaded from the database so that it neither
+    * misses nor double counts an event.
+    */
+   public void drain() {
+      long target = cursor.get();
+      int idle = 0;
+      while (running && slowestConsumer() < target) idle = idle(idle);
+   }
+
+   //handles what is left in the ring and stops the consumer threads
+   public synchronized void shutdown() {
+      running = false;
+      for (Thread t : threads) {
+         try {
+            t.join();
+         }
+         catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      }
+   }
+}
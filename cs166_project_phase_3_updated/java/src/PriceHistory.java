@@ -0,0 +1,174 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TimeZone;
+
+//As-of index over ProductVersions: the price and units a (store, product) had
+//at any time. The versions are kept in columns, grouped by (store, product
+//code) like SalesDashboard.Prices and ordered by time within a group, so a
+//lookup is one binary search over the versions of that one product.
+//validFrom is stored as int seconds since the oldest version; versions are
+//stamped with whole seconds anyway.
+//
+//Before its first version a product is taken to have had the price of that
+//version: the orders loaded from orders.csv are older than the versions the
+//load itself recorded.
+public class PriceHistory implements SalesDashboard.PriceSource {
+
+   static final long DAY = 24L * 60 * 60 * 1000;
+
+   private final int stride; // product codes per store
+   private final int[] start; // the versions of group g are start[g] .. start[g + 1] - 1
+   private final long base; // seconds since the epoch of validFrom 0
+   private final int[] validFrom;
+   private final int[] units;
+   private final double[] price;
+
+   PriceHistory(int stride, int[] start, long base, int[] validFrom, int[] units, double[] price) {
+      this.stride = stride;
+      this.start = start;
+      this.base = base;
+      this.validFrom = validFrom;
+      this.units = units;
+      this.price = price;
+   }
+
+   /*
+    * Wraps columns that are already grouped and ordered, e.g. generated ones.
+    *
+    * @param stride product codes per store
+    * @param start group g = store * stride + product holds start[g] .. start[g + 1] - 1
+    * @param base seconds since the epoch that validFrom counts from
+    */
+   public static PriceHistory of(int stride, int[] start, long base, int[] validFrom, int[] units, double[] price) {
+      return new PriceHistory(stride, start, base, validFrom, units, price);
+   }
+
+   //number of versions in the index
+   public int size() {
+      return validFrom.length;
+   }
+
+   /*
+    * @return the index of the version in effect at the time, or -1 if the
+    *         product has no versions
+    */
+   int find(int store, int product, long time) {
+      if (store < 0 || product < 0 || product >= stride) return -1;
+      long g = (long) store * stride + product;
+      if (g + 1 >= start.length) return -1;
+      int lo = start[(int) g], hi = start[(int) g + 1] - 1;
+      if (lo > hi) return -1;
+      int first = lo;
+      long t = Math.floorDiv(time, 1000) - base;
+      int second = (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, t));
+      while (lo <= hi) { // ends with hi on the last version from at or before the time
+         int mid = (lo + hi) >>> 1;
+         if (validFrom[mid] <= second) lo = mid + 1;
+         else hi = mid - 1;
+      }
+      return Math.max(hi, first);
+   }
+
+   /*
+    * @param time milliseconds since the epoch
+    * @return the price of the product at the time, 0 if it has no versions
+    */
+   public double priceAt(int store, int product, long time) {
+      int i = find(store, product, time);
+      return i < 0 ? 0 : price[i];
+   }
+
+   //the units of the product at the time, 0 if it has no versions
+   public int unitsAt(int store, int product, long time) {
+      int i = find(store, product, time);
+      return i < 0 ? 0 : units[i];
+   }
+
+   /*
+    * Loads every version with one ordered scan of ProductVersions.
+    *
+    * @param repo the data source
+    * @param products the dictionary used by the order snapshot
+    * @return the index
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static PriceHistory load(AmazonRepository repo, ProductDictionary products) throws SQLException {
+      final List<AmazonRepository.ProductVersion> versions = new ArrayList<AmazonRepository.ProductVersion>();
+      repo.forEachProductVersion(v -> versions.add(v));
+      int[] group = new int[versions.size()];
+      for (int i = 0; i < group.length; i++) group[i] = products.code(versions.get(i).productName);
+      int stride = Math.max(1, products.size());
+      int maxGroup = -1;
+      long base = Long.MAX_VALUE;
+      for (int i = 0; i < group.length; i++) {
+         AmazonRepository.ProductVersion v = versions.get(i);
+         group[i] += v.storeID * stride;
+         maxGroup = Math.max(maxGroup, group[i]);
+         base = Math.min(base, Math.floorDiv(v.validFrom.getTime(), 1000));
+      }
+      // counting sort by group; it is stable, so every group stays in time order
+      int[] start = new int[maxGroup + 2];
+      for (int g : group) start[g + 1]++;
+      for (int g = 0; g <= maxGroup; g++) start[g + 1] += start[g];
+      int[] next = Arrays.copyOf(start, start.length);
+      int[] validFrom = new int[group.length];
+      int[] units = new int[group.length];
+      double[] price = new double[group.length];
+      for (int i = 0; i < group.length; i++) {
+         AmazonRepository.ProductVersion v = versions.get(i);
+         int j = next[group[i]]++;
+         validFrom[j] = (int) (Math.floorDiv(v.validFrom.getTime(), 1000) - base);
+         units[j] = v.numberOfUnits;
+         price[j] = v.pricePerUnit;
+      }
+      return new PriceHistory(stride, start, base, validFrom, units, price);
+   }
+
+   /*
+    * The compaction rule of AmazonRepository.compactProductVersions: of the
+    * versions of one product older than the cutoff, the first one, the ones
+    * that changed the price and the last one of each day stay.
+    *
+    * @param older the versions of one product older than the cutoff, oldest first
+    * @return the versionNumbers of the versions to remove
+    */
+   static List<Integer> compactable(List<AmazonRepository.ProductVersion> older) {
+      List<Integer> removed = new ArrayList<Integer>();
+      TimeZone zone = TimeZone.getDefault();
+      for (int i = 1; i < older.size() - 1; i++) {
+         AmazonRepository.ProductVersion v = older.get(i);
+         if (v.pricePerUnit != older.get(i - 1).pricePerUnit) continue;
+         if (day(v.validFrom.getTime(), zone) != day(older.get(i + 1).validFrom.getTime(), zone)) continue;
+         removed.add(v.versionNumber);
+      }
+      return removed;
+   }
+
+   //the day a time falls on in the zone, counted from 1970-01-01; also buckets the SalesDashboard days
+   static long day(long time, TimeZone zone) {
+      return Math.floorDiv(time + zone.getOffset(time), DAY);
+   }
+
+   /*
+    * Compaction job: folds the versions older than the given number of days.
+    *
+    * Usage: java PriceHistory <dbname> <port> <user> <days>
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length != 4) {
+         System.err.println("Usage: java PriceHistory <dbname> <port> <user> <days>");
+         return;
+      }
+      Class.forName("org.postgresql.Driver");
+      Connection conn = DriverManager.getConnection("jdbc:postgresql://localhost:" + args[1] + "/" + args[0], args[2], "");
+      Timestamp before = new Timestamp(System.currentTimeMillis() - Integer.parseInt(args[3]) * DAY);
+      int removed = new JdbcRepository(conn).compactProductVersions(before);
+      System.out.println("Removed " + removed + " product versions older than " + before);
+      conn.close();
+   }
+}
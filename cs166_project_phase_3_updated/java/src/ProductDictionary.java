@@ -0,0 +1,50 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+//Dictionary encoding for product names. The database keys products by the
+//productID of ProductNames, whose productName is a varchar(30); names coming
+//from users or older data may still carry trailing blanks, so the dictionary
+//keys on the trimmed name and hands out small dense int codes starting at 0.
+public class ProductDictionary {
+
+   private final HashMap<String, Integer> codes = new HashMap<String, Integer>();
+   private final List<String> names = new ArrayList<String>();
+
+   /*
+    * Returns the code of a product name, adding the name to the dictionary
+    * if it has not been seen before.
+    *
+    * @param productName the (possibly padded) product name
+    * @return the dictionary code of the name
+    */
+   public synchronized int code(String productName) {
+      String key = productName.trim();
+      Integer code = codes.get(key);
+      if (code == null) {
+         code = names.size();
+         codes.put(key, code);
+         names.add(key);
+      }
+      return code;
+   }
+
+   /*
+    * Returns the code of a product name without adding it.
+    *
+    * @param productName the (possibly padded) product name
+    * @return the dictionary code of the name or -1 if it is unknown
+    */
+   public synchronized int lookup(String productName) {
+      Integer code = codes.get(productName.trim());
+      return code == null ? -1 : code;
+   }
+
+   public synchronized String name(int code) {
+      return names.get(code);
+   }
+
+   public synchronized int size() {
+      return names.size();
+   }
+}
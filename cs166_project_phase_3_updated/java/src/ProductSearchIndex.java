@@ -0,0 +1,270 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+//In-memory search index over product names. Names are case folded and trimmed
+//(ProductNames.productName is a varchar(30) kept without trailing blanks, a
+//typed query may have them) and stored in a trie; every name keeps a sorted
+//posting list of the stores that sell it. Lookups are restricted to a set of
+//stores, normally the stores within 30 miles of the user.
+public class ProductSearchIndex {
+
+   //a product name found by a lookup, with its edit distance to the query
+   public static class Match {
+      public final String name;
+      public final int distance;
+
+      Match(String name, int distance) {
+         this.name = name;
+         this.distance = distance;
+      }
+   }
+
+   // trie nodes, node 0 is the root. Siblings are kept sorted by label.
+   private char[] label = new char[256];
+   private int[] firstChild = new int[256];
+   private int[] nextSibling = new int[256];
+   private int[] nameID = new int[256];
+   private int nodes = 1;
+   private int maxDepth = 0;
+
+   // canonical (trimmed, original case) names and their store postings
+   private final List<String> names = new ArrayList<String>();
+   private final HashMap<String, Integer> byFolded = new HashMap<String, Integer>();
+   private int[][] postings = new int[64][];
+   private int[] postingSize = new int[64];
+
+   public ProductSearchIndex() {
+      firstChild[0] = -1;
+      nextSibling[0] = -1;
+      nameID[0] = -1;
+   }
+
+   /*
+    * Builds the index with a single scan of the Product table.
+    *
+    * @param repo the data source
+    * @return the loaded index
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static ProductSearchIndex load(AmazonRepository repo) throws SQLException {
+      ProductSearchIndex index = new ProductSearchIndex();
+      repo.forEachProduct(p -> index.add(p.storeID, p.productName));
+      return index;
+   }
+
+   static String fold(String name) {
+      return name.trim().toLowerCase();
+   }
+
+   /*
+    * Records that a store sells a product. Adding the same pair twice is a no-op.
+    */
+   public synchronized void add(int storeID, String productName) {
+      String folded = fold(productName);
+      Integer id = byFolded.get(folded);
+      if (id == null) {
+         id = names.size();
+         names.add(productName.trim());
+         byFolded.put(folded, id);
+         if (id == postings.length) {
+            postings = Arrays.copyOf(postings, id * 2);
+            postingSize = Arrays.copyOf(postingSize, id * 2);
+         }
+         postings[id] = new int[4];
+         int node = insertPath(folded);
+         nameID[node] = id;
+      }
+      int[] list = postings[id];
+      int n = postingSize[id];
+      int pos = Arrays.binarySearch(list, 0, n, storeID);
+      if (pos >= 0) return;
+      pos = -pos - 1;
+      if (n == list.length) {
+         list = postings[id] = Arrays.copyOf(list, n * 2);
+      }
+      System.arraycopy(list, pos, list, pos + 1, n - pos);
+      list[pos] = storeID;
+      postingSize[id] = n + 1;
+   }
+
+   /*
+    * Records that a store no longer sells a product.
+    */
+   public synchronized void remove(int storeID, String productName) {
+      Integer id = byFolded.get(fold(productName));
+      if (id == null) return;
+      int[] list = postings[id];
+      int n = postingSize[id];
+      int pos = Arrays.binarySearch(list, 0, n, storeID);
+      if (pos < 0) return;
+      System.arraycopy(list, pos + 1, list, pos, n - pos - 1);
+      postingSize[id] = n - 1;
+   }
+
+   private int insertPath(String folded) {
+      int node = 0;
+      for (int i = 0; i < folded.length(); i++) {
+         char c = folded.charAt(i);
+         int prev = -1;
+         int child = firstChild[node];
+         while (child != -1 && label[child] < c) {
+            prev = child;
+            child = nextSibling[child];
+         }
+         if (child == -1 || label[child] != c) {
+            int created = newNode(c);
+            nextSibling[created] = child;
+            if (prev == -1) firstChild[node] = created;
+            else nextSibling[prev] = created;
+            child = created;
+         }
+         node = child;
+      }
+      maxDepth = Math.max(maxDepth, folded.length());
+      return node;
+   }
+
+   private int newNode(char c) {
+      if (nodes == label.length) {
+         int capacity = nodes * 2;
+         label = Arrays.copyOf(label, capacity);
+         firstChild = Arrays.copyOf(firstChild, capacity);
+         nextSibling = Arrays.copyOf(nextSibling, capacity);
+         nameID = Arrays.copyOf(nameID, capacity);
+      }
+      label[nodes] = c;
+      firstChild[nodes] = -1;
+      nextSibling[nodes] = -1;
+      nameID[nodes] = -1;
+      return nodes++;
+   }
+
+   private int find(String folded) {
+      int node = 0;
+      for (int i = 0; i < folded.length() && node != -1; i++) {
+         char c = folded.charAt(i);
+         int child = firstChild[node];
+         while (child != -1 && label[child] < c) child = nextSibling[child];
+         node = child != -1 && label[child] == c ? child : -1;
+      }
+      return node;
+   }
+
+   //true if the posting list of the name shares a store with stores (sorted)
+   private boolean soldIn(int id, int[] stores) {
+      int[] list = postings[id];
+      int n = postingSize[id];
+      if (stores == null) return n > 0;
+      if (stores.length <= n) {
+         for (int s : stores) {
+            if (Arrays.binarySearch(list, 0, n, s) >= 0) return true;
+         }
+      }
+      else {
+         for (int i = 0; i < n; i++) {
+            if (Arrays.binarySearch(stores, list[i]) >= 0) return true;
+         }
+      }
+      return false;
+   }
+
+   /*
+    * Case and padding insensitive exact lookup.
+    *
+    * @param productName the name as typed by the user
+    * @param stores sorted store ids to search, or null for every store
+    * @return the name as stored in Product or null if none of the stores sells it
+    */
+   public synchronized String lookup(String productName, int[] stores) {
+      Integer id = byFolded.get(fold(productName));
+      return id != null && soldIn(id, stores) ? names.get(id) : null;
+   }
+
+   /*
+    * Autocompletes a prefix, in alphabetical order.
+    *
+    * @param prefix the beginning of a product name
+    * @param stores sorted store ids to search, or null for every store
+    * @param limit maximum number of names returned
+    * @return the matching product names
+    */
+   public synchronized List<String> complete(String prefix, int[] stores, int limit) {
+      List<String> result = new ArrayList<String>();
+      int node = find(fold(prefix));
+      if (node == -1) return result;
+      int[] stack = new int[2 * maxDepth + 2];
+      int top = 0;
+      stack[top++] = node;
+      // preorder walk; children are sorted so names come out alphabetically
+      while (top > 0 && result.size() < limit) {
+         int n = stack[--top];
+         if (nameID[n] != -1 && soldIn(nameID[n], stores)) result.add(names.get(nameID[n]));
+         if (n != node && nextSibling[n] != -1) stack[top++] = nextSibling[n];
+         if (firstChild[n] != -1) stack[top++] = firstChild[n];
+      }
+      return result;
+   }
+
+   /*
+    * Typo tolerant lookup: every name within maxEdits insertions, deletions or
+    * substitutions of the query. The trie is walked with one row of the edit
+    * distance table per level, and branches whose row can no longer get
+    * within maxEdits are skipped.
+    *
+    * @param query the name as typed by the user
+    * @param stores sorted store ids to search, or null for every store
+    * @param maxEdits maximum edit distance
+    * @param limit maximum number of names returned
+    * @return the matches, closest first
+    */
+   public synchronized List<Match> fuzzy(String query, int[] stores, int maxEdits, int limit) {
+      String q = fold(query);
+      int m = q.length();
+      int[][] rows = new int[maxDepth + 1][m + 1];
+      for (int j = 0; j <= m; j++) rows[0][j] = j;
+      List<Match> result = new ArrayList<Match>();
+      fuzzy(0, 0, q, rows, stores, maxEdits, result);
+      result.sort((a, b) -> a.distance != b.distance ? a.distance - b.distance : a.name.compareTo(b.name));
+      return result.size() > limit ? new ArrayList<Match>(result.subList(0, limit)) : result;
+   }
+
+   private void fuzzy(int node, int depth, String q, int[][] rows, int[] stores, int maxEdits, List<Match> result) {
+      int m = q.length();
+      int[] prev = rows[depth];
+      for (int child = firstChild[node]; child != -1; child = nextSibling[child]) {
+         int[] row = rows[depth + 1];
+         char c = label[child];
+         row[0] = prev[0] + 1;
+         int best = row[0];
+         for (int j = 1; j <= m; j++) {
+            int cost = q.charAt(j - 1) == c ? 0 : 1;
+            row[j] = Math.min(Math.min(prev[j] + 1, row[j - 1] + 1), prev[j - 1] + cost);
+            best = Math.min(best, row[j]);
+         }
+         if (nameID[child] != -1 && row[m] <= maxEdits && soldIn(nameID[child], stores)) {
+            result.add(new Match(names.get(nameID[child]), row[m]));
+         }
+         if (best <= maxEdits) fuzzy(child, depth + 1, q, rows, stores, maxEdits, result);
+      }
+   }
+
+   /*
+    * The subset of stores that sell a product.
+    *
+    * @param productName the product name
+    * @param stores sorted store ids
+    * @return store ids in ascending order
+    */
+   public synchronized List<Integer> storesWith(String productName, int[] stores) {
+      List<Integer> result = new ArrayList<Integer>();
+      Integer id = byFolded.get(fold(productName));
+      if (id == null) return result;
+      for (int s : stores) {
+         if (Arrays.binarySearch(postings[id], 0, postingSize[id], s) >= 0) result.add(s);
+      }
+      return result;
+   }
+}
@@ -0,0 +1,200 @@
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+//The "latest N" views kept in memory: the newest orders of every customer and
+//the newest product updates and supply requests of every store, each in a
+//small ring that drops its oldest entry when full. The rings are filled by one
+//scan of each table and then appended to on every write, so a view reads at
+//most capacity entries per ring whatever the size of the tables. The updates of
+//a manager's stores are a k-way merge over the rings of those stores.
+//
+//Only the writes made through this object show up; the views of an app
+//instance do not see the orders other instances place after the scan.
+public class RecentActivity {
+
+   static final Comparator<AmazonRepository.Order> NEWEST_ORDER_FIRST = (a, b) -> a.orderTime.equals(b.orderTime) ?
+      Integer.compare(b.orderNumber, a.orderNumber) : b.orderTime.compareTo(a.orderTime);
+   static final Comparator<AmazonRepository.ProductUpdate> NEWEST_UPDATE_FIRST = (a, b) -> a.updatedOn.equals(b.updatedOn) ?
+      Integer.compare(b.updateNumber, a.updateNumber) : b.updatedOn.compareTo(a.updatedOn);
+   static final Comparator<AmazonRepository.SupplyRequest> NEWEST_REQUEST_FIRST = (a, b) -> Integer.compare(b.requestNumber, a.requestNumber);
+
+   //the newest entries of one customer or store, newest first
+   static class Ring<T> {
+      private final Object[] items;
+      private int head = 0; // items[head] is the newest
+      private int size = 0;
+
+      Ring(int capacity) {
+         items = new Object[capacity];
+      }
+
+      int size() {
+         return size;
+      }
+
+      @SuppressWarnings("unchecked")
+      T get(int i) {
+         return (T) items[(head + i) % items.length];
+      }
+
+      private void set(int i, T item) {
+         items[(head + i) % items.length] = item;
+      }
+
+      /*
+       * Adds an entry, dropping the oldest if the ring is full. A write is
+       * the newest entry and goes in front; a scan may hand entries over in
+       * any order, which costs an insertion.
+       */
+      void add(T item, Comparator<T> newestFirst) {
+         int cap = items.length;
+         if (size == 0 || newestFirst.compare(item, get(0)) <= 0) {
+            head = (head + cap - 1) % cap; // the slot of the oldest when full
+            items[head] = item;
+            if (size < cap) size++;
+            return;
+         }
+         int pos = size;
+         if (size == cap) {
+            if (newestFirst.compare(item, get(size - 1)) >= 0) return; // older than all it keeps
+            pos--; // the oldest goes
+         }
+         else {
+            size++;
+         }
+         while (pos > 0 && newestFirst.compare(item, get(pos - 1)) < 0) {
+            set(pos, get(pos - 1));
+            pos--;
+         }
+         set(pos, item);
+      }
+
+      void first(int limit, List<T> into) {
+         for (int i = 0; i < size && i < limit; i++) into.add(get(i));
+      }
+   }
+
+   private final int capacity;
+   private final HashMap<Integer, Ring<AmazonRepository.Order>> ordersByCustomer = new HashMap<Integer, Ring<AmazonRepository.Order>>();
+   private final HashMap<Integer, Ring<AmazonRepository.ProductUpdate>> updatesByStore = new HashMap<Integer, Ring<AmazonRepository.ProductUpdate>>();
+   private final HashMap<Integer, Ring<AmazonRepository.SupplyRequest>> requestsByStore = new HashMap<Integer, Ring<AmazonRepository.SupplyRequest>>();
+
+   /*
+    * @param capacity entries kept per customer or store, the most a view can show
+    */
+   public RecentActivity(int capacity) {
+      this.capacity = capacity;
+   }
+
+   /*
+    * Fills the rings with one scan each of Orders, ProductUpdates and
+    * ProductSupplyRequests.
+    *
+    * @param repo the data source
+    * @param capacity entries kept per customer or store
+    * @return the views
+    * @throws java.sql.SQLException when failed to execute a query
+    */
+   public static RecentActivity load(AmazonRepository repo, int capacity) throws SQLException {
+      RecentActivity recent = new RecentActivity(capacity);
+      repo.forEachOrder(o -> recent.add(o));
+      repo.forEachProductUpdate(u -> recent.add(u));
+      repo.forEachSupplyRequest(r -> recent.add(r));
+      return recent;
+   }
+
+   private static <T> Ring<T> ring(HashMap<Integer, Ring<T>> rings, int key, int capacity) {
+      Ring<T> ring = rings.get(key);
+      if (ring == null) {
+         ring = new Ring<T>(capacity);
+         rings.put(key, ring);
+      }
+      return ring;
+   }
+
+   public synchronized void add(AmazonRepository.Order order) {
+      ring(ordersByCustomer, order.customerID, capacity).add(order, NEWEST_ORDER_FIRST);
+   }
+
+   public synchronized void add(AmazonRepository.ProductUpdate update) {
+      ring(updatesByStore, update.storeID, capacity).add(update, NEWEST_UPDATE_FIRST);
+   }
+
+   public synchronized void add(AmazonRepository.SupplyRequest request) {
+      ring(requestsByStore, request.storeID, capacity).add(request, NEWEST_REQUEST_FIRST);
+   }
+
+   //puts a request whose status changed in place of the one kept, if the ring still has it
+   public synchronized void supplyRequestChanged(AmazonRepository.SupplyRequest request) {
+      Ring<AmazonRepository.SupplyRequest> ring = requestsByStore.get(request.storeID);
+      if (ring == null) return;
+      for (int i = 0; i < ring.size(); i++) {
+         if (ring.get(i).requestNumber == request.requestNumber) ring.set(i, request);
+      }
+   }
+
+   //scans ProductUpdates again, after a write that added many at once
+   public void reloadUpdates(AmazonRepository repo) throws SQLException {
+      synchronized (this) {
+         updatesByStore.clear();
+      }
+      repo.forEachProductUpdate(u -> add(u));
+   }
+
+   //an order just placed, stamped like the repository stamps it
+   public void orderPlaced(int orderNumber, int customerID, int storeID, String productName, int units) {
+      add(new AmazonRepository.Order(orderNumber, customerID, storeID, productName, units, new Timestamp(System.currentTimeMillis() / 1000 * 1000)));
+   }
+
+   //the customer's latest orders, newest first; at most capacity
+   public synchronized List<AmazonRepository.Order> recentOrders(int customerID, int limit) {
+      List<AmazonRepository.Order> result = new ArrayList<AmazonRepository.Order>();
+      Ring<AmazonRepository.Order> ring = ordersByCustomer.get(customerID);
+      if (ring != null) ring.first(limit, result);
+      return result;
+   }
+
+   //the store's latest supply requests, highest requestNumber first; at most capacity
+   public synchronized List<AmazonRepository.SupplyRequest> supplyRequests(int storeID, int limit) {
+      List<AmazonRepository.SupplyRequest> result = new ArrayList<AmazonRepository.SupplyRequest>();
+      Ring<AmazonRepository.SupplyRequest> ring = requestsByStore.get(storeID);
+      if (ring != null) ring.first(limit, result);
+      return result;
+   }
+
+   //the latest product updates of the stores, newest first; at most capacity
+   public synchronized List<AmazonRepository.ProductUpdate> recentUpdates(List<Integer> storeIDs, int limit) {
+      List<Ring<AmazonRepository.ProductUpdate>> rings = new ArrayList<Ring<AmazonRepository.ProductUpdate>>();
+      for (int store : storeIDs) {
+         Ring<AmazonRepository.ProductUpdate> ring = updatesByStore.get(store);
+         if (ring != null) rings.add(ring);
+      }
+      return merge(rings, NEWEST_UPDATE_FIRST, limit);
+   }
+
+   /*
+    * Takes the first limit entries of several rings, each newest first, with
+    * a heap holding the next entry of every ring.
+    */
+   static <T> List<T> merge(final List<Ring<T>> rings, final Comparator<T> newestFirst, int limit) {
+      List<T> result = new ArrayList<T>();
+      // a cursor is {ring, position}
+      PriorityQueue<int[]> heads = new PriorityQueue<int[]>(Math.max(1, rings.size()),
+         (a, b) -> newestFirst.compare(rings.get(a[0]).get(a[1]), rings.get(b[0]).get(b[1])));
+      for (int i = 0; i < rings.size(); i++) {
+         if (rings.get(i).size() > 0) heads.add(new int[] {i, 0});
+      }
+      while (result.size() < limit && !heads.isEmpty()) {
+         int[] cursor = heads.poll();
+         Ring<T> ring = rings.get(cursor[0]);
+         result.add(ring.get(cursor[1]));
+         if (++cursor[1] < ring.size()) heads.add(cursor);
+      }
+      return result;
+   }
+}
@@ -0,0 +1,244 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Sends the @ReadOnly operations of an AmazonRepository to replicas and every
+//other operation to the primary. The repository handed out is a proxy for the
+//one session using it.
+//
+//Reads are spread round robin over the healthy replicas. A background thread
+//asks every replica for its replication position now and then; a replica that
+//does not answer, or that fails a read, is out until it answers again. A failed
+//read is retried on the primary.
+//
+//Reads see the session's own writes: after every write the primary's position
+//is noted, and a read only goes to a replica that has replayed at least that
+//far. A replica that looked behind is asked again once before the read falls
+//back to the primary. The repositories of one session, e.g. the session's own
+//and those its calls run on in the background, can share the position, so
+//each one's reads see the writes of all of them.
+public class ReplicatedRepository implements InvocationHandler {
+
+   //how far a database has got in the primary's stream of changes
+   public interface Replication {
+      /*
+       * @return on the primary, the position of its latest write; on a
+       *         replica, the position it has replayed up to
+       */
+      long position(AmazonRepository repo) throws SQLException;
+   }
+
+   private static class Replica {
+      final AmazonRepository repo;
+      volatile boolean healthy = true;
+      volatile long position = -1;
+
+      Replica(AmazonRepository repo) {
+         this.repo = repo;
+      }
+   }
+
+   private final AmazonRepository primary;
+   private final Replica[] replicas;
+   private final Replication replication;
+   private final Thread checker;
+   private volatile boolean running = true;
+   private final AtomicLong written; // the primary's position after this session's last write
+   private int next = 0; // round robin
+   private long replicaReads = 0, primaryReads = 0;
+
+   ReplicatedRepository(AmazonRepository primary, List<AmazonRepository> replicas, Replication replication, final long checkMillis, AtomicLong written) {
+      this.primary = primary;
+      this.written = written;
+      this.replicas = new Replica[replicas.size()];
+      for (int i = 0; i < this.replicas.length; i++) this.replicas[i] = new Replica(replicas.get(i));
+      this.replication = replication;
+      check();
+      checker = new Thread(() -> {
+         while (running) {
+            try {
+               Thread.sleep(checkMillis);
+            }
+            catch (InterruptedException e) {
+               return;
+            }
+            check();
+         }
+      }, "replica-health");
+      checker.setDaemon(true);
+      checker.start();
+   }
+
+   /*
+    * A repository for one session over a primary and its replicas.
+    *
+    * @param primary where the writes go
+    * @param replicas where the reads go while they are healthy and caught up
+    * @param replication reads the replication position of each
+    * @param checkMillis how often the replicas are checked
+    */
+   public static AmazonRepository create(AmazonRepository primary, List<AmazonRepository> replicas, Replication replication, long checkMillis) {
+      return create(primary, replicas, replication, checkMillis, new AtomicLong(-1));
+   }
+
+   /*
+    * A repository for one session over a primary and its replicas, sharing
+    * the session's write position with its other repositories.
+    *
+    * @param written the write position of the session, see writePosition()
+    */
+   public static AmazonRepository create(AmazonRepository primary, List<AmazonRepository> replicas, Replication replication, long checkMillis,
+                                         AtomicLong written) {
+      return (AmazonRepository) Proxy.newProxyInstance(AmazonRepository.class.getClassLoader(), new Class<?>[] {AmazonRepository.class},
+                                                       new ReplicatedRepository(primary, replicas, replication, checkMillis, written));
+   }
+
+   /*
+    * Connects to a primary and its streaming replicas on this machine, the
+    * positions being the write-ahead log positions of Postgres.
+    *
+    * @param dbname the name of the database on every instance
+    * @param port the port of the primary
+    * @param replicaPorts the ports of the replicas
+    * @param user the user name used to login to the databases
+    * @param passwd the user login password
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public static AmazonRepository connect(String dbname, String port, List<String> replicaPorts, String user, String passwd) throws SQLException {
+      return connect(dbname, port, replicaPorts, user, passwd, new AtomicLong(-1));
+   }
+
+   /*
+    * Connects another repository of a session to a primary and its replicas.
+    *
+    * @param written the write position of the session, see writePosition()
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public static AmazonRepository connect(String dbname, String port, List<String> replicaPorts, String user, String passwd, AtomicLong written)
+      throws SQLException {
+      AmazonRepository primary = JdbcRepository.connect(dbname, port, user, passwd);
+      List<AmazonRepository> replicas = new ArrayList<AmazonRepository>();
+      for (String p : replicaPorts) replicas.add(JdbcRepository.connect(dbname, p, user, passwd));
+      return create(primary, replicas, repo -> ((JdbcRepository) repo).walPosition(), 1000, written);
+   }
+
+   //the handler behind a repository returned by create()
+   public static ReplicatedRepository of(AmazonRepository proxy) {
+      return (ReplicatedRepository) Proxy.getInvocationHandler(proxy);
+   }
+
+   /*
+    * Makes the session's next reads see everything committed on the primary so
+    * far, e.g. before rereading what another instance is known to have changed.
+    * Does nothing to a repository that is not replicated.
+    *
+    * @throws java.sql.SQLException when failed to read the primary's position
+    */
+   public static void syncWithPrimary(AmazonRepository repo) throws SQLException {
+      if (!Proxy.isProxyClass(repo.getClass()) || !(Proxy.getInvocationHandler(repo) instanceof ReplicatedRepository)) return;
+      ReplicatedRepository replicated = of(repo);
+      replicated.written.accumulateAndGet(replicated.replication.position(replicated.primary), Math::max);
+   }
+
+   //the primary's position after the session's last write, to share with its other repositories
+   public AtomicLong writePosition() {
+      return written;
+   }
+
+   //the reads served by a replica and by the primary so far
+   public synchronized long[] reads() {
+      return new long[] {replicaReads, primaryReads};
+   }
+
+   //refreshes the health and position of every replica
+   private void check() {
+      for (Replica r : replicas) refresh(r);
+   }
+
+   private void refresh(Replica r) {
+      try {
+         long position;
+         synchronized (r.repo) { // a connection takes one statement at a time
+            position = replication.position(r.repo);
+         }
+         r.position = position;
+         r.healthy = true;
+      }
+      catch (Exception e) {
+         r.healthy = false;
+      }
+   }
+
+   //the next healthy replica that has this session's writes, or null for the primary
+   private synchronized Replica pick() {
+      for (int pass = 0; pass < 2; pass++) {
+         for (int i = 0; i < replicas.length; i++) {
+            Replica r = replicas[(next + i) % replicas.length];
+            if (!r.healthy) continue;
+            long written = this.written.get();
+            if (r.position < written && pass == 1) refresh(r);
+            if (r.healthy && r.position >= written) {
+               next = (next + i + 1) % replicas.length;
+               return r;
+            }
+         }
+      }
+      return null;
+   }
+
+   public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      if (method.getDeclaringClass() == Object.class) {
+         return method.invoke(this, args);
+      }
+      if (method.getName().equals("close") && method.getParameterCount() == 0) {
+         running = false;
+         checker.interrupt();
+         primary.close();
+         for (Replica r : replicas) r.repo.close();
+         return null;
+      }
+      if (method.isAnnotationPresent(ReadOnly.class)) {
+         Replica r = pick();
+         if (r != null) {
+            try {
+               Object result;
+               synchronized (r.repo) {
+                  result = call(r.repo, method, args);
+               }
+               synchronized (this) {
+                  replicaReads++;
+               }
+               return result;
+            }
+            catch (SQLException e) {
+               r.healthy = false; // retried on the primary below
+            }
+         }
+         synchronized (this) {
+            primaryReads++;
+         }
+         return call(primary, method, args);
+      }
+      try {
+         return call(primary, method, args);
+      }
+      finally {
+         // even a failed write may have changed something before it failed
+         written.accumulateAndGet(replication.position(primary), Math::max);
+      }
+   }
+
+   private static Object call(AmazonRepository repo, Method method, Object[] args) throws Throwable {
+      try {
+         return method.invoke(repo, args);
+      }
+      catch (InvocationTargetException e) {
+         throw e.getCause();
+      }
+   }
+}
@@ -0,0 +1,148 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Time limited stock reservations held by shopping carts. A reservation holds
+//units of one (store, product) so that another cart cannot take them between
+//adding the item and checking out. Reservations that are neither checked out
+//nor released expire after the timeout and are handed back by one background
+//sweeper thread waiting on a DelayQueue, so nothing scans for expired entries.
+//
+//Reservations live in this process only; checkout still guards the Product
+//UPDATE with numberOfUnits >= units, so other app instances cannot oversell.
+public class ReservationManager {
+
+   public static class Reservation implements Delayed {
+      public final int storeID;
+      public final String productName;
+      public final int units;
+      private final long expiresAt; // System.nanoTime() deadline
+      private final AtomicBoolean held = new AtomicBoolean(true);
+
+      Reservation(int storeID, String productName, int units, long expiresAt) {
+         this.storeID = storeID;
+         this.productName = productName;
+         this.units = units;
+         this.expiresAt = expiresAt;
+      }
+
+      public long getDelay(TimeUnit unit) {
+         return unit.convert(expiresAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+      }
+
+      public int compareTo(Delayed other) {
+         return Long.compare(expiresAt, ((Reservation) other).expiresAt);
+      }
+
+      public boolean isHeld() {
+         return held.get();
+      }
+
+      public long millisLeft() {
+         return Math.max(0, getDelay(TimeUnit.MILLISECONDS));
+      }
+   }
+
+   private final long timeoutNanos;
+   private final ConcurrentHashMap<String, AtomicInteger> reserved = new ConcurrentHashMap<String, AtomicInteger>();
+   private final DelayQueue<Reservation> expiry = new DelayQueue<Reservation>();
+   private final AtomicLong expiredCount = new AtomicLong();
+   private final Thread sweeper;
+
+   public ReservationManager(long timeoutMillis) {
+      this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      sweeper = new Thread(new Runnable() {
+         public void run() {
+            try {
+               while (true) {
+                  Reservation r = expiry.take();
+                  if (r.held.compareAndSet(true, false)) {
+                     giveBack(r);
+                     expiredCount.incrementAndGet();
+                  }
+               }
+            }
+            catch (InterruptedException e) {
+               // shutdown
+            }
+         }
+      }, "reservation-sweeper");
+      sweeper.setDaemon(true);
+      sweeper.start();
+   }
+
+   private static String key(int storeID, String productName) {
+      return storeID + ":" + productName.trim();
+   }
+
+   /*
+    * Reserves units of a product if the store has enough that no other cart
+    * is holding.
+    *
+    * @param storeID the store
+    * @param productName the product
+    * @param units the number of units to hold
+    * @param available Product.numberOfUnits as last read from the database
+    * @return the reservation or null if there is not enough unreserved stock
+    */
+   public Reservation reserve(int storeID, String productName, final int units, final int available) {
+      final boolean[] ok = new boolean[1];
+      reserved.compute(key(storeID, productName), (k, held) -> {
+         if (held == null) held = new AtomicInteger();
+         if (held.get() + units <= available) {
+            held.addAndGet(units);
+            ok[0] = true;
+         }
+         return held;
+      });
+      if (!ok[0]) return null;
+      Reservation r = new Reservation(storeID, productName.trim(), units, System.nanoTime() + timeoutNanos);
+      expiry.add(r);
+      return r;
+   }
+
+   /*
+    * Hands the units of a reservation back, after checkout or when the item
+    * is removed from the cart. Releasing twice, or after expiry, does nothing.
+    *
+    * @return true if the reservation was still held
+    */
+   public boolean release(Reservation r) {
+      if (!r.held.compareAndSet(true, false)) return false;
+      // left in the expiry queue; the sweeper drops it when its time comes
+      giveBack(r);
+      return true;
+   }
+
+   private void giveBack(Reservation r) {
+      reserved.computeIfPresent(key(r.storeID, r.productName), (k, held) -> {
+         held.addAndGet(-r.units);
+         return held.get() == 0 ? null : held;
+      });
+   }
+
+   //units of a product currently held by carts
+   public int reserved(int storeID, String productName) {
+      AtomicInteger held = reserved.get(key(storeID, productName));
+      return held == null ? 0 : held.get();
+   }
+
+   //units held across every product, zero once every cart is done and expired
+   public long totalReserved() {
+      long total = 0;
+      for (AtomicInteger held : reserved.values()) total += held.get();
+      return total;
+   }
+
+   public long expiredCount() {
+      return expiredCount.get();
+   }
+
+   public void shutdown() {
+      sweeper.interrupt();
+   }
+}
@@ -0,0 +1,312 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+
+//Writes rows to the console or a file. Rows are appended as text to one
+//reusable buffer and go out through an NIO channel whenever it fills, so a
+//result of millions of rows costs a few large writes rather than a print per
+//value. The column widths of a table are fixed before the first row, from the
+//caller or from the result set metadata, so a row is padded rather than
+//formatted.
+//
+//TABS is how query results have always been printed: the column names, then
+//one line per row, every value followed by a tab, nothing at all when there
+//are no rows. TABLE pads every value to the width of its column and rules
+//off the header. CSV quotes a value when it has to, and JSON writes one
+//object per row, keyed by the column names, with numbers and booleans bare and
+//NULL as null.
+public class ResultRenderer {
+
+   public enum Format { TABS, TABLE, CSV, JSON }
+
+   static final int BUFFER_SIZE = 1 << 20;
+   private static final char[] SPACES = new char[256];
+   static {
+      Arrays.fill(SPACES, ' ');
+   }
+
+   private final WritableByteChannel out;
+   private final boolean closeOut;
+   private final Format format;
+   private final String[] columns;
+   private final int[] widths;
+   private final String[] keys; // "name": for JSON
+   private final StringBuilder text = new StringBuilder(BUFFER_SIZE / 2);
+   private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+   private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+   private int rows = 0;
+
+   /*
+    * @param out where the text goes
+    * @param closeOut whether finish() closes it
+    * @param format how the rows are written
+    * @param columns the column names
+    * @param widths for TABLE the width of every column, 0 for no padding; null
+    *               for the width of its name
+    */
+   public ResultRenderer(WritableByteChannel out, boolean closeOut, Format format, String[] columns, int[] widths) {
+      this.out = out;
+      this.closeOut = closeOut;
+      this.format = format;
+      this.columns = columns;
+      this.widths = new int[columns.length];
+      for (int i = 0; i < columns.length; i++) {
+         this.widths[i] = widths != null ? widths[i] : columns[i].length() + 1;
+      }
+      this.keys = new String[columns.length];
+      if (format == Format.JSON) {
+         for (int i = 0; i < columns.length; i++) {
+            json(columns[i]);
+            keys[i] = (i > 0 ? "," : "{") + text.append(':');
+            text.setLength(0);
+         }
+      }
+      if (format == Format.TABLE || format == Format.CSV) header();
+   }
+
+   //rows on standard out, after what System.out holds
+   public static ResultRenderer console(Format format, String[] columns, int[] widths) {
+      System.out.flush();
+      return new ResultRenderer(Channels.newChannel(System.out), false, format, columns, widths);
+   }
+
+   //rows in a new file, or the file emptied
+   public static ResultRenderer file(String path, Format format, String[] columns, int[] widths) throws IOException {
+      return new ResultRenderer(new FileOutputStream(path).getChannel(), true, format, columns, widths);
+   }
+
+   //the format for a file name: .csv, .json or .jsonl, else an aligned table
+   public static Format formatOf(String path) {
+      String name = path.toLowerCase();
+      if (name.endsWith(".csv")) return Format.CSV;
+      if (name.endsWith(".json") || name.endsWith(".jsonl")) return Format.JSON;
+      return Format.TABLE;
+   }
+
+   /*
+    * The column names of a result set, and for TABLE widths from the display
+    * size of every column, at least its name and at most 40.
+    */
+   public static ResultRenderer console(Format format, ResultSetMetaData meta) throws SQLException {
+      return console(format, columnNames(meta), displayWidths(meta));
+   }
+
+   static String[] columnNames(ResultSetMetaData meta) throws SQLException {
+      String[] names = new String[meta.getColumnCount()];
+      for (int i = 0; i < names.length; i++) names[i] = meta.getColumnName(i + 1);
+      return names;
+   }
+
+   static int[] displayWidths(ResultSetMetaData meta) throws SQLException {
+      int[] widths = new int[meta.getColumnCount()];
+      for (int i = 0; i < widths.length; i++) {
+         widths[i] = Math.max(meta.getColumnName(i + 1).length(), Math.min(40, meta.getColumnDisplaySize(i + 1))) + 1;
+      }
+      return widths;
+   }
+
+   private void header() {
+      switch (format) {
+         case TABS:
+            for (String c : columns) text.append(c).append('\t');
+            break;
+         case TABLE:
+            int rule = 0;
+            for (int i = 0; i < columns.length; i++) {
+               pad(text.length(), columns[i], widths[i]);
+               rule += Math.max(widths[i], columns[i].length());
+            }
+            text.append('\n');
+            for (int i = 0; i < rule; i++) text.append('-');
+            break;
+         case CSV:
+            for (int i = 0; i < columns.length; i++) {
+               if (i > 0) text.append(',');
+               csv(columns[i]);
+            }
+            break;
+         default:
+            return;
+      }
+      text.append('\n');
+   }
+
+   private void pad(int start, Object value, int width) {
+      append(value);
+      for (int n = width - (text.length() - start); n > 0; n -= SPACES.length) text.append(SPACES, 0, Math.min(n, SPACES.length));
+   }
+
+   //a value the way String.valueOf writes it, without making the string for numbers
+   private void append(Object value) {
+      if (value instanceof Integer) text.append(((Integer) value).intValue());
+      else if (value instanceof Long) text.append(((Long) value).longValue());
+      else if (value instanceof Double) text.append(((Double) value).doubleValue());
+      else text.append(value);
+   }
+
+   private void csv(Object value) {
+      if (value == null) return;
+      if (value instanceof Number) {
+         append(value);
+         return;
+      }
+      String s = value.toString();
+      if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0) {
+         text.append(s);
+         return;
+      }
+      text.append('"');
+      for (int i = 0; i < s.length(); i++) {
+         char c = s.charAt(i);
+         if (c == '"') text.append('"');
+         text.append(c);
+      }
+      text.append('"');
+   }
+
+   private void json(Object value) {
+      if (value == null) {
+         text.append("null");
+         return;
+      }
+      // NaN and the infinities are no JSON numbers
+      if (value instanceof Double && (((Double) value).isNaN() || ((Double) value).isInfinite())) value = value.toString();
+      if (value instanceof Number || value instanceof Boolean) {
+         append(value);
+         return;
+      }
+      String s = value.toString();
+      text.append('"');
+      for (int i = 0; i < s.length(); i++) {
+         char c = s.charAt(i);
+         if (c == '"' || c == '\\') text.append('\\').append(c);
+         else if (c == '\n') text.append("\\n");
+         else if (c == '\t') text.append("\\t");
+         else if (c < 0x20) text.append(String.format("\\u%04x", (int) c));
+         else text.append(c);
+      }
+      text.append('"');
+   }
+
+   /*
+    * Adds a row, one value per column.
+    *
+    * @throws java.io.IOException when the buffer could not be written out
+    */
+   public void row(Object... values) throws IOException {
+      if (rows++ == 0 && format == Format.TABS) header();
+      switch (format) {
+         case TABS:
+            for (Object v : values) {
+               append(v);
+               text.append('\t');
+            }
+            break;
+         case TABLE:
+            for (int i = 0; i < values.length; i++) pad(text.length(), values[i], widths[i]);
+            break;
+         case CSV:
+            for (int i = 0; i < values.length; i++) {
+               if (i > 0) text.append(',');
+               csv(values[i]);
+            }
+            break;
+         case JSON:
+            for (int i = 0; i < values.length; i++) {
+               text.append(keys[i]);
+               json(values[i]);
+            }
+            text.append('}');
+            break;
+      }
+      text.append('\n');
+      if (text.length() >= BUFFER_SIZE / 2) flush();
+   }
+
+   //adds every row of the result set, reading the values as strings like
+   //executeQueryAndPrintResult did; JSON reads them by their SQL type
+   public int rows(ResultSet rs) throws SQLException, IOException {
+      int n = 0;
+      Object[] values = new Object[columns.length];
+      int[] types = null;
+      if (format == Format.JSON) {
+         ResultSetMetaData meta = rs.getMetaData();
+         types = new int[values.length];
+         for (int i = 0; i < types.length; i++) types[i] = meta.getColumnType(i + 1);
+      }
+      while (rs.next()) {
+         for (int i = 0; i < values.length; i++) values[i] = types == null ? rs.getString(i + 1) : value(rs, i + 1, types[i]);
+         row(values);
+         n++;
+      }
+      return n;
+   }
+
+   //a number or boolean column as a Number or Boolean, anything else as a string, null for NULL
+   private static Object value(ResultSet rs, int column, int type) throws SQLException {
+      Object value;
+      switch (type) {
+         case Types.TINYINT:
+         case Types.SMALLINT:
+         case Types.INTEGER:
+         case Types.BIGINT:
+            value = rs.getLong(column);
+            break;
+         case Types.REAL:
+         case Types.FLOAT:
+         case Types.DOUBLE:
+            value = rs.getDouble(column);
+            break;
+         case Types.NUMERIC:
+         case Types.DECIMAL:
+            value = rs.getBigDecimal(column);
+            break;
+         case Types.BIT:
+         case Types.BOOLEAN:
+            value = rs.getBoolean(column);
+            break;
+         default:
+            return rs.getString(column);
+      }
+      return rs.wasNull() ? null : value;
+   }
+
+   private void flush() throws IOException {
+      CharBuffer chars = CharBuffer.wrap(text);
+      while (true) {
+         CoderResult result = encoder.encode(chars, bytes, true);
+         bytes.flip();
+         while (bytes.hasRemaining()) out.write(bytes);
+         bytes.clear();
+         if (!result.isOverflow()) break;
+      }
+      encoder.reset();
+      text.setLength(0);
+   }
+
+   /*
+    * Writes out what is left, and closes a file.
+    *
+    * @return the number of rows
+    */
+   public int finish() throws IOException {
+      try {
+         flush();
+      }
+      finally {
+         if (closeOut) out.close();
+      }
+      return rows;
+   }
+}
@@ -0,0 +1,147 @@
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.TimeZone;
+import java.util.concurrent.ForkJoinPool;
+
+//Chain-wide sales dashboard for admins: revenue, units and order counts per
+//store, per product and per day. The numbers are computed in one parallel
+//pass over OrderColumns; every fork/join chunk fills its own partial report
+//and the partial reports are added together at the end. Revenue takes the
+//price of every order from a PriceSource, which is given the orderTime.
+public class SalesDashboard {
+
+   //the price an order of a (store, product code) placed at a time was charged
+   public interface PriceSource {
+      double priceAt(int store, int product, long time);
+   }
+
+   //One fixed price for every (store, product code), whenever the order was
+   //placed. PriceHistory gives the prices orders were actually charged.
+   public static class Prices implements PriceSource {
+      private final double[] price;
+      private final int stride;
+
+      Prices(double[] price, int stride) {
+         this.price = price;
+         this.stride = stride;
+      }
+
+      public double get(int store, int product) {
+         int i = store * stride + product;
+         return product < stride && i < price.length ? price[i] : 0;
+      }
+
+      public double priceAt(int store, int product, long time) {
+         return get(store, product);
+      }
+
+      public static Prices of(double[] price, int stride) {
+         return new Prices(price, stride);
+      }
+   }
+
+   public static class Report {
+      public double[] storeRevenue, productRevenue, dayRevenue;
+      public long[] storeUnits, productUnits, dayUnits;
+      public long[] storeOrders, productOrders, dayOrders;
+      public long firstDay; // days since the epoch of dayRevenue[0]
+
+      Report(int stores, int products, int days, long firstDay) {
+         storeRevenue = new double[stores];
+         storeUnits = new long[stores];
+         storeOrders = new long[stores];
+         productRevenue = new double[products];
+         productUnits = new long[products];
+         productOrders = new long[products];
+         dayRevenue = new double[days];
+         dayUnits = new long[days];
+         dayOrders = new long[days];
+         this.firstDay = firstDay;
+      }
+
+      void add(Report other) {
+         for (int i = 0; i < storeRevenue.length; i++) {
+            storeRevenue[i] += other.storeRevenue[i];
+            storeUnits[i] += other.storeUnits[i];
+            storeOrders[i] += other.storeOrders[i];
+         }
+         for (int i = 0; i < productRevenue.length; i++) {
+            productRevenue[i] += other.productRevenue[i];
+            productUnits[i] += other.productUnits[i];
+            productOrders[i] += other.productOrders[i];
+         }
+         for (int i = 0; i < dayRevenue.length; i++) {
+            dayRevenue[i] += other.dayRevenue[i];
+            dayUnits[i] += other.dayUnits[i];
+            dayOrders[i] += other.dayOrders[i];
+         }
+      }
+
+      public void print(ProductDictionary products) {
+         System.out.println(String.format("\n%-12s%-12s%-12s%-15s", "Store ID", "Orders", "Units", "Revenue"));
+         System.out.println("---------------------------------------------------");
+         for (int i = 0; i < storeOrders.length; i++) {
+            if (storeOrders[i] == 0) continue;
+            System.out.println(String.format("%-12d%-12d%-12d%-15.2f", i, storeOrders[i], storeUnits[i], storeRevenue[i]));
+         }
+         System.out.println(String.format("\n%-25s%-12s%-12s%-15s", "Product", "Orders", "Units", "Revenue"));
+         System.out.println("----------------------------------------------------------------");
+         for (int i = 0; i < productOrders.length; i++) {
+            if (productOrders[i] == 0) continue;
+            System.out.println(String.format("%-25s%-12d%-12d%-15.2f", products.name(i), productOrders[i], productUnits[i], productRevenue[i]));
+         }
+         System.out.println(String.format("\n%-12s%-12s%-12s%-15s", "Day", "Orders", "Units", "Revenue"));
+         System.out.println("---------------------------------------------------");
+         for (int i = 0; i < dayOrders.length; i++) {
+            if (dayOrders[i] == 0) continue;
+            System.out.println(String.format("%-12s%-12d%-12d%-15.2f", Date.valueOf(LocalDate.ofEpochDay(firstDay + i)), dayOrders[i], dayUnits[i], dayRevenue[i]));
+         }
+         System.out.println();
+      }
+   }
+
+   /*
+    * Computes the dashboard over every order in the snapshot.
+    *
+    * @param orders the order snapshot
+    * @param prices the price of every order
+    * @param pool the pool the scan runs on
+    * @return the merged report
+    */
+   public static Report compute(OrderColumns orders, final PriceSource prices, ForkJoinPool pool) {
+      // days as PriceHistory counts them, in the local zone with its daylight saving
+      final TimeZone zone = TimeZone.getDefault();
+      return orders.aggregate(new OrderColumns.Aggregation<Report>() {
+         public Report create(OrderColumns.Rows rows) {
+            if (rows.size == 0) return new Report(0, 0, 0, 0);
+            long firstDay = PriceHistory.day(rows.minTime, zone);
+            long lastDay = PriceHistory.day(rows.maxTime, zone);
+            return new Report(rows.maxStoreID + 1, rows.numProducts, (int) (lastDay - firstDay + 1), firstDay);
+         }
+
+         public void add(Report r, OrderColumns.Rows rows, int lo, int hi) {
+            for (int i = lo; i < hi; i++) {
+               int store = rows.storeID[i];
+               int product = rows.productCode[i];
+               int units = rows.unitsOrdered[i];
+               double revenue = units * prices.priceAt(store, product, rows.orderTime[i]);
+               int day = (int) (PriceHistory.day(rows.orderTime[i], zone) - r.firstDay);
+               r.storeRevenue[store] += revenue;
+               r.storeUnits[store] += units;
+               r.storeOrders[store]++;
+               r.productRevenue[product] += revenue;
+               r.productUnits[product] += units;
+               r.productOrders[product]++;
+               r.dayRevenue[day] += revenue;
+               r.dayUnits[day] += units;
+               r.dayOrders[day]++;
+            }
+         }
+
+         public Report merge(Report left, Report right) {
+            left.add(right);
+            return left;
+         }
+      }, pool);
+   }
+}
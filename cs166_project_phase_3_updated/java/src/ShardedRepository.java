@@ -0,0 +1,535 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+//AmazonRepository over several regional shards, each one a whole repository of
+//its own (a Postgres instance, or an InMemoryRepository). Stores are placed by
+//the geohash of their location: the geohashes are cut into contiguous ranges,
+//one per shard, so every shard holds a region and each store's Product,
+//Orders, ProductSupplyRequests, ProductUpdates and ProductVersions rows live
+//with the store. Users and Warehouse are global and every shard has a copy;
+//users are created on shard 0, which hands out the userIDs, and copied to the
+//others.
+//
+//Operations on one store go to its shard, found in a storeID directory read
+//from the shards. Listings that span stores (stores, a customer's orders, the
+//forEach scans) go to every shard in parallel and are merged. The serial
+//numbers of the shards are interleaved (see interleaveNumbers) so that
+//orderNumbers, requestNumbers and updateNumbers stay unique.
+//
+//An order whose lines span shards is placed shard by shard; if a later shard
+//is short, the lines already placed are cancelled again, so the checkout
+//stays all or nothing.
+//
+//Usage: java ShardedRepository split <dataDir> <outDir> <shards>
+//       java ShardedRepository number <dbname> <user> <port> [<port> ...]
+public class ShardedRepository implements AmazonRepository {
+
+   static final int GEOHASH_PRECISION = 6;
+   private static final String BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz";
+
+   private static final Comparator<Order> NEWEST_ORDER_FIRST = (a, b) -> a.orderTime.equals(b.orderTime) ?
+      Integer.compare(b.orderNumber, a.orderNumber) : b.orderTime.compareTo(a.orderTime);
+   private static final Comparator<ProductUpdate> NEWEST_UPDATE_FIRST = (a, b) -> a.updatedOn.equals(b.updatedOn) ?
+      Integer.compare(b.updateNumber, a.updateNumber) : b.updatedOn.compareTo(a.updatedOn);
+
+   private final AmazonRepository[] shards;
+   private final ExecutorService pool;
+   private volatile Map<Integer, Integer> directory; // storeID -> shard
+
+   public ShardedRepository(List<AmazonRepository> shards) throws SQLException {
+      this.shards = shards.toArray(new AmazonRepository[0]);
+      this.pool = Executors.newFixedThreadPool(this.shards.length, r -> {
+         Thread t = new Thread(r, "shard-fan-out");
+         t.setDaemon(true);
+         return t;
+      });
+      this.directory = readDirectory();
+   }
+
+   /*
+    * Connects to one Postgres instance per port, all on this machine with the
+    * same database name.
+    *
+    * @param dbname the name of the database on every instance
+    * @param ports the port of each shard, in shard order
+    * @param user the user name used to login to the databases
+    * @param passwd the user login password
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public static ShardedRepository connect(String dbname, List<String> ports, String user, String passwd) throws SQLException {
+      List<AmazonRepository> shards = new ArrayList<AmazonRepository>();
+      for (String port : ports) shards.add(JdbcRepository.connect(dbname, port, user, passwd));
+      return new ShardedRepository(shards);
+   }
+
+   /*
+    * Loads the CSV files into InMemoryRepository shards, split the way
+    * split() splits them for Postgres.
+    *
+    * @param dataDir the directory holding users.csv, stores.csv and the rest
+    * @param numShards the number of shards
+    */
+   public static ShardedRepository loadMemory(File dataDir, int numShards) throws IOException, SQLException {
+      final String[] bounds = boundaries(readStores(dataDir), numShards);
+      List<InMemoryRepository> shards = new ArrayList<InMemoryRepository>();
+      int largest = 0;
+      for (int i = 0; i < numShards; i++) {
+         final int shard = i;
+         shards.add(InMemoryRepository.load(dataDir, s -> shardOf(bounds, s.latitude, s.longitude) == shard));
+         largest = Math.max(largest, shards.get(i).largestNumber());
+      }
+      for (int i = 0; i < numShards; i++) shards.get(i).interleaveNumbers(i, numShards, largest);
+      return new ShardedRepository(new ArrayList<AmazonRepository>(shards));
+   }
+
+   public int size() {
+      return shards.length;
+   }
+
+   //the index of the shard holding the store
+   public int shardIndex(int storeID) throws SQLException {
+      AmazonRepository shard = shardOf(storeID);
+      for (int i = 0; i < shards.length; i++) {
+         if (shards[i] == shard) return i;
+      }
+      return 0;
+   }
+
+   /*
+    * The geohash of a location: longitude and latitude bisected in turn, five
+    * bits per character, so that nearby places share a prefix and sorting by
+    * geohash walks the map region by region. Latitudes past the poles (the
+    * sample data has some) count as the pole.
+    */
+   static String geohash(double latitude, double longitude, int precision) {
+      double[] lat = {-90, 90}, lon = {-180, 180};
+      latitude = Math.max(-90, Math.min(90, latitude));
+      longitude = Math.max(-180, Math.min(180, longitude));
+      StringBuilder hash = new StringBuilder(precision);
+      boolean even = true;
+      int bits = 0, ch = 0;
+      while (hash.length() < precision) {
+         double[] range = even ? lon : lat;
+         double value = even ? longitude : latitude;
+         double mid = (range[0] + range[1]) / 2;
+         ch <<= 1;
+         if (value >= mid) {
+            ch |= 1;
+            range[0] = mid;
+         }
+         else {
+            range[1] = mid;
+         }
+         even = !even;
+         if (++bits == 5) {
+            hash.append(BASE32.charAt(ch));
+            bits = 0;
+            ch = 0;
+         }
+      }
+      return hash.toString();
+   }
+
+   /*
+    * Cuts the geohashes of the stores into ranges holding about the same
+    * number of stores.
+    *
+    * @return the first geohash of every shard but the first, ascending
+    */
+   static String[] boundaries(List<Store> stores, int numShards) {
+      String[] hashes = new String[stores.size()];
+      for (int i = 0; i < hashes.length; i++) hashes[i] = geohash(stores.get(i).latitude, stores.get(i).longitude, GEOHASH_PRECISION);
+      Arrays.sort(hashes);
+      String[] bounds = new String[numShards - 1];
+      for (int i = 1; i < numShards; i++) {
+         bounds[i - 1] = hashes.length == 0 ? "" : hashes[Math.min(hashes.length - 1, (int) ((long) hashes.length * i / numShards))];
+      }
+      return bounds;
+   }
+
+   //the shard of a location: the number of boundaries at or before its geohash
+   static int shardOf(String[] boundaries, double latitude, double longitude) {
+      String hash = geohash(latitude, longitude, GEOHASH_PRECISION);
+      int shard = 0;
+      while (shard < boundaries.length && boundaries[shard].compareTo(hash) <= 0) shard++;
+      return shard;
+   }
+
+   /*
+    * The next serial number of an interleaved series after a used one: the
+    * smallest number above it that is n * shards + shard + 1.
+    */
+   static int following(int used, int shard, int shards) {
+      return used + 1 + Math.floorMod(shard - used, shards);
+   }
+
+   private Map<Integer, Integer> readDirectory() throws SQLException {
+      Map<Integer, Integer> dir = new HashMap<Integer, Integer>();
+      List<List<Store>> stores = fanOut(shard -> shard.stores());
+      for (int i = 0; i < stores.size(); i++) {
+         for (Store s : stores.get(i)) dir.put(s.storeID, i);
+      }
+      return dir;
+   }
+
+   //the shard of a store; a store the directory does not know makes it reread once
+   private AmazonRepository shardOf(int storeID) throws SQLException {
+      Integer shard = directory.get(storeID);
+      if (shard == null) {
+         directory = readDirectory();
+         shard = directory.get(storeID);
+      }
+      return shards[shard == null ? 0 : shard];
+   }
+
+   private interface ShardCall<T> {
+      T call(AmazonRepository shard) throws SQLException;
+   }
+
+   //runs the call on every shard at the same time; the results are in shard order
+   private <T> List<T> fanOut(final ShardCall<T> call) throws SQLException {
+      List<Future<T>> futures = new ArrayList<Future<T>>();
+      for (final AmazonRepository shard : shards) futures.add(pool.submit(() -> call.call(shard)));
+      List<T> results = new ArrayList<T>();
+      try {
+         for (Future<T> f : futures) results.add(f.get());
+      }
+      catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("interrupted");
+      }
+      catch (ExecutionException e) {
+         if (e.getCause() instanceof SQLException) throw (SQLException) e.getCause();
+         throw new SQLException(e.getCause().toString());
+      }
+      return results;
+   }
+
+   private static <T> List<T> merge(List<List<T>> lists, Comparator<T> order, int limit) {
+      List<T> all = new ArrayList<T>();
+      for (List<T> list : lists) all.addAll(list);
+      if (order != null) all.sort(order);
+      return all.size() > limit ? new ArrayList<T>(all.subList(0, limit)) : all;
+   }
+
+   private static List<Integer> union(List<List<Integer>> lists) {
+      TreeSet<Integer> ids = new TreeSet<Integer>();
+      for (List<Integer> list : lists) ids.addAll(list);
+      return new ArrayList<Integer>(ids);
+   }
+
+   public int createUser(String name, String password, double latitude, double longitude, String type) throws SQLException {
+      int userID = shards[0].createUser(name, password, latitude, longitude, type);
+      final User u = shards[0].getUser(userID);
+      for (int i = 1; i < shards.length; i++) shards[i].copyUser(u);
+      return userID;
+   }
+
+   public void copyUser(final User user) throws SQLException {
+      fanOut(shard -> {
+         shard.copyUser(user);
+         return null;
+      });
+   }
+
+   public User login(String name, String password) throws SQLException {
+      return shards[0].login(name, password);
+   }
+
+   public User getUser(int userID) throws SQLException {
+      return shards[0].getUser(userID);
+   }
+
+   public List<User> users() throws SQLException {
+      return shards[0].users();
+   }
+
+   public Map<Integer, String> userNames(List<Integer> userIDs) throws SQLException {
+      return shards[0].userNames(userIDs);
+   }
+
+   public boolean updateUser(final User user) throws SQLException {
+      return fanOut(shard -> shard.updateUser(user)).get(0);
+   }
+
+   public List<Store> stores() throws SQLException {
+      return merge(fanOut(shard -> shard.stores()), (a, b) -> Integer.compare(a.storeID, b.storeID), Integer.MAX_VALUE);
+   }
+
+   public List<Integer> storesManagedBy(final int managerID) throws SQLException {
+      return union(fanOut(shard -> shard.storesManagedBy(managerID)));
+   }
+
+   public List<Integer> managerIDs() throws SQLException {
+      return union(fanOut(shard -> shard.managerIDs()));
+   }
+
+   public Product getProduct(int storeID, String productName) throws SQLException {
+      return shardOf(storeID).getProduct(storeID, productName);
+   }
+
+   public List<Product> productsOf(int storeID) throws SQLException {
+      return shardOf(storeID).productsOf(storeID);
+   }
+
+   public void forEachProduct(Consumer<Product> visitor) throws SQLException {
+      for (AmazonRepository shard : shards) shard.forEachProduct(visitor);
+   }
+
+   public boolean updateProduct(int storeID, String productName, int numberOfUnits, double pricePerUnit) throws SQLException {
+      return shardOf(storeID).updateProduct(storeID, productName, numberOfUnits, pricePerUnit);
+   }
+
+   public int placeOrder(int customerID, int storeID, String productName, int units) throws SQLException {
+      return shardOf(storeID).placeOrder(customerID, storeID, productName, units);
+   }
+
+   public List<Integer> placeOrders(int customerID, List<OrderLine> lines) throws SQLException {
+      Map<AmazonRepository, List<Integer>> byShard = new LinkedHashMap<AmazonRepository, List<Integer>>();
+      for (int i = 0; i < lines.size(); i++) {
+         AmazonRepository shard = shardOf(lines.get(i).storeID);
+         if (!byShard.containsKey(shard)) byShard.put(shard, new ArrayList<Integer>());
+         byShard.get(shard).add(i);
+      }
+      Integer[] numbers = new Integer[lines.size()];
+      List<Integer> placed = new ArrayList<Integer>();
+      try {
+         for (Map.Entry<AmazonRepository, List<Integer>> e : byShard.entrySet()) {
+            List<OrderLine> part = new ArrayList<OrderLine>();
+            for (int i : e.getValue()) part.add(lines.get(i));
+            List<Integer> got = e.getKey().placeOrders(customerID, part);
+            if (got == null) {
+               cancel(placed);
+               return null;
+            }
+            for (int j = 0; j < got.size(); j++) numbers[e.getValue().get(j)] = got.get(j);
+            placed.addAll(got);
+         }
+      }
+      catch (SQLException e) {
+         cancel(placed);
+         throw e;
+      }
+      return Arrays.asList(numbers);
+   }
+
+   //undoes the orders of a cross shard checkout that could not complete
+   private void cancel(List<Integer> orderNumbers) throws SQLException {
+      for (int orderNumber : orderNumbers) cancelOrder(orderNumber);
+   }
+
+   public boolean cancelOrder(final int orderNumber) throws SQLException {
+      for (boolean cancelled : fanOut(shard -> shard.cancelOrder(orderNumber))) {
+         if (cancelled) return true;
+      }
+      return false;
+   }
+
+   public List<Order> recentOrders(final int customerID, int limit) throws SQLException {
+      return merge(fanOut(shard -> shard.recentOrders(customerID, limit)), NEWEST_ORDER_FIRST, limit);
+   }
+
+   public List<Order> ordersOfManagedStores(final int managerID) throws SQLException {
+      return merge(fanOut(shard -> shard.ordersOfManagedStores(managerID)), NEWEST_ORDER_FIRST, Integer.MAX_VALUE);
+   }
+
+   public void forEachOrder(Consumer<Order> visitor) throws SQLException {
+      for (AmazonRepository shard : shards) shard.forEachOrder(visitor);
+   }
+
+   public Outcome updateProductAsManager(int managerID, int storeID, String productName, int numberOfUnits, double pricePerUnit) throws SQLException {
+      return shardOf(storeID).updateProductAsManager(managerID, storeID, productName, numberOfUnits, pricePerUnit);
+   }
+
+   //every shard changes the products of its own stores; the users are on every shard
+   public int bulkUpdateProducts(final int managerID, final ProductFilter filter, final Adjustment adjustment, final int chunkSize) throws SQLException {
+      int changed = 0;
+      for (int n : fanOut(shard -> shard.bulkUpdateProducts(managerID, filter, adjustment, chunkSize))) changed += n;
+      return changed;
+   }
+
+   public int requestSupply(int managerID, int warehouseID, int storeID, String productName, int units) throws SQLException {
+      return shardOf(storeID).requestSupply(managerID, warehouseID, storeID, productName, units);
+   }
+
+   public Outcome requestSupplyAsManager(int managerID, int warehouseID, int storeID, String productName, int units) throws SQLException {
+      return shardOf(storeID).requestSupplyAsManager(managerID, warehouseID, storeID, productName, units);
+   }
+
+   public List<SupplyRequest> supplyRequests(int storeID, int limit) throws SQLException {
+      return shardOf(storeID).supplyRequests(storeID, limit);
+   }
+
+   public void forEachSupplyRequest(Consumer<SupplyRequest> visitor) throws SQLException {
+      for (AmazonRepository shard : shards) shard.forEachSupplyRequest(visitor);
+   }
+
+   public List<Integer> warehouseIDs() throws SQLException {
+      return shards[0].warehouseIDs();
+   }
+
+   //a warehouse supplies stores on every shard; the shards are asked in turn until limit requests are claimed
+   public List<SupplyRequest> claimSupplyRequests(int warehouseID, int limit) throws SQLException {
+      List<SupplyRequest> claimed = new ArrayList<SupplyRequest>();
+      for (AmazonRepository shard : shards) {
+         if (claimed.size() >= limit) break;
+         claimed.addAll(shard.claimSupplyRequests(warehouseID, limit - claimed.size()));
+      }
+      return claimed;
+   }
+
+   public int receiveSupplyRequests(final List<Integer> requestNumbers) throws SQLException {
+      int received = 0;
+      for (int n : fanOut(shard -> shard.receiveSupplyRequests(requestNumbers))) received += n;
+      return received;
+   }
+
+   public int requeueSupplyRequests(final long shippedMillis) throws SQLException {
+      int requeued = 0;
+      for (int n : fanOut(shard -> shard.requeueSupplyRequests(shippedMillis))) requeued += n;
+      return requeued;
+   }
+
+   public int recordProductUpdate(int managerID, int storeID, String productName) throws SQLException {
+      return shardOf(storeID).recordProductUpdate(managerID, storeID, productName);
+   }
+
+   public List<ProductUpdate> recentUpdates(final int managerID, int limit) throws SQLException {
+      return merge(fanOut(shard -> shard.recentUpdates(managerID, limit)), NEWEST_UPDATE_FIRST, limit);
+   }
+
+   public void forEachProductUpdate(Consumer<ProductUpdate> visitor) throws SQLException {
+      for (AmazonRepository shard : shards) shard.forEachProductUpdate(visitor);
+   }
+
+   public void forEachProductVersion(Consumer<ProductVersion> visitor) throws SQLException {
+      for (AmazonRepository shard : shards) shard.forEachProductVersion(visitor);
+   }
+
+   public int compactProductVersions(final Timestamp before) throws SQLException {
+      int removed = 0;
+      for (int n : fanOut(shard -> shard.compactProductVersions(before))) removed += n;
+      return removed;
+   }
+
+   public void close() {
+      pool.shutdown();
+      for (AmazonRepository shard : shards) shard.close();
+   }
+
+   //storeID, latitude, longitude and managerID of every row of stores.csv
+   static List<Store> readStores(File dataDir) throws IOException {
+      List<Store> stores = new ArrayList<Store>();
+      BufferedReader reader = new BufferedReader(new FileReader(new File(dataDir, "stores.csv")));
+      try {
+         reader.readLine(); // header
+         String line;
+         while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) continue;
+            List<String> r = CsvLoader.splitCsv(line);
+            stores.add(new Store(Integer.parseInt(r.get(0).trim()), Double.parseDouble(r.get(1)), Double.parseDouble(r.get(2)),
+                                 Integer.parseInt(r.get(3).trim()), null));
+         }
+      }
+      finally {
+         reader.close();
+      }
+      return stores;
+   }
+
+   //the per store files and the column of each holding the storeID
+   private static final String[] STORE_FILES = {"stores.csv", "products.csv", "orders.csv", "productSupplyRequests.csv", "productUpdates.csv"};
+   private static final int[] STORE_COLUMN = {0, 0, 2, 3, 2};
+   private static final String[] GLOBAL_FILES = {"users.csv", "warehouse.csv"};
+
+   /*
+    * Splits the CSV files into one directory per shard, shard0 .. shardN-1,
+    * each of which loads into its Postgres instance like the whole data set
+    * loads into one (CsvLoader or load_data.sql).
+    *
+    * @return the boundaries the stores were split at
+    */
+   public static String[] split(File dataDir, File outDir, int numShards) throws IOException {
+      List<Store> stores = readStores(dataDir);
+      String[] bounds = boundaries(stores, numShards);
+      Map<Integer, Integer> shardOfStore = new HashMap<Integer, Integer>();
+      for (Store s : stores) shardOfStore.put(s.storeID, shardOf(bounds, s.latitude, s.longitude));
+      File[] dirs = new File[numShards];
+      for (int i = 0; i < numShards; i++) {
+         dirs[i] = new File(outDir, "shard" + i);
+         dirs[i].mkdirs();
+      }
+      for (String file : GLOBAL_FILES) {
+         for (File dir : dirs) Files.copy(new File(dataDir, file).toPath(), new File(dir, file).toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+      for (int f = 0; f < STORE_FILES.length; f++) {
+         BufferedReader reader = new BufferedReader(new FileReader(new File(dataDir, STORE_FILES[f])), 1 << 16);
+         BufferedWriter[] writers = new BufferedWriter[numShards];
+         try {
+            String header = reader.readLine();
+            for (int i = 0; i < numShards; i++) {
+               writers[i] = new BufferedWriter(new FileWriter(new File(dirs[i], STORE_FILES[f])), 1 << 16);
+               writers[i].write(header + "\n");
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+               if (line.isEmpty()) continue;
+               Integer shard = shardOfStore.get(Integer.parseInt(CsvLoader.splitCsv(line).get(STORE_COLUMN[f]).trim()));
+               writers[shard == null ? 0 : shard].write(line + "\n");
+            }
+         }
+         finally {
+            reader.close();
+            for (BufferedWriter w : writers) {
+               if (w != null) w.close();
+            }
+         }
+      }
+      return bounds;
+   }
+
+   public static void main(String[] args) throws Exception {
+      if (args.length == 4 && args[0].equals("split")) {
+         String[] bounds = split(new File(args[1]), new File(args[2]), Integer.parseInt(args[3]));
+         System.out.println("Split " + args[1] + " into " + args[3] + " shards at geohashes " + Arrays.toString(bounds));
+      }
+      else if (args.length >= 4 && args[0].equals("number")) {
+         // after the shards are loaded: interleave the serials above the largest number on any shard
+         List<JdbcRepository> shards = new ArrayList<JdbcRepository>();
+         int largest = 0;
+         for (int i = 3; i < args.length; i++) {
+            shards.add(JdbcRepository.connect(args[1], args[i], args[2], ""));
+            largest = Math.max(largest, shards.get(shards.size() - 1).largestNumber());
+         }
+         for (int i = 0; i < shards.size(); i++) {
+            shards.get(i).interleaveNumbers(i, shards.size(), largest);
+            shards.get(i).close();
+         }
+      }
+      else {
+         System.err.println("Usage: java ShardedRepository split <dataDir> <outDir> <shards>");
+         System.err.println("       java ShardedRepository number <dbname> <user> <port> [<port> ...]");
+      }
+   }
+}
@@ -0,0 +1,198 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+//Answers "which stores near me can fill an order of N units of this product".
+//Stores are bucketed in a uniform grid over latitude/longitude, and every
+//product keeps an inventory list (store, units, price) sorted by store id. A
+//query walks whichever side is smaller: the grid cells around the user, probing
+//the product's list by binary search, or the product's list, checking each
+//store's distance directly.
+public class StockLocator {
+
+   //a store that can fill the order
+   public static class Result {
+      public final int storeID;
+      public final double distance;
+      public final int units;
+      public final double price;
+
+      Result(int storeID, double distance, int units, double price) {
+         this.storeID = storeID;
+         this.distance = distance;
+         this.units = units;
+         this.price = price;
+      }
+   }
+
+   //the stores selling one product, sorted by store id
+   private static class Inventory {
+      int[] store = new int[4];
+      int[] units = new int[4];
+      double[] price = new double[4];
+      int size = 0;
+
+      int find(int storeID) {
+         return Arrays.binarySearch(store, 0, size, storeID);
+      }
+
+      void put(int storeID, int n, double p) {
+         int pos = find(storeID);
+         if (pos < 0) {
+            pos = -pos - 1;
+            if (size == store.length) {
+               store = Arrays.copyOf(store, size * 2);
+               units = Arrays.copyOf(units, size * 2);
+               price = Arrays.copyOf(price, size * 2);
+            }
+            System.arraycopy(store, pos, store, pos + 1, size - pos);
+            System.arraycopy(units, pos, units, pos + 1, size - pos);
+            System.arraycopy(price, pos, price, pos + 1, size - pos);
+            store[pos] = storeID;
+            size++;
+         }
+         units[pos] = n;
+         price[pos] = p;
+      }
+   }
+
+   private final double cellSize;
+   private final ProductDictionary products = new ProductDictionary();
+   private final List<Inventory> inventory = new ArrayList<Inventory>();
+   private final HashMap<Long, int[]> grid = new HashMap<Long, int[]>();
+   private double[] latitude = new double[16];
+   private double[] longitude = new double[16];
+   private boolean[] known = new boolean[16];
+
+   /*
+    * @param cellSize width of a grid cell in the units of calculateDistance;
+    *        a fraction of the search radius keeps the number of cells scanned small
+    */
+   public StockLocator(double cellSize) {
+      this.cellSize = cellSize;
+   }
+
+   /*
+    * Loads every store and every product with one scan of each table.
+    *
+    * @param repo the data source
+    * @return the loaded locator
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static StockLocator load(AmazonRepository repo) throws SQLException {
+      StockLocator locator = new StockLocator(7.5);
+      for (AmazonRepository.Store s : repo.stores()) {
+         locator.addStore(s.storeID, s.latitude, s.longitude);
+      }
+      repo.forEachProduct(p -> locator.setStock(p.storeID, p.productName, p.numberOfUnits, p.pricePerUnit));
+      return locator;
+   }
+
+   private long cell(double lat, double lon) {
+      long x = (long) Math.floor(lat / cellSize);
+      long y = (long) Math.floor(lon / cellSize);
+      return (x << 32) ^ (y & 0xffffffffL);
+   }
+
+   public synchronized void addStore(int storeID, double lat, double lon) {
+      if (storeID >= latitude.length) {
+         int capacity = Math.max(storeID + 1, latitude.length * 2);
+         latitude = Arrays.copyOf(latitude, capacity);
+         longitude = Arrays.copyOf(longitude, capacity);
+         known = Arrays.copyOf(known, capacity);
+      }
+      latitude[storeID] = lat;
+      longitude[storeID] = lon;
+      known[storeID] = true;
+      long key = cell(lat, lon);
+      int[] stores = grid.get(key);
+      if (stores == null) {
+         stores = new int[] {storeID};
+      }
+      else {
+         stores = Arrays.copyOf(stores, stores.length + 1);
+         stores[stores.length - 1] = storeID;
+      }
+      grid.put(key, stores);
+   }
+
+   private Inventory inventoryOf(String productName, boolean create) {
+      int code = create ? products.code(productName) : products.lookup(productName);
+      if (code == -1) return null;
+      while (inventory.size() <= code) inventory.add(new Inventory());
+      return inventory.get(code);
+   }
+
+   //sets the units and price of a (store, product), e.g. after updateProduct
+   public synchronized void setStock(int storeID, String productName, int units, double price) {
+      inventoryOf(productName, true).put(storeID, units, price);
+   }
+
+   //adds (or with a negative delta removes) units, e.g. after an order or a supply request
+   public synchronized void addUnits(int storeID, String productName, int delta) {
+      Inventory inv = inventoryOf(productName, false);
+      if (inv == null) return;
+      int pos = inv.find(storeID);
+      if (pos >= 0) inv.units[pos] += delta;
+   }
+
+   /*
+    * Stores within radius of (lat, lon) that have at least the given number
+    * of units of a product, nearest first and cheapest first among equally
+    * near stores.
+    *
+    * @param productName the product, as stored in Product
+    * @param quantity units the order needs
+    * @param lat latitude of the customer
+    * @param lon longitude of the customer
+    * @param radius search radius, 30 in the application
+    * @param limit maximum number of stores returned
+    * @return the matching stores
+    */
+   public synchronized List<Result> nearest(String productName, int quantity, double lat, double lon, double radius, int limit) {
+      List<Result> result = new ArrayList<Result>();
+      Inventory inv = inventoryOf(productName, false);
+      if (inv == null || inv.size == 0) return result;
+
+      long x0 = (long) Math.floor((lat - radius) / cellSize), x1 = (long) Math.floor((lat + radius) / cellSize);
+      long y0 = (long) Math.floor((lon - radius) / cellSize), y1 = (long) Math.floor((lon + radius) / cellSize);
+      long candidates = 0;
+      for (long x = x0; x <= x1; x++) {
+         for (long y = y0; y <= y1; y++) {
+            int[] stores = grid.get((x << 32) ^ (y & 0xffffffffL));
+            if (stores != null) candidates += stores.length;
+         }
+      }
+
+      if (candidates < inv.size) {
+         // fewer stores around the user than stores carrying the product: probe from the grid
+         for (long x = x0; x <= x1; x++) {
+            for (long y = y0; y <= y1; y++) {
+               int[] stores = grid.get((x << 32) ^ (y & 0xffffffffL));
+               if (stores == null) continue;
+               for (int s : stores) {
+                  int pos = inv.find(s);
+                  if (pos >= 0) consider(inv, pos, quantity, lat, lon, radius, result);
+               }
+            }
+         }
+      }
+      else {
+         for (int pos = 0; pos < inv.size; pos++) {
+            consider(inv, pos, quantity, lat, lon, radius, result);
+         }
+      }
+      result.sort((a, b) -> a.distance != b.distance ? Double.compare(a.distance, b.distance) : Double.compare(a.price, b.price));
+      return result.size() > limit ? new ArrayList<Result>(result.subList(0, limit)) : result;
+   }
+
+   private void consider(Inventory inv, int pos, int quantity, double lat, double lon, double radius, List<Result> result) {
+      int s = inv.store[pos];
+      if (inv.units[pos] < quantity || s >= known.length || !known[s]) return;
+      double dLat = latitude[s] - lat, dLon = longitude[s] - lon;
+      double distance = Math.sqrt(dLat * dLat + dLon * dLon);
+      if (distance < radius) result.add(new Result(s, distance, inv.units[pos], inv.price[pos]));
+   }
+}
@@ -0,0 +1,200 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Works off the queue of supply requests. Every worker thread serves some of the
+//warehouses: it claims a batch of a warehouse's pending requests, which marks
+//them shipped, waits out the shipping time and then receives the batch, which
+//adds the units to the products of the stores in one set-based update. A
+//worker with nothing to claim at any of its warehouses sleeps a while. A batch
+//that can not be received is logged and kept, still shipped, and the worker
+//tries it again on its next pass. A batch whose worker died with its app
+//instance stays shipped until the first worker of a running instance finds it
+//shipped longer than staleMillis ago and puts it back to pending.
+//
+//Workers of this and of other app instances can serve the same warehouse: a
+//request is claimed by one of them only. With more workers than warehouses
+//every warehouse has several; with fewer, every worker has several warehouses.
+public class SupplyFulfillment {
+
+   //told about every batch received, on the worker's thread
+   public interface Listener {
+      void received(List<AmazonRepository.SupplyRequest> requests);
+   }
+
+   private final List<Thread> workers = new ArrayList<Thread>();
+   private final AtomicLong received = new AtomicLong();
+   private final int batchSize;
+   private final long shipMillis, idleMillis, staleMillis;
+   private final Listener listener;
+   private volatile boolean running = true;
+
+   /*
+    * Starts the workers.
+    *
+    * @param source gives every worker its repository
+    * @param warehouses the warehouses to serve
+    * @param workers the number of worker threads
+    * @param batchSize the most requests claimed at once
+    * @param shipMillis how long a batch is on its way
+    * @param idleMillis how long a worker with nothing to do sleeps
+    * @param staleMillis how long a batch is shipped before it is taken for
+    *        lost and put back to pending; well above shipMillis
+    * @param listener told about every batch received, or null
+    */
+   public SupplyFulfillment(AmazonRepository.Source source, List<Integer> warehouses, int workers, int batchSize, long shipMillis, long idleMillis,
+                            long staleMillis, Listener listener) throws SQLException {
+      this.batchSize = batchSize;
+      this.shipMillis = shipMillis;
+      this.idleMillis = idleMillis;
+      this.staleMillis = staleMillis;
+      this.listener = listener;
+      if (warehouses.isEmpty()) return;
+      for (int i = 0; i < workers; i++) {
+         List<Integer> served = new ArrayList<Integer>();
+         for (int j = 0; j < warehouses.size(); j++) {
+            if (i % warehouses.size() == j % workers) served.add(warehouses.get(j));
+         }
+         final AmazonRepository repo = source.open();
+         final boolean requeues = i == 0;
+         Thread worker = new Thread(() -> work(source, repo, served, requeues), "fulfillment-" + i);
+         worker.setDaemon(true);
+         this.workers.add(worker);
+      }
+      for (Thread worker : this.workers) worker.start();
+   }
+
+   private void work(AmazonRepository.Source source, AmazonRepository repo, List<Integer> warehouses, boolean requeues) {
+      // batches that arrived but failed to be received, tried again on every pass
+      List<List<AmazonRepository.SupplyRequest>> undelivered = new ArrayList<List<AmazonRepository.SupplyRequest>>();
+      long requeued = System.currentTimeMillis();
+      try {
+         while (running) {
+            int done = 0;
+            if (requeues && System.currentTimeMillis() - requeued >= staleMillis / 2) {
+               requeued = System.currentTimeMillis();
+               try {
+                  int n = repo.requeueSupplyRequests(staleMillis);
+                  if (n > 0) System.err.println("Requeued " + n + " supply requests shipped over " + staleMillis + " ms ago");
+               }
+               catch (SQLException e) {
+                  System.err.println("Error: " + e.getMessage());
+               }
+            }
+            for (Iterator<List<AmazonRepository.SupplyRequest>> it = undelivered.iterator(); it.hasNext(); ) {
+               List<AmazonRepository.SupplyRequest> batch = it.next();
+               if (deliver(repo, batch)) {
+                  it.remove();
+                  done += batch.size();
+               }
+            }
+            for (int warehouseID : warehouses) {
+               if (!running) break;
+               List<AmazonRepository.SupplyRequest> batch;
+               try {
+                  batch = repo.claimSupplyRequests(warehouseID, batchSize);
+               }
+               catch (SQLException e) {
+                  System.err.println("Error: " + e.getMessage());
+                  continue;
+               }
+               if (batch.isEmpty()) continue;
+               if (shipMillis > 0) Thread.sleep(shipMillis);
+               if (deliver(repo, batch)) {
+                  done += batch.size();
+               }
+               else {
+                  undelivered.add(batch);
+               }
+            }
+            if (done == 0) Thread.sleep(idleMillis);
+         }
+         for (List<AmazonRepository.SupplyRequest> batch : undelivered) deliver(repo, batch);
+      }
+      catch (InterruptedException e) {
+         // shut down
+      }
+      finally {
+         source.close(repo);
+      }
+   }
+
+   //receives a batch and tells the listener; false when it stays shipped for now
+   private boolean deliver(AmazonRepository repo, List<AmazonRepository.SupplyRequest> batch) throws InterruptedException {
+      int n;
+      try {
+         n = receive(repo, batch);
+      }
+      catch (SQLException e) {
+         System.err.println("Error: supply requests " + numbers(batch) + " stay shipped: " + e.getMessage());
+         return false;
+      }
+      // requests that were requeued meanwhile are received by whoever claimed them again
+      received.addAndGet(n);
+      if (listener != null) listener.received(batch);
+      return true;
+   }
+
+   private static List<Integer> numbers(List<AmazonRepository.SupplyRequest> batch) {
+      List<Integer> numbers = new ArrayList<Integer>();
+      for (AmazonRepository.SupplyRequest r : batch) numbers.add(r.requestNumber);
+      return numbers;
+   }
+
+   /*
+    * Receives a shipped batch, trying again a few times when the transaction
+    * fails, e.g. as a deadlock victim: the requests stay shipped until then.
+    *
+    * @return the number of requests received
+    */
+   static int receive(AmazonRepository repo, List<AmazonRepository.SupplyRequest> batch) throws SQLException, InterruptedException {
+      List<Integer> numbers = numbers(batch);
+      for (int attempt = 1; ; attempt++) {
+         try {
+            return repo.receiveSupplyRequests(numbers);
+         }
+         catch (SQLException e) {
+            if (attempt == 5) throw e;
+            Thread.sleep(10L * attempt);
+         }
+      }
+   }
+
+   /*
+    * Claims and receives one batch of the warehouse's pending requests on
+    * this thread, without shipping time.
+    *
+    * @return the requests received
+    */
+   public static List<AmazonRepository.SupplyRequest> fulfill(AmazonRepository repo, int warehouseID, int batchSize) throws SQLException {
+      List<AmazonRepository.SupplyRequest> batch = repo.claimSupplyRequests(warehouseID, batchSize);
+      if (batch.isEmpty()) return batch;
+      try {
+         receive(repo, batch);
+      }
+      catch (InterruptedException e) {
+         throw new SQLException("interrupted");
+      }
+      return batch;
+   }
+
+   //the requests received so far
+   public long received() {
+      return received.get();
+   }
+
+   //stops the workers, letting a batch on its way arrive first
+   public void shutdown() {
+      running = false;
+      for (Thread worker : workers) {
+         try {
+            worker.join();
+         }
+         catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      }
+   }
+}
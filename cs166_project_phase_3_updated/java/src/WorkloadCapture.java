@@ -0,0 +1,320 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+//Binary log of the statements a JdbcRepository sends: for every statement the
+//session (one per connection), when it started and how long it took, its SQL
+//template, its bind values and how many rows it returned or changed. The
+//transaction calls (autocommit off and on, commit, rollback) are entries too,
+//so WorkloadReplay can send the same calls in the same order.
+//
+//Every template is written out once, the first time it is seen; after that an
+//entry refers to it by number. Numbers are written as varints and the entries
+//go through one buffered stream, so recording is a few dozen bytes copied
+//under a lock. Run the application with -Dcapture.log=<file> to record; the
+//log is flushed when the JVM exits.
+public class WorkloadCapture {
+
+   // what an entry is
+   public static final byte QUERY = 1;
+   public static final byte UPDATE = 2;
+   public static final byte CALL = 3;   // {? = call f(...)} returning an integer
+   public static final byte BATCH = 4;  // one statement, many rows of values
+   public static final byte AUTOCOMMIT_OFF = 5;
+   public static final byte AUTOCOMMIT_ON = 6;
+   public static final byte COMMIT = 7;
+   public static final byte ROLLBACK = 8;
+
+   static final int MAGIC = 0x414d5a57; // "AMZW"
+   static final int VERSION = 1;
+
+   private static WorkloadCapture shared = null;
+   private static boolean sharedOpened = false;
+
+   private final DataOutputStream out;
+   private final long startNanos;
+   private final HashMap<String, Integer> templates = new HashMap<String, Integer>();
+   private int sessions = 0;
+   private boolean failed = false;
+
+   public WorkloadCapture(File file) throws IOException {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+      startNanos = System.nanoTime();
+      out.writeInt(MAGIC);
+      out.writeShort(VERSION);
+      out.writeLong(System.currentTimeMillis());
+   }
+
+   /*
+    * The capture of this process, if the capture.log property names a file:
+    * opened the first time it is asked for and closed when the JVM exits.
+    *
+    * @return the capture, or null when nothing is recorded
+    */
+   public static synchronized WorkloadCapture shared() {
+      if (!sharedOpened) {
+         sharedOpened = true;
+         String file = System.getProperty("capture.log");
+         if (file != null) {
+            try {
+               final WorkloadCapture capture = new WorkloadCapture(new File(file));
+               Runtime.getRuntime().addShutdownHook(new Thread(() -> capture.close()));
+               shared = capture;
+            }
+            catch (IOException e) {
+               System.err.println("Workload capture is off: " + e.getMessage());
+            }
+         }
+      }
+      return shared;
+   }
+
+   //a number for a new connection; its entries keep their order on replay
+   public synchronized int newSession() {
+      return ++sessions;
+   }
+
+   /*
+    * Appends an entry. A write that fails turns the capture off rather than
+    * failing the statement.
+    *
+    * @param session the session of the connection
+    * @param kind QUERY, UPDATE, CALL or one of the transaction calls
+    * @param start System.nanoTime() before the statement was sent
+    * @param end System.nanoTime() after its result came back
+    * @param sql the statement, null for the transaction calls
+    * @param params its bind values
+    * @param result the rows returned or changed, or what a CALL returned
+    */
+   public void record(int session, byte kind, long start, long end, String sql, Object[] params, int result) {
+      List<Object[]> rows = new ArrayList<Object[]>(1);
+      if (params != null) rows.add(params);
+      write(session, kind, start, end, sql, rows, result);
+   }
+
+   //appends a BATCH entry: the statement once and the values of every row
+   public void recordBatch(int session, long start, long end, String sql, List<Object[]> rows) {
+      write(session, BATCH, start, end, sql, rows, rows.size());
+   }
+
+   private synchronized void write(int session, byte kind, long start, long end, String sql, List<Object[]> rows, int result) {
+      if (failed) return;
+      try {
+         out.writeByte(kind);
+         writeVarLong(out, session);
+         writeVarLong(out, Math.max(0, (start - startNanos) / 1000));
+         writeVarLong(out, Math.max(0, (end - start) / 1000));
+         if (sql == null) return;
+         Integer template = templates.get(sql);
+         if (template == null) {
+            template = templates.size();
+            templates.put(sql, template);
+            writeVarLong(out, template);
+            byte[] text = sql.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(out, text.length);
+            out.write(text);
+         }
+         else {
+            writeVarLong(out, template);
+         }
+         writeVarLong(out, ((result << 1) ^ (result >> 31)) & 0xffffffffL); // zigzag, a CALL may return less than 0
+         if (kind == BATCH) writeVarLong(out, rows.size());
+         for (Object[] row : rows) {
+            writeVarLong(out, row.length);
+            for (Object value : row) writeValue(out, value);
+         }
+      }
+      catch (IOException e) {
+         failed = true;
+         System.err.println("Workload capture is off: " + e.getMessage());
+      }
+   }
+
+   public synchronized void close() {
+      try {
+         out.close();
+      }
+      catch (IOException e) {
+         System.err.println("Error: " + e.getMessage());
+      }
+   }
+
+   static void writeVarLong(DataOutputStream out, long v) throws IOException {
+      while ((v & ~0x7fL) != 0) {
+         out.writeByte((int) (v & 0x7f) | 0x80);
+         v >>>= 7;
+      }
+      out.writeByte((int) v);
+   }
+
+   static long readVarLong(DataInputStream in) throws IOException {
+      long v = 0;
+      for (int shift = 0; ; shift += 7) {
+         int b = in.readUnsignedByte();
+         v |= (long) (b & 0x7f) << shift;
+         if ((b & 0x80) == 0) return v;
+      }
+   }
+
+   //a bind value with a tag saying its type, so replay binds the same type
+   static void writeValue(DataOutputStream out, Object value) throws IOException {
+      if (value == null) {
+         out.writeByte('N');
+      }
+      else if (value instanceof Integer) {
+         out.writeByte('I');
+         out.writeInt((Integer) value);
+      }
+      else if (value instanceof Long) {
+         out.writeByte('J');
+         out.writeLong((Long) value);
+      }
+      else if (value instanceof Double) {
+         out.writeByte('D');
+         out.writeDouble((Double) value);
+      }
+      else if (value instanceof Float) {
+         out.writeByte('F');
+         out.writeFloat((Float) value);
+      }
+      else if (value instanceof Boolean) {
+         out.writeByte('Z');
+         out.writeBoolean((Boolean) value);
+      }
+      else if (value instanceof Timestamp) {
+         out.writeByte('T');
+         out.writeLong(((Timestamp) value).getTime());
+         out.writeInt(((Timestamp) value).getNanos());
+      }
+      else if (value instanceof BigDecimal) {
+         out.writeByte('B');
+         out.writeUTF(value.toString());
+      }
+      else {
+         out.writeByte('S');
+         byte[] text = value.toString().getBytes(StandardCharsets.UTF_8);
+         writeVarLong(out, text.length);
+         out.write(text);
+      }
+   }
+
+   static Object readValue(DataInputStream in) throws IOException {
+      int tag = in.readUnsignedByte();
+      switch (tag) {
+         case 'N': return null;
+         case 'I': return in.readInt();
+         case 'J': return in.readLong();
+         case 'D': return in.readDouble();
+         case 'F': return in.readFloat();
+         case 'Z': return in.readBoolean();
+         case 'T': {
+            Timestamp t = new Timestamp(in.readLong());
+            t.setNanos(in.readInt());
+            return t;
+         }
+         case 'B': return new BigDecimal(in.readUTF());
+         case 'S': {
+            byte[] text = new byte[(int) readVarLong(in)];
+            in.readFully(text);
+            return new String(text, StandardCharsets.UTF_8);
+         }
+         default: throw new IOException("bad value tag " + tag);
+      }
+   }
+
+   //one recorded statement or transaction call
+   public static class Entry {
+      public final byte kind;
+      public final int session;
+      public final long startMicros, elapsedMicros;
+      public final int template;     // -1 for the transaction calls
+      public final String sql;
+      public final List<Object[]> rows; // the bind values, one row unless a BATCH
+      public final int result;
+
+      Entry(byte kind, int session, long startMicros, long elapsedMicros, int template, String sql, List<Object[]> rows, int result) {
+         this.kind = kind;
+         this.session = session;
+         this.startMicros = startMicros;
+         this.elapsedMicros = elapsedMicros;
+         this.template = template;
+         this.sql = sql;
+         this.rows = rows;
+         this.result = result;
+      }
+   }
+
+   public interface EntryVisitor {
+      void entry(Entry entry) throws IOException;
+   }
+
+   /*
+    * Reads a log in the order it was written. A log cut short, e.g. by a
+    * JVM that was killed, ends at the last whole entry.
+    *
+    * @param file the log
+    * @param visitor gets every entry
+    * @return the number of templates in the log
+    * @throws java.io.IOException when the file is not a capture log or can not be read
+    */
+   public static int read(File file, EntryVisitor visitor) throws IOException {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+      List<String> templates = new ArrayList<String>();
+      try {
+         if (in.readInt() != MAGIC || in.readShort() != VERSION) throw new IOException(file + " is not a workload capture log");
+         in.readLong();
+         while (true) {
+            int kind;
+            try {
+               kind = in.readByte();
+            }
+            catch (EOFException e) {
+               break;
+            }
+            try {
+               int session = (int) readVarLong(in);
+               long start = readVarLong(in), elapsed = readVarLong(in);
+               if (kind >= AUTOCOMMIT_OFF) {
+                  visitor.entry(new Entry((byte) kind, session, start, elapsed, -1, null, new ArrayList<Object[]>(), 0));
+                  continue;
+               }
+               int template = (int) readVarLong(in);
+               if (template == templates.size()) {
+                  byte[] text = new byte[(int) readVarLong(in)];
+                  in.readFully(text);
+                  templates.add(new String(text, StandardCharsets.UTF_8));
+               }
+               long zigzag = readVarLong(in);
+               int result = (int) ((zigzag >>> 1) ^ -(zigzag & 1));
+               int count = kind == BATCH ? (int) readVarLong(in) : 1;
+               List<Object[]> rows = new ArrayList<Object[]>(count);
+               for (int r = 0; r < count; r++) {
+                  Object[] row = new Object[(int) readVarLong(in)];
+                  for (int i = 0; i < row.length; i++) row[i] = readValue(in);
+                  rows.add(row);
+               }
+               visitor.entry(new Entry((byte) kind, session, start, elapsed, template, templates.get(template), rows, result));
+            }
+            catch (EOFException e) {
+               break; // the last entry was cut off
+            }
+         }
+      }
+      finally {
+         in.close();
+      }
+      return templates.size();
+   }
+}
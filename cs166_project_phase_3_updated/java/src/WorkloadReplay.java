@@ -0,0 +1,295 @@
+import java.io.File;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+//Sends a WorkloadCapture log to one or two databases again and compares them
+//with each other and with the capture. Before a replay a database is rebuilt
+//the way create_db.sh builds it: create_tables.sql, create_functions.sql, the
+//CSV files loaded by CsvLoader, create_indexes.sql, create_invalidations.sql.
+//Every captured session replays on its own connection and thread, in the order
+//it was recorded, so sessions overlap like they did. An entry waits for its
+//captured start time divided by the speed-up; a speed-up of 0 sends everything
+//as fast as the databases take it.
+//
+//Values the application read and sent back, like an orderNumber it cancels,
+//are replayed as captured. They match while the rebuilt database hands out
+//the same serial numbers, which holds for one session and mostly holds for a
+//few; statements that no longer match show up as errors or as other row
+//counts.
+//
+//Usage: java -cp classes:lib/pg73jdbc3.jar WorkloadReplay <log> <user> <sqlDir> <dataDir> <speedup> <dbname>:<port> [<dbname>:<port>]
+//A dataDir of - replays on the databases as they are.
+public class WorkloadReplay {
+
+   //the latencies of one statement template or transaction call
+   static class Stats {
+      private long[] micros = new long[16];
+      int count = 0, errors = 0;
+
+      void add(long latency) {
+         if (count == micros.length) micros = Arrays.copyOf(micros, count * 2);
+         micros[count++] = latency;
+      }
+
+      void addAll(Stats other) {
+         for (int i = 0; i < other.count; i++) add(other.micros[i]);
+         errors += other.errors;
+      }
+
+      double meanMillis() {
+         long sum = 0;
+         for (int i = 0; i < count; i++) sum += micros[i];
+         return count == 0 ? 0 : sum / 1000.0 / count;
+      }
+
+      double percentileMillis(double p) {
+         if (count == 0) return 0;
+         long[] sorted = Arrays.copyOf(micros, count);
+         Arrays.sort(sorted);
+         return sorted[Math.min(count - 1, (int) (p * count))] / 1000.0;
+      }
+   }
+
+   //one run: every statement's latency by template, and how long the run took
+   static class Report {
+      final String name;
+      final Map<Integer, Stats> byTemplate = new TreeMap<Integer, Stats>();
+      double seconds;
+
+      Report(String name) {
+         this.name = name;
+      }
+
+      Stats stats(int key) {
+         Stats s = byTemplate.get(key);
+         if (s == null) {
+            s = new Stats();
+            byTemplate.put(key, s);
+         }
+         return s;
+      }
+
+      long statements() {
+         long n = 0;
+         for (Stats s : byTemplate.values()) n += s.count;
+         return n;
+      }
+
+      long errors() {
+         long n = 0;
+         for (Stats s : byTemplate.values()) n += s.errors;
+         return n;
+      }
+   }
+
+   //statements by their template number, transaction calls by minus their kind
+   static int key(WorkloadCapture.Entry e) {
+      return e.template >= 0 ? e.template : -e.kind;
+   }
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 6) {
+         System.err.println("Usage: java WorkloadReplay <log> <user> <sqlDir> <dataDir> <speedup> <dbname>:<port> [<dbname>:<port>]");
+         return;
+      }
+      Class.forName("org.postgresql.Driver");
+      final Map<Integer, List<WorkloadCapture.Entry>> sessions = new TreeMap<Integer, List<WorkloadCapture.Entry>>();
+      final Map<Integer, String> labels = new HashMap<Integer, String>();
+      final Report captured = new Report("captured");
+      final long[] span = {Long.MAX_VALUE, 0};
+      WorkloadCapture.read(new File(args[0]), e -> {
+         List<WorkloadCapture.Entry> session = sessions.get(e.session);
+         if (session == null) {
+            session = new ArrayList<WorkloadCapture.Entry>();
+            sessions.put(e.session, session);
+         }
+         session.add(e);
+         if (!labels.containsKey(key(e))) labels.put(key(e), label(e));
+         captured.stats(key(e)).add(e.elapsedMicros);
+         span[0] = Math.min(span[0], e.startMicros);
+         span[1] = Math.max(span[1], e.startMicros + e.elapsedMicros);
+      });
+      captured.seconds = captured.statements() == 0 ? 0 : (span[1] - span[0]) / 1e6;
+
+      String user = args[1];
+      File sqlDir = new File(args[2]);
+      double speedup = Double.parseDouble(args[4]);
+      List<Report> reports = new ArrayList<Report>();
+      reports.add(captured);
+      for (int i = 5; i < args.length; i++) {
+         String[] target = args[i].split(":");
+         String url = "jdbc:postgresql://localhost:" + target[1] + "/" + target[0];
+         if (!args[3].equals("-")) {
+            long t = System.nanoTime();
+            rebuild(new CsvLoader(url, user, new File(args[3])), sqlDir);
+            System.out.printf("%-24s rebuilt in %.1f s%n", args[i], (System.nanoTime() - t) / 1e9);
+         }
+         reports.add(replay(sessions, url, user, speedup, args[i]));
+      }
+      print(reports, labels);
+   }
+
+   //a fresh database from the scripts of sqlDir and the CSV files
+   static void rebuild(CsvLoader loader, File sqlDir) throws Exception {
+      loader.runScript(new File(sqlDir, "create_tables.sql"));
+      loader.runScript(new File(sqlDir, "create_functions.sql"));
+      loader.loadAll();
+      loader.runScript(new File(sqlDir, "create_indexes.sql"));
+      loader.fixSequences();
+      loader.runScript(new File(sqlDir, "create_invalidations.sql"));
+   }
+
+   /*
+    * Replays every session on its own connection, all at once.
+    *
+    * @param sessions the entries of every session in captured order
+    * @param speedup how many times faster than captured, 0 for no waiting
+    * @return the latencies measured
+    */
+   static Report replay(Map<Integer, List<WorkloadCapture.Entry>> sessions, final String url, final String user,
+                        final double speedup, String name) throws Exception {
+      Report report = new Report(name);
+      ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, sessions.size()));
+      final long start = System.nanoTime();
+      try {
+         List<Future<Report>> runs = new ArrayList<Future<Report>>();
+         for (final List<WorkloadCapture.Entry> session : sessions.values()) {
+            runs.add(pool.submit(() -> replaySession(session, url, user, speedup, start)));
+         }
+         for (Future<Report> run : runs) {
+            for (Map.Entry<Integer, Stats> e : run.get().byTemplate.entrySet()) report.stats(e.getKey()).addAll(e.getValue());
+         }
+      }
+      finally {
+         pool.shutdown();
+      }
+      report.seconds = (System.nanoTime() - start) / 1e9;
+      return report;
+   }
+
+   static Report replaySession(List<WorkloadCapture.Entry> session, String url, String user, double speedup, long start) throws Exception {
+      Report report = new Report(null);
+      Connection conn = DriverManager.getConnection(url, user, "");
+      try {
+         for (WorkloadCapture.Entry e : session) {
+            if (speedup > 0) {
+               long wait = start + (long) (e.startMicros * 1000 / speedup) - System.nanoTime();
+               if (wait > 0) Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            }
+            long t = System.nanoTime();
+            try {
+               execute(conn, e);
+               report.stats(key(e)).add((System.nanoTime() - t) / 1000);
+            }
+            catch (SQLException ex) {
+               report.stats(key(e)).errors++;
+            }
+         }
+      }
+      finally {
+         conn.close();
+      }
+      return report;
+   }
+
+   //makes the JDBC calls the entry records
+   static void execute(Connection conn, WorkloadCapture.Entry e) throws SQLException {
+      switch (e.kind) {
+         case WorkloadCapture.AUTOCOMMIT_OFF: conn.setAutoCommit(false); return;
+         case WorkloadCapture.AUTOCOMMIT_ON: conn.setAutoCommit(true); return;
+         case WorkloadCapture.COMMIT: conn.commit(); return;
+         case WorkloadCapture.ROLLBACK: conn.rollback(); return;
+         case WorkloadCapture.CALL: {
+            CallableStatement stmt = conn.prepareCall(e.sql);
+            try {
+               stmt.registerOutParameter(1, Types.INTEGER);
+               Object[] params = e.rows.get(0);
+               for (int i = 0; i < params.length; i++) stmt.setObject(i + 2, params[i]);
+               stmt.execute();
+            }
+            finally {
+               stmt.close();
+            }
+            return;
+         }
+         default: {
+            PreparedStatement stmt = conn.prepareStatement(e.sql);
+            try {
+               for (Object[] params : e.rows) {
+                  for (int i = 0; i < params.length; i++) stmt.setObject(i + 1, params[i]);
+                  if (e.kind == WorkloadCapture.BATCH) stmt.addBatch();
+               }
+               if (e.kind == WorkloadCapture.BATCH) {
+                  stmt.executeBatch();
+               }
+               else if (e.kind == WorkloadCapture.QUERY) {
+                  ResultSet rs = stmt.executeQuery();
+                  while (rs.next()) { }
+               }
+               else {
+                  stmt.executeUpdate();
+               }
+            }
+            finally {
+               stmt.close();
+            }
+         }
+      }
+   }
+
+   static String label(WorkloadCapture.Entry e) {
+      switch (e.kind) {
+         case WorkloadCapture.AUTOCOMMIT_OFF: return "(begin)";
+         case WorkloadCapture.AUTOCOMMIT_ON: return "(autocommit)";
+         case WorkloadCapture.COMMIT: return "(commit)";
+         case WorkloadCapture.ROLLBACK: return "(rollback)";
+      }
+      String sql = e.sql.replaceAll("\\s+", " ").trim();
+      return sql.length() > 56 ? sql.substring(0, 53) + "..." : sql;
+   }
+
+   /*
+    * Prints the throughput of every run, then the mean and 99th percentile
+    * of every statement in each run and how much the last run moved the
+    * mean against the run before it.
+    */
+   static void print(List<Report> reports, Map<Integer, String> labels) {
+      Report last = reports.get(reports.size() - 1), before = reports.get(Math.max(0, reports.size() - 2));
+      for (Report r : reports) {
+         double rate = r.seconds == 0 ? 0 : r.statements() / r.seconds;
+         System.out.printf("%-24s %,10d statements %8.1f s %10.0f /s   errors %,d", r.name, r.statements(), r.seconds, rate, r.errors());
+         if (r == last && r != before && before.seconds > 0) {
+            double beforeRate = before.statements() / before.seconds;
+            System.out.printf("   %+.1f%% vs %s", 100 * (rate - beforeRate) / beforeRate, before.name);
+         }
+         System.out.println();
+      }
+      System.out.println();
+      System.out.printf("%-56s %8s", "statement", "count");
+      for (Report r : reports) System.out.printf(" %22s", r.name + " mean/p99 ms");
+      System.out.printf(" %10s%n", "delta");
+      for (Map.Entry<Integer, Stats> e : reports.get(0).byTemplate.entrySet()) {
+         System.out.printf("%-56s %,8d", labels.get(e.getKey()), e.getValue().count);
+         for (Report r : reports) {
+            Stats s = r.stats(e.getKey());
+            System.out.printf(" %11.3f/%-10.3f", s.meanMillis(), s.percentileMillis(0.99));
+         }
+         double a = before.stats(e.getKey()).meanMillis(), b = last.stats(e.getKey()).meanMillis();
+         System.out.printf(" %+9.1f%%%n", a == 0 ? 0 : 100 * (b - a) / a);
+      }
+   }
+}
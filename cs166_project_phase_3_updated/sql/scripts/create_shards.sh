@@ -0,0 +1,22 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# one shard per local Postgres instance: splits the CSV files by store region
+# (ShardedRepository split), loads every part into the instance on its port
+# and interleaves the serial numbers of the instances.
+# Compile first with java/scripts/compile.sh, then run the application with
+#   java -cp classes:lib/pg73jdbc3.jar Amazon -shards <dbname> <user> <port> [<port> ...]
+# usage: create_shards.sh <port> [<port> ...]
+DB=$USER"_project_phase_3_DB"
+CP=$DIR/../../java/classes:$DIR/../../java/lib/pg73jdbc3.jar
+SPLIT=$(mktemp -d)
+java -cp $CP ShardedRepository split $DIR/../../data $SPLIT $#
+SHARD=0
+for PORT in "$@"; do
+   cs166_psql -p $PORT $DB < $DIR/../src/create_tables.sql
+   cs166_psql -p $PORT $DB < $DIR/../src/create_functions.sql
+   java -cp $CP CsvLoader $DB $PORT $USER $SPLIT/shard$SHARD $DIR/../src/create_indexes.sql
+   cs166_psql -p $PORT $DB < $DIR/../src/create_invalidations.sql
+   SHARD=$((SHARD + 1))
+done
+java -cp $CP ShardedRepository number $DB $USER "$@"
+rm -rf $SPLIT
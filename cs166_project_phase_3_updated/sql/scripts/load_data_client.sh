@@ -0,0 +1,9 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# same as create_db.sh, but the CSV files are streamed from this machine by
+# CsvLoader (compile it first with java/scripts/compile.sh).
+# usage: load_data_client.sh [dataDir]
+cs166_psql -p $PGPORT $USER"_project_phase_3_DB" < $DIR/../src/create_tables.sql
+cs166_psql -p $PGPORT $USER"_project_phase_3_DB" < $DIR/../src/create_functions.sql
+java -cp $DIR/../../java/classes:$DIR/../../java/lib/pg73jdbc3.jar CsvLoader $USER"_project_phase_3_DB" $PGPORT $USER ${1:-$DIR/../../data} $DIR/../src/create_indexes.sql
+cs166_psql -p $PGPORT $USER"_project_phase_3_DB" < $DIR/../src/create_invalidations.sql
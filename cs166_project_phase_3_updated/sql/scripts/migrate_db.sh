@@ -0,0 +1,11 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# moves a database loaded before ProductNames existed to the compact layout
+# of create_tables.sql, keeping its data, adds the supply request queue and
+# installs the current functions. A database already in the compact layout
+# only gets the later steps: the first script fails and rolls back.
+# usage: migrate_db.sh [port]
+cs166_psql -p ${1:-$PGPORT} $USER"_project_phase_3_DB" < $DIR/../src/migrate_compact_schema.sql
+cs166_psql -p ${1:-$PGPORT} $USER"_project_phase_3_DB" < $DIR/../src/migrate_supply_queue.sql
+cs166_psql -p ${1:-$PGPORT} $USER"_project_phase_3_DB" < $DIR/../src/create_functions.sql
+cs166_psql -p ${1:-$PGPORT} $USER"_project_phase_3_DB" < $DIR/../src/create_invalidations.sql
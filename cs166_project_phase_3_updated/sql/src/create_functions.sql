@@ -0,0 +1,87 @@
+-- the functions and triggers of the tables of create_tables.sql; run after it,
+-- and again after migrate_compact_schema.sql. Safe to run more than once. The
+-- invalidation triggers are in create_invalidations.sql, run after the load.
+
+-- The triggers run once per statement and read the rows it changed from its
+-- transition tables (postgres 10 or later), so a batch of orders, a CSV load
+-- or a bulk update costs one set-based INSERT rather than a trigger call per
+-- row. A statement fires the trigger of its event only: the one of an INSERT
+-- has no old_rows, of a DELETE no new_rows.
+
+-- stamped with the second of the transaction, like orderTime, so the version
+-- an order leaves behind carries the price that order paid
+CREATE OR REPLACE FUNCTION record_product_version() RETURNS trigger AS $$
+BEGIN
+   IF TG_OP = 'INSERT' THEN
+      INSERT INTO ProductVersions (storeID, productID, numberOfUnits, pricePerUnit, validFrom)
+      SELECT storeID, productID, numberOfUnits, pricePerUnit, DATE_TRUNC('second', CURRENT_TIMESTAMP) FROM new_rows;
+   ELSE
+      INSERT INTO ProductVersions (storeID, productID, numberOfUnits, pricePerUnit, validFrom)
+      SELECT n.storeID, n.productID, n.numberOfUnits, n.pricePerUnit, DATE_TRUNC('second', CURRENT_TIMESTAMP)
+      FROM new_rows n JOIN old_rows o ON o.storeID = n.storeID AND o.productID = n.productID
+      WHERE n.numberOfUnits <> o.numberOfUnits OR n.pricePerUnit <> o.pricePerUnit;
+   END IF;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS product_versions ON Product;
+DROP TRIGGER IF EXISTS product_versions_insert ON Product;
+DROP TRIGGER IF EXISTS product_versions_update ON Product;
+CREATE TRIGGER product_versions_insert AFTER INSERT ON Product REFERENCING NEW TABLE AS new_rows
+   FOR EACH STATEMENT EXECUTE PROCEDURE record_product_version();
+CREATE TRIGGER product_versions_update AFTER UPDATE ON Product REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+   FOR EACH STATEMENT EXECUTE PROCEDURE record_product_version();
+
+-- the manager workflows, each one call and so one transaction: the check that
+-- the user manages the store, the change and its audit row. They return the
+-- updateNumber or requestNumber made, or why nothing changed:
+--   -1 the user is not a manager
+--   -2 the user does not manage the store
+--   -3 the store does not sell the product
+--   -4 there is no such warehouse
+CREATE OR REPLACE FUNCTION manager_update_product(p_managerID integer, p_storeID integer, p_productName text,
+                                                  p_units integer, p_price float) RETURNS integer AS $$
+DECLARE
+   v_productID integer;
+BEGIN
+   IF NOT EXISTS (SELECT 1 FROM Users WHERE userID = p_managerID AND type = 'manager') THEN
+      RETURN -1;
+   END IF;
+   IF NOT EXISTS (SELECT 1 FROM Store WHERE storeID = p_storeID AND managerID = p_managerID) THEN
+      RETURN -2;
+   END IF;
+   SELECT productID INTO v_productID FROM ProductNames WHERE productName = p_productName;
+   UPDATE Product SET numberOfUnits = p_units, pricePerUnit = p_price WHERE storeID = p_storeID AND productID = v_productID;
+   IF NOT FOUND THEN
+      RETURN -3;
+   END IF;
+   INSERT INTO ProductUpdates (managerID, storeID, productID, updatedOn) VALUES (p_managerID, p_storeID, v_productID, CURRENT_TIMESTAMP);
+   RETURN currval('productupdates_updatenumber_seq');
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION manager_request_supply(p_managerID integer, p_warehouseID integer, p_storeID integer,
+                                                  p_productName text, p_units integer) RETURNS integer AS $$
+DECLARE
+   v_productID integer;
+BEGIN
+   IF NOT EXISTS (SELECT 1 FROM Users WHERE userID = p_managerID AND type = 'manager') THEN
+      RETURN -1;
+   END IF;
+   IF NOT EXISTS (SELECT 1 FROM Store WHERE storeID = p_storeID AND managerID = p_managerID) THEN
+      RETURN -2;
+   END IF;
+   IF NOT EXISTS (SELECT 1 FROM Warehouse WHERE warehouseID = p_warehouseID) THEN
+      RETURN -4;
+   END IF;
+   SELECT productID INTO v_productID FROM ProductNames WHERE productName = p_productName;
+   IF NOT EXISTS (SELECT 1 FROM Product WHERE storeID = p_storeID AND productID = v_productID) THEN
+      RETURN -3;
+   END IF;
+   -- the units reach Product when a fulfillment worker receives the request
+   INSERT INTO ProductSupplyRequests (managerID, warehouseID, storeID, productID, unitsRequested, status)
+   VALUES (p_managerID, p_warehouseID, p_storeID, v_productID, p_units, 'pending');
+   RETURN currval('productsupplyrequests_requestnumber_seq');
+END;
+$$ LANGUAGE plpgsql;
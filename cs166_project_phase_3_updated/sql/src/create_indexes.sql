@@ -0,0 +1,11 @@
+-- as-of lookups: the last version of a product at or before a time
+CREATE INDEX productversions_asof ON ProductVersions (storeID, productID, validFrom, versionNumber);
+
+-- pruning the invalidations every listener has read by now
+CREATE INDEX invalidations_time ON Invalidations (invalidated);
+
+-- the fulfillment workers claiming the oldest pending requests of a warehouse
+CREATE INDEX supply_queue ON ProductSupplyRequests (warehouseID, requestNumber) WHERE status = 'pending';
+
+-- the shipments of dead app instances, found and put back to pending
+CREATE INDEX supply_shipped ON ProductSupplyRequests (shippedOn) WHERE status = 'shipped';
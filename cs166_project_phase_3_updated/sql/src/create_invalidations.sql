@@ -0,0 +1,91 @@
+-- the triggers that append a row to Invalidations for every user, store and
+-- product changed and NOTIFY amazon_invalidations once per statement, see
+-- InvalidationListener. Run after the data is loaded, so a load does not write
+-- a row for every row it loads nor wake every listener; a fresh database has
+-- nothing for a cache to drop. Safe to run more than once.
+--
+-- Like those of create_functions.sql they run once per statement and read the
+-- changed rows from its transition tables (postgres 10 or later).
+
+-- the row triggers of an older database go before their functions change
+DROP TRIGGER IF EXISTS users_invalidations ON Users;
+DROP TRIGGER IF EXISTS users_invalidations_insert ON Users;
+DROP TRIGGER IF EXISTS users_invalidations_update ON Users;
+DROP TRIGGER IF EXISTS users_invalidations_delete ON Users;
+DROP TRIGGER IF EXISTS store_invalidations ON Store;
+DROP TRIGGER IF EXISTS store_invalidations_insert ON Store;
+DROP TRIGGER IF EXISTS store_invalidations_update ON Store;
+DROP TRIGGER IF EXISTS store_invalidations_delete ON Store;
+DROP TRIGGER IF EXISTS product_invalidations ON Product;
+DROP TRIGGER IF EXISTS product_invalidations_insert ON Product;
+DROP TRIGGER IF EXISTS product_invalidations_update ON Product;
+DROP TRIGGER IF EXISTS product_invalidations_delete ON Product;
+
+CREATE OR REPLACE FUNCTION invalidate_user() RETURNS trigger AS $$
+BEGIN
+   IF TG_OP = 'DELETE' THEN
+      INSERT INTO Invalidations (entity, userID, invalidated) SELECT 'U', userID, clock_timestamp() FROM old_rows;
+   ELSE
+      INSERT INTO Invalidations (entity, userID, invalidated) SELECT 'U', userID, clock_timestamp() FROM new_rows;
+   END IF;
+   IF FOUND THEN
+      NOTIFY amazon_invalidations;
+   END IF;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION invalidate_store() RETURNS trigger AS $$
+BEGIN
+   IF TG_OP = 'DELETE' THEN
+      INSERT INTO Invalidations (entity, storeID, invalidated) SELECT 'S', storeID, clock_timestamp() FROM old_rows;
+   ELSE
+      INSERT INTO Invalidations (entity, storeID, invalidated) SELECT 'S', storeID, clock_timestamp() FROM new_rows;
+   END IF;
+   IF FOUND THEN
+      NOTIFY amazon_invalidations;
+   END IF;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- an UPDATE that leaves the units and the price as they were invalidates nothing
+CREATE OR REPLACE FUNCTION invalidate_product() RETURNS trigger AS $$
+BEGIN
+   IF TG_OP = 'DELETE' THEN
+      INSERT INTO Invalidations (entity, storeID, productID, invalidated)
+      SELECT 'P', storeID, productID, clock_timestamp() FROM old_rows;
+   ELSIF TG_OP = 'INSERT' THEN
+      INSERT INTO Invalidations (entity, storeID, productID, invalidated)
+      SELECT 'P', storeID, productID, clock_timestamp() FROM new_rows;
+   ELSE
+      INSERT INTO Invalidations (entity, storeID, productID, invalidated)
+      SELECT 'P', n.storeID, n.productID, clock_timestamp()
+      FROM new_rows n JOIN old_rows o ON o.storeID = n.storeID AND o.productID = n.productID
+      WHERE n.numberOfUnits <> o.numberOfUnits OR n.pricePerUnit <> o.pricePerUnit;
+   END IF;
+   IF FOUND THEN
+      NOTIFY amazon_invalidations;
+   END IF;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER users_invalidations_insert AFTER INSERT ON Users REFERENCING NEW TABLE AS new_rows
+   FOR EACH STATEMENT EXECUTE PROCEDURE invalidate_user();
+CREATE TRIGGER users_invalidations_update AFTER UPDATE ON Users REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+   FOR EACH STATEMENT EXECUTE PROCEDURE invalidate_user();
+CREATE TRIGGER users_invalidations_delete AFTER DELETE ON Users REFERENCING OLD TABLE AS old_rows
+   FOR EACH STATEMENT EXECUTE PROCEDURE invalidate_user();
+CREATE TRIGGER store_invalidations_insert AFTER INSERT ON Store REFERENCING NEW TABLE AS new_rows
+   FOR EACH STATEMENT EXECUTE PROCEDURE invalidate_store();
+CREATE TRIGGER store_invalidations_update AFTER UPDATE ON Store REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+   FOR EACH STATEMENT EXECUTE PROCEDURE invalidate_store();
+CREATE TRIGGER store_invalidations_delete AFTER DELETE ON Store REFERENCING OLD TABLE AS old_rows
+   FOR EACH STATEMENT EXECUTE PROCEDURE invalidate_store();
+CREATE TRIGGER product_invalidations_insert AFTER INSERT ON Product REFERENCING NEW TABLE AS new_rows
+   FOR EACH STATEMENT EXECUTE PROCEDURE invalidate_product();
+CREATE TRIGGER product_invalidations_update AFTER UPDATE ON Product REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+   FOR EACH STATEMENT EXECUTE PROCEDURE invalidate_product();
+CREATE TRIGGER product_invalidations_delete AFTER DELETE ON Product REFERENCING OLD TABLE AS old_rows
+   FOR EACH STATEMENT EXECUTE PROCEDURE invalidate_product();
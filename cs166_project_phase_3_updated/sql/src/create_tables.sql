@@ -5,13 +5,21 @@ DROP TABLE IF EXISTS Warehouse CASCADE;
 DROP TABLE IF EXISTS Orders CASCADE;
 DROP TABLE IF EXISTS ProductSupplyRequests CASCADE;
 DROP TABLE IF EXISTS ProductUpdates CASCADE;
+DROP TABLE IF EXISTS ProductVersions CASCADE;
+DROP TABLE IF EXISTS Invalidations CASCADE;
+DROP TABLE IF EXISTS ProductNames CASCADE;
+DROP TYPE IF EXISTS user_type CASCADE;
+DROP TYPE IF EXISTS supply_status CASCADE;
+
+CREATE TYPE user_type AS ENUM ('customer', 'manager', 'admin');
+CREATE TYPE supply_status AS ENUM ('pending', 'shipped', 'received');
 
 CREATE TABLE Users ( userID serial,
-                     name char(50) NOT NULL,
-                     password char(11) NOT NULL,    
+                     name varchar(50) NOT NULL,
+                     password varchar(11) NOT NULL,    
 					 latitude decimal(8,6) NOT NULL,
                      longitude decimal(9,6) NOT NULL,
-                     type char(10) NOT NULL,  -- type can be 'customer', 'manager', 'admin' 
+                     type user_type NOT NULL,
                      PRIMARY KEY(userID)
 );
 
@@ -26,11 +34,20 @@ CREATE TABLE Store ( storeID integer,
                      FOREIGN KEY(managerID) REFERENCES Users(userID)
 );
 
+-- every product name once; the other tables refer to a product by
+-- (storeID, productID)
+CREATE TABLE ProductNames ( productID serial,
+                            productName varchar(30) NOT NULL,
+                            PRIMARY KEY(productID),
+                            UNIQUE(productName)
+);
+
 CREATE TABLE Product ( storeID integer NOT NULL, 
-                       productName char(30) NOT NULL,
+                       productID integer NOT NULL,
                        numberOfUnits integer NOT NULL,
                        pricePerUnit float NOT NULL,
-                       PRIMARY KEY(storeID, productName), 
+                       PRIMARY KEY(storeID, productID), 
+                       FOREIGN KEY(productID) REFERENCES ProductNames(productID),
                        FOREIGN KEY(storeID) REFERENCES Store(storeID)
 		               ON DELETE CASCADE
 );
@@ -45,34 +62,69 @@ CREATE TABLE Orders (
 					 orderNumber serial NOT NULL,       
 					 customerID integer NOT NULL,
                      storeID integer NOT NULL,
-                     productName char(30) NOT NULL, 
+                     productID integer NOT NULL, 
                      unitsOrdered integer NOT NULL, 
                      orderTime timestamp NOT NULL,
                      PRIMARY KEY(orderNumber),
                      FOREIGN KEY(customerID) REFERENCES Users(userID),
-                     FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
+                     FOREIGN KEY(storeID, productID) REFERENCES Product(storeID, productID)
 );
 
+-- a request waits as 'pending' until a fulfillment worker ships it, and its
+-- units are added to Product when it is 'received'. The rows loaded from
+-- productSupplyRequests.csv were delivered long ago, hence the default; the
+-- application inserts its requests as 'pending'.
 CREATE TABLE ProductSupplyRequests (  
 							   requestNumber serial NOT NULL,
 							   managerID integer NOT NULL,    --User ID of the Manager who makes the supply request
 							   warehouseID integer NOT NULL,
                                storeID integer NOT NULL,
-                               productName char(30) NOT NULL, 
+                               productID integer NOT NULL, 
 							   unitsRequested integer NOT NULL,
+                               status supply_status NOT NULL DEFAULT 'received',
+                               shippedOn timestamp,
+                               receivedOn timestamp,
                                PRIMARY KEY(requestNumber),
 							   FOREIGN KEY(managerID) REFERENCES Users(userID), 
                                FOREIGN KEY(warehouseID) REFERENCES Warehouse(warehouseID),
-                               FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
+                               FOREIGN KEY(storeID, productID) REFERENCES Product(storeID, productID)
 );
 
 CREATE TABLE ProductUpdates (
 	 						updateNumber serial,	
 							managerID integer NOT NULL,
                         	storeID integer NOT NULL,
-                       		productName char(30) NOT NULL, 
+                       		productID integer NOT NULL, 
                             updatedOn timestamp NOT NULL,
                         	PRIMARY KEY(updateNumber),
                         	FOREIGN KEY(managerID) REFERENCES Users(userID),
-                        	FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
+                        	FOREIGN KEY(storeID, productID) REFERENCES Product(storeID, productID)
+);
+
+-- every numberOfUnits/pricePerUnit a product has had, appended by the trigger
+-- of create_functions.sql on every insert into and change of Product
+CREATE TABLE ProductVersions (
+                            versionNumber serial,
+                            storeID integer NOT NULL,
+                            productID integer NOT NULL,
+                            numberOfUnits integer NOT NULL,
+                            pricePerUnit float NOT NULL,
+                            validFrom timestamp NOT NULL,
+                            PRIMARY KEY(versionNumber),
+                            FOREIGN KEY(storeID, productID) REFERENCES Product(storeID, productID)
+                            ON DELETE CASCADE
+);
+
+-- users, stores and products that changed, whoever changed them: the triggers
+-- of create_invalidations.sql append a row and NOTIFY amazon_invalidations, and
+-- every app instance reads the rows past the last one it saw to drop what its
+-- caches hold of them
+CREATE TABLE Invalidations (
+                            invalidationNumber serial,
+                            entity char(1) NOT NULL,  -- 'U' user, 'S' store, 'P' product
+                            userID integer,
+                            storeID integer,
+                            productID integer,
+                            invalidated timestamp NOT NULL,
+                            PRIMARY KEY(invalidationNumber)
 );
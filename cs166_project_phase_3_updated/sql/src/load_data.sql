@@ -7,26 +7,41 @@ COPY Store
 FROM 'stores.csv'
 WITH DELIMITER ',' CSV HEADER;
 
-COPY Product
-FROM 'products.csv'
-WITH DELIMITER ',' CSV HEADER;
-
 COPY Warehouse
 FROM 'warehouse.csv'
 WITH DELIMITER ',' CSV HEADER;
 
-COPY Orders
+-- the files below name the products: they are copied into staging tables and
+-- go in with the productID of the name
+CREATE TEMP TABLE ProductCsv (storeID integer, productName varchar(30), numberOfUnits integer, pricePerUnit float);
+COPY ProductCsv
+FROM 'products.csv'
+WITH DELIMITER ',' CSV HEADER;
+INSERT INTO ProductNames (productName) SELECT DISTINCT productName FROM ProductCsv ORDER BY productName;
+INSERT INTO Product (storeID, productID, numberOfUnits, pricePerUnit)
+SELECT c.storeID, n.productID, c.numberOfUnits, c.pricePerUnit FROM ProductCsv c JOIN ProductNames n ON n.productName = c.productName;
+
+CREATE TEMP TABLE OrdersCsv (orderNumber integer, customerID integer, storeID integer, productName varchar(30), unitsOrdered integer, orderTime timestamp);
+COPY OrdersCsv
 FROM 'orders.csv'
 WITH DELIMITER ',' CSV HEADER;
+INSERT INTO Orders (orderNumber, customerID, storeID, productID, unitsOrdered, orderTime)
+SELECT c.orderNumber, c.customerID, c.storeID, n.productID, c.unitsOrdered, c.orderTime FROM OrdersCsv c JOIN ProductNames n ON n.productName = c.productName;
 ALTER SEQUENCE orders_orderNumber_seq RESTART 501;
 
 
-COPY ProductSupplyRequests
+CREATE TEMP TABLE ProductSupplyRequestsCsv (requestNumber integer, managerID integer, warehouseID integer, storeID integer, productName varchar(30), unitsRequested integer);
+COPY ProductSupplyRequestsCsv
 FROM 'productSupplyRequests.csv'
 WITH DELIMITER ',' CSV HEADER;
+INSERT INTO ProductSupplyRequests (requestNumber, managerID, warehouseID, storeID, productID, unitsRequested)
+SELECT c.requestNumber, c.managerID, c.warehouseID, c.storeID, n.productID, c.unitsRequested FROM ProductSupplyRequestsCsv c JOIN ProductNames n ON n.productName = c.productName;
 ALTER SEQUENCE productsupplyrequests_requestNumber_seq RESTART 11;
 
-COPY ProductUpdates
+CREATE TEMP TABLE ProductUpdatesCsv (updateNumber integer, managerID integer, storeID integer, productName varchar(30), updatedOn timestamp);
+COPY ProductUpdatesCsv
 FROM 'productUpdates.csv'
 WITH DELIMITER ',' CSV HEADER;
+INSERT INTO ProductUpdates (updateNumber, managerID, storeID, productID, updatedOn)
+SELECT c.updateNumber, c.managerID, c.storeID, n.productID, c.updatedOn FROM ProductUpdatesCsv c JOIN ProductNames n ON n.productName = c.productName;
 ALTER SEQUENCE productupdates_updateNumber_seq RESTART 51;
@@ -0,0 +1,90 @@
+-- moves a database made by the earlier create_tables.sql, with char columns
+-- and products keyed by (storeID, productName), to the current layout in
+-- place. Every table that names a product is rewritten once, the name turned
+-- into its productID; run create_functions.sql and create_invalidations.sql
+-- after it.
+BEGIN;
+
+-- the triggers of the old layout read productName
+DROP TRIGGER IF EXISTS product_versions ON Product;
+DROP TRIGGER IF EXISTS product_invalidations ON Product;
+
+-- a database older than the version and invalidation triggers has neither
+-- table; they are made here in the old layout and moved with the rest
+CREATE TABLE IF NOT EXISTS ProductVersions (
+                            versionNumber serial,
+                            storeID integer NOT NULL,
+                            productName char(30) NOT NULL,
+                            numberOfUnits integer NOT NULL,
+                            pricePerUnit float NOT NULL,
+                            validFrom timestamp NOT NULL,
+                            PRIMARY KEY(versionNumber)
+);
+CREATE TABLE IF NOT EXISTS Invalidations (
+                            invalidationNumber serial,
+                            entity char(1) NOT NULL,  -- 'U' user, 'S' store, 'P' product
+                            userID integer,
+                            storeID integer,
+                            productName char(30),
+                            invalidated timestamp NOT NULL,
+                            PRIMARY KEY(invalidationNumber)
+);
+
+CREATE TYPE user_type AS ENUM ('customer', 'manager', 'admin');
+ALTER TABLE Users ALTER COLUMN name TYPE varchar(50) USING RTRIM(name),
+                  ALTER COLUMN password TYPE varchar(11) USING RTRIM(password),
+                  ALTER COLUMN type TYPE user_type USING CAST(LOWER(RTRIM(type)) AS user_type);
+
+CREATE TABLE ProductNames ( productID serial,
+                            productName varchar(30) NOT NULL,
+                            PRIMARY KEY(productID),
+                            UNIQUE(productName)
+);
+INSERT INTO ProductNames (productName)
+SELECT RTRIM(productName) FROM Product
+UNION
+SELECT RTRIM(productName) FROM Invalidations WHERE productName IS NOT NULL
+ORDER BY 1;
+
+CREATE FUNCTION pg_temp.product_id(name char) RETURNS integer AS
+   'SELECT productID FROM ProductNames WHERE productName = RTRIM($1)' LANGUAGE sql STABLE;
+
+-- the keys on (storeID, productName) go before the column changes type
+DO $$
+DECLARE
+   c record;
+BEGIN
+   FOR c IN SELECT conrelid::regclass AS tab, conname FROM pg_constraint WHERE confrelid = 'product'::regclass LOOP
+      EXECUTE 'ALTER TABLE ' || c.tab || ' DROP CONSTRAINT ' || quote_ident(c.conname);
+   END LOOP;
+END $$;
+ALTER TABLE Product DROP CONSTRAINT product_pkey;
+
+ALTER TABLE Product ALTER COLUMN productName TYPE integer USING pg_temp.product_id(productName);
+ALTER TABLE Product RENAME COLUMN productName TO productID;
+ALTER TABLE Orders ALTER COLUMN productName TYPE integer USING pg_temp.product_id(productName);
+ALTER TABLE Orders RENAME COLUMN productName TO productID;
+ALTER TABLE ProductSupplyRequests ALTER COLUMN productName TYPE integer USING pg_temp.product_id(productName);
+ALTER TABLE ProductSupplyRequests RENAME COLUMN productName TO productID;
+ALTER TABLE ProductUpdates ALTER COLUMN productName TYPE integer USING pg_temp.product_id(productName);
+ALTER TABLE ProductUpdates RENAME COLUMN productName TO productID;
+ALTER TABLE ProductVersions ALTER COLUMN productName TYPE integer USING pg_temp.product_id(productName);
+ALTER TABLE ProductVersions RENAME COLUMN productName TO productID;
+ALTER TABLE Invalidations ALTER COLUMN productName TYPE integer USING pg_temp.product_id(productName);
+ALTER TABLE Invalidations RENAME COLUMN productName TO productID;
+
+ALTER TABLE Product ADD PRIMARY KEY(storeID, productID),
+                    ADD FOREIGN KEY(productID) REFERENCES ProductNames(productID);
+ALTER TABLE Orders ADD FOREIGN KEY(storeID, productID) REFERENCES Product(storeID, productID);
+ALTER TABLE ProductSupplyRequests ADD FOREIGN KEY(storeID, productID) REFERENCES Product(storeID, productID);
+ALTER TABLE ProductUpdates ADD FOREIGN KEY(storeID, productID) REFERENCES Product(storeID, productID);
+ALTER TABLE ProductVersions ADD FOREIGN KEY(storeID, productID) REFERENCES Product(storeID, productID)
+                            ON DELETE CASCADE;
+
+-- the indexes of create_indexes.sql on the tables made above
+CREATE INDEX IF NOT EXISTS productversions_asof ON ProductVersions (storeID, productID, validFrom, versionNumber);
+CREATE INDEX IF NOT EXISTS invalidations_time ON Invalidations (invalidated);
+
+COMMIT;
+
+ANALYZE;
@@ -0,0 +1,22 @@
+-- adds the fulfillment queue to ProductSupplyRequests of an existing database:
+-- every request already there was applied to Product when it was made, so it
+-- counts as received. Safe to run more than once; run create_functions.sql
+-- after it.
+BEGIN;
+
+DO $$
+BEGIN
+   IF NOT EXISTS (SELECT 1 FROM pg_type WHERE typname = 'supply_status') THEN
+      CREATE TYPE supply_status AS ENUM ('pending', 'shipped', 'received');
+   END IF;
+END;
+$$;
+
+ALTER TABLE ProductSupplyRequests ADD COLUMN IF NOT EXISTS status supply_status NOT NULL DEFAULT 'received',
+                                  ADD COLUMN IF NOT EXISTS shippedOn timestamp,
+                                  ADD COLUMN IF NOT EXISTS receivedOn timestamp;
+
+CREATE INDEX IF NOT EXISTS supply_queue ON ProductSupplyRequests (warehouseID, requestNumber) WHERE status = 'pending';
+CREATE INDEX IF NOT EXISTS supply_shipped ON ProductSupplyRequests (shippedOn) WHERE status = 'shipped';
+
+COMMIT;